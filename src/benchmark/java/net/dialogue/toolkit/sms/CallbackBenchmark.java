@@ -0,0 +1,74 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of delivery reports and replies and decoding of reply messages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CallbackBenchmark {
+
+    private static final String REPORT =
+            "<callback " +
+                    "X-E3-Delivery-Report=\"00\" " +
+                    "X-E3-ID=\"90A9893BC2B645918034F4C358A062CE\" " +
+                    "X-E3-Loop=\"1322229741.93646\" " +
+                    "X-E3-Network=\"Orange\" " +
+                    "X-E3-Recipients=\"447700900000\" " +
+                    "X-E3-Timestamp=\"2011-12-01 18:02:21\" " +
+                    "X-E3-User-Key=\"myKey1234\"/>";
+
+    private static final String HEX_MESSAGE = "54657374204D657373616765";
+
+    private static final String REPLY =
+            "<callback " +
+                    "X-E3-Account-Name=\"test\" " +
+                    "X-E3-Data-Coding-Scheme=\"00\" " +
+                    "X-E3-Hex-Message=\"" + HEX_MESSAGE + "\" " +
+                    "X-E3-ID=\"809EF683F022441DB9C4895AED6382CF\" " +
+                    "X-E3-Loop=\"1322223264.20603\" " +
+                    "X-E3-MO-Campaign=\"\" " +
+                    "X-E3-MO-Keyword=\"\" " +
+                    "X-E3-Network=\"Orange\" " +
+                    "X-E3-Originating-Address=\"447700900000\" " +
+                    "X-E3-Protocol-Identifier=\"00\" " +
+                    "X-E3-Recipients=\"1234567890\" " +
+                    "X-E3-Session-ID=\"1234567890\" " +
+                    "X-E3-Timestamp=\"2011-11-25 12:14:23.000000\" " +
+                    "X-E3-User-Data-Header-Indicator=\"0\"/>";
+
+    @Benchmark
+    public SmsReport parseReport() throws IOException {
+        return SmsReport.getInstance(REPORT);
+    }
+
+    @Benchmark
+    public SmsReply parseReply() throws IOException {
+        return SmsReply.getInstance(REPLY);
+    }
+
+    /**
+     * Decodes the message of a reply that has not been decoded before.
+     */
+    @Benchmark
+    public String getMessage() {
+        SmsReply reply = new SmsReply();
+        reply.setHexMessage(HEX_MESSAGE);
+        return reply.getMessage();
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Marshalling of requests and unmarshalling of responses across recipient counts. The request body
+ * benchmarks compare a buffering transport with sending a SerializedSendSmsRequest; run them with
+ * -prof gc to compare the bytes allocated per request body.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MarshallerBenchmark {
+
+    @Param({"1", "10", "100", "1000", "10000"})
+    public int recipients;
+
+    private final Marshaller marshaller = new Marshaller();
+    private SendSmsRequest request;
+    private SerializedSendSmsRequest serialized;
+    private byte[] response;
+
+    @Setup
+    public void setUp() throws IOException {
+        List<String> list = new ArrayList<String>();
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?><sendSmsResponse>");
+        for (int n = 0; n < recipients; n++) {
+            String recipient = "4477009" + (10000 + n);
+            list.add(recipient);
+            xml.append("<sms X-E3-ID=\"").append(Integer.toHexString(n + 1).toUpperCase())
+                    .append("\" X-E3-Recipients=\"").append(recipient)
+                    .append("\" X-E3-Submission-Report=\"00\"/>");
+        }
+        xml.append("</sendSmsResponse>");
+
+        request = new SendSmsRequest("This is a test message.", list);
+        request.setConfirmDelivery(true);
+        request.setReplyPath("http://www.example.com/reports");
+        request.setUserTag("benchmark");
+        request.setValidityPeriod(TimeUnit.DAYS.toMillis(2));
+        serialized = new SerializedSendSmsRequest(request);
+        response = xml.toString().getBytes("UTF-8");
+    }
+
+    @Benchmark
+    public void marshal(Sink sink) throws IOException {
+        marshaller.marshalOutputStream(request, sink);
+    }
+
+    @Benchmark
+    public Object unmarshal() throws IOException {
+        return marshaller.unmarshalInputStream(new ByteArrayInputStream(response));
+    }
+
+    /**
+     * Request body as written by a buffering transport: marshalled into a buffer, copied out of it and
+     * written to the connection.
+     */
+    @Benchmark
+    public void bufferedRequestBody(Sink sink) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
+        marshaller.marshalOutputStream(request, buffer);
+        byte[] body = buffer.toByteArray();
+        sink.write(body, 0, body.length);
+    }
+
+    /**
+     * Request body as written by SendSmsClient.sendSms(SerializedSendSmsRequest) with a streaming
+     * transport: the request is serialized, then the bytes are written to the connection as they are.
+     */
+    @Benchmark
+    public void serializedRequestBody(Sink sink) throws IOException {
+        new SerializedSendSmsRequest(request).writeTo(sink);
+    }
+
+    /**
+     * Request body of a SerializedSendSmsRequest sent once more, e.g. on a retry or a resend: the bytes
+     * are written without serializing the request again.
+     */
+    @Benchmark
+    public void resentRequestBody(Sink sink) throws IOException {
+        serialized.writeTo(sink);
+    }
+
+    /**
+     * Connection stand-in discarding the bytes written to it. The length is kept in a field, so the writes
+     * cannot be eliminated.
+     */
+    @State(Scope.Thread)
+    public static class Sink extends OutputStream {
+
+        private long length;
+
+        @Override
+        public void write(int b) {
+            length++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            length += len;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Segment calculation of a typical campaign message, as done for every message with ValidateSegments.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageAnalyzerBenchmark {
+
+    @Param({"gsm7", "ucs2"})
+    public String encoding;
+
+    private String message;
+
+    @Setup
+    public void setUp() {
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < 300) {
+            builder.append("Your order has shipped \u20ac12.50 ");
+        }
+        if ("ucs2".equals(encoding))
+            builder.append('\u4e2d');
+        message = builder.toString();
+    }
+
+    @Benchmark
+    public int getSegments() {
+        return MessageAnalyzer.getSegments(message);
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable enqueues followed by an acknowledgement, from several threads sharing the group commit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class OutboxBenchmark {
+
+    private File directory;
+    private Outbox outbox;
+    private SerializedSendSmsRequest serialized;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = File.createTempFile("outbox", "");
+        directory.delete();
+        outbox = new Outbox(directory, new SendSmsClient());
+        outbox.open();
+        serialized = new SerializedSendSmsRequest(new SendSmsRequest("This is a test message.", "447700900000"));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        outbox.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public long enqueueAndAcknowledge() throws IOException {
+        long id = outbox.enqueue(serialized);
+        outbox.acknowledge(id, null);
+        return id;
+    }
+}
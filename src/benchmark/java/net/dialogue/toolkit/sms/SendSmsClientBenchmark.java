@@ -0,0 +1,74 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.http.client.ClientHttpRequestFactory;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static net.dialogue.toolkit.sms.SendSmsClient.Builder.*;
+
+/**
+ * End-to-end submissions to a loopback StubServer using each of the built-in transports.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendSmsClientBenchmark {
+
+    @Param({"SIMPLE", "SIMPLE_STREAMING", "COMMONS", "HTTP_COMPONENTS", "POOLED"})
+    public String transport;
+
+    private StubServer server;
+    private SendSmsClient client;
+    private SendSmsRequest request;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new StubServer();
+
+        SendSmsClient.Builder builder = new SendSmsClient.Builder();
+        if (transport.equals("POOLED")) {
+            builder.pooledTransport();
+        } else {
+            builder.transport(getTransport(transport));
+        }
+        client = builder
+                .endpoint(server.getEndpoint())
+                .credentials("user123", "pass456")
+                .secure(false)
+                .build();
+        request = new SendSmsRequest("This is a test message.", "447700900000");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+        server.close();
+    }
+
+    @Benchmark
+    public SendSmsResponse sendSms() throws IOException {
+        return client.sendSms(request);
+    }
+
+    private static ClientHttpRequestFactory getTransport(String name) {
+        if (name.equals("SIMPLE_STREAMING"))
+            return TRANSPORT_SIMPLE_STREAMING_CLIENT;
+        if (name.equals("COMMONS"))
+            return TRANSPORT_COMMONS_CLIENT;
+        if (name.equals("HTTP_COMPONENTS"))
+            return TRANSPORT_HTTP_COMPONENTS_CLIENT;
+        return TRANSPORT_SIMPLE_CLIENT;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Typed request properties.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendSmsRequestBenchmark {
+
+    private final SendSmsRequest request = new SendSmsRequest("This is a test message.", "447700900000");
+    private long validityPeriod = TimeUnit.HOURS.toMillis(36);
+
+    @Benchmark
+    public SendSmsRequest setValidityPeriod() {
+        request.setValidityPeriod(validityPeriod);
+        return request;
+    }
+
+    /**
+     * Reads a schedule time that has just been set as a string, so it is parsed every time.
+     */
+    @Benchmark
+    public Date getScheduleFor() {
+        request.put("X-E3-Schedule-For", "20120901123000");
+        return request.getScheduleFor();
+    }
+
+    /**
+     * Reads a schedule time that has been parsed before.
+     */
+    @Benchmark
+    public Date getScheduleForCached() {
+        return request.getScheduleFor();
+    }
+}
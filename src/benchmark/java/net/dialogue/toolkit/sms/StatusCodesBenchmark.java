@@ -0,0 +1,59 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Status code descriptions and classification.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatusCodesBenchmark {
+
+    @Param({"00", "4a", "7F", "xx"})
+    public String statusCode;
+
+    private int code;
+
+    @Setup
+    public void setUp() {
+        code = StatusCodes.decode(statusCode);
+    }
+
+    @Benchmark
+    public String getDescription() {
+        return StatusCodes.INSTANCE.getDescription(statusCode);
+    }
+
+    @Benchmark
+    public String getDescriptionInt() {
+        return StatusCodes.INSTANCE.getDescription(code);
+    }
+
+    @Benchmark
+    public void isXxx(Blackhole blackhole) {
+        StatusCodes statusCodes = StatusCodes.INSTANCE;
+        blackhole.consume(statusCodes.isTransactionCompleted(statusCode));
+        blackhole.consume(statusCodes.isTemporaryError(statusCode));
+        blackhole.consume(statusCodes.isPermanentError(statusCode));
+        blackhole.consume(statusCodes.isRetryError(statusCode));
+    }
+
+    @Benchmark
+    public StatusCodes.Category classify() {
+        return StatusCodes.INSTANCE.classify(statusCode);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.annotations.State;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parse time and heap use of the StAX unmarshaller compared with the former DOM path, which parsed the
+ * response into a Document and then converted it with unmarshalDomNode. Allocation per operation is
+ * reported by the GC profiler (gc.alloc.rate.norm). The live set benchmarks run single operations and
+ * report the heap retained at the peak of each path as liveBytes: the Document and the response for the
+ * DOM path, the response alone for the StAX path, which holds one sms element at a time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UnmarshalBenchmark {
+
+    @Param({"100", "10000"})
+    public int elements;
+
+    private final Marshaller marshaller = new Marshaller();
+    private final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+    private byte[] response;
+
+    @Setup
+    public void setUp() throws Exception {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?><sendSmsResponse>");
+        for (int n = 0; n < elements; n++) {
+            xml.append("<sms X-E3-ID=\"").append(Integer.toHexString(n + 1).toUpperCase())
+                    .append("\" X-E3-Recipients=\"4477009").append(10000 + n)
+                    .append("\" X-E3-Submission-Report=\"00\"/>");
+        }
+        xml.append("</sendSmsResponse>");
+        response = xml.toString().getBytes("UTF-8");
+    }
+
+    @Benchmark
+    public Object stax() throws Exception {
+        return marshaller.unmarshalInputStream(new ByteArrayInputStream(response));
+    }
+
+    @Benchmark
+    public Object dom() throws Exception {
+        Document document = parse();
+        return marshaller.unmarshalDomNode(document);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 3, batchSize = 1)
+    @Measurement(iterations = 10, batchSize = 1)
+    public Object staxLiveSet(Heap heap) throws Exception {
+        long before = heap.used();
+        Object result = marshaller.unmarshalInputStream(new ByteArrayInputStream(response));
+        heap.liveBytes += heap.used() - before;
+        return result;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 3, batchSize = 1)
+    @Measurement(iterations = 10, batchSize = 1)
+    public Object domLiveSet(Heap heap) throws Exception {
+        long before = heap.used();
+        Document document = parse();
+        Object result = marshaller.unmarshalDomNode(document);
+        heap.liveBytes += heap.used() - before;
+        // Keeps the document reachable until after the measurement
+        return document.getDocumentElement() != null ? result : null;
+    }
+
+    private Document parse() throws Exception {
+        return documentBuilderFactory.newDocumentBuilder().parse(new ByteArrayInputStream(response));
+    }
+
+    /**
+     * Heap in use after a full collection, reported per iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Heap {
+
+        public long liveBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            liveBytes = 0;
+        }
+
+        long used() {
+            Runtime runtime = Runtime.getRuntime();
+            for (int i = 0; i < 3; i++) {
+                System.gc();
+            }
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+    }
+}
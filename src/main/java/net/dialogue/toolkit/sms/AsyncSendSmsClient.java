@@ -0,0 +1,514 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client used for sending messages without blocking the caller. Two modes are available:
+ * <ul>
+ * <li>Non-blocking, the default: submissions are written and their responses read by the single I/O thread
+ * of a {@link NioTransport}, so thousands of submissions can be in flight without a thread each. The
+ * endpoint, EndpointGroup, Governor, Deduplicator, credentials and headers of the given SendSmsClient apply;
+ * its RestOperations and RetryPolicy do not. A submission failing over to another endpoint of the
+ * EndpointGroup is passed to the next endpoint on a daemon thread of the client, as resolving its host name
+ * and getting the credentials may block.</li>
+ * <li>Thread per submission: every submission is performed by SendSmsClient.sendSms on a thread of an
+ * executor, so everything configured on the SendSmsClient applies, but the number of submissions in flight
+ * is limited by the number of threads.</li>
+ * </ul>
+ * Usage:
+ * <p/>
+ * AsyncSendSmsClient client = new AsyncSendSmsClient(new SendSmsClient.Builder()<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;.endpoint("endpoint")<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;.credentials("username", "password")<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;.build());<br/>
+ * Future&lt;SendSmsResponse&gt; response = client.sendSms(request);
+ */
+public class AsyncSendSmsClient {
+
+    private static final Marshaller MARSHALLER = new Marshaller();
+    private static final String ACCEPT = "application/xml, text/xml, application/*+xml";
+
+    private final SendSmsClient client;
+    private final ExecutorService executor;
+    private final NioTransport transport;
+    // Sends submissions failing over to another endpoint, off the I/O thread of the transport
+    private final ExecutorService failover;
+    private final boolean ownsTransport;
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile boolean shutdown;
+
+    /**
+     * Creates a new non-blocking AsyncSendSmsClient instance using its own NioTransport with default settings.
+     *
+     * @param client The client whose settings apply to the submissions
+     * @throws IllegalArgumentException Thrown if client is null
+     */
+    public AsyncSendSmsClient(SendSmsClient client) {
+        this(client, new NioTransport(), true);
+    }
+
+    /**
+     * Creates a new non-blocking AsyncSendSmsClient instance using the given NioTransport, which may be shared
+     * by several clients and is not closed by shutdown().
+     *
+     * @param client    The client whose settings apply to the submissions
+     * @param transport The transport performing the submissions
+     * @throws IllegalArgumentException Thrown if client or transport is null
+     */
+    public AsyncSendSmsClient(SendSmsClient client, NioTransport transport) {
+        this(client, transport, false);
+    }
+
+    private AsyncSendSmsClient(SendSmsClient client, NioTransport transport, boolean ownsTransport) {
+        if (client == null) {
+            throw new IllegalArgumentException(
+                    "No client provided."
+            );
+        }
+
+        if (transport == null) {
+            throw new IllegalArgumentException(
+                    "No transport provided."
+            );
+        }
+
+        this.client = client;
+        this.executor = null;
+        this.transport = transport;
+        this.ownsTransport = ownsTransport;
+        this.failover = Executors.newCachedThreadPool(new DaemonThreadFactory());
+    }
+
+    /**
+     * Creates a new AsyncSendSmsClient instance performing each submission on one of its own daemon threads.
+     *
+     * @param client  The client performing the submissions
+     * @param threads The maximum number of submissions in flight at the same time
+     * @throws IllegalArgumentException Thrown if client is null or threads is less than 1
+     */
+    public AsyncSendSmsClient(SendSmsClient client, int threads) {
+        this(client, Executors.newFixedThreadPool(threads, new DaemonThreadFactory()));
+    }
+
+    /**
+     * Creates a new AsyncSendSmsClient instance performing each submission on a thread of the given executor.
+     *
+     * @param client   The client performing the submissions
+     * @param executor The executor performing the submissions
+     * @throws IllegalArgumentException Thrown if client or executor is null
+     */
+    public AsyncSendSmsClient(SendSmsClient client, ExecutorService executor) {
+        if (client == null) {
+            throw new IllegalArgumentException(
+                    "No client provided."
+            );
+        }
+
+        if (executor == null) {
+            throw new IllegalArgumentException(
+                    "No executor provided."
+            );
+        }
+
+        this.client = client;
+        this.executor = executor;
+        this.transport = null;
+        this.ownsTransport = false;
+        this.failover = null;
+    }
+
+    /**
+     * Gets the client performing the submissions.
+     *
+     * @return The client performing the submissions
+     */
+    public SendSmsClient getClient() {
+        return client;
+    }
+
+    /**
+     * Gets the transport performing the submissions.
+     *
+     * @return The transport, or null if submissions are performed by an executor
+     */
+    public NioTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Performs the message submission asynchronously.
+     * <p/>
+     * Future.get throws an ExecutionException whose cause is the exception SendSmsClient.sendSms would have
+     * thrown, e.g. a java.io.IOException if there is a networking or communication problem with the endpoint.
+     *
+     * @param request Request object containing message(s), recipient(s) and other optional properties
+     * @return Future of the response object containing a list of one or more submitted messages
+     * @throws java.util.concurrent.RejectedExecutionException Thrown if the client has been shut down
+     */
+    public Future<SendSmsResponse> sendSms(SendSmsRequest request) {
+        return sendSms(request, null);
+    }
+
+    /**
+     * Performs the message submission asynchronously and notifies the callback once it completed, failed or
+     * was cancelled. The callback is called on the thread completing the future: the I/O thread of the
+     * transport, which it must not block, or the executor thread that performed the submission. If the
+     * future is cancelled, the callback receives a CancellationException on the thread calling cancel;
+     * cancelling does not abort a submission already passed to the transport.
+     * <p/>
+     * In non-blocking mode the request is validated, serialized and registered with the Deduplicator on the
+     * calling thread, which also waits for a blocking Governor.
+     *
+     * @param request  Request object containing message(s), recipient(s) and other optional properties
+     * @param callback Callback notified of the outcome, or null
+     * @return Future of the response object containing a list of one or more submitted messages
+     * @throws java.util.concurrent.RejectedExecutionException Thrown if the client has been shut down
+     */
+    public Future<SendSmsResponse> sendSms(final SendSmsRequest request, final SendSmsCallback callback) {
+        if (transport != null)
+            return submit(request, callback);
+
+        FutureTask<SendSmsResponse> task = new FutureTask<SendSmsResponse>(new Callable<SendSmsResponse>() {
+            public SendSmsResponse call() throws Exception {
+                return client.sendSms(request);
+            }
+        }) {
+            @Override
+            protected void done() {
+                notifyCallback(this, callback);
+            }
+        };
+
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * Stops accepting new submissions; submissions already accepted are still performed. A NioTransport
+     * created by this client is closed once they completed.
+     */
+    public void shutdown() {
+        if (transport == null) {
+            executor.shutdown();
+            return;
+        }
+
+        shutdown = true;
+        if (pending.get() == 0)
+            closeTransport();
+    }
+
+    private void closeTransport() {
+        failover.shutdown();
+        if (!ownsTransport)
+            return;
+
+        try {
+            transport.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Future<SendSmsResponse> submit(SendSmsRequest request, SendSmsCallback callback) {
+        if (request == null) {
+            throw new IllegalArgumentException(
+                    "No request provided."
+            );
+        }
+
+        pending.incrementAndGet();
+        if (shutdown) {
+            completed();
+            throw new RejectedExecutionException(
+                    "The client has been shut down."
+            );
+        }
+
+        Submission submission = new Submission(request, callback);
+        try {
+            submission.start();
+        } catch (RejectedExecutionException e) {
+            submission.release(true);
+            completed();
+            throw e;
+        }
+        return submission;
+    }
+
+    private void completed() {
+        if (pending.decrementAndGet() == 0 && shutdown)
+            closeTransport();
+    }
+
+    private static void notifyCallback(Future<SendSmsResponse> future, SendSmsCallback callback) {
+        if (callback == null)
+            return;
+
+        SendSmsResponse response;
+        try {
+            response = future.get();
+        } catch (ExecutionException e) {
+            callback.onFailure(e.getCause());
+            return;
+        } catch (CancellationException e) {
+            callback.onFailure(e);
+            return;
+        } catch (InterruptedException e) {
+            // Cannot happen, the future is done
+            callback.onFailure(e);
+            return;
+        }
+        callback.onSuccess(response);
+    }
+
+    /**
+     * A non-blocking submission, failing over to other endpoints of the EndpointGroup as long as it fails to
+     * connect.
+     */
+    private class Submission extends SettableFuture<SendSmsResponse> {
+
+        private final SendSmsRequest request;
+        private final SendSmsCallback callback;
+        private final EndpointGroup group = client.getEndpointGroup();
+        private final List<EndpointGroup.Endpoint> tried = new ArrayList<EndpointGroup.Endpoint>();
+        private SerializedSendSmsRequest serialized;
+        private Deduplicator deduplicator;
+        private String userKey;
+        private Governor governor;
+        private EndpointGroup.Lease lease;
+        private long start;
+
+        Submission(SendSmsRequest request, SendSmsCallback callback) {
+            this.request = request;
+            this.callback = callback;
+        }
+
+        /**
+         * Prepares the submission on the calling thread and passes it to the transport.
+         *
+         * @throws RejectedExecutionException Thrown if the transport has been closed
+         */
+        void start() {
+            try {
+                client.validate(request);
+                client.assignUserKey(request);
+                serialized = new SerializedSendSmsRequest(request);
+                deduplicator = client.getDeduplicator();
+                if (deduplicator != null)
+                    userKey = deduplicator.register(request);
+                acquire();
+            } catch (IOException e) {
+                AsyncSendSmsClient.this.completed();
+                fail(e, false);
+                return;
+            } catch (RuntimeException e) {
+                AsyncSendSmsClient.this.completed();
+                fail(e, false);
+                return;
+            }
+
+            send();
+        }
+
+        private void acquire() throws InterruptedIOException {
+            Governor governor = client.getGovernor();
+            if (governor == null)
+                return;
+
+            int cost = Governor.getCost(request);
+            if (governor.isBlocking()) {
+                try {
+                    governor.acquire(cost);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(
+                            "Interrupted while waiting for the governor."
+                    );
+                }
+            } else if (!governor.tryAcquire(cost)) {
+                throw new RejectedExecutionException(
+                        "Submission rate or concurrency limit exceeded."
+                );
+            }
+            this.governor = governor;
+        }
+
+        private void send() {
+            // Before an endpoint is acquired, as a CredentialsProvider may fail
+            HttpHeaders headers = client.createHeaders();
+            String host;
+            if (group != null) {
+                lease = group.acquire(tried);
+                host = lease.endpoint.getHost();
+            } else {
+                host = client.getEndpoint();
+            }
+            start = System.nanoTime();
+
+            URI url = URI.create(client.createUrl(host));
+            boolean secure = "https".equals(url.getScheme());
+            int port = url.getPort() >= 0 ? url.getPort() : secure ? 443 : 80;
+            transport.execute(new NioTransport.Exchange(url.getHost(), port, secure,
+                    createHead(url, headers), serialized.array(), serialized.getLength()) {
+                void completed(int status, String reason, byte[] body, int offset, int length) {
+                    Submission.this.completed(status, reason, body, offset, length);
+                }
+
+                void failed(IOException e, boolean sent) {
+                    Submission.this.failed(e, sent);
+                }
+            });
+        }
+
+        private byte[] createHead(URI url, HttpHeaders headers) {
+            StringBuilder head = new StringBuilder(256);
+            head.append("POST ").append(url.getRawPath()).append(" HTTP/1.1\r\n");
+            head.append("Host: ").append(url.getRawAuthority()).append("\r\n");
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                for (String value : header.getValue()) {
+                    head.append(header.getKey()).append(": ").append(value).append("\r\n");
+                }
+            }
+            head.append("Accept: ").append(ACCEPT).append("\r\n");
+            head.append("Content-Length: ").append(serialized.getLength()).append("\r\n\r\n");
+            try {
+                return head.toString().getBytes("ISO-8859-1");
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private void completed(int status, String reason, byte[] body, int offset, int length) {
+            if (lease != null)
+                group.release(lease, status < 500, System.nanoTime() - start);
+            release(status >= 400 && status < 500);
+            AsyncSendSmsClient.this.completed();
+
+            if (status >= 200 && status < 300) {
+                try {
+                    set((SendSmsResponse) MARSHALLER.unmarshalInputStream(
+                            new ByteArrayInputStream(body, offset, length)));
+                } catch (IOException e) {
+                    setException(e);
+                } catch (RuntimeException e) {
+                    setException(e);
+                }
+            } else {
+                setException(createException(status, reason, body, offset, length));
+            }
+        }
+
+        private Exception createException(int status, String reason, byte[] body, int offset, int length) {
+            HttpStatus httpStatus;
+            try {
+                httpStatus = HttpStatus.valueOf(status);
+            } catch (IllegalArgumentException e) {
+                return new IOException("Unexpected response status: " + status + " " + reason);
+            }
+
+            byte[] content = new byte[length];
+            System.arraycopy(body, offset, content, 0, length);
+            if (status >= 400 && status < 500)
+                return new HttpClientErrorException(httpStatus, reason, content, null);
+            if (status >= 500)
+                return new HttpServerErrorException(httpStatus, reason, content, null);
+            return new IOException("Unexpected response status: " + status + " " + reason);
+        }
+
+        private void failed(final IOException e, boolean sent) {
+            if (lease != null) {
+                group.release(lease, false, System.nanoTime() - start);
+                tried.add(lease.endpoint);
+                if (!sent && EndpointGroup.isConnectFailure(e) && tried.size() < group.size()) {
+                    try {
+                        failover.execute(new Runnable() {
+                            public void run() {
+                                failover(e);
+                            }
+                        });
+                        return;
+                    } catch (RejectedExecutionException ignored) {
+                        // The client has been shut down
+                    }
+                }
+            }
+
+            AsyncSendSmsClient.this.completed();
+            fail(e, sent);
+        }
+
+        /**
+         * Sends the submission to the next endpoint, on a thread of the failover executor.
+         *
+         * @param e The failure of the previous endpoint, reported if the transport has been closed
+         */
+        private void failover(IOException e) {
+            try {
+                send();
+            } catch (RejectedExecutionException ignored) {
+                // The transport has been closed
+                AsyncSendSmsClient.this.completed();
+                fail(e, false);
+            } catch (RuntimeException f) {
+                AsyncSendSmsClient.this.completed();
+                fail(f, false);
+            }
+        }
+
+        private void fail(Exception e, boolean sent) {
+            release(!sent);
+            setException(e);
+        }
+
+        /**
+         * Releases the in-flight permit and forgets the request if it has certainly not been accepted.
+         */
+        void release(boolean forget) {
+            Governor governor = this.governor;
+            this.governor = null;
+            if (governor != null)
+                governor.release();
+            if (forget && userKey != null) {
+                deduplicator.forget(request, userKey);
+                userKey = null;
+            }
+        }
+
+        @Override
+        protected void done() {
+            notifyCallback(this, callback);
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "AsyncSendSmsClient-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Client that coalesces individual single-recipient submissions into multi-recipient requests. Submissions
+ * with the same message and identical X-E3-* properties arriving within the batching window are sent as one
+ * request; each caller's future is completed from the Sms of its recipient in the response. Usage:
+ * <p/>
+ * BatchingSendSmsClient client = new BatchingSendSmsClient(<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;new AsyncSendSmsClient(sendSmsClient, 8), 100, 500);<br/>
+ * Future&lt;Sms&gt; sms = client.sendSms(new SendSmsRequest("message", "recipient"));
+ */
+public class BatchingSendSmsClient {
+
+    private final AsyncSendSmsClient client;
+    private final long window;
+    private final int maxBatchSize;
+    private final ScheduledExecutorService scheduler;
+    private final Map<BatchKey, Batch> batches = new HashMap<BatchKey, Batch>();
+    // Guarded by batches
+    private boolean shutdown;
+
+    /**
+     * Creates a new BatchingSendSmsClient instance.
+     *
+     * @param client       The client performing the batched submissions
+     * @param window       The time in milliseconds a batch collects submissions before it is sent
+     * @param maxBatchSize The maximum number of recipients per batch; full batches are sent immediately
+     * @throws IllegalArgumentException Thrown if client is null, window is negative or maxBatchSize is less than 1
+     */
+    public BatchingSendSmsClient(AsyncSendSmsClient client, long window, int maxBatchSize) {
+        if (client == null) {
+            throw new IllegalArgumentException(
+                    "No client provided."
+            );
+        }
+
+        if (window < 0) {
+            throw new IllegalArgumentException(
+                    "The batching window must not be negative."
+            );
+        }
+
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException(
+                    "The maximum batch size must be at least 1."
+            );
+        }
+
+        this.client = client;
+        this.window = window;
+        this.maxBatchSize = maxBatchSize;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "BatchingSendSmsClient");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queues a submission of a single message to a single recipient.
+     * <p/>
+     * Future.get throws an ExecutionException whose cause is the exception the batched submission failed with,
+     * e.g. a java.io.IOException if there is a networking or communication problem with the endpoint.
+     *
+     * @param request Request object containing one message, one recipient and other optional properties
+     * @return Future of the submitted message
+     * @throws IllegalArgumentException Thrown if the request does not contain exactly one message and recipient
+     * @throws RejectedExecutionException Thrown if the client has been shut down
+     */
+    public Future<Sms> sendSms(SendSmsRequest request) {
+        if (request.getMessages().size() != 1 || request.getRecipients().size() != 1) {
+            throw new IllegalArgumentException(
+                    "Only requests with a single message and a single recipient can be batched."
+            );
+        }
+
+        SettableFuture<Sms> future = new SettableFuture<Sms>();
+        String recipient = request.getRecipients().get(0);
+        BatchKey key = new BatchKey(request);
+        // Sent after releasing the lock, as sending may wait for the Governor
+        List<Batch> ready = new ArrayList<Batch>(2);
+
+        synchronized (batches) {
+            if (shutdown) {
+                throw new RejectedExecutionException(
+                        "The client has been shut down."
+                );
+            }
+
+            Batch batch = batches.get(key);
+            if (batch != null && batch.futures.containsKey(recipient)) {
+                // Never send the same message twice to a recipient within one request
+                batches.remove(key);
+                ready.add(batch);
+                batch = null;
+            }
+
+            if (batch == null) {
+                batch = new Batch(key, request);
+                scheduleFlush(batch);
+                batches.put(key, batch);
+            }
+
+            batch.add(recipient, future);
+            if (batch.futures.size() >= maxBatchSize) {
+                batches.remove(key);
+                ready.add(batch);
+            }
+        }
+
+        for (Batch batch : ready) {
+            send(batch);
+        }
+
+        return future;
+    }
+
+    /**
+     * Sends all queued submissions immediately.
+     */
+    public void flush() {
+        List<Batch> pending;
+        synchronized (batches) {
+            pending = new ArrayList<Batch>(batches.values());
+            batches.clear();
+        }
+
+        for (Batch batch : pending) {
+            send(batch);
+        }
+    }
+
+    /**
+     * Sends all queued submissions, rejects new ones and stops the batching window timer. The
+     * AsyncSendSmsClient is not shut down.
+     */
+    public void shutdown() {
+        synchronized (batches) {
+            shutdown = true;
+        }
+        scheduler.shutdown();
+        flush();
+    }
+
+    private void scheduleFlush(final Batch batch) {
+        scheduler.schedule(new Runnable() {
+            public void run() {
+                synchronized (batches) {
+                    if (batches.get(batch.key) != batch)
+                        return;
+                    batches.remove(batch.key);
+                }
+                send(batch);
+            }
+        }, window, TimeUnit.MILLISECONDS);
+    }
+
+    private void send(final Batch batch) {
+        SendSmsRequest request = new SendSmsRequest(batch.message, new ArrayList<String>(batch.futures.keySet()));
+        request.putAll(batch.properties);
+
+        try {
+            client.sendSms(request, new SendSmsCallback() {
+                public void onSuccess(SendSmsResponse response) {
+                    try {
+                        batch.complete(response);
+                    } catch (RuntimeException e) {
+                        // Fails the futures not completed yet
+                        batch.fail(e);
+                    }
+                }
+
+                public void onFailure(Throwable e) {
+                    batch.fail(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            batch.fail(e);
+        }
+    }
+
+    /**
+     * Submissions can share a request if the message and all properties are equal.
+     */
+    private static class BatchKey {
+
+        private final String message;
+        private final Map<String, String> properties;
+
+        BatchKey(SendSmsRequest request) {
+            this.message = request.getMessages().get(0);
+            this.properties = new HashMap<String, String>(request);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof BatchKey))
+                return false;
+            BatchKey other = (BatchKey) o;
+            return message.equals(other.message) && properties.equals(other.properties);
+        }
+
+        @Override
+        public int hashCode() {
+            return message.hashCode() * 31 + properties.hashCode();
+        }
+    }
+
+    private static class Batch {
+
+        private final BatchKey key;
+        private final String message;
+        private final Map<String, String> properties;
+        private final Map<String, SettableFuture<Sms>> futures = new LinkedHashMap<String, SettableFuture<Sms>>();
+
+        Batch(BatchKey key, SendSmsRequest request) {
+            this.key = key;
+            this.message = key.message;
+            this.properties = new LinkedHashMap<String, String>(request);
+        }
+
+        void add(String recipient, SettableFuture<Sms> future) {
+            futures.put(recipient, future);
+        }
+
+        void complete(SendSmsResponse response) {
+            if (response == null || response.getMessages() == null) {
+                fail(new IllegalStateException(
+                        "No submissions returned."));
+                return;
+            }
+
+            Map<String, Sms> results = new HashMap<String, Sms>();
+            for (Sms sms : response.getMessages()) {
+                // Concatenated messages return one Sms per segment; report the first failed segment, if any
+                Sms result = results.get(sms.getRecipient());
+                if (result == null || (isSuccessful(result) && !isSuccessful(sms))) {
+                    results.put(sms.getRecipient(), sms);
+                }
+            }
+
+            for (Map.Entry<String, SettableFuture<Sms>> entry : futures.entrySet()) {
+                Sms sms = results.get(entry.getKey());
+                if (sms != null) {
+                    entry.getValue().set(sms);
+                } else {
+                    entry.getValue().setException(new IllegalStateException(
+                            "No submission returned for recipient " + entry.getKey()));
+                }
+            }
+        }
+
+        void fail(Throwable e) {
+            for (SettableFuture<Sms> future : futures.values()) {
+                future.setException(e);
+            }
+        }
+
+        private static boolean isSuccessful(Sms sms) {
+            return sms.getSubmissionReport() != null && sms.getSubmissionReport().length() > 0 &&
+                    sms.isSuccessful();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+/**
+ * Handler receiving the callbacks accepted by a CallbackReceiver. Methods are called on the dispatch threads
+ * of the receiver; while all of them are busy, further callbacks wait in the dispatch queue.
+ */
+public interface CallbackHandler {
+
+    /**
+     * Called for each delivery report received.
+     *
+     * @param report The delivery report
+     */
+    void onReport(SmsReport report);
+
+    /**
+     * Called for each reply received.
+     *
+     * @param reply The reply
+     */
+    void onReply(SmsReply reply);
+}
@@ -0,0 +1,453 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Parses incoming message report and reply POST requests. Only the attributes of the callback element are
+ * read, using a pull parser from a factory created once; instances are thread-safe and can be shared.
+ * SmsReport.getInstance and SmsReply.getInstance use the shared INSTANCE.
+ */
+public class CallbackParser {
+
+    public static final CallbackParser INSTANCE = new CallbackParser();
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    static {
+        // Callbacks are read as plain, namespace-unaware XML without external entities
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    }
+
+    private static final TimeZone TIME_ZONE = TimeZone.getTimeZone("Europe/London");
+
+    private static final long HOUR = 60 * 60 * 1000;
+
+    private static final ThreadLocal<DateFormat> TIMESTAMP_FORMAT = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            DateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            format.setTimeZone(TIME_ZONE);
+            return format;
+        }
+    };
+
+    /**
+     * Parses a report from the given stream.
+     *
+     * @param stream Input stream
+     * @return The parsed SmsReport instance
+     * @throws IOException if parsing the input failed
+     */
+    public SmsReport parseReport(InputStream stream) throws IOException {
+        try {
+            return readReport(XML_INPUT_FACTORY.createXMLStreamReader(stream));
+        } catch (XMLStreamException e) {
+            throw new IOException(e.toString());
+        }
+    }
+
+    /**
+     * Parses a report from the given reader.
+     *
+     * @param reader Input reader
+     * @return The parsed SmsReport instance
+     * @throws IOException if parsing the input failed
+     */
+    public SmsReport parseReport(Reader reader) throws IOException {
+        try {
+            return readReport(XML_INPUT_FACTORY.createXMLStreamReader(reader));
+        } catch (XMLStreamException e) {
+            throw new IOException(e.toString());
+        }
+    }
+
+    /**
+     * Parses a reply from the given stream.
+     *
+     * @param stream Input stream
+     * @return The parsed SmsReply instance
+     * @throws IOException if parsing the input failed
+     */
+    public SmsReply parseReply(InputStream stream) throws IOException {
+        try {
+            return readReply(XML_INPUT_FACTORY.createXMLStreamReader(stream));
+        } catch (XMLStreamException e) {
+            throw new IOException(e.toString());
+        }
+    }
+
+    /**
+     * Parses a reply from the given reader.
+     *
+     * @param reader Input reader
+     * @return The parsed SmsReply instance
+     * @throws IOException if parsing the input failed
+     */
+    public SmsReply parseReply(Reader reader) throws IOException {
+        try {
+            return readReply(XML_INPUT_FACTORY.createXMLStreamReader(reader));
+        } catch (XMLStreamException e) {
+            throw new IOException(e.toString());
+        }
+    }
+
+    /**
+     * Parses a report or reply from the given stream and passes it to the handler. Callbacks carrying an
+     * X-E3-Delivery-Report attribute are reports, all others replies.
+     *
+     * @param stream  Input stream
+     * @param handler The handler receiving the parsed report or reply
+     * @throws IOException if parsing the input failed
+     */
+    public void parse(InputStream stream, CallbackHandler handler) throws IOException {
+        try {
+            XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(stream);
+            try {
+                nextElement(reader);
+                if (reader.getAttributeValue(null, "X-E3-Delivery-Report") != null) {
+                    handler.onReport(readReport(reader, new SmsReport()));
+                } else {
+                    handler.onReply(readReply(reader, new SmsReply()));
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException(e.toString());
+        }
+    }
+
+    /**
+     * Parses a batch of reports and replies from the given stream, decoded as UTF-8, and passes each to the
+     * handler as soon as it has been read. See {@link #parseBatch(Reader, CallbackHandler)}.
+     * <p/>
+     * The encoding declarations of the callback documents are ignored, so batches in any other encoding
+     * must be parsed with {@link #parseBatch(InputStream, String, CallbackHandler)}.
+     *
+     * @param stream  Input stream
+     * @param handler The handler receiving the parsed reports and replies
+     * @return The number of reports and replies parsed
+     * @throws IOException if parsing the input failed; reports and replies before the error have been passed
+     * to the handler
+     */
+    public int parseBatch(InputStream stream, CallbackHandler handler) throws IOException {
+        return parseBatch(stream, "UTF-8", handler);
+    }
+
+    /**
+     * Parses a batch of reports and replies from the given stream, decoded using the given encoding, and
+     * passes each to the handler as soon as it has been read. See {@link #parseBatch(Reader, CallbackHandler)}.
+     * <p/>
+     * The encoding declarations of the callback documents are ignored, so the encoding applies to the whole
+     * batch.
+     *
+     * @param stream   Input stream
+     * @param encoding The name of the encoding of the batch, e.g. ISO-8859-1
+     * @param handler  The handler receiving the parsed reports and replies
+     * @return The number of reports and replies parsed
+     * @throws IOException if parsing the input failed, or the encoding is not supported; reports and replies
+     * before the error have been passed to the handler
+     */
+    public int parseBatch(InputStream stream, String encoding, CallbackHandler handler) throws IOException {
+        return parseBatch(new InputStreamReader(stream, encoding), handler);
+    }
+
+    /**
+     * Parses a batch of reports and replies from the given reader and passes each to the handler as soon as
+     * it has been read, so batches of any size can be processed without holding them in memory.
+     * <p/>
+     * The batch can be a sequence of callback documents, e.g. one per line, with or without XML declarations,
+     * or a document wrapping the callback elements in any root element. Every element carrying X-E3-*
+     * attributes is a record; those with an X-E3-Delivery-Report attribute are reports, all others replies.
+     *
+     * @param reader  Input reader
+     * @param handler The handler receiving the parsed reports and replies
+     * @return The number of reports and replies parsed
+     * @throws IOException if parsing the input failed; reports and replies before the error have been passed
+     * to the handler
+     */
+    public int parseBatch(Reader reader, CallbackHandler handler) throws IOException {
+        int count = 0;
+        try {
+            XMLStreamReader xmlStreamReader = XML_INPUT_FACTORY.createXMLStreamReader(new BatchReader(reader));
+            try {
+                while (xmlStreamReader.hasNext()) {
+                    if (xmlStreamReader.next() != XMLStreamConstants.START_ELEMENT || !isRecord(xmlStreamReader))
+                        continue;
+
+                    if (xmlStreamReader.getAttributeValue(null, "X-E3-Delivery-Report") != null) {
+                        handler.onReport(readReport(xmlStreamReader, new SmsReport()));
+                    } else {
+                        handler.onReply(readReply(xmlStreamReader, new SmsReply()));
+                    }
+                    count++;
+                }
+            } finally {
+                xmlStreamReader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException(e.toString());
+        }
+        return count;
+    }
+
+    private static boolean isRecord(XMLStreamReader reader) {
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            if (reader.getAttributeLocalName(i).startsWith("X-E3-"))
+                return true;
+        }
+        return false;
+    }
+
+    private SmsReport readReport(XMLStreamReader reader) throws XMLStreamException, IOException {
+        try {
+            nextElement(reader);
+            return readReport(reader, new SmsReport());
+        } finally {
+            reader.close();
+        }
+    }
+
+    private SmsReply readReply(XMLStreamReader reader) throws XMLStreamException, IOException {
+        try {
+            nextElement(reader);
+            return readReply(reader, new SmsReply());
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static SmsReport readReport(XMLStreamReader reader, SmsReport report) throws IOException {
+        report.setId(getAttribute(reader, "X-E3-ID"));
+        report.setRecipient(getAttribute(reader, "X-E3-Recipients"));
+        report.setDeliveryReport(getAttribute(reader, "X-E3-Delivery-Report"));
+        report.setUserKey(getAttribute(reader, "X-E3-User-Key"));
+        report.setTimestamp(parseTimestamp(getAttribute(reader, "X-E3-Timestamp")));
+        report.setNetwork(getAttribute(reader, "X-E3-Network"));
+        return report;
+    }
+
+    private static SmsReply readReply(XMLStreamReader reader, SmsReply reply) throws IOException {
+        reply.setId(getAttribute(reader, "X-E3-ID"));
+        reply.setSender(getAttribute(reader, "X-E3-Originating-Address"));
+        reply.setSessionId(getAttribute(reader, "X-E3-Session-ID"));
+        reply.setHexMessage(getAttribute(reader, "X-E3-Hex-Message"));
+        reply.setDataCodingScheme(getAttribute(reader, "X-E3-Data-Coding-Scheme"));
+        reply.setTimestamp(parseTimestamp(getAttribute(reader, "X-E3-Timestamp")));
+        reply.setNetwork(getAttribute(reader, "X-E3-Network"));
+        return reply;
+    }
+
+    /**
+     * Moves to the document element.
+     */
+    private static void nextElement(XMLStreamReader reader) throws XMLStreamException {
+        while (reader.next() != XMLStreamConstants.START_ELEMENT) {
+            // Skip prolog
+        }
+    }
+
+    /**
+     * Gets an attribute of the current element, an empty string if missing.
+     */
+    private static String getAttribute(XMLStreamReader reader, String name) {
+        String value = reader.getAttributeValue(null, name);
+        return value == null ? "" : value;
+    }
+
+    /**
+     * Parses an X-E3-Timestamp value, yyyy-MM-dd HH:mm:ss in Europe/London time optionally followed by
+     * fractional seconds. Values not in this exact form or close to a daylight saving time transition are
+     * left to SimpleDateFormat, so the result is always the same.
+     */
+    static Date parseTimestamp(String value) throws IOException {
+        long local = parseLocal(value);
+        if (local != Long.MIN_VALUE) {
+            long time = local - TIME_ZONE.getOffset(local - TIME_ZONE.getRawOffset());
+            if (TIME_ZONE.getOffset(time - 3 * HOUR) == TIME_ZONE.getOffset(time + 3 * HOUR)) {
+                return new Date(time);
+            }
+        }
+
+        try {
+            return TIMESTAMP_FORMAT.get().parse(value);
+        } catch (ParseException e) {
+            throw new IOException(
+                    "Failed to parse X-E3-Timestamp: " + value
+            );
+        }
+    }
+
+    /**
+     * Parses yyyy-MM-dd HH:mm:ss into milliseconds since the epoch in local time.
+     *
+     * @return The local time or Long.MIN_VALUE if not in this exact form
+     */
+    private static long parseLocal(String value) {
+        if (value.length() < 19 || value.charAt(4) != '-' || value.charAt(7) != '-' || value.charAt(10) != ' ' ||
+                value.charAt(13) != ':' || value.charAt(16) != ':' ||
+                (value.length() > 19 && value.charAt(19) != '.'))
+            return Long.MIN_VALUE;
+
+        int year = digits(value, 0, 4);
+        int month = digits(value, 5, 2);
+        int day = digits(value, 8, 2);
+        int hour = digits(value, 11, 2);
+        int minute = digits(value, 14, 2);
+        int second = digits(value, 17, 2);
+        if (year < 1900 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month) ||
+                hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59)
+            return Long.MIN_VALUE;
+        for (int i = 20; i < value.length(); i++) {
+            if (value.charAt(i) < '0' || value.charAt(i) > '9')
+                return Long.MIN_VALUE;
+        }
+
+        // Days since 1970-01-01 in the proleptic Gregorian calendar
+        int y = month <= 2 ? year - 1 : year;
+        int era = y / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        long days = era * 146097L + dayOfEra - 719468;
+
+        return ((days * 24 + hour) * 60 + minute) * 60000L + second * 1000L;
+    }
+
+    private static int digits(String value, int start, int count) {
+        int result = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0 ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    /**
+     * Turns a sequence of documents into a single document: wraps the input in a batch element and drops the
+     * XML declarations, which are only allowed at the very beginning of a document.
+     */
+    static class BatchReader extends Reader {
+
+        private static final char[] START = "<batch>".toCharArray();
+        private static final char[] END = "</batch>".toCharArray();
+        private static final char[] DECLARATION = "<?xml".toCharArray();
+
+        private final Reader in;
+        private final char[] buffer = new char[8192];
+        private int position;
+        private int limit;
+        private boolean eof;
+        private boolean declaration;
+        private boolean question;
+        private int start;
+        private int end;
+
+        BatchReader(Reader in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read(char[] chars, int offset, int length) throws IOException {
+            int n = 0;
+            while (start < START.length && n < length) {
+                chars[offset + n++] = START[start++];
+            }
+
+            while (n < length) {
+                if (limit - position <= DECLARATION.length && !eof) {
+                    fill();
+                    continue;
+                }
+                if (position == limit)
+                    break;
+
+                char c = buffer[position];
+                if (declaration) {
+                    position++;
+                    if (question && c == '>')
+                        declaration = false;
+                    question = c == '?';
+                } else if (c == '<' && isDeclaration()) {
+                    position += DECLARATION.length;
+                    declaration = true;
+                    question = false;
+                } else {
+                    chars[offset + n++] = c;
+                    position++;
+                }
+            }
+
+            if (position == limit && eof) {
+                while (end < END.length && n < length) {
+                    chars[offset + n++] = END[end++];
+                }
+            }
+
+            return n == 0 && length > 0 ? -1 : n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private void fill() throws IOException {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+            int n = in.read(buffer, limit, buffer.length - limit);
+            if (n < 0) {
+                eof = true;
+            } else {
+                limit += n;
+            }
+        }
+
+        private boolean isDeclaration() {
+            if (limit - position <= DECLARATION.length)
+                return false;
+            for (int i = 1; i < DECLARATION.length; i++) {
+                if (buffer[position + i] != DECLARATION[i])
+                    return false;
+            }
+            return Character.isWhitespace(buffer[position + DECLARATION.length]);
+        }
+    }
+}
@@ -0,0 +1,595 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Embeddable HTTP server receiving delivery report and reply callbacks (POST requests). A single thread
+ * accepts and reads all connections without blocking; each callback is acknowledged as soon as it has been
+ * placed in a bounded dispatch queue, from which dispatch threads parse it with the CallbackParser and pass
+ * the SmsReport or SmsReply to the CallbackHandler.
+ * <p/>
+ * While the dispatch queue is full, callbacks are answered with 503 Service Unavailable so that the
+ * messaging platform delivers them again later, and counted as dropped. Connections that have not completed a
+ * request within the idle timeout are closed, so that clients sending requests slowly or not at all cannot hold
+ * connections, and connections over the maximum number are closed as soon as they are accepted. Usage:
+ * <p/>
+ * CallbackReceiver receiver = new CallbackReceiver(new InetSocketAddress(8080), handler);<br/>
+ * receiver.start();
+ */
+public class CallbackReceiver {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    public static final int DEFAULT_DISPATCH_THREADS = 1;
+    public static final int DEFAULT_MAX_REQUEST_SIZE = 64 * 1024;
+    public static final long DEFAULT_IDLE_TIMEOUT = 30 * 1000;
+    public static final int DEFAULT_MAX_CONNECTIONS = 1024;
+
+    private static final byte[] HEADER_END = ascii("\r\n\r\n");
+    private static final byte[] CONTINUE = ascii("HTTP/1.1 100 Continue\r\n\r\n");
+
+    private final InetSocketAddress address;
+    private final CallbackHandler handler;
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private int dispatchThreads = DEFAULT_DISPATCH_THREADS;
+    private int maxRequestSize = DEFAULT_MAX_REQUEST_SIZE;
+    private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private BlockingQueue<byte[]> queue;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread selectorThread;
+    private Thread[] dispatchers;
+    private volatile boolean running;
+    // Open connections, only used by the selector thread
+    private int connections;
+
+    /**
+     * Creates a new CallbackReceiver instance.
+     *
+     * @param address The address to listen on; port 0 selects a free port
+     * @param handler The handler receiving the callbacks
+     * @throws IllegalArgumentException Thrown if address or handler is null
+     */
+    public CallbackReceiver(InetSocketAddress address, CallbackHandler handler) {
+        if (address == null) {
+            throw new IllegalArgumentException(
+                    "No address provided."
+            );
+        }
+
+        if (handler == null) {
+            throw new IllegalArgumentException(
+                    "No handler provided."
+            );
+        }
+
+        this.address = address;
+        this.handler = handler;
+    }
+
+    /**
+     * Sets the QueueCapacity property, by default 10000. Must be set before the receiver is started.
+     *
+     * @param queueCapacity The maximum number of callbacks waiting to be dispatched
+     * @throws IllegalArgumentException Thrown if queueCapacity is less than 1
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException(
+                    "The queue capacity must be at least 1."
+            );
+        }
+
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Sets the DispatchThreads property, by default 1. Must be set before the receiver is started.
+     *
+     * @param dispatchThreads The number of threads passing callbacks to the handler
+     * @throws IllegalArgumentException Thrown if dispatchThreads is less than 1
+     */
+    public void setDispatchThreads(int dispatchThreads) {
+        if (dispatchThreads < 1) {
+            throw new IllegalArgumentException(
+                    "The number of dispatch threads must be at least 1."
+            );
+        }
+
+        this.dispatchThreads = dispatchThreads;
+    }
+
+    /**
+     * Sets the MaxRequestSize property, by default 64 KB. Larger requests are rejected.
+     *
+     * @param maxRequestSize The maximum size of a request including headers in bytes
+     * @throws IllegalArgumentException Thrown if maxRequestSize is less than 1024
+     */
+    public void setMaxRequestSize(int maxRequestSize) {
+        if (maxRequestSize < 1024) {
+            throw new IllegalArgumentException(
+                    "The maximum request size must be at least 1024."
+            );
+        }
+
+        this.maxRequestSize = maxRequestSize;
+    }
+
+    /**
+     * Sets the IdleTimeout property, by default 30 seconds. Must be set before the receiver is started. A
+     * connection is closed if no complete request was received on it for this time since it was accepted or
+     * since its last request, however many bytes of an incomplete request arrived in the meantime.
+     *
+     * @param idleTimeout The idle timeout in milliseconds
+     * @throws IllegalArgumentException Thrown if idleTimeout is less than 1
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        if (idleTimeout < 1) {
+            throw new IllegalArgumentException(
+                    "The idle timeout must be at least 1."
+            );
+        }
+
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Sets the MaxConnections property, by default 1024. Must be set before the receiver is started. Connections
+     * accepted while this many are open are closed at once.
+     *
+     * @param maxConnections The maximum number of open connections
+     * @throws IllegalArgumentException Thrown if maxConnections is less than 1
+     */
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException(
+                    "The maximum number of connections must be at least 1."
+            );
+        }
+
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Starts listening and dispatching callbacks.
+     *
+     * @throws IOException Thrown if the receiver cannot listen on the address
+     * @throws IllegalStateException Thrown if the receiver is already running
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            throw new IllegalStateException(
+                    "The receiver is already running."
+            );
+        }
+
+        queue = new ArrayBlockingQueue<byte[]>(queueCapacity);
+        connections = 0;
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(address, 1024);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+
+        dispatchers = new Thread[dispatchThreads];
+        for (int i = 0; i < dispatchers.length; i++) {
+            dispatchers[i] = new Thread(new Runnable() {
+                public void run() {
+                    dispatch();
+                }
+            }, "CallbackReceiver-dispatch-" + i);
+            dispatchers[i].setDaemon(true);
+            dispatchers[i].start();
+        }
+
+        selectorThread = new Thread(new Runnable() {
+            public void run() {
+                select();
+            }
+        }, "CallbackReceiver-selector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /**
+     * Stops listening, closes all connections and waits until the callbacks already accepted have been
+     * dispatched.
+     *
+     * @throws InterruptedException Thrown if interrupted while waiting
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (!running)
+            return;
+
+        running = false;
+        selector.wakeup();
+        selectorThread.join();
+        for (Thread dispatcher : dispatchers) {
+            dispatcher.join();
+        }
+    }
+
+    /**
+     * Gets the port the receiver listens on, which is useful if started on port 0.
+     *
+     * @return The local port
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Gets the number of callbacks waiting to be dispatched.
+     *
+     * @return The queue depth
+     */
+    public int getQueueDepth() {
+        BlockingQueue<byte[]> queue = this.queue;
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * Gets the number of callbacks accepted into the dispatch queue.
+     *
+     * @return The number of callbacks received
+     */
+    public long getReceived() {
+        return received.get();
+    }
+
+    /**
+     * Gets the number of callbacks answered with 503 Service Unavailable because the queue was full.
+     *
+     * @return The number of callbacks dropped
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Gets the number of callbacks that could not be parsed or whose handler threw an exception.
+     *
+     * @return The number of callbacks failed
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    private void select() {
+        // Idle connections are looked for at least once per second, or more often for shorter timeouts
+        long sweepInterval = Math.min(idleTimeout, 1000);
+        long nextSweep = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(sweepInterval);
+        try {
+            while (running) {
+                selector.select(sweepInterval);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            Connection connection = (Connection) key.attachment();
+                            if (key.isReadable())
+                                connection.read();
+                            if (key.isValid() && key.isWritable())
+                                connection.write();
+                        }
+                    } catch (IOException e) {
+                        fail(key);
+                    } catch (RuntimeException e) {
+                        // Such as a CancelledKeyException, must not stop the receiver
+                        fail(key);
+                    }
+                }
+
+                long now = System.nanoTime();
+                if (now - nextSweep >= 0) {
+                    closeIdle(now);
+                    nextSweep = now + TimeUnit.MILLISECONDS.toNanos(sweepInterval);
+                }
+            }
+        } catch (IOException e) {
+            // Selector failed, shut down
+            running = false;
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                close(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null)
+            return;
+
+        if (connections >= maxConnections) {
+            channel.close();
+            return;
+        }
+
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(key));
+        connections++;
+    }
+
+    /**
+     * Closes the connections that have not completed a request within the idle timeout.
+     */
+    private void closeIdle(long now) {
+        long timeout = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+        for (SelectionKey key : selector.keys()) {
+            Object connection = key.attachment();
+            if (connection instanceof Connection && now - ((Connection) connection).lastActivity >= timeout)
+                close(key);
+        }
+    }
+
+    /**
+     * Closes a connection that failed; the receiver keeps listening if accepting a connection failed.
+     */
+    private void fail(SelectionKey key) {
+        if (key.channel() != serverChannel)
+            close(key);
+    }
+
+    private void close(SelectionKey key) {
+        if (key.attachment() instanceof Connection && key.channel().isOpen())
+            connections--;
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    private void dispatch() {
+        while (running || !queue.isEmpty()) {
+            byte[] body;
+            try {
+                body = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            if (body == null)
+                continue;
+
+            try {
+                CallbackParser.INSTANCE.parse(new ByteArrayInputStream(body), handler);
+            } catch (Exception e) {
+                failed.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Accepts a callback into the dispatch queue.
+     *
+     * @return True if accepted, false if the queue is full
+     */
+    private boolean offer(byte[] body) {
+        if (queue.offer(body)) {
+            received.incrementAndGet();
+            return true;
+        }
+
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * State of a connection: the bytes read but not processed yet and the responses not written yet.
+     */
+    private class Connection {
+
+        private final SelectionKey key;
+        private final SocketChannel channel;
+        private final LinkedList<ByteBuffer> responses = new LinkedList<ByteBuffer>();
+        private ByteBuffer in = ByteBuffer.allocate(4096);
+        private boolean continued;
+        private boolean closing;
+        // Time the connection was accepted or its last request was completed, as returned by System.nanoTime
+        private long lastActivity = System.nanoTime();
+
+        Connection(SelectionKey key) {
+            this.key = key;
+            this.channel = (SocketChannel) key.channel();
+        }
+
+        void read() throws IOException {
+            if (!in.hasRemaining()) {
+                if (in.capacity() >= maxRequestSize) {
+                    // Nothing more can be read, stop reading instead of reading 0 bytes over and over
+                    if (!closing)
+                        respond(413, "Request Entity Too Large", true);
+                    write();
+                    return;
+                }
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(in.capacity() * 2, maxRequestSize));
+                in.flip();
+                larger.put(in);
+                in = larger;
+            }
+
+            int n = channel.read(in);
+            if (n < 0) {
+                close(key);
+                return;
+            }
+
+            process();
+            write();
+        }
+
+        void write() throws IOException {
+            while (!responses.isEmpty()) {
+                ByteBuffer response = responses.getFirst();
+                channel.write(response);
+                if (response.hasRemaining())
+                    break;
+                responses.removeFirst();
+            }
+
+            if (responses.isEmpty() && closing) {
+                close(key);
+            } else if (key.isValid()) {
+                key.interestOps(responses.isEmpty() ? SelectionKey.OP_READ :
+                        closing ? SelectionKey.OP_WRITE : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        /**
+         * Processes all complete requests in the input buffer.
+         */
+        private void process() throws IOException {
+            byte[] data = in.array();
+            int start = 0;
+            while (!closing) {
+                int end = indexOf(data, start, in.position(), HEADER_END);
+                if (end < 0) {
+                    if (in.position() - start >= maxRequestSize)
+                        respond(413, "Request Entity Too Large", true);
+                    break;
+                }
+
+                String[] lines = new String(data, start, end - start, "ISO-8859-1").split("\r\n");
+                String[] requestLine = lines[0].split(" ");
+                boolean keepAlive = requestLine.length > 2 && requestLine[2].equals("HTTP/1.1");
+                int contentLength = -1;
+                boolean expectContinue = false;
+                boolean chunked = false;
+                for (int i = 1; i < lines.length; i++) {
+                    int colon = lines[i].indexOf(':');
+                    if (colon < 0)
+                        continue;
+                    String name = lines[i].substring(0, colon).trim();
+                    String value = lines[i].substring(colon + 1).trim();
+                    if (name.equalsIgnoreCase("Content-Length")) {
+                        try {
+                            contentLength = Integer.parseInt(value);
+                        } catch (NumberFormatException e) {
+                            contentLength = -2;
+                        }
+                    } else if (name.equalsIgnoreCase("Connection")) {
+                        keepAlive = value.equalsIgnoreCase("keep-alive") ||
+                                (keepAlive && !value.equalsIgnoreCase("close"));
+                    } else if (name.equalsIgnoreCase("Expect")) {
+                        expectContinue = value.equalsIgnoreCase("100-continue");
+                    } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                        chunked = !value.equalsIgnoreCase("identity");
+                    }
+                }
+
+                if (!requestLine[0].equals("POST")) {
+                    respond(405, "Method Not Allowed", true);
+                    break;
+                }
+                if (chunked || contentLength == -1) {
+                    respond(411, "Length Required", true);
+                    break;
+                }
+                int bodyStart = end + HEADER_END.length;
+                // Checked separately first, so the sum cannot overflow
+                if (contentLength < 0 || contentLength > maxRequestSize ||
+                        bodyStart - start + contentLength > maxRequestSize) {
+                    respond(413, "Request Entity Too Large", true);
+                    break;
+                }
+
+                if (in.position() - bodyStart < contentLength) {
+                    if (expectContinue && !continued) {
+                        responses.add(ByteBuffer.wrap(CONTINUE));
+                        continued = true;
+                    }
+                    break;
+                }
+
+                byte[] body = new byte[contentLength];
+                System.arraycopy(data, bodyStart, body, 0, contentLength);
+                start = bodyStart + contentLength;
+                continued = false;
+                lastActivity = System.nanoTime();
+
+                if (offer(body)) {
+                    respond(200, "OK", !keepAlive);
+                } else {
+                    respond(503, "Service Unavailable", !keepAlive);
+                }
+            }
+
+            // Keep the unprocessed bytes
+            in.flip();
+            in.position(start);
+            in.compact();
+        }
+
+        private void respond(int status, String reason, boolean close) throws UnsupportedEncodingException {
+            String response = "HTTP/1.1 " + status + " " + reason + "\r\n" +
+                    "Content-Length: 0\r\n" +
+                    (close ? "Connection: close\r\n" : "") +
+                    (status == 503 ? "Retry-After: 1\r\n" : "") +
+                    "\r\n";
+            responses.add(ByteBuffer.wrap(response.getBytes("ISO-8859-1")));
+            closing = close;
+        }
+    }
+
+    private static int indexOf(byte[] data, int from, int to, byte[] pattern) {
+        outer:
+        for (int i = from; i <= to - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j])
+                    continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static byte[] ascii(String s) {
+        try {
+            return s.getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,522 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Request object containing message(s), recipient(s) and other optional properties, like SendSmsRequest, but
+ * keeping the typed properties in plain fields instead of a map. The Marshaller writes it directly, to exactly the
+ * XML of the SendSmsRequest returned by toSendSmsRequest. Usage:
+ * <pre>
+ * CompactSendSmsRequest request = new CompactSendSmsRequest("This is a test message.", "447712345678");
+ * request.setConcatenationLimit(3);
+ * request.setUserTag("campaign-1");
+ * client.sendSms(new SerializedSendSmsRequest(request));
+ * </pre>
+ * The typed properties are written first, in the order of their setters in SendSmsRequest, followed by the other
+ * properties in insertion order. Other properties are set with setProperty; the typed properties can only be
+ * set through their setters.
+ * <p/>
+ * CompactSendSmsRequest instances are not thread-safe.
+ */
+public final class CompactSendSmsRequest implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // Names of the typed properties, in the order they are written
+    private static final String[] NAMES = {
+            "X-E3-Originating-Address",
+            "X-E3-Concatenation-Limit",
+            "X-E3-Schedule-For",
+            "X-E3-Confirm-Delivery",
+            "X-E3-Reply-Path",
+            "X-E3-User-Key",
+            "X-E3-Session-Reply-Path",
+            "X-E3-Session-ID",
+            "X-E3-User-Tag",
+            "X-E3-Validity-Period"
+    };
+
+    // Bits of the typed properties held in primitive fields that are set
+    private static final int CONCATENATION_LIMIT = 1;
+    private static final int SCHEDULE_FOR = 1 << 1;
+    private static final int CONFIRM_DELIVERY = 1 << 2;
+    private static final int VALIDITY_PERIOD = 1 << 3;
+
+    private List<String> messages;
+    private List<String> recipients;
+
+    private int set;
+    private String sender;
+    private int concatenationLimit;
+    private long scheduleFor;
+    private boolean confirmDelivery;
+    private String replyPath;
+    private String userKey;
+    private String sessionReplyPath;
+    private String sessionId;
+    private String userTag;
+    private long validityPeriod;
+
+    // Other properties in insertion order
+    private String[] names = new String[0];
+    private String[] values = new String[0];
+    private int size;
+
+    /**
+     * Constructs a CompactSendSmsRequest object with a single message and single recipient.
+     *
+     * @param message   The message
+     * @param recipient The recipient
+     * @throws IllegalArgumentException Thrown if message or recipient is null or empty.
+     */
+    public CompactSendSmsRequest(String message, String recipient) {
+        this(Arrays.asList(message), Arrays.asList(recipient));
+    }
+
+    /**
+     * Constructs a CompactSendSmsRequest object with a list of messages and a list of recipients.
+     *
+     * @param messages   The messages list
+     * @param recipients The recipients list
+     * @throws IllegalArgumentException Thrown if messages or recipients is null or empty.
+     */
+    public CompactSendSmsRequest(List<String> messages, List<String> recipients) {
+        setMessages(messages);
+        setRecipients(recipients);
+    }
+
+    /**
+     * Gets the Messages property.
+     *
+     * @return The messages list
+     */
+    public List<String> getMessages() {
+        return messages;
+    }
+
+    /**
+     * Sets the Messages property.
+     *
+     * @param messages The messages list
+     * @throws IllegalArgumentException Thrown if messages is null or empty.
+     */
+    public void setMessages(List<String> messages) {
+        if (messages == null || messages.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "No messages provided."
+            );
+        }
+
+        if (messages.size() == 1 && (messages.get(0) == null || messages.get(0).length() == 0)) {
+            throw new IllegalArgumentException(
+                    "No message provided."
+            );
+        }
+
+        this.messages = messages;
+    }
+
+    /**
+     * Gets the Recipients property.
+     *
+     * @return The recipients list
+     */
+    public List<String> getRecipients() {
+        return recipients;
+    }
+
+    /**
+     * Sets the Recipients property.
+     *
+     * @param recipients The recipients list
+     * @throws IllegalArgumentException Thrown if recipients is null or empty.
+     */
+    public void setRecipients(List<String> recipients) {
+        if (recipients == null || recipients.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "No recipients provided."
+            );
+        }
+
+        if (recipients.size() == 1 && (recipients.get(0) == null || recipients.get(0).length() == 0)) {
+            throw new IllegalArgumentException(
+                    "No recipient provided."
+            );
+        }
+
+        this.recipients = recipients;
+    }
+
+    /**
+     * Do not use this property unless instructed.
+     *
+     * @return The sender
+     */
+    public String getSender() {
+        return sender;
+    }
+
+    /**
+     * Do not use this property unless instructed.
+     *
+     * @param sender The sender
+     */
+    public void setSender(String sender) {
+        this.sender = sender;
+    }
+
+    /**
+     * Gets the ConcatenationLimit property.
+     *
+     * @return The concatenation limit or null if the property is disabled
+     * @see SendSmsRequest#setConcatenationLimit(Integer)
+     */
+    public Integer getConcatenationLimit() {
+        return (set & CONCATENATION_LIMIT) != 0 ? Integer.valueOf(concatenationLimit) : null;
+    }
+
+    /**
+     * Sets the ConcatenationLimit property.
+     *
+     * @param concatenationLimit The concatenation limit or null to disable the property
+     * @see SendSmsRequest#setConcatenationLimit(Integer)
+     */
+    public void setConcatenationLimit(Integer concatenationLimit) {
+        if (concatenationLimit != null) {
+            this.concatenationLimit = concatenationLimit;
+            set |= CONCATENATION_LIMIT;
+        } else {
+            set &= ~CONCATENATION_LIMIT;
+        }
+    }
+
+    /**
+     * Gets the ScheduleFor property.
+     *
+     * @return The schedule date and time or null if scheduling is disabled
+     * @see SendSmsRequest#setScheduleFor(java.util.Date)
+     */
+    public Date getScheduleFor() {
+        return (set & SCHEDULE_FOR) != 0 ? new Date(scheduleFor) : null;
+    }
+
+    /**
+     * Sets the ScheduleFor property. Seconds are sent; milliseconds are ignored.
+     *
+     * @param scheduleFor The schedule date and time or null to disable scheduling
+     * @see SendSmsRequest#setScheduleFor(java.util.Date)
+     */
+    public void setScheduleFor(Date scheduleFor) {
+        if (scheduleFor != null) {
+            this.scheduleFor = scheduleFor.getTime();
+            set |= SCHEDULE_FOR;
+        } else {
+            set &= ~SCHEDULE_FOR;
+        }
+    }
+
+    /**
+     * Gets the ConfirmDelivery property.
+     *
+     * @return True if confirmation of delivery is enabled, false if confirmation of delivery is disabled or null if the property is disabled
+     * @see SendSmsRequest#setConfirmDelivery(Boolean)
+     */
+    public Boolean getConfirmDelivery() {
+        return (set & CONFIRM_DELIVERY) != 0 ? Boolean.valueOf(confirmDelivery) : null;
+    }
+
+    /**
+     * Sets the ConfirmDelivery property.
+     *
+     * @param confirmDelivery True to enable confirmation of delivery, false to disable confirmation of delivery or null to disable the property
+     * @see SendSmsRequest#setConfirmDelivery(Boolean)
+     */
+    public void setConfirmDelivery(Boolean confirmDelivery) {
+        if (confirmDelivery != null) {
+            this.confirmDelivery = confirmDelivery;
+            set |= CONFIRM_DELIVERY;
+        } else {
+            set &= ~CONFIRM_DELIVERY;
+        }
+    }
+
+    /**
+     * Gets the ReplyPath property.
+     *
+     * @return The reply path or null if the property is disabled
+     */
+    public String getReplyPath() {
+        return replyPath;
+    }
+
+    /**
+     * Sets the ReplyPath property.
+     *
+     * @param replyPath The reply path or null to disable the property
+     * @see SendSmsRequest#setReplyPath(String)
+     */
+    public void setReplyPath(String replyPath) {
+        this.replyPath = replyPath;
+    }
+
+    /**
+     * Gets the UserKey property.
+     *
+     * @return The user key or null if the property is disabled
+     */
+    public String getUserKey() {
+        return userKey;
+    }
+
+    /**
+     * Sets the UserKey property.
+     *
+     * @param userKey The user key or null to disable the property
+     * @see SendSmsRequest#setUserKey(String)
+     */
+    public void setUserKey(String userKey) {
+        this.userKey = userKey;
+    }
+
+    /**
+     * Gets the SessionReplyPath property.
+     *
+     * @return The session reply path or null if the property is disabled
+     */
+    public String getSessionReplyPath() {
+        return sessionReplyPath;
+    }
+
+    /**
+     * Sets the SessionReplyPath property.
+     *
+     * @param sessionReplyPath The session reply path or null to disable the property
+     * @see SendSmsRequest#setSessionReplyPath(String)
+     */
+    public void setSessionReplyPath(String sessionReplyPath) {
+        this.sessionReplyPath = sessionReplyPath;
+    }
+
+    /**
+     * Gets the SessionId property.
+     *
+     * @return The session identifier or null if the property is disabled
+     */
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * Sets the SessionId property.
+     *
+     * @param sessionId The session identifier or null to disable the property
+     * @see SendSmsRequest#setSessionId(String)
+     */
+    public void setSessionId(String sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    /**
+     * Gets the UserTag property.
+     *
+     * @return The user tag or null if the property is disabled
+     */
+    public String getUserTag() {
+        return userTag;
+    }
+
+    /**
+     * Sets the UserTag property.
+     *
+     * @param userTag The user tag or null to disable the property
+     * @see SendSmsRequest#setUserTag(String)
+     */
+    public void setUserTag(String userTag) {
+        this.userTag = userTag;
+    }
+
+    /**
+     * Gets the ValidityPeriod property.
+     *
+     * @return The validity period in milliseconds or null if the property is disabled
+     * @see SendSmsRequest#setValidityPeriod(Long)
+     */
+    public Long getValidityPeriod() {
+        return (set & VALIDITY_PERIOD) != 0 ? Long.valueOf(validityPeriod) : null;
+    }
+
+    /**
+     * Sets the ValidityPeriod property.
+     *
+     * @param validityPeriod The validity period in milliseconds or null to disable the property
+     * @see SendSmsRequest#setValidityPeriod(Long)
+     */
+    public void setValidityPeriod(Long validityPeriod) {
+        if (validityPeriod != null) {
+            this.validityPeriod = validityPeriod;
+            set |= VALIDITY_PERIOD;
+        } else {
+            set &= ~VALIDITY_PERIOD;
+        }
+    }
+
+    /**
+     * Gets a property that has no typed getter.
+     *
+     * @param name The property name, e.g. X-E3-...
+     * @return The value or null if the property is not set
+     */
+    public String getProperty(String name) {
+        int index = indexOf(name);
+        return index >= 0 ? values[index] : null;
+    }
+
+    /**
+     * Sets a property that has no typed setter. The value replaces that of a property set before, at the same
+     * position.
+     *
+     * @param name  The property name, e.g. X-E3-...
+     * @param value The value or null to remove the property
+     * @throws IllegalArgumentException Thrown if name is null or the name of a typed property.
+     */
+    public void setProperty(String name, String value) {
+        if (name == null) {
+            throw new IllegalArgumentException(
+                    "No name provided."
+            );
+        }
+
+        for (String typed : NAMES) {
+            if (typed.equals(name)) {
+                throw new IllegalArgumentException(
+                        "Use the typed setter of property " + name + "."
+                );
+            }
+        }
+
+        int index = indexOf(name);
+        if (value == null) {
+            if (index >= 0) {
+                System.arraycopy(names, index + 1, names, index, size - index - 1);
+                System.arraycopy(values, index + 1, values, index, size - index - 1);
+                size--;
+                names[size] = null;
+                values[size] = null;
+            }
+        } else if (index >= 0) {
+            values[index] = value;
+        } else {
+            if (size == names.length) {
+                String[] grownNames = new String[Math.max(4, size * 2)];
+                String[] grownValues = new String[grownNames.length];
+                System.arraycopy(names, 0, grownNames, 0, size);
+                System.arraycopy(values, 0, grownValues, 0, size);
+                names = grownNames;
+                values = grownValues;
+            }
+            names[size] = name;
+            values[size] = value;
+            size++;
+        }
+    }
+
+    private int indexOf(String name) {
+        for (int i = 0; i < size; i++) {
+            if (names[i].equals(name))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the number of property positions, typed and other, including typed properties that are not set.
+     */
+    int propertyCount() {
+        return NAMES.length + size;
+    }
+
+    /**
+     * Gets the name of the property at a position.
+     */
+    String nameAt(int index) {
+        return index < NAMES.length ? NAMES[index] : names[index - NAMES.length];
+    }
+
+    /**
+     * Gets the value of the property at a position as it is sent, or null if the property is not set.
+     */
+    String valueAt(int index) {
+        switch (index) {
+            case 0:
+                return sender;
+            case 1:
+                return (set & CONCATENATION_LIMIT) != 0 ? Integer.toString(concatenationLimit) : null;
+            case 2:
+                return (set & SCHEDULE_FOR) != 0 ? SendSmsRequest.formatScheduleFor(scheduleFor) : null;
+            case 3:
+                return (set & CONFIRM_DELIVERY) != 0 ? (confirmDelivery ? "on" : "off") : null;
+            case 4:
+                return replyPath;
+            case 5:
+                return userKey;
+            case 6:
+                return sessionReplyPath;
+            case 7:
+                return sessionId;
+            case 8:
+                return userTag;
+            case 9:
+                return (set & VALIDITY_PERIOD) != 0 ? SendSmsRequest.formatValidityPeriod(validityPeriod) : null;
+            default:
+                return values[index - NAMES.length];
+        }
+    }
+
+    /**
+     * Converts this request to a SendSmsRequest with the same messages, recipients and properties, which is
+     * serialized to the same XML. Later changes to either request do not affect the other, except for changes
+     * to the shared messages and recipients lists.
+     *
+     * @return The request
+     */
+    public SendSmsRequest toSendSmsRequest() {
+        SendSmsRequest request = new SendSmsRequest(messages, recipients);
+        for (int i = 0; i < propertyCount(); i++) {
+            String value = valueAt(i);
+            if (value != null)
+                request.put(nameAt(i), value);
+        }
+        return request;
+    }
+
+    /**
+     * Returns the XML representation of this CompactSendSmsRequest instance.
+     *
+     * @return XML representation
+     */
+    @Override
+    public String toString() {
+
+        Marshaller marshaller = new Marshaller();
+        StringWriter sw = new StringWriter();
+
+        try {
+            marshaller.marshalWriter(this, sw);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        return sw.toString();
+    }
+}
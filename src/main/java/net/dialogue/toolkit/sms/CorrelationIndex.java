@@ -0,0 +1,436 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Joins delivery reports to the submissions that produced them, e.g. to compute delivery rates and
+ * latency per campaign. Submitted messages are recorded by ID with a tag, such as a campaign number; when
+ * a delivery report with the same ID arrives, its state is recorded, and once the state is final
+ * (Delivered or PermanentError) the listener is called and the message is removed. Messages without a
+ * final state are removed after the time to live, calling the listener as well. Usage:
+ * <pre>
+ * CorrelationIndex index = new CorrelationIndex(20000000, CorrelationIndex.DEFAULT_TTL, listener);
+ * for (Sms sms : client.sendSms(request).getMessages()) {
+ *     index.record(sms, campaign);
+ * }
+ * ...
+ * public void onSmsReport(SmsReport report) {
+ *     index.onReport(report);
+ * }
+ * </pre>
+ * Expired messages are removed when their part of the index fills up, or by calling expire(), e.g.
+ * periodically. Only a 64-bit fingerprint of the ID, the submit time, the tag and the state are kept,
+ * 24 bytes per message, in hash tables outside the Java heap. With a file, the tables are mapped from it
+ * instead, so the operating system can page them out; the file is overwritten and is not read back.
+ * <p/>
+ * The index is split into segments locked independently. CorrelationIndex instances are thread-safe; the
+ * listener is called outside of any lock, by the thread passing the report or calling expire().
+ */
+public class CorrelationIndex {
+
+    public static final long DEFAULT_TTL = 72L * 60 * 60 * 1000;
+
+    private static final int SEGMENTS = 64;
+    private static final int SEGMENT_SHIFT = 64 - 6;
+    private static final int SLOT_SIZE = 24;
+    private static final int SUBMIT_TIME = 8;
+    private static final int TAG = 16;
+    private static final int STATE = 20;
+    private static final State[] STATES = State.values();
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final long ttl;
+    private final CorrelationListener listener;
+    private final RandomAccessFile file;
+
+    /**
+     * Creates a new CorrelationIndex instance holding the index in memory outside the Java heap.
+     *
+     * @param capacity The maximum number of messages tracked at once
+     * @param ttl      The time in milliseconds after which messages without final state expire
+     * @param listener The listener receiving the outcomes
+     * @throws IllegalArgumentException Thrown if capacity is less than 1 or too large, ttl is less than 1 or
+     *                                  listener is null
+     */
+    public CorrelationIndex(int capacity, long ttl, CorrelationListener listener) {
+        int slots = slotsPerSegment(capacity, ttl, listener);
+        this.ttl = ttl;
+        this.listener = listener;
+        this.file = null;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(ByteBuffer.allocateDirect(slots * SLOT_SIZE), slots);
+        }
+    }
+
+    /**
+     * Creates a new CorrelationIndex instance holding the index in a memory-mapped file.
+     *
+     * @param capacity The maximum number of messages tracked at once
+     * @param ttl      The time in milliseconds after which messages without final state expire
+     * @param listener The listener receiving the outcomes
+     * @param file     The file, which is overwritten
+     * @throws IllegalArgumentException Thrown if capacity is less than 1 or too large, ttl is less than 1 or
+     *                                  listener or file is null
+     * @throws IOException              Thrown if the file cannot be created or mapped
+     */
+    public CorrelationIndex(int capacity, long ttl, CorrelationListener listener, File file) throws IOException {
+        int slots = slotsPerSegment(capacity, ttl, listener);
+        if (file == null) {
+            throw new IllegalArgumentException(
+                    "No file provided."
+            );
+        }
+
+        this.ttl = ttl;
+        this.listener = listener;
+        this.file = new RandomAccessFile(file, "rw");
+        try {
+            this.file.setLength(0);
+            FileChannel channel = this.file.getChannel();
+            long size = (long) slots * SLOT_SIZE;
+            for (int i = 0; i < SEGMENTS; i++) {
+                segments[i] = new Segment(channel.map(FileChannel.MapMode.READ_WRITE, i * size, size), slots);
+            }
+        } catch (IOException e) {
+            this.file.close();
+            throw e;
+        }
+    }
+
+    private static int slotsPerSegment(int capacity, long ttl, CorrelationListener listener) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException(
+                    "The capacity must be between 1 and 2^30."
+            );
+        }
+
+        if (ttl < 1) {
+            throw new IllegalArgumentException(
+                    "The time to live must be at least 1 millisecond."
+            );
+        }
+
+        if (listener == null) {
+            throw new IllegalArgumentException(
+                    "No listener provided."
+            );
+        }
+
+        // Load factor of at most 3/4, so that probe sequences stay short
+        long perSegment = ((long) capacity + SEGMENTS - 1) / SEGMENTS * 4 / 3 + 1;
+        int slots = 16;
+        while (slots < perSegment) {
+            slots <<= 1;
+        }
+        return slots;
+    }
+
+    /**
+     * Gets the TTL property.
+     *
+     * @return The time in milliseconds after which messages without final state expire
+     */
+    public long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * Records a submitted message. Messages without an ID, which failed submissions usually are, are ignored.
+     *
+     * @param sms The message
+     * @param tag The tag passed to the listener, e.g. a campaign number
+     * @return True if the message was recorded, false if it has no ID or the index is full
+     * @throws IllegalArgumentException Thrown if sms is null
+     */
+    public boolean record(Sms sms, int tag) {
+        if (sms == null) {
+            throw new IllegalArgumentException(
+                    "No sms provided."
+            );
+        }
+
+        return sms.getId() != null && record(sms.getId(), tag, System.currentTimeMillis());
+    }
+
+    /**
+     * Records a submitted message by ID. Recording an ID again replaces the earlier entry.
+     *
+     * @param id         The message ID
+     * @param tag        The tag passed to the listener, e.g. a campaign number
+     * @param submitTime The time of the submission as returned by System.currentTimeMillis
+     * @return True if the message was recorded, false if the index is full
+     * @throws IllegalArgumentException Thrown if id is null or empty
+     */
+    public boolean record(String id, int tag, long submitTime) {
+        if (id == null || id.length() == 0) {
+            throw new IllegalArgumentException(
+                    "No id provided."
+            );
+        }
+
+        long fingerprint = Fingerprint.of(id);
+        Segment segment = segment(fingerprint);
+        List<Expired> expired = null;
+        boolean recorded;
+        synchronized (segment) {
+            if (segment.size >= segment.maxSize && segment.find(fingerprint) < 0)
+                expired = segment.expire(System.currentTimeMillis() - ttl);
+            recorded = segment.put(fingerprint, tag, submitTime);
+        }
+        notifyExpired(expired);
+        return recorded;
+    }
+
+    /**
+     * Records the state of a delivery report. If the state is final, the listener is called and the message
+     * is removed.
+     *
+     * @param report The delivery report
+     * @return True if the message of the report was recorded
+     * @throws IllegalArgumentException Thrown if report is null
+     */
+    public boolean onReport(SmsReport report) {
+        if (report == null) {
+            throw new IllegalArgumentException(
+                    "No report provided."
+            );
+        }
+
+        if (report.getId() == null)
+            return false;
+
+        State state;
+        try {
+            state = report.getState();
+        } catch (IllegalStateException e) {
+            state = State.Undefined;
+        }
+        boolean last = state == State.Delivered || state == State.PermanentError;
+
+        long fingerprint = Fingerprint.of(report.getId());
+        Segment segment = segment(fingerprint);
+        int tag;
+        long submitTime;
+        synchronized (segment) {
+            int slot = segment.find(fingerprint);
+            if (slot < 0)
+                return false;
+
+            ByteBuffer buffer = segment.buffer;
+            tag = buffer.getInt(slot + TAG);
+            submitTime = buffer.getLong(slot + SUBMIT_TIME);
+            if (last)
+                segment.remove(slot);
+            else if (state != State.Undefined)
+                buffer.putInt(slot + STATE, state.ordinal());
+        }
+
+        if (last)
+            listener.onFinalState(tag, submitTime, report);
+        return true;
+    }
+
+    /**
+     * Gets the last state of a message.
+     *
+     * @param id The message ID
+     * @return The state, Undefined if no delivery report arrived yet, or null if the message is not tracked
+     */
+    public State getState(String id) {
+        long fingerprint = Fingerprint.of(id);
+        Segment segment = segment(fingerprint);
+        synchronized (segment) {
+            int slot = segment.find(fingerprint);
+            return slot < 0 ? null : STATES[segment.buffer.getInt(slot + STATE)];
+        }
+    }
+
+    /**
+     * Gets the submit time of a message.
+     *
+     * @param id The message ID
+     * @return The time as returned by System.currentTimeMillis, or -1 if the message is not tracked
+     */
+    public long getSubmitTime(String id) {
+        long fingerprint = Fingerprint.of(id);
+        Segment segment = segment(fingerprint);
+        synchronized (segment) {
+            int slot = segment.find(fingerprint);
+            return slot < 0 ? -1 : segment.buffer.getLong(slot + SUBMIT_TIME);
+        }
+    }
+
+    /**
+     * Gets the number of messages tracked, including expired ones not removed yet.
+     *
+     * @return The number of messages
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Removes the expired messages, calling the listener for each.
+     *
+     * @return The number of messages removed
+     */
+    public int expire() {
+        int count = 0;
+        for (Segment segment : segments) {
+            List<Expired> expired;
+            synchronized (segment) {
+                expired = segment.expire(System.currentTimeMillis() - ttl);
+            }
+            notifyExpired(expired);
+            count += expired.size();
+        }
+        return count;
+    }
+
+    /**
+     * Closes the file, if any. The index must not be used afterwards.
+     *
+     * @throws IOException Thrown if the file cannot be closed
+     */
+    public void close() throws IOException {
+        if (file != null)
+            file.close();
+    }
+
+    private Segment segment(long fingerprint) {
+        return segments[(int) (fingerprint >>> SEGMENT_SHIFT)];
+    }
+
+    private void notifyExpired(List<Expired> expired) {
+        if (expired == null)
+            return;
+        for (Expired e : expired) {
+            listener.onExpired(e.tag, e.submitTime, e.state);
+        }
+    }
+
+    private static class Expired {
+
+        final int tag;
+        final long submitTime;
+        final State state;
+
+        Expired(int tag, long submitTime, State state) {
+            this.tag = tag;
+            this.submitTime = submitTime;
+            this.state = state;
+        }
+    }
+
+    /**
+     * Open addressing hash table with linear probing. Slots hold the fingerprint (0 if empty), submit time,
+     * tag and state ordinal.
+     */
+    private static class Segment {
+
+        final ByteBuffer buffer;
+        final int mask;
+        final int maxSize;
+        int size;
+
+        Segment(ByteBuffer buffer, int slots) {
+            this.buffer = buffer;
+            this.mask = slots - 1;
+            this.maxSize = slots / 4 * 3;
+        }
+
+        int find(long fingerprint) {
+            for (int i = home(fingerprint); ; i = (i + 1) & mask) {
+                long stored = buffer.getLong(i * SLOT_SIZE);
+                if (stored == fingerprint)
+                    return i * SLOT_SIZE;
+                if (stored == 0)
+                    return -1;
+            }
+        }
+
+        boolean put(long fingerprint, int tag, long submitTime) {
+            int i = home(fingerprint);
+            while (true) {
+                long stored = buffer.getLong(i * SLOT_SIZE);
+                if (stored == fingerprint)
+                    break;
+                if (stored == 0) {
+                    if (size >= maxSize)
+                        return false;
+                    size++;
+                    break;
+                }
+                i = (i + 1) & mask;
+            }
+
+            int slot = i * SLOT_SIZE;
+            buffer.putLong(slot, fingerprint);
+            buffer.putLong(slot + SUBMIT_TIME, submitTime);
+            buffer.putInt(slot + TAG, tag);
+            buffer.putInt(slot + STATE, State.Undefined.ordinal());
+            return true;
+        }
+
+        /**
+         * Removes a slot, moving later slots of the probe sequence back so that no tombstones are needed.
+         */
+        void remove(int slot) {
+            int hole = slot / SLOT_SIZE;
+            for (int i = (hole + 1) & mask; ; i = (i + 1) & mask) {
+                long stored = buffer.getLong(i * SLOT_SIZE);
+                if (stored == 0)
+                    break;
+
+                // The entry may fill the hole if its home is not cyclically within (hole, i]
+                int home = home(stored);
+                if (((i - home) & mask) >= ((i - hole) & mask)) {
+                    for (int offset = 0; offset < SLOT_SIZE; offset += 8) {
+                        buffer.putLong(hole * SLOT_SIZE + offset, buffer.getLong(i * SLOT_SIZE + offset));
+                    }
+                    hole = i;
+                }
+            }
+            buffer.putLong(hole * SLOT_SIZE, 0);
+            size--;
+        }
+
+        List<Expired> expire(long before) {
+            List<Expired> expired = new ArrayList<Expired>();
+            for (int i = 0; i <= mask; ) {
+                int slot = i * SLOT_SIZE;
+                if (buffer.getLong(slot) != 0 && buffer.getLong(slot + SUBMIT_TIME) < before) {
+                    expired.add(new Expired(buffer.getInt(slot + TAG), buffer.getLong(slot + SUBMIT_TIME),
+                            STATES[buffer.getInt(slot + STATE)]));
+                    // Another entry may have moved into the slot
+                    remove(slot);
+                } else {
+                    i++;
+                }
+            }
+            return expired;
+        }
+
+        private int home(long fingerprint) {
+            return (int) fingerprint & mask;
+        }
+    }
+}
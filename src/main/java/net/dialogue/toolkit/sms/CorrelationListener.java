@@ -0,0 +1,34 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+/**
+ * Receives the outcome of messages tracked by a CorrelationIndex.
+ *
+ * @see CorrelationIndex
+ */
+public interface CorrelationListener {
+
+    /**
+     * Called when the delivery report with the final state (Delivered or PermanentError) of a message
+     * arrived. The message is no longer tracked afterwards.
+     *
+     * @param tag        The tag the message was recorded with, e.g. a campaign number
+     * @param submitTime The time the message was recorded as returned by System.currentTimeMillis
+     * @param report     The delivery report
+     */
+    void onFinalState(int tag, long submitTime, SmsReport report);
+
+    /**
+     * Called when a message expired before its final state arrived.
+     *
+     * @param tag        The tag the message was recorded with, e.g. a campaign number
+     * @param submitTime The time the message was recorded as returned by System.currentTimeMillis
+     * @param state      The last state reported, or Undefined if no delivery report arrived
+     */
+    void onExpired(int tag, long submitTime, State state);
+}
@@ -0,0 +1,84 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+/**
+ * A user name and password used for sending messages, returned together by a CredentialsProvider so that
+ * rotating credentials never pairs the user name of one set with the password of another.
+ * <p/>
+ * Credentials instances are immutable and thread-safe.
+ */
+public final class Credentials {
+
+    private final String userName;
+    private final String password;
+
+    /**
+     * Creates a new Credentials instance.
+     *
+     * @param userName The user name used for sending messages
+     * @param password The password used for sending messages
+     * @throws IllegalArgumentException Thrown if userName or password is null or empty
+     */
+    public Credentials(String userName, String password) {
+        if (userName == null || userName.length() == 0) {
+            throw new IllegalArgumentException(
+                    "No userName provided."
+            );
+        }
+
+        if (password == null || password.length() == 0) {
+            throw new IllegalArgumentException(
+                    "No password provided."
+            );
+        }
+
+        this.userName = userName;
+        this.password = password;
+    }
+
+    /**
+     * Gets the UserName property.
+     *
+     * @return The user name used for sending messages
+     */
+    public String getUserName() {
+        return userName;
+    }
+
+    /**
+     * Gets the Password property.
+     *
+     * @return The password used for sending messages
+     */
+    public String getPassword() {
+        return password;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Credentials))
+            return false;
+        Credentials other = (Credentials) o;
+        return userName.equals(other.userName) && password.equals(other.password);
+    }
+
+    @Override
+    public int hashCode() {
+        return userName.hashCode() * 31 + password.hashCode();
+    }
+
+    /**
+     * Returns a string representation of this Credentials instance, without the password.
+     *
+     * @return String representation
+     */
+    @Override
+    public String toString() {
+        return "Credentials{userName=" + userName + "}";
+    }
+}
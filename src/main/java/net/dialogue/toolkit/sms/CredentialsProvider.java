@@ -0,0 +1,24 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+/**
+ * Supplies the credentials used for sending messages. Implement this to rotate credentials without
+ * rebuilding the client; it is called for every submission and must be thread-safe.
+ *
+ * @see SendSmsClient#setCredentialsProvider(CredentialsProvider)
+ */
+public interface CredentialsProvider {
+
+    /**
+     * Gets the user name and password used for sending messages. Both are returned in one call, so a
+     * rotation happening meanwhile cannot mix the user name of one set with the password of another.
+     *
+     * @return The credentials
+     */
+    Credentials getCredentials();
+}
@@ -0,0 +1,328 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Client-side idempotency for message submissions. When a submission fails with an IOException, e.g. a
+ * read timeout, the platform may have accepted the messages anyway; sending the request again would then
+ * deliver them twice. With a Deduplicator set, SendSmsClient registers every (user key, recipient) pair it
+ * submits and rejects a submission of a pair already registered within the window with a
+ * DuplicateSubmissionException, without sending anything. Usage:
+ * <pre>
+ * client.setDeduplicator(new Deduplicator(1000000, Deduplicator.DEFAULT_WINDOW));
+ * </pre>
+ * Requests without a UserKey property get a key derived from their messages and properties (see
+ * {@link #deriveUserKey(SendSmsRequest)}), which SendSmsClient sets on the request unless AssignUserKeys is
+ * false. The same message to the same recipient is therefore a duplicate within the window; set distinct
+ * user keys to send it more than once. Delivery reports carry the user key back, so passing them to
+ * {@link #confirm(SmsReport)} records that the platform accepted the message, which can be checked with
+ * {@link #isConfirmed(String, String)} before deciding to resubmit after a failure.
+ * <p/>
+ * Only 64-bit fingerprints of the pairs are kept, in a fixed-size hash table outside the Java heap
+ * (16 bytes per entry). When the table is full, the oldest entry near the new one is evicted, so the
+ * capacity should exceed the number of submissions expected within the window. Deduplicator instances are
+ * thread-safe.
+ */
+public class Deduplicator {
+
+    public static final long DEFAULT_WINDOW = 24L * 60 * 60 * 1000;
+
+    // Number of slots searched for a fingerprint, starting at its home slot
+    private static final int PROBE = 8;
+    private static final int SLOT_SIZE = 16;
+    private static final long CONFIRMED = 1L;
+
+    private final ByteBuffer table;
+    private final int mask;
+    private final long window;
+    private volatile boolean assignUserKeys = true;
+
+    /**
+     * Creates a new Deduplicator instance.
+     *
+     * @param capacity The number of entries, rounded up to a power of two
+     * @param window   The time in milliseconds during which a pair is a duplicate
+     * @throws IllegalArgumentException Thrown if capacity is less than 1 or greater than 2^26 or window is
+     *                                  less than 1
+     */
+    public Deduplicator(int capacity, long window) {
+        if (capacity < 1 || capacity > 1 << 26) {
+            throw new IllegalArgumentException(
+                    "The capacity must be between 1 and 2^26."
+            );
+        }
+
+        if (window < 1) {
+            throw new IllegalArgumentException(
+                    "The window must be at least 1 millisecond."
+            );
+        }
+
+        int slots = PROBE;
+        while (slots < capacity) {
+            slots <<= 1;
+        }
+        this.table = ByteBuffer.allocateDirect(slots * SLOT_SIZE);
+        this.mask = slots - 1;
+        this.window = window;
+    }
+
+    /**
+     * Gets the Capacity property.
+     *
+     * @return The number of entries
+     */
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Gets the Window property.
+     *
+     * @return The time in milliseconds during which a pair is a duplicate
+     */
+    public long getWindow() {
+        return window;
+    }
+
+    /**
+     * Gets the AssignUserKeys property.
+     *
+     * @return True if SendSmsClient sets derived user keys on requests without one
+     */
+    public boolean getAssignUserKeys() {
+        return assignUserKeys;
+    }
+
+    /**
+     * Sets the AssignUserKeys property, by default true. If false, requests are not changed, and delivery
+     * reports of requests without a user key cannot be confirmed.
+     *
+     * @param assignUserKeys True to set derived user keys on requests without one
+     */
+    public void setAssignUserKeys(boolean assignUserKeys) {
+        this.assignUserKeys = assignUserKeys;
+    }
+
+    /**
+     * Derives a user key from the messages and properties of a request, except its recipients and user key.
+     *
+     * @param request The request
+     * @return 16 hexadecimal digits
+     * @throws IllegalArgumentException Thrown if request is null
+     */
+    public String deriveUserKey(SendSmsRequest request) {
+        if (request == null) {
+            throw new IllegalArgumentException(
+                    "No request provided."
+            );
+        }
+
+        long hash = Fingerprint.OFFSET;
+        List<String> messages = request.getMessages();
+        if (messages != null) {
+            for (String message : messages) {
+                hash = Fingerprint.hash(hash, message);
+            }
+        }
+        for (Map.Entry<String, String> property : request.entrySet()) {
+            if (!"X-E3-User-Key".equals(property.getKey())) {
+                hash = Fingerprint.hash(hash, property.getKey());
+                hash = Fingerprint.hash(hash, property.getValue());
+            }
+        }
+
+        String hex = Long.toHexString(Fingerprint.mix(hash));
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+
+    /**
+     * Registers a pair unless it has been registered within the window.
+     *
+     * @param userKey   The user key
+     * @param recipient The recipient
+     * @return True if registered, false if the pair is a duplicate
+     */
+    public boolean register(String userKey, String recipient) {
+        return register(Fingerprint.of(userKey, recipient), System.currentTimeMillis(), 0);
+    }
+
+    /**
+     * Removes a pair, e.g. because the platform rejected the submission, so it can be submitted again.
+     *
+     * @param userKey   The user key
+     * @param recipient The recipient
+     */
+    public void forget(String userKey, String recipient) {
+        long fingerprint = Fingerprint.of(userKey, recipient);
+        synchronized (table) {
+            int slot = find(fingerprint);
+            if (slot >= 0)
+                table.putLong(slot + 8, 0);
+        }
+    }
+
+    /**
+     * Checks whether a pair has been registered within the window.
+     *
+     * @param userKey   The user key
+     * @param recipient The recipient
+     * @return True if the pair would be a duplicate
+     */
+    public boolean contains(String userKey, String recipient) {
+        return (stamp(Fingerprint.of(userKey, recipient)) & ~CONFIRMED) != 0;
+    }
+
+    /**
+     * Records that the platform accepted the message a delivery report refers to. The pair is registered if
+     * it is not yet, e.g. after a restart, so a resubmission is rejected. Reports without a user key are
+     * ignored.
+     *
+     * @param report The delivery report
+     * @return True if the report has a user key
+     * @throws IllegalArgumentException Thrown if report is null
+     */
+    public boolean confirm(SmsReport report) {
+        if (report == null) {
+            throw new IllegalArgumentException(
+                    "No report provided."
+            );
+        }
+
+        if (report.getUserKey() == null || report.getRecipient() == null)
+            return false;
+
+        register(Fingerprint.of(report.getUserKey(), report.getRecipient()), System.currentTimeMillis(), CONFIRMED);
+        return true;
+    }
+
+    /**
+     * Checks whether a delivery report has been received for a pair within the window.
+     *
+     * @param userKey   The user key
+     * @param recipient The recipient
+     * @return True if the platform accepted the message
+     */
+    public boolean isConfirmed(String userKey, String recipient) {
+        return (stamp(Fingerprint.of(userKey, recipient)) & CONFIRMED) != 0;
+    }
+
+    /**
+     * Registers all recipients of a request, which must have a user key unless AssignUserKeys is false. If
+     * any of them is a duplicate, none is registered.
+     *
+     * @return The user key the recipients were registered with
+     * @throws DuplicateSubmissionException Thrown if a recipient is a duplicate
+     */
+    String register(SendSmsRequest request) {
+        String userKey = request.getUserKey();
+        if (userKey == null)
+            userKey = deriveUserKey(request);
+
+        List<String> recipients = request.getRecipients();
+        List<String> duplicates = new ArrayList<String>();
+        long now = System.currentTimeMillis();
+        synchronized (table) {
+            List<String> registered = new ArrayList<String>();
+            for (String recipient : recipients) {
+                if (register(Fingerprint.of(userKey, recipient), now, 0))
+                    registered.add(recipient);
+                else if (!registered.contains(recipient))
+                    duplicates.add(recipient);
+            }
+            if (!duplicates.isEmpty()) {
+                for (String recipient : registered) {
+                    forget(userKey, recipient);
+                }
+            }
+        }
+
+        if (!duplicates.isEmpty())
+            throw new DuplicateSubmissionException(userKey, duplicates);
+        return userKey;
+    }
+
+    /**
+     * Removes all recipients of a request registered with the user key.
+     */
+    void forget(SendSmsRequest request, String userKey) {
+        for (String recipient : request.getRecipients()) {
+            forget(userKey, recipient);
+        }
+    }
+
+    private boolean register(long fingerprint, long now, long flags) {
+        synchronized (table) {
+            int home = (int) fingerprint & mask;
+            int victim = -1;
+            long victimTime = Long.MAX_VALUE;
+            for (int i = 0; i < PROBE; i++) {
+                int slot = ((home + i) & mask) * SLOT_SIZE;
+                long stored = table.getLong(slot);
+                if (stored == 0) {
+                    // Fingerprints never follow an empty slot; an expired entry is reused before it
+                    if (victim < 0 || victimTime > now - window)
+                        victim = slot;
+                    break;
+                }
+
+                long stamp = table.getLong(slot + 8);
+                long time = stamp >>> 1;
+                if (stored == fingerprint) {
+                    if (time > now - window) {
+                        if (flags == 0)
+                            return false;
+                        table.putLong(slot + 8, stamp | flags);
+                        return true;
+                    }
+                    victim = slot;
+                    break;
+                }
+                if (time < victimTime) {
+                    victim = slot;
+                    victimTime = time;
+                }
+            }
+
+            table.putLong(victim, fingerprint);
+            table.putLong(victim + 8, now << 1 | flags);
+            return true;
+        }
+    }
+
+    /**
+     * Gets the stamp of a fingerprint registered within the window, or 0.
+     */
+    private long stamp(long fingerprint) {
+        long now = System.currentTimeMillis();
+        synchronized (table) {
+            int slot = find(fingerprint);
+            if (slot < 0)
+                return 0;
+            long stamp = table.getLong(slot + 8);
+            return (stamp >>> 1) > now - window ? stamp : 0;
+        }
+    }
+
+    private int find(long fingerprint) {
+        int home = (int) fingerprint & mask;
+        for (int i = 0; i < PROBE; i++) {
+            int slot = ((home + i) & mask) * SLOT_SIZE;
+            long stored = table.getLong(slot);
+            if (stored == fingerprint)
+                return slot;
+            if (stored == 0)
+                break;
+        }
+        return -1;
+    }
+}
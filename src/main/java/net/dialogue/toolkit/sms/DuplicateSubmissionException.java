@@ -0,0 +1,54 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown by SendSmsClient if a request is submitted again to recipients within the window of its
+ * Deduplicator. Nothing has been sent.
+ *
+ * @see Deduplicator
+ */
+public class DuplicateSubmissionException extends IllegalStateException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String userKey;
+    private final List<String> recipients;
+
+    /**
+     * Creates a new DuplicateSubmissionException instance.
+     *
+     * @param userKey    The user key of the request
+     * @param recipients The recipients submitted before
+     */
+    public DuplicateSubmissionException(String userKey, List<String> recipients) {
+        super("Duplicate submission of user key " + userKey + " to " + recipients + ".");
+        this.userKey = userKey;
+        this.recipients = Collections.unmodifiableList(recipients);
+    }
+
+    /**
+     * Gets the UserKey property.
+     *
+     * @return The user key of the request
+     */
+    public String getUserKey() {
+        return userKey;
+    }
+
+    /**
+     * Gets the Recipients property.
+     *
+     * @return The recipients submitted before
+     */
+    public List<String> getRecipients() {
+        return recipients;
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Group of endpoints (host names) SendSmsClient spreads submissions across. Endpoints are selected using
+ * one of the selection strategies; endpoints failing repeatedly (networking problems or HTTP 5xx responses)
+ * are ejected from selection for a while. Submissions that could not connect to an endpoint are retried on
+ * another endpoint; other failures are never retried as the messages may already have been submitted.
+ * <p/>
+ * EndpointGroup instances are thread-safe and normally configured through SendSmsClient.Builder.
+ */
+public class EndpointGroup {
+
+    /**
+     * Endpoint selection strategies.
+     */
+    public enum Strategy {
+
+        /**
+         * Selects the endpoints in turn.
+         */
+        ROUND_ROBIN,
+
+        /**
+         * Selects the endpoint with the fewest submissions in progress.
+         */
+        LEAST_OUTSTANDING,
+
+        /**
+         * Selects endpoints at random, weighted by the inverse of their average response time.
+         */
+        LATENCY_WEIGHTED
+    }
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    public static final long DEFAULT_EJECTION_TIME = 30 * 1000;
+
+    private final Endpoint[] endpoints;
+    private final AtomicInteger next = new AtomicInteger();
+    private final Random random = new Random();
+    private volatile Strategy strategy = Strategy.ROUND_ROBIN;
+    private volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private volatile long ejectionTime = DEFAULT_EJECTION_TIME;
+
+    /**
+     * Creates a new EndpointGroup instance from a comma-separated list of endpoints.
+     *
+     * @param endpoints Comma-separated list of endpoints (host names)
+     * @throws IllegalArgumentException Thrown if endpoints is null or empty
+     */
+    public EndpointGroup(String endpoints) {
+        this(endpoints == null ? null : Arrays.asList(endpoints.split(",")));
+    }
+
+    /**
+     * Creates a new EndpointGroup instance.
+     *
+     * @param endpoints List of endpoints (host names)
+     * @throws IllegalArgumentException Thrown if endpoints is null, empty or contains an empty endpoint
+     */
+    public EndpointGroup(List<String> endpoints) {
+        if (endpoints == null || endpoints.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "No endpoints provided."
+            );
+        }
+
+        this.endpoints = new Endpoint[endpoints.size()];
+        for (int i = 0; i < this.endpoints.length; i++) {
+            String host = endpoints.get(i) == null ? "" : endpoints.get(i).trim();
+            if (host.length() == 0) {
+                throw new IllegalArgumentException(
+                        "No endpoint provided."
+                );
+            }
+            this.endpoints[i] = new Endpoint(host);
+        }
+    }
+
+    /**
+     * Gets the endpoints of this group.
+     *
+     * @return Unmodifiable list of endpoints
+     */
+    public List<Endpoint> getEndpoints() {
+        return Collections.unmodifiableList(Arrays.asList(endpoints));
+    }
+
+    /**
+     * Gets the Strategy property.
+     *
+     * @return The endpoint selection strategy
+     * @see EndpointGroup#setStrategy(Strategy)
+     */
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Sets the Strategy property, by default Strategy.ROUND_ROBIN.
+     *
+     * @param strategy The endpoint selection strategy
+     * @throws IllegalArgumentException Thrown if strategy is null
+     */
+    public void setStrategy(Strategy strategy) {
+        if (strategy == null) {
+            throw new IllegalArgumentException(
+                    "No strategy provided."
+            );
+        }
+
+        this.strategy = strategy;
+    }
+
+    /**
+     * Gets the FailureThreshold property.
+     *
+     * @return The number of consecutive failures after which an endpoint is ejected
+     * @see EndpointGroup#setFailureThreshold(int)
+     */
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    /**
+     * Sets the FailureThreshold property, by default 3.
+     *
+     * @param failureThreshold The number of consecutive failures after which an endpoint is ejected
+     * @throws IllegalArgumentException Thrown if failureThreshold is less than 1
+     */
+    public void setFailureThreshold(int failureThreshold) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException(
+                    "The failure threshold must be at least 1."
+            );
+        }
+
+        this.failureThreshold = failureThreshold;
+    }
+
+    /**
+     * Gets the EjectionTime property.
+     *
+     * @return The time in milliseconds a failing endpoint is not selected
+     * @see EndpointGroup#setEjectionTime(long)
+     */
+    public long getEjectionTime() {
+        return ejectionTime;
+    }
+
+    /**
+     * Sets the EjectionTime property, by default 30 seconds. After this time a single submission is
+     * attempted on the endpoint again; if it fails the endpoint is ejected once more.
+     *
+     * @param ejectionTime The time in milliseconds a failing endpoint is not selected
+     * @throws IllegalArgumentException Thrown if ejectionTime is negative
+     */
+    public void setEjectionTime(long ejectionTime) {
+        if (ejectionTime < 0) {
+            throw new IllegalArgumentException(
+                    "The ejection time must not be negative."
+            );
+        }
+
+        this.ejectionTime = ejectionTime;
+    }
+
+    /**
+     * Selects an endpoint for a submission and counts the submission as outstanding. An endpoint whose
+     * ejection has ended is selected for a single probing submission; other submissions skip it until the
+     * probe is released. If all endpoints are ejected, the endpoint whose ejection ends first is selected.
+     *
+     * @param excluded Endpoints already tried for this submission, or null
+     * @return The selected endpoint, to be passed to {@link #release(Lease, boolean, long)}
+     */
+    Lease acquire(Collection<Endpoint> excluded) {
+        long now = System.currentTimeMillis();
+        List<Endpoint> candidates = new ArrayList<Endpoint>(endpoints.length);
+        Endpoint fallback = null;
+        for (Endpoint endpoint : endpoints) {
+            if (excluded != null && excluded.contains(endpoint))
+                continue;
+            long ejectedUntil = endpoint.ejectedUntil;
+            if (ejectedUntil == 0) {
+                candidates.add(endpoint);
+            } else if (ejectedUntil <= now && endpoint.probing.compareAndSet(false, true)) {
+                // Half-open, this submission decides whether the endpoint is selected again
+                endpoint.outstanding.incrementAndGet();
+                return new Lease(endpoint, true);
+            } else if (fallback == null || ejectedUntil < fallback.ejectedUntil) {
+                fallback = endpoint;
+            }
+        }
+
+        Endpoint endpoint;
+        if (candidates.isEmpty()) {
+            endpoint = fallback;
+        } else if (candidates.size() == 1) {
+            endpoint = candidates.get(0);
+        } else {
+            endpoint = select(candidates);
+        }
+
+        endpoint.outstanding.incrementAndGet();
+        return new Lease(endpoint, false);
+    }
+
+    /**
+     * Records the outcome of a submission acquired through {@link #acquire(Collection)}. A success makes the
+     * endpoint available again; a failure of an endpoint at the failure threshold ejects it once more.
+     *
+     * @param lease   The endpoint used, as returned by acquire
+     * @param success True if the endpoint handled the submission, false if it failed
+     * @param latency The response time in nanoseconds
+     */
+    void release(Lease lease, boolean success, long latency) {
+        Endpoint endpoint = lease.endpoint;
+        endpoint.outstanding.decrementAndGet();
+        if (success) {
+            endpoint.failures.set(0);
+            endpoint.ejectedUntil = 0;
+            endpoint.updateLatency(latency);
+        } else if (endpoint.failures.incrementAndGet() >= failureThreshold) {
+            endpoint.ejectedUntil = System.currentTimeMillis() + ejectionTime;
+        }
+        // Only by the probe and after the outcome is recorded, so no second probe starts before
+        if (lease.probe)
+            endpoint.probing.set(false);
+    }
+
+    /**
+     * Checks whether a submission failed before it reached the endpoint, so it can safely be
+     * retried on another endpoint.
+     */
+    static boolean isConnectFailure(IOException e) {
+        return e instanceof ConnectException || e instanceof NoRouteToHostException ||
+                e instanceof UnknownHostException;
+    }
+
+    int size() {
+        return endpoints.length;
+    }
+
+    private Endpoint select(List<Endpoint> candidates) {
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % candidates.size();
+        switch (strategy) {
+            case LEAST_OUTSTANDING: {
+                Endpoint best = null;
+                for (int i = 0; i < candidates.size(); i++) {
+                    Endpoint endpoint = candidates.get((start + i) % candidates.size());
+                    if (best == null || endpoint.outstanding.get() < best.outstanding.get())
+                        best = endpoint;
+                }
+                return best;
+            }
+            case LATENCY_WEIGHTED: {
+                // Endpoints without measurements are weighted like the fastest endpoint so they get probed
+                long fastest = Long.MAX_VALUE;
+                for (Endpoint endpoint : candidates) {
+                    if (endpoint.latency > 0)
+                        fastest = Math.min(fastest, endpoint.latency);
+                }
+                if (fastest == Long.MAX_VALUE)
+                    return candidates.get(start);
+
+                double[] weights = new double[candidates.size()];
+                double total = 0;
+                for (int i = 0; i < weights.length; i++) {
+                    long latency = candidates.get(i).latency;
+                    weights[i] = 1.0 / (latency > 0 ? latency : fastest);
+                    total += weights[i];
+                }
+                double r;
+                synchronized (random) {
+                    r = random.nextDouble() * total;
+                }
+                for (int i = 0; i < weights.length; i++) {
+                    r -= weights[i];
+                    if (r < 0)
+                        return candidates.get(i);
+                }
+                return candidates.get(weights.length - 1);
+            }
+            default:
+                return candidates.get(start);
+        }
+    }
+
+    /**
+     * Returns a string representation of this EndpointGroup instance.
+     *
+     * @return String representation
+     */
+    @Override
+    public String toString() {
+        return Arrays.asList(endpoints).toString();
+    }
+
+    /**
+     * Endpoint selected for a submission, and whether the submission is the probe of the endpoint.
+     */
+    static final class Lease {
+
+        final Endpoint endpoint;
+        final boolean probe;
+
+        Lease(Endpoint endpoint, boolean probe) {
+            this.endpoint = endpoint;
+            this.probe = probe;
+        }
+    }
+
+    /**
+     * Endpoint of an EndpointGroup along with its health and load.
+     */
+    public static class Endpoint {
+
+        private final String host;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicInteger failures = new AtomicInteger();
+        private final AtomicBoolean probing = new AtomicBoolean();
+        private volatile long ejectedUntil;
+        private volatile long latency;
+
+        Endpoint(String host) {
+            this.host = host;
+        }
+
+        /**
+         * Gets the endpoint (host name).
+         *
+         * @return The endpoint (host name)
+         */
+        public String getHost() {
+            return host;
+        }
+
+        /**
+         * Gets the number of submissions in progress.
+         *
+         * @return The number of submissions in progress
+         */
+        public int getOutstanding() {
+            return outstanding.get();
+        }
+
+        /**
+         * Gets the number of consecutive failed submissions.
+         *
+         * @return The number of consecutive failed submissions
+         */
+        public int getFailures() {
+            return failures.get();
+        }
+
+        /**
+         * Gets the moving average of the response time.
+         *
+         * @return The average response time in nanoseconds, or 0 if not measured yet
+         */
+        public long getLatency() {
+            return latency;
+        }
+
+        /**
+         * Checks if the endpoint is currently selected for submissions.
+         *
+         * @return False if the endpoint is ejected due to failures, true otherwise
+         */
+        public boolean isAvailable() {
+            return ejectedUntil <= System.currentTimeMillis();
+        }
+
+        private synchronized void updateLatency(long sample) {
+            // Exponentially weighted moving average, alpha = 1/4
+            latency = latency == 0 ? Math.max(sample, 1) : Math.max(latency + (sample - latency) / 4, 1);
+        }
+
+        /**
+         * Returns a string representation of this Endpoint instance.
+         *
+         * @return String representation
+         */
+        @Override
+        public String toString() {
+            return host;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+/**
+ * 64-bit fingerprints of strings for the hash tables of Deduplicator and CorrelationIndex, which keep
+ * fingerprints instead of the strings themselves. Fingerprints are never 0, which marks an empty slot.
+ */
+final class Fingerprint {
+
+    static final long OFFSET = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+
+    private Fingerprint() {
+    }
+
+    static long of(String s) {
+        return nonZero(mix(hash(OFFSET, s)));
+    }
+
+    static long of(String s, String t) {
+        return nonZero(mix(hash(hash(OFFSET, s), t)));
+    }
+
+    /**
+     * Continues an FNV-1a hash with a string, which may be null.
+     */
+    static long hash(long hash, String s) {
+        if (s == null) {
+            hash = (hash ^ 0xffff) * PRIME;
+        } else {
+            for (int i = 0; i < s.length(); i++) {
+                hash = (hash ^ s.charAt(i)) * PRIME;
+            }
+        }
+        // Separator, so that ("ab", "c") and ("a", "bc") differ
+        return (hash ^ 0x10000) * PRIME;
+    }
+
+    /**
+     * Spreads the bits of a hash over all 64 bits (MurmurHash3 finalizer).
+     */
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static long nonZero(long fingerprint) {
+        return fingerprint != 0 ? fingerprint : 1;
+    }
+}
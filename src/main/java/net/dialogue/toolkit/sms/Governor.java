@@ -0,0 +1,237 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shapes the traffic of a SendSmsClient: limits the rate of submitted messages, where a request costs one
+ * token per message and recipient, and the number of requests in flight.
+ * <p/>
+ * The rate limit is a token bucket implemented as a generic cell rate algorithm on a single atomic
+ * value, so acquiring tokens never takes a lock. In blocking mode callers wait for tokens and in-flight
+ * permits; in non-blocking mode SendSmsClient rejects submissions exceeding the limits with a
+ * java.util.concurrent.RejectedExecutionException.
+ * <p/>
+ * Governor instances are thread-safe and normally configured through SendSmsClient.Builder.
+ */
+public class Governor {
+
+    private final AtomicLong theoreticalArrival = new AtomicLong(System.nanoTime());
+    private final InFlightSemaphore inFlight = new InFlightSemaphore();
+    private volatile long interval;
+    private volatile long tolerance;
+    private volatile double rate;
+    private volatile int burst;
+    private int maxInFlight;
+    private volatile boolean blocking = true;
+
+    /**
+     * Creates a new Governor instance without limits.
+     */
+    public Governor() {
+    }
+
+    /**
+     * Gets the Rate property.
+     *
+     * @return The maximum number of messages per second or 0 if not limited
+     * @see Governor#setRate(double, int)
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * Gets the Burst property.
+     *
+     * @return The number of messages that can be submitted at once after a quiet period
+     * @see Governor#setRate(double, int)
+     */
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * Sets the rate limit.
+     *
+     * @param rate  The maximum number of messages (one per message and recipient) per second or 0 for no limit
+     * @param burst The number of messages that can be submitted at once after a quiet period
+     * @throws IllegalArgumentException Thrown if rate is negative or burst is less than 1
+     */
+    public void setRate(double rate, int burst) {
+        if (rate < 0) {
+            throw new IllegalArgumentException(
+                    "The rate must not be negative."
+            );
+        }
+
+        if (burst < 1) {
+            throw new IllegalArgumentException(
+                    "The burst must be at least 1."
+            );
+        }
+
+        long interval = rate > 0 ? Math.max((long) (TimeUnit.SECONDS.toNanos(1) / rate), 1) : 0;
+        this.rate = rate;
+        this.burst = burst;
+        this.tolerance = interval * burst;
+        this.interval = interval;
+    }
+
+    /**
+     * Gets the MaxInFlight property.
+     *
+     * @return The maximum number of requests in flight or 0 if not limited
+     * @see Governor#setMaxInFlight(int)
+     */
+    public synchronized int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Sets the MaxInFlight property. Can be changed while submissions are in flight.
+     *
+     * @param maxInFlight The maximum number of requests in flight or 0 for no limit
+     * @throws IllegalArgumentException Thrown if maxInFlight is negative
+     */
+    public synchronized void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 0) {
+            throw new IllegalArgumentException(
+                    "The maximum number of requests in flight must not be negative."
+            );
+        }
+
+        inFlight.resize(permits(this.maxInFlight), permits(maxInFlight));
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Gets the Blocking property.
+     *
+     * @return True if submissions wait for the limits, false if they are rejected
+     * @see Governor#setBlocking(boolean)
+     */
+    public boolean isBlocking() {
+        return blocking;
+    }
+
+    /**
+     * Sets the Blocking property, by default true.
+     *
+     * @param blocking True if submissions wait for the limits, false if they are rejected
+     */
+    public void setBlocking(boolean blocking) {
+        this.blocking = blocking;
+    }
+
+    /**
+     * Acquires the given number of tokens and an in-flight permit, waiting as long as necessary. The
+     * tokens are acquired first, so no in-flight permit is held while waiting for the rate limit.
+     * A successful acquire must be followed by {@link #release()}.
+     *
+     * @param cost The number of tokens, i.e. messages times recipients
+     * @throws InterruptedException Thrown if the thread is interrupted while waiting
+     */
+    public void acquire(int cost) throws InterruptedException {
+        long interval = this.interval;
+        if (interval > 0) {
+            // Reserve the tokens right away, then wait until the reservation conforms
+            long now;
+            long next;
+            while (true) {
+                long tat = theoreticalArrival.get();
+                now = System.nanoTime();
+                next = (tat - now > 0 ? tat : now) + cost * interval;
+                if (theoreticalArrival.compareAndSet(tat, next))
+                    break;
+            }
+
+            long wait = next - now - tolerance;
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+
+        inFlight.acquire();
+    }
+
+    /**
+     * Acquires an in-flight permit and the given number of tokens if both are available immediately.
+     * A successful acquire must be followed by {@link #release()}.
+     * <p/>
+     * A request costing more tokens than the burst is allowed once the bucket is full.
+     *
+     * @param cost The number of tokens, i.e. messages times recipients
+     * @return True if acquired, false otherwise
+     */
+    public boolean tryAcquire(int cost) {
+        if (!inFlight.tryAcquire())
+            return false;
+
+        long interval = this.interval;
+        if (interval == 0)
+            return true;
+
+        while (true) {
+            long tat = theoreticalArrival.get();
+            long now = System.nanoTime();
+            long next = (tat - now > 0 ? tat : now) + cost * interval;
+            if (next - now > tolerance && tat - now > 0) {
+                inFlight.release();
+                return false;
+            }
+            if (theoreticalArrival.compareAndSet(tat, next))
+                return true;
+        }
+    }
+
+    /**
+     * Releases the in-flight permit of a completed request.
+     */
+    public void release() {
+        inFlight.release();
+    }
+
+    /**
+     * Gets the number of tokens a request costs.
+     *
+     * @param request The request
+     * @return The number of messages times the number of recipients, at least 1
+     */
+    static int getCost(SendSmsRequest request) {
+        int messages = request.getMessages() == null ? 0 : request.getMessages().size();
+        int recipients = request.getRecipients() == null ? 0 : request.getRecipients().size();
+        return Math.max(messages * recipients, 1);
+    }
+
+    private static int permits(int maxInFlight) {
+        return maxInFlight == 0 ? Integer.MAX_VALUE : maxInFlight;
+    }
+
+    /**
+     * Semaphore whose number of permits can be changed while permits are held.
+     */
+    private static class InFlightSemaphore extends Semaphore {
+
+        private static final long serialVersionUID = 1L;
+
+        InFlightSemaphore() {
+            super(Integer.MAX_VALUE);
+        }
+
+        void resize(int from, int to) {
+            if (to > from) {
+                release(to - from);
+            } else if (to < from) {
+                reducePermits(from - to);
+            }
+        }
+    }
+}
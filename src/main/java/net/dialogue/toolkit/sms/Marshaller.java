@@ -6,6 +6,8 @@
 
 package net.dialogue.toolkit.sms;
 
+import org.springframework.oxm.MarshallingFailureException;
+import org.springframework.oxm.UnmarshallingFailureException;
 import org.springframework.oxm.XmlMappingException;
 import org.springframework.oxm.support.AbstractMarshaller;
 import org.w3c.dom.Document;
@@ -14,29 +16,38 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 import org.xml.sax.XMLReader;
 import org.xml.sax.ext.LexicalHandler;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 import javax.xml.stream.XMLStreamWriter;
-import javax.xml.transform.*;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Properties;
 
 class Marshaller extends AbstractMarshaller {
 
     public static final String DEFAULT_ENCODING = "UTF-8";
 
+    // Factory lookup is expensive; the factory is stateless once created and safe to share
+    private static final XMLOutputFactory XML_OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    static {
+        // Responses are read as plain, namespace-unaware XML without external entities
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
     private String encoding;
 
     public String getEncoding() {
@@ -53,28 +64,30 @@ class Marshaller extends AbstractMarshaller {
 
     @Override
     protected void marshalOutputStream(Object o, OutputStream outputStream) throws XmlMappingException, IOException {
+        if (o instanceof SerializedSendSmsRequest && DEFAULT_ENCODING.equalsIgnoreCase(getEncoding())) {
+            ((SerializedSendSmsRequest) o).writeTo(outputStream);
+            outputStream.flush();
+            return;
+        }
         marshalWriter(o, new OutputStreamWriter(outputStream, getEncoding()));
     }
 
     @Override
     protected void marshalWriter(Object o, Writer writer) throws XmlMappingException, IOException {
         try {
-            DocumentBuilder builder = newDocumentBuilder();
-            Document document = builder.newDocument();
-            marshalDomNode(o, document);
-            Properties p = new Properties();
-            p.setProperty(OutputKeys.ENCODING, getEncoding());
-            Transformer t = newTransformer();
-            t.setOutputProperties(p);
-            t.transform(
-                    new DOMSource(document),
-                    new StreamResult(writer)
-            );
-        } catch (ParserConfigurationException e) {
-            throw new IOException(e.toString());
-        } catch (TransformerConfigurationException e) {
-            throw new IOException(e.toString());
-        } catch (TransformerException e) {
+            // Same declaration as the former DOM/Transformer output, which StAX cannot produce itself
+            writer.write("<?xml version=\"1.0\" encoding=\"" + getEncoding() + "\" standalone=\"no\"?>");
+            if (o instanceof SendSmsRequestTemplate.Request && DEFAULT_ENCODING.equalsIgnoreCase(getEncoding())) {
+                SendSmsRequestTemplate.Request request = (SendSmsRequestTemplate.Request) o;
+                writeSendSmsRequest(request, request.getTemplate().getFragments(), writer);
+                writer.flush();
+                return;
+            }
+            XMLStreamWriter xmlStreamWriter = newXmlStreamWriter(writer);
+            writeSendSmsRequest(o, xmlStreamWriter, newEncoder());
+            xmlStreamWriter.flush();
+            writer.flush();
+        } catch (XMLStreamException e) {
             throw new IOException(e.toString());
         }
     }
@@ -82,7 +95,8 @@ class Marshaller extends AbstractMarshaller {
     @Override
     protected void marshalDomNode(Object o, Node node) throws XmlMappingException {
 
-        SendSmsRequest request = (SendSmsRequest) o;
+        SendSmsRequest request = o instanceof CompactSendSmsRequest ?
+                ((CompactSendSmsRequest) o).toSendSmsRequest() : toSendSmsRequest(o);
         Document document = node instanceof Document ?
                 (Document) node : node.getOwnerDocument();
 
@@ -115,7 +129,235 @@ class Marshaller extends AbstractMarshaller {
 
     @Override
     protected void marshalXmlStreamWriter(Object o, XMLStreamWriter xmlStreamWriter) throws XmlMappingException {
-        throw new UnsupportedOperationException();
+        try {
+            xmlStreamWriter.writeStartDocument(getEncoding(), "1.0");
+            writeSendSmsRequest(o, xmlStreamWriter, newEncoder());
+            xmlStreamWriter.writeEndDocument();
+            xmlStreamWriter.flush();
+        } catch (XMLStreamException e) {
+            throw new MarshallingFailureException("Failed to write sendSmsRequest", e);
+        }
+    }
+
+    private static SendSmsRequest toSendSmsRequest(Object o) {
+        return o instanceof SerializedSendSmsRequest ? ((SerializedSendSmsRequest) o).getRequest() : (SendSmsRequest) o;
+    }
+
+    /**
+     * Gets an encoder for the encoding, or null if the encoding is UTF-8 and can represent any character.
+     */
+    private CharsetEncoder newEncoder() {
+        return DEFAULT_ENCODING.equalsIgnoreCase(getEncoding()) ? null : Charset.forName(getEncoding()).newEncoder();
+    }
+
+    private static void writeSendSmsRequest(Object o, XMLStreamWriter writer, CharsetEncoder encoder)
+            throws XMLStreamException {
+        if (o instanceof SerializedSendSmsRequest)
+            o = ((SerializedSendSmsRequest) o).getSource();
+        if (o instanceof CompactSendSmsRequest)
+            writeSendSmsRequest((CompactSendSmsRequest) o, writer, encoder);
+        else
+            writeSendSmsRequest(toSendSmsRequest(o), writer, encoder);
+    }
+
+    private static void writeSendSmsRequest(SendSmsRequest request, XMLStreamWriter writer, CharsetEncoder encoder)
+            throws XMLStreamException {
+
+        writer.writeStartElement("sendSmsRequest");
+
+        for (String message : request.getMessages()) {
+            writeElement(writer, "X-E3-Message", message, encoder);
+        }
+
+        for (String recipient : request.getRecipients()) {
+            writeElement(writer, "X-E3-Recipients", recipient, encoder);
+        }
+
+        for (Map.Entry<String, String> entry : request.entrySet()) {
+            writeElement(writer, entry.getKey(), entry.getValue(), encoder);
+        }
+
+        writer.writeEndElement();
+    }
+
+    /**
+     * Writes a compact request, its typed properties read from their fields.
+     */
+    private static void writeSendSmsRequest(CompactSendSmsRequest request, XMLStreamWriter writer,
+                                            CharsetEncoder encoder) throws XMLStreamException {
+
+        writer.writeStartElement("sendSmsRequest");
+
+        for (String message : request.getMessages()) {
+            writeElement(writer, "X-E3-Message", message, encoder);
+        }
+
+        for (String recipient : request.getRecipients()) {
+            writeElement(writer, "X-E3-Recipients", recipient, encoder);
+        }
+
+        for (int i = 0; i < request.propertyCount(); i++) {
+            String value = request.valueAt(i);
+            if (value != null)
+                writeElement(writer, request.nameAt(i), value, encoder);
+        }
+
+        writer.writeEndElement();
+    }
+
+    /**
+     * Writes a request created from a template, copying the serialized messages and unchanged properties of the
+     * template. The output is the same as that of the XMLStreamWriter for the UTF-8 encoding.
+     */
+    private static void writeSendSmsRequest(SendSmsRequestTemplate.Request request,
+                                            SendSmsRequestTemplate.Fragments fragments, Writer writer)
+            throws IOException {
+
+        SendSmsRequestTemplate template = request.getTemplate();
+        writer.write("<sendSmsRequest>");
+
+        if (request.getMessages() == template.getMessages()) {
+            writer.write(fragments.messages);
+        } else {
+            for (String message : request.getMessages()) {
+                writeElement(writer, "X-E3-Message", message);
+            }
+        }
+
+        for (String recipient : request.getRecipients()) {
+            writeElement(writer, "X-E3-Recipients", recipient);
+        }
+
+        if (request.isShared()) {
+            writer.write(fragments.allProperties);
+        } else {
+            int i = 0;
+            for (Map.Entry<String, String> entry : request.entrySet()) {
+                String key = entry.getKey();
+                String value = entry.getValue();
+                if (i < template.size() && key == template.keyAt(i) && value == template.valueAt(i)) {
+                    writer.write(fragments.properties[i]);
+                } else {
+                    writeElement(writer, key, value);
+                }
+                i++;
+            }
+        }
+
+        writer.write("</sendSmsRequest>");
+    }
+
+    /**
+     * Writes an element directly, escaped as {@link #reference(String, int, CharsetEncoder)} returns for UTF-8.
+     */
+    static void writeElement(Writer writer, String name, String text) throws IOException {
+        if (text == null || text.length() == 0) {
+            writer.write('<');
+            writer.write(name);
+            writer.write("/>");
+            return;
+        }
+
+        writer.write('<');
+        writer.write(name);
+        writer.write('>');
+
+        int length = text.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            String ref = reference(text, i, null);
+            if (ref == null)
+                continue;
+
+            writer.write(text, start, i - start);
+            writer.write('&');
+            writer.write(ref);
+            writer.write(';');
+            if (Character.isHighSurrogate(text.charAt(i)))
+                i++;
+            start = i + 1;
+        }
+        writer.write(text, start, length - start);
+
+        writer.write("</");
+        writer.write(name);
+        writer.write('>');
+    }
+
+    private static void writeElement(XMLStreamWriter writer, String name, String text, CharsetEncoder encoder)
+            throws XMLStreamException {
+        if (text == null || text.length() == 0) {
+            writer.writeEmptyElement(name);
+        } else {
+            writer.writeStartElement(name);
+            writeText(writer, text, encoder);
+            writer.writeEndElement();
+        }
+    }
+
+    /**
+     * Writes character data, escaped as {@link #reference(String, int, CharsetEncoder)} returns.
+     *
+     * @param encoder The encoder of the output encoding, or null if it can represent any character
+     */
+    private static void writeText(XMLStreamWriter writer, String text, CharsetEncoder encoder)
+            throws XMLStreamException {
+        int length = text.length();
+        int start = 0;
+        try {
+            for (int i = 0; i < length; i++) {
+                String ref = reference(text, i, encoder);
+                if (ref == null)
+                    continue;
+
+                if (start < i) {
+                    writer.writeCharacters(text.substring(start, i));
+                }
+                writer.writeEntityRef(ref);
+                if (Character.isHighSurrogate(text.charAt(i)))
+                    i++;
+                start = i + 1;
+            }
+        } catch (CharConversionException e) {
+            throw new XMLStreamException(e.getMessage());
+        }
+
+        if (start == 0) {
+            writer.writeCharacters(text);
+        } else if (start < length) {
+            writer.writeCharacters(text.substring(start));
+        }
+    }
+
+    /**
+     * Gets the reference a character is escaped as, exactly as the JAXP Transformer used to: markup characters
+     * as entities and control characters, C1 characters, supplementary characters and characters the encoding
+     * cannot represent as character references. A supplementary character is referenced as a whole at its high
+     * surrogate. Shared by both writers, so their output is the same.
+     *
+     * @param encoder The encoder of the output encoding, or null if it can represent any character
+     * @return The reference without '&' and ';', or null if the character is written as it is
+     * @throws CharConversionException Thrown if the character is an unpaired surrogate
+     */
+    private static String reference(String text, int index, CharsetEncoder encoder) throws CharConversionException {
+        char c = text.charAt(index);
+        if (c == '&') {
+            return "amp";
+        } else if (c == '<') {
+            return "lt";
+        } else if (c == '>') {
+            return "gt";
+        } else if ((c < 0x20 && c != '\t' && c != '\n') || (c >= 0x7F && c <= 0x9F)) {
+            return "#" + (int) c;
+        } else if (Character.isHighSurrogate(c) && index + 1 < text.length() &&
+                Character.isLowSurrogate(text.charAt(index + 1))) {
+            return "#" + Character.toCodePoint(c, text.charAt(index + 1));
+        } else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+            throw new CharConversionException("Invalid UTF-16 surrogate detected: " + Integer.toHexString(c));
+        } else if (encoder != null && c >= 0x80 && !encoder.canEncode(c)) {
+            return "#" + (int) c;
+        }
+        return null;
     }
 
     @Override
@@ -130,12 +372,13 @@ class Marshaller extends AbstractMarshaller {
     @Override
     protected Object unmarshalInputStream(InputStream inputStream) throws XmlMappingException, IOException {
         try {
-            DocumentBuilder builder = newDocumentBuilder();
-            Document document = builder.parse(inputStream);
-            return unmarshalDomNode(document);
-        } catch (ParserConfigurationException e) {
-            throw new IOException(e.toString());
-        } catch (SAXException e) {
+            XMLStreamReader xmlStreamReader = newXmlStreamReader(inputStream);
+            try {
+                return readSendSmsResponse(xmlStreamReader);
+            } finally {
+                xmlStreamReader.close();
+            }
+        } catch (XMLStreamException e) {
             throw new IOException(e.toString());
         }
     }
@@ -182,7 +425,94 @@ class Marshaller extends AbstractMarshaller {
 
     @Override
     protected Object unmarshalReader(Reader reader) throws XmlMappingException, IOException {
-        throw new UnsupportedOperationException();
+        try {
+            XMLStreamReader xmlStreamReader = newXmlStreamReader(reader);
+            try {
+                return readSendSmsResponse(xmlStreamReader);
+            } finally {
+                xmlStreamReader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException(e.toString());
+        }
+    }
+
+    /**
+     * Unmarshals a sendSmsResponse from the given stream, passing each sms element to the listener as soon as
+     * it has been read.
+     *
+     * @param inputStream The stream to read from
+     * @param listener    The listener receiving the submitted messages
+     * @return False if the document element is not a sendSmsResponse, true otherwise
+     * @throws IOException Thrown if reading or parsing the stream failed
+     */
+    public boolean unmarshal(InputStream inputStream, SmsListener listener) throws IOException {
+        try {
+            XMLStreamReader xmlStreamReader = newXmlStreamReader(inputStream);
+            try {
+                return readSendSmsResponse(xmlStreamReader, listener);
+            } finally {
+                xmlStreamReader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException(e.toString());
+        }
+    }
+
+    /**
+     * Unmarshals a sendSmsRequest as written by this marshaller, e.g. the body of a SerializedSendSmsRequest.
+     * Elements other than messages and recipients become properties; empty elements become empty properties.
+     *
+     * @param inputStream The stream to read from
+     * @return The request
+     * @throws IOException Thrown if reading or parsing the stream failed or the document element is not a
+     *                     sendSmsRequest
+     */
+    SendSmsRequest unmarshalSendSmsRequest(InputStream inputStream) throws IOException {
+        try {
+            XMLStreamReader xmlStreamReader = newXmlStreamReader(inputStream);
+            try {
+                return readSendSmsRequest(xmlStreamReader);
+            } finally {
+                xmlStreamReader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException(e.toString());
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    private static SendSmsRequest readSendSmsRequest(XMLStreamReader reader) throws XMLStreamException, IOException {
+
+        // Advance to the document element
+        while (reader.getEventType() != XMLStreamConstants.START_ELEMENT) {
+            if (!reader.hasNext())
+                throw new IOException("No sendSmsRequest found.");
+            reader.next();
+        }
+
+        if (!"sendSmsRequest".equals(reader.getLocalName()))
+            throw new IOException("No sendSmsRequest found.");
+
+        SendSmsRequest request = new SendSmsRequest();
+        List<String> messages = new ArrayList<String>();
+        List<String> recipients = new ArrayList<String>();
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = reader.getLocalName();
+            String text = reader.getElementText();
+            if ("X-E3-Message".equals(name)) {
+                messages.add(text);
+            } else if ("X-E3-Recipients".equals(name)) {
+                recipients.add(text);
+            } else {
+                request.put(name, text);
+            }
+        }
+
+        request.setMessages(messages);
+        request.setRecipients(recipients);
+        return request;
     }
 
     @Override
@@ -192,7 +522,86 @@ class Marshaller extends AbstractMarshaller {
 
     @Override
     protected Object unmarshalXmlStreamReader(XMLStreamReader xmlStreamReader) throws XmlMappingException {
-        throw new UnsupportedOperationException();
+        try {
+            return readSendSmsResponse(xmlStreamReader);
+        } catch (XMLStreamException e) {
+            throw new UnmarshallingFailureException("Failed to read sendSmsResponse", e);
+        }
+    }
+
+    /**
+     * Reads a sendSmsResponse in a single forward pass; only the current sms element is held in memory.
+     */
+    private static SendSmsResponse readSendSmsResponse(XMLStreamReader reader) throws XMLStreamException {
+        final SendSmsResponse response = new SendSmsResponse();
+        final List<Sms> messages = response.getMessages();
+        boolean found = readSendSmsResponse(reader, new SmsListener() {
+            public void onSms(Sms sms) {
+                messages.add(sms);
+            }
+        });
+
+        return found ? response : null;
+    }
+
+    /**
+     * Reads a sendSmsResponse in a single forward pass, passing each sms element to the listener as soon as
+     * it has been read.
+     *
+     * @return False if the document element is not a sendSmsResponse, true otherwise
+     */
+    private static boolean readSendSmsResponse(XMLStreamReader reader, SmsListener listener) throws XMLStreamException {
+
+        // Advance to the document element
+        while (reader.getEventType() != XMLStreamConstants.START_ELEMENT) {
+            if (!reader.hasNext())
+                return false;
+            reader.next();
+        }
+
+        if (!"sendSmsResponse".equals(reader.getLocalName()))
+            return false;
+
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+                if ("sms".equals(reader.getLocalName())) {
+                    listener.onSms(readSms(reader));
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+
+        return true;
+    }
+
+    private static Sms readSms(XMLStreamReader reader) {
+        Sms sms = new Sms();
+
+        String value = reader.getAttributeValue(null, "X-E3-ID");
+        if (value != null) {
+            sms.setId(value);
+        }
+
+        value = reader.getAttributeValue(null, "X-E3-Recipients");
+        if (value != null) {
+            sms.setRecipient(value);
+        }
+
+        value = reader.getAttributeValue(null, "X-E3-Submission-Report");
+        if (value != null) {
+            sms.setSubmissionReport(value);
+        }
+
+        value = reader.getAttributeValue(null, "X-E3-Error-Description");
+        if (value != null) {
+            sms.setErrorDescription(value);
+        }
+
+        return sms;
     }
 
     @Override
@@ -201,20 +610,23 @@ class Marshaller extends AbstractMarshaller {
     }
 
     public boolean supports(Class<?> aClass) {
-        return SendSmsRequest.class.equals(aClass) || SendSmsResponse.class.equals(aClass);
+        return SendSmsRequest.class.isAssignableFrom(aClass) || SerializedSendSmsRequest.class.equals(aClass) ||
+                CompactSendSmsRequest.class.equals(aClass) || SendSmsResponse.class.equals(aClass);
     }
 
     //
     // Factories
     //
 
-    protected DocumentBuilder newDocumentBuilder() throws ParserConfigurationException {
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        return factory.newDocumentBuilder();
+    protected XMLStreamReader newXmlStreamReader(InputStream inputStream) throws XMLStreamException {
+        return XML_INPUT_FACTORY.createXMLStreamReader(inputStream);
+    }
+
+    protected XMLStreamReader newXmlStreamReader(Reader reader) throws XMLStreamException {
+        return XML_INPUT_FACTORY.createXMLStreamReader(reader);
     }
 
-    protected Transformer newTransformer() throws TransformerConfigurationException {
-        TransformerFactory factory = TransformerFactory.newInstance();
-        return factory.newTransformer();
+    protected XMLStreamWriter newXmlStreamWriter(Writer writer) throws XMLStreamException {
+        return XML_OUTPUT_FACTORY.createXMLStreamWriter(writer);
     }
 }
@@ -0,0 +1,171 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+/**
+ * Determines the encoding and number of segments of a message before it is sent. Messages consisting only
+ * of characters of the GSM 03.38 default alphabet and its extension table are sent as GSM 7-bit, where
+ * extension characters such as the euro sign take two septets; any other character forces UCS-2, two
+ * octets per UTF-16 code unit. A single segment holds 160 septets or 70 code units; concatenated messages
+ * hold 153 septets or 67 code units per segment, and a character is never split across segments.
+ * <p/>
+ * The methods scan the message using a lookup table and do not allocate.
+ */
+public final class MessageAnalyzer {
+
+    /**
+     * The encoding of a message.
+     */
+    public enum Encoding {
+        /**
+         * GSM 03.38 7-bit default alphabet
+         */
+        GSM7,
+
+        /**
+         * UCS-2, 16 bits per character
+         */
+        UCS2
+    }
+
+    public static final int GSM7_SINGLE_SEGMENT = 160;
+    public static final int GSM7_MULTI_SEGMENT = 153;
+    public static final int UCS2_SINGLE_SEGMENT = 70;
+    public static final int UCS2_MULTI_SEGMENT = 67;
+
+    // GSM 03.38 default alphabet in septet order, without the escape at 1B
+    private static final String BASIC =
+            "@\u00a3$\u00a5\u00e8\u00e9\u00f9\u00ec\u00f2\u00c7\n\u00d8\u00f8\r\u00c5\u00e5" +
+            "\u0394_\u03a6\u0393\u039b\u03a9\u03a0\u03a8\u03a3\u0398\u039e\u00c6\u00e6\u00df\u00c9" +
+            " !\"#\u00a4%&'()*+,-./0123456789:;<=>?" +
+            "\u00a1ABCDEFGHIJKLMNOPQRSTUVWXYZ\u00c4\u00d6\u00d1\u00dc\u00a7" +
+            "\u00bfabcdefghijklmnopqrstuvwxyz\u00e4\u00f6\u00f1\u00fc\u00e0";
+
+    // GSM 03.38 extension table, each character sent as escape and septet
+    private static final String EXTENSION = "\f^{}\\[~]|\u20ac";
+
+    private static final char EURO = '\u20ac';
+
+    // Septets per character below 0x400, 0 if the character is not in the alphabet
+    private static final byte[] SEPTETS = new byte[0x400];
+
+    static {
+        for (int i = 0; i < BASIC.length(); i++) {
+            SEPTETS[BASIC.charAt(i)] = 1;
+        }
+        for (int i = 0; i < EXTENSION.length(); i++) {
+            char c = EXTENSION.charAt(i);
+            if (c < SEPTETS.length)
+                SEPTETS[c] = 2;
+        }
+    }
+
+    private MessageAnalyzer() {
+    }
+
+    /**
+     * Gets the encoding of a message.
+     *
+     * @param message The message
+     * @return GSM7 if all characters are in the GSM 03.38 alphabet, otherwise UCS2
+     * @throws IllegalArgumentException Thrown if message is null
+     */
+    public static Encoding getEncoding(CharSequence message) {
+        return getSeptets(message) >= 0 ? Encoding.GSM7 : Encoding.UCS2;
+    }
+
+    /**
+     * Gets the number of septets of a message in GSM 7-bit encoding.
+     *
+     * @param message The message
+     * @return The number of septets, or -1 if the message cannot be sent in GSM 7-bit encoding
+     * @throws IllegalArgumentException Thrown if message is null
+     */
+    public static int getSeptets(CharSequence message) {
+        if (message == null) {
+            throw new IllegalArgumentException(
+                    "No message provided."
+            );
+        }
+
+        int septets = 0;
+        for (int i = 0, length = message.length(); i < length; i++) {
+            int n = septets(message.charAt(i));
+            if (n == 0)
+                return -1;
+            septets += n;
+        }
+        return septets;
+    }
+
+    /**
+     * Gets the number of octets of a message, packed septets in GSM 7-bit encoding or two octets per UTF-16
+     * code unit in UCS-2, not counting the headers of concatenated messages.
+     *
+     * @param message The message
+     * @return The number of octets
+     * @throws IllegalArgumentException Thrown if message is null
+     */
+    public static int getOctets(CharSequence message) {
+        int septets = getSeptets(message);
+        return septets >= 0 ? (septets * 7 + 7) / 8 : message.length() * 2;
+    }
+
+    /**
+     * Gets the number of segments a message is sent in. An empty message takes one segment.
+     *
+     * @param message The message
+     * @return The number of segments
+     * @throws IllegalArgumentException Thrown if message is null
+     */
+    public static int getSegments(CharSequence message) {
+        int septets = getSeptets(message);
+        if (septets < 0)
+            return ucs2Segments(message);
+        if (septets <= GSM7_SINGLE_SEGMENT)
+            return 1;
+
+        int segments = 1;
+        int used = 0;
+        for (int i = 0, length = message.length(); i < length; i++) {
+            int n = septets(message.charAt(i));
+            if (used + n > GSM7_MULTI_SEGMENT) {
+                segments++;
+                used = 0;
+            }
+            used += n;
+        }
+        return segments;
+    }
+
+    private static int ucs2Segments(CharSequence message) {
+        int length = message.length();
+        if (length <= UCS2_SINGLE_SEGMENT)
+            return 1;
+
+        int segments = 1;
+        int used = 0;
+        for (int i = 0; i < length; i++) {
+            // Surrogate pairs stay in one segment
+            int n = Character.isHighSurrogate(message.charAt(i)) && i + 1 < length &&
+                    Character.isLowSurrogate(message.charAt(i + 1)) ? 2 : 1;
+            if (used + n > UCS2_MULTI_SEGMENT) {
+                segments++;
+                used = 0;
+            }
+            used += n;
+            i += n - 1;
+        }
+        return segments;
+    }
+
+    private static int septets(char c) {
+        if (c < SEPTETS.length)
+            return SEPTETS[c];
+        return c == EURO ? 2 : 0;
+    }
+}
@@ -7,6 +7,9 @@
 package net.dialogue.toolkit.sms;
 
 import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpMethod;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResponseExtractor;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
@@ -25,7 +28,9 @@ public abstract class MockRestTemplate extends RestTemplate {
                                Object entity, Class<T> responseType,
                                Object... uriVariables) throws RestClientException {
         SendSmsResponse response = new SendSmsResponse();
-        SendSmsRequest request = ((HttpEntity<SendSmsRequest>) entity).getBody();
+        Object body = ((HttpEntity<?>) entity).getBody();
+        SendSmsRequest request = body instanceof SerializedSendSmsRequest ?
+                ((SerializedSendSmsRequest) body).getRequest() : (SendSmsRequest) body;
         for (String message : request.getMessages()) {
             for (String recipient : request.getRecipients()) {
                 response.getMessages().add(getSms(message, recipient));
@@ -34,6 +39,26 @@ public abstract class MockRestTemplate extends RestTemplate {
         return (T) response;
     }
 
+    @Override
+    public <T> T execute(String url, HttpMethod method,
+                         RequestCallback requestCallback, ResponseExtractor<T> responseExtractor,
+                         Object... urlVariables) throws RestClientException {
+        if (requestCallback instanceof SendSmsClient.SendSmsRequestCallback &&
+                responseExtractor instanceof SendSmsClient.SendSmsResponseExtractor) {
+            Object body = ((SendSmsClient.SendSmsRequestCallback) requestCallback).getEntity().getBody();
+            SendSmsRequest request = body instanceof SerializedSendSmsRequest ?
+                    ((SerializedSendSmsRequest) body).getRequest() : (SendSmsRequest) body;
+            SmsListener listener = ((SendSmsClient.SendSmsResponseExtractor) responseExtractor).getListener();
+            for (String message : request.getMessages()) {
+                for (String recipient : request.getRecipients()) {
+                    listener.onSms(getSms(message, recipient));
+                }
+            }
+            return null;
+        }
+        return super.execute(url, method, requestCallback, responseExtractor, urlVariables);
+    }
+
     public static class SucceededMockRestTemplate extends MockRestTemplate {
         @Override
         protected Sms getSms(String message, String recipient) {
@@ -0,0 +1,1193 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Non-blocking HTTP/1.1 transport of AsyncSendSmsClient. A single I/O thread connects, writes the requests
+ * and reads the responses of all connections through a Selector, so the number of submissions in flight is
+ * limited by MaxConnections rather than by threads. Connections are kept alive and reused for submissions to
+ * the same endpoint; submissions exceeding MaxConnections wait for a connection to become available.
+ * <p/>
+ * Secure connections use an SSLEngine created from the SSLContext property, which resumes TLS sessions of
+ * the same endpoint, and the host name is verified against the server certificate. Usage:
+ * <p/>
+ * NioTransport transport = new NioTransport();<br/>
+ * transport.setMaxConnections(2000);<br/>
+ * AsyncSendSmsClient client = new AsyncSendSmsClient(sendSmsClient, transport);
+ * <p/>
+ * NioTransport instances are thread-safe. The I/O thread is started by the first submission and stopped by
+ * {@link #close()}. Submissions are completed on the I/O thread.
+ */
+public class NioTransport {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 1000;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 30 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT = 60 * 1000;
+    public static final int DEFAULT_IDLE_TIMEOUT = 30 * 1000;
+
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+    private static final int MAX_RESPONSE_SIZE = 64 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 4096;
+    // Interval of the timeout checks in milliseconds
+    private static final int TICK = 100;
+    private static final byte[] HEADER_END = ascii("\r\n\r\n");
+    private static final byte[] LINE_END = ascii("\r\n");
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private volatile int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+    private volatile int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private volatile SSLContext sslContext;
+    private volatile HostnameVerifier hostnameVerifier;
+
+    private final Queue<Exchange> submissions = new ConcurrentLinkedQueue<Exchange>();
+    private Selector selector;
+    private Thread thread;
+    private volatile boolean closed;
+
+    // Confined to the I/O thread
+    private final Set<Connection> connections = new HashSet<Connection>();
+    private final Map<String, LinkedList<Connection>> idle = new HashMap<String, LinkedList<Connection>>();
+    private final LinkedList<Exchange> waiting = new LinkedList<Exchange>();
+    private boolean dispatching;
+
+    /**
+     * Gets the MaxConnections property.
+     *
+     * @return The maximum number of open connections
+     * @see NioTransport#setMaxConnections(int)
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Sets the MaxConnections property, by default 1000. Every connection carries one submission at a time.
+     *
+     * @param maxConnections The maximum number of open connections
+     * @throws IllegalArgumentException Thrown if maxConnections is less than 1
+     */
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException(
+                    "The maximum number of connections must be at least 1."
+            );
+        }
+
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Gets the ConnectTimeout property.
+     *
+     * @return The connect timeout in milliseconds, or 0 for no timeout
+     * @see NioTransport#setConnectTimeout(int)
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Sets the ConnectTimeout property, by default 30 seconds. Submissions whose connection cannot be
+     * established in time fail with a java.net.ConnectException.
+     *
+     * @param connectTimeout The connect timeout in milliseconds, or 0 for no timeout
+     * @throws IllegalArgumentException Thrown if connectTimeout is negative
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        if (connectTimeout < 0) {
+            throw new IllegalArgumentException(
+                    "The connect timeout must not be negative."
+            );
+        }
+
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Gets the ReadTimeout property.
+     *
+     * @return The read timeout in milliseconds, or 0 for no timeout
+     * @see NioTransport#setReadTimeout(int)
+     */
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Sets the ReadTimeout property, by default 60 seconds. Submissions whose connection is inactive for
+     * longer fail with a java.net.SocketTimeoutException.
+     *
+     * @param readTimeout The read timeout in milliseconds, or 0 for no timeout
+     * @throws IllegalArgumentException Thrown if readTimeout is negative
+     */
+    public void setReadTimeout(int readTimeout) {
+        if (readTimeout < 0) {
+            throw new IllegalArgumentException(
+                    "The read timeout must not be negative."
+            );
+        }
+
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Gets the IdleTimeout property.
+     *
+     * @return The time in milliseconds idle connections are kept alive, or 0 for no limit
+     * @see NioTransport#setIdleTimeout(int)
+     */
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Sets the IdleTimeout property, by default 30 seconds.
+     *
+     * @param idleTimeout The time in milliseconds idle connections are kept alive, or 0 for no limit
+     * @throws IllegalArgumentException Thrown if idleTimeout is negative
+     */
+    public void setIdleTimeout(int idleTimeout) {
+        if (idleTimeout < 0) {
+            throw new IllegalArgumentException(
+                    "The idle timeout must not be negative."
+            );
+        }
+
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Gets the SSLContext property.
+     *
+     * @return The context secure connections are created from, or null for the default context
+     * @see NioTransport#setSslContext(SSLContext)
+     */
+    public SSLContext getSslContext() {
+        return sslContext;
+    }
+
+    /**
+     * Sets the SSLContext property, e.g. to trust other certificates than those of the JRE.
+     *
+     * @param sslContext The context secure connections are created from, or null for the default context
+     */
+    public void setSslContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    /**
+     * Gets the HostnameVerifier property.
+     *
+     * @return The verifier of the server host name, or null if it is verified against the certificate
+     * @see NioTransport#setHostnameVerifier(HostnameVerifier)
+     */
+    public HostnameVerifier getHostnameVerifier() {
+        return hostnameVerifier;
+    }
+
+    /**
+     * Sets the HostnameVerifier property. By default the host name must match a DNS name or IP address of
+     * the subject alternative names of the server certificate, or its common name if it has no DNS names.
+     *
+     * @param hostnameVerifier The verifier of the server host name, or null to verify it against the
+     *                         certificate
+     */
+    public void setHostnameVerifier(HostnameVerifier hostnameVerifier) {
+        this.hostnameVerifier = hostnameVerifier;
+    }
+
+    /**
+     * Closes all connections and stops the I/O thread. Submissions in progress or waiting for a connection
+     * fail with an IOException.
+     *
+     * @throws InterruptedException Thrown if interrupted while waiting for the I/O thread to stop
+     */
+    public void close() throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            thread = this.thread;
+        }
+
+        if (thread != null) {
+            selector.wakeup();
+            if (thread != Thread.currentThread())
+                thread.join();
+        }
+    }
+
+    /**
+     * Checks whether the transport has been closed.
+     *
+     * @return True if closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Passes an exchange to the I/O thread, starting it if necessary.
+     *
+     * @throws RejectedExecutionException Thrown if the transport has been closed
+     */
+    void execute(Exchange exchange) {
+        synchronized (this) {
+            if (closed) {
+                throw new RejectedExecutionException(
+                        "The transport has been closed."
+                );
+            }
+
+            if (thread == null) {
+                try {
+                    selector = Selector.open();
+                } catch (IOException e) {
+                    throw new RejectedExecutionException(e);
+                }
+                thread = new Thread(new Runnable() {
+                    public void run() {
+                        select();
+                    }
+                }, "NioTransport-selector");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            submissions.add(exchange);
+        }
+        selector.wakeup();
+    }
+
+    private void select() {
+        long nextCheck = 0;
+        try {
+            while (!closed) {
+                selector.select(TICK);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid())
+                            connection.ready();
+                    } catch (IOException e) {
+                        connection.fail(e);
+                    } catch (RuntimeException e) {
+                        connection.fail(toIOException(e));
+                    }
+                }
+
+                Exchange exchange;
+                while ((exchange = submissions.poll()) != null) {
+                    dispatch(exchange);
+                }
+
+                long now = System.currentTimeMillis();
+                if (now >= nextCheck) {
+                    checkTimeouts(now);
+                    nextCheck = now + TICK;
+                }
+            }
+        } catch (IOException e) {
+            // Selector failed, shut down
+        } finally {
+            synchronized (this) {
+                closed = true;
+            }
+
+            IOException e = new IOException("The transport has been closed.");
+            for (Connection connection : new ArrayList<Connection>(connections)) {
+                connection.fail(e);
+            }
+            Exchange exchange;
+            while ((exchange = waiting.poll()) != null || (exchange = submissions.poll()) != null) {
+                exchange.fail(e, false);
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * Starts an exchange on an idle connection to its endpoint or on a new connection, or lets it wait if
+     * MaxConnections connections are busy.
+     */
+    private void dispatch(Exchange exchange) {
+        if (exchange.address.isUnresolved()) {
+            exchange.fail(new UnknownHostException(exchange.host), false);
+            return;
+        }
+
+        LinkedList<Connection> connections = idle.get(exchange.route);
+        if (connections != null) {
+            Connection connection = connections.removeFirst();
+            if (connections.isEmpty())
+                idle.remove(exchange.route);
+            connection.start(exchange);
+            return;
+        }
+
+        if (this.connections.size() >= maxConnections && !closeIdle()) {
+            waiting.add(exchange);
+            return;
+        }
+
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(exchange, channel);
+            connection.key = channel.register(selector, SelectionKey.OP_CONNECT, connection);
+            this.connections.add(connection);
+            if (channel.connect(exchange.address))
+                connection.ready();
+        } catch (IOException e) {
+            close(channel);
+            exchange.fail(e, false);
+        } catch (RuntimeException e) {
+            close(channel);
+            exchange.fail(toIOException(e), false);
+        }
+    }
+
+    /**
+     * Closes the idle connection unused for the longest time, to make room for a connection to another
+     * endpoint.
+     *
+     * @return False if there are no idle connections
+     */
+    private boolean closeIdle() {
+        Connection oldest = null;
+        for (LinkedList<Connection> connections : idle.values()) {
+            if (!connections.isEmpty() && (oldest == null || connections.getFirst().lastActivity < oldest.lastActivity))
+                oldest = connections.getFirst();
+        }
+        if (oldest == null)
+            return false;
+
+        oldest.disconnect();
+        return true;
+    }
+
+    private void checkTimeouts(long now) {
+        for (Connection connection : new ArrayList<Connection>(connections)) {
+            if (connection.exchange == null) {
+                if (idleTimeout > 0 && now - connection.lastActivity >= idleTimeout)
+                    connection.close();
+            } else if (!connection.connected) {
+                if (connectTimeout > 0 && now - connection.lastActivity >= connectTimeout)
+                    connection.fail(new ConnectException("Connect timed out."));
+            } else if (readTimeout > 0 && now - connection.lastActivity >= readTimeout) {
+                connection.fail(new SocketTimeoutException("Read timed out."));
+            }
+        }
+    }
+
+    /**
+     * Starts the next waiting exchange once a connection became available.
+     */
+    private void dispatchWaiting() {
+        if (dispatching)
+            return;
+
+        dispatching = true;
+        try {
+            while (!waiting.isEmpty() && (connections.size() < maxConnections || !idle.isEmpty())) {
+                dispatch(waiting.removeFirst());
+            }
+        } finally {
+            dispatching = false;
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    private static IOException toIOException(RuntimeException e) {
+        IOException io = new IOException(e.toString());
+        io.initCause(e);
+        return io;
+    }
+
+    /**
+     * A request to be sent to an endpoint and the handling of its response.
+     */
+    static abstract class Exchange {
+
+        private final String host;
+        private final InetSocketAddress address;
+        private final boolean secure;
+        private final String route;
+        private final byte[] head;
+        private final byte[] body;
+        private final int bodyLength;
+
+        /**
+         * Creates a new exchange, resolving the host name.
+         *
+         * @param host       The host name or IP address
+         * @param port       The port
+         * @param secure     True to use TLS
+         * @param head       The request line and headers including the empty line
+         * @param body       The request body
+         * @param bodyLength The length of the request body
+         */
+        Exchange(String host, int port, boolean secure, byte[] head, byte[] body, int bodyLength) {
+            this.host = host;
+            this.address = new InetSocketAddress(host, port);
+            this.secure = secure;
+            this.route = (secure ? "https://" : "http://") + host + ":" + port;
+            this.head = head;
+            this.body = body;
+            this.bodyLength = bodyLength;
+        }
+
+        /**
+         * Called on the I/O thread when the response has been received.
+         *
+         * @param status The status code
+         * @param reason The reason phrase
+         * @param body   The buffer holding the response body, only valid during the call
+         * @param offset The offset of the response body
+         * @param length The length of the response body
+         */
+        abstract void completed(int status, String reason, byte[] body, int offset, int length);
+
+        /**
+         * Called when the exchange failed.
+         *
+         * @param e    The cause
+         * @param sent False if the request has certainly not reached the endpoint, e.g. because the connection
+         *             could not be established
+         */
+        abstract void failed(IOException e, boolean sent);
+
+        private void complete(int status, String reason, byte[] body, int offset, int length) {
+            try {
+                completed(status, reason, body, offset, length);
+            } catch (RuntimeException e) {
+                // Must not stop the I/O thread
+            }
+        }
+
+        private void fail(IOException e, boolean sent) {
+            try {
+                failed(e, sent);
+            } catch (RuntimeException ignored) {
+                // Must not stop the I/O thread
+            }
+        }
+
+        private ByteBuffer[] request() {
+            return new ByteBuffer[]{ByteBuffer.wrap(head), ByteBuffer.wrap(body, 0, bodyLength)};
+        }
+    }
+
+    /**
+     * State of a connection: the TLS engine and buffers, the exchange in progress and its response.
+     */
+    private class Connection {
+
+        private final String route;
+        private final String host;
+        private final SocketChannel channel;
+        private final SSLEngine engine;
+        private SelectionKey key;
+        private ByteBuffer netIn;
+        private ByteBuffer netOut;
+        private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+        private ByteBuffer[] out;
+        private Exchange exchange;
+        private boolean connected;
+        private boolean handshaken;
+        private int handshakeInterest;
+        private boolean sent;
+        private long lastActivity = System.currentTimeMillis();
+
+        // Response parsing state
+        private int scanned;
+        private int bodyStart = -1;
+        private int status;
+        private String reason;
+        private long contentLength;
+        private boolean chunked;
+        private boolean keepAlive;
+        private int chunkStart;
+        private int bodyEnd;
+
+        Connection(Exchange exchange, SocketChannel channel) {
+            this.route = exchange.route;
+            this.host = exchange.host;
+            this.channel = channel;
+            this.exchange = exchange;
+            this.out = exchange.request();
+            if (exchange.secure) {
+                SSLContext context = sslContext;
+                if (context == null)
+                    context = DefaultSslContext.INSTANCE;
+                engine = context.createSSLEngine(exchange.host, exchange.address.getPort());
+                engine.setUseClientMode(true);
+                int packetSize = engine.getSession().getPacketBufferSize();
+                netIn = ByteBuffer.allocate(packetSize);
+                netOut = ByteBuffer.allocate(packetSize);
+            } else {
+                engine = null;
+                handshaken = true;
+            }
+        }
+
+        /**
+         * Starts an exchange on this idle connection.
+         */
+        void start(Exchange exchange) {
+            this.exchange = exchange;
+            this.out = exchange.request();
+            this.sent = false;
+            this.lastActivity = System.currentTimeMillis();
+            try {
+                transfer();
+            } catch (IOException e) {
+                fail(e);
+            } catch (RuntimeException e) {
+                fail(toIOException(e));
+            }
+        }
+
+        void ready() throws IOException {
+            if (!connected) {
+                if (!channel.finishConnect())
+                    return;
+                connected = true;
+                lastActivity = System.currentTimeMillis();
+                if (engine != null)
+                    engine.beginHandshake();
+            }
+            transfer();
+        }
+
+        /**
+         * Advances the handshake, writes the request and reads the response as far as possible without
+         * blocking, then selects the operations to wait for.
+         */
+        private void transfer() throws IOException {
+            if (!handshaken) {
+                if (!handshake()) {
+                    key.interestOps(handshakeInterest);
+                    return;
+                }
+                handshaken = true;
+                verifyHostname();
+            }
+
+            boolean flushed = flush();
+            int n;
+            while ((n = fill()) > 0) {
+                if (exchange == null) {
+                    // Idle connections are not expected to receive anything
+                    close();
+                    return;
+                }
+                if (parse(false))
+                    return;
+            }
+            if (n < 0) {
+                if (exchange == null || !parse(true))
+                    close();
+                return;
+            }
+
+            if (key.isValid())
+                key.interestOps(flushed ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        /**
+         * Writes as much of the request as possible.
+         *
+         * @return True if nothing is left to write
+         */
+        private boolean flush() throws IOException {
+            if (engine == null) {
+                if (out == null)
+                    return true;
+                if (channel.write(out) > 0) {
+                    sent = true;
+                    lastActivity = System.currentTimeMillis();
+                }
+                return !hasRemaining(out);
+            }
+
+            while (true) {
+                if (!flushNet())
+                    return false;
+                if (out == null || !hasRemaining(out))
+                    return true;
+
+                SSLEngineResult result = engine.wrap(out, netOut);
+                if (result.bytesConsumed() > 0)
+                    sent = true;
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+                    throw new SSLException("The TLS connection has been closed.");
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && netOut.position() == 0)
+                    netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+            }
+        }
+
+        /**
+         * Writes the TLS records produced so far.
+         *
+         * @return True if nothing is left to write
+         */
+        private boolean flushNet() throws IOException {
+            if (netOut.position() == 0)
+                return true;
+
+            netOut.flip();
+            try {
+                if (channel.write(netOut) > 0)
+                    lastActivity = System.currentTimeMillis();
+            } finally {
+                netOut.compact();
+            }
+            return netOut.position() == 0;
+        }
+
+        /**
+         * Reads as much of the response as possible into the input buffer.
+         *
+         * @return The number of bytes read, 0 if none are available or -1 if the connection has been closed
+         */
+        private int fill() throws IOException {
+            if (engine == null) {
+                ensureCapacity(1);
+                int n = channel.read(in);
+                if (n > 0)
+                    lastActivity = System.currentTimeMillis();
+                return n;
+            }
+
+            int produced = 0;
+            while (true) {
+                ensureCapacity(engine.getSession().getApplicationBufferSize());
+                netIn.flip();
+                SSLEngineResult result;
+                try {
+                    result = engine.unwrap(netIn, in);
+                } finally {
+                    netIn.compact();
+                }
+                produced += result.bytesProduced();
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+                    return produced > 0 ? produced : -1;
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+                    continue;
+
+                // Messages after the handshake, e.g. session tickets or key updates
+                SSLEngineResult.HandshakeStatus handshakeStatus = result.getHandshakeStatus();
+                if (handshakeStatus == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runTasks();
+                } else if (handshakeStatus == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    engine.wrap(EMPTY, netOut);
+                    flushNet();
+                }
+
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW || result.bytesConsumed() == 0) {
+                    if (!netIn.hasRemaining()) {
+                        ByteBuffer larger = ByteBuffer.allocate(netIn.capacity() + engine.getSession().getPacketBufferSize());
+                        netIn.flip();
+                        larger.put(netIn);
+                        netIn = larger;
+                    }
+                    int n = channel.read(netIn);
+                    if (n < 0)
+                        return produced > 0 ? produced : -1;
+                    if (n == 0)
+                        return produced;
+                    lastActivity = System.currentTimeMillis();
+                }
+            }
+        }
+
+        /**
+         * Advances the TLS handshake as far as possible without blocking.
+         *
+         * @return True if the handshake is complete, false if handshakeInterest must be waited for
+         */
+        private boolean handshake() throws IOException {
+            while (true) {
+                SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+                if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runTasks();
+                    continue;
+                }
+
+                if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    SSLEngineResult result = engine.wrap(EMPTY, netOut);
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && !flushNet()) {
+                        handshakeInterest = SelectionKey.OP_WRITE;
+                        return false;
+                    }
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        flushNet();
+                        throw new SSLException("The TLS handshake failed.");
+                    }
+                    continue;
+                }
+
+                if (!flushNet()) {
+                    handshakeInterest = SelectionKey.OP_WRITE;
+                    return false;
+                }
+
+                if (status != SSLEngineResult.HandshakeStatus.NEED_UNWRAP)
+                    return true;
+
+                ensureCapacity(engine.getSession().getApplicationBufferSize());
+                netIn.flip();
+                SSLEngineResult result;
+                try {
+                    result = engine.unwrap(netIn, in);
+                } finally {
+                    netIn.compact();
+                }
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+                    throw new SSLException("The TLS handshake failed.");
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW || result.bytesConsumed() == 0) {
+                    if (!netIn.hasRemaining()) {
+                        ByteBuffer larger = ByteBuffer.allocate(netIn.capacity() + engine.getSession().getPacketBufferSize());
+                        netIn.flip();
+                        larger.put(netIn);
+                        netIn = larger;
+                    }
+                    int n = channel.read(netIn);
+                    if (n < 0)
+                        throw new EOFException("Connection closed during the TLS handshake.");
+                    if (n == 0) {
+                        handshakeInterest = SelectionKey.OP_READ;
+                        return false;
+                    }
+                    lastActivity = System.currentTimeMillis();
+                }
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+        }
+
+        private void verifyHostname() throws IOException {
+            SSLSession session = engine.getSession();
+            HostnameVerifier verifier = hostnameVerifier;
+            boolean verified;
+            if (verifier != null) {
+                verified = verifier.verify(host, session);
+            } else {
+                Certificate[] certificates = session.getPeerCertificates();
+                verified = certificates.length > 0 && certificates[0] instanceof X509Certificate &&
+                        matches(host, (X509Certificate) certificates[0]);
+            }
+
+            if (!verified) {
+                throw new SSLPeerUnverifiedException(
+                        "The host name " + host + " does not match the certificate of the server."
+                );
+            }
+        }
+
+        private void ensureCapacity(int capacity) throws IOException {
+            if (in.remaining() >= capacity)
+                return;
+
+            int size = Math.max(in.capacity() * 2, in.position() + capacity);
+            if (size > MAX_HEADER_SIZE + MAX_RESPONSE_SIZE + capacity)
+                throw new IOException("The response is too large.");
+            ByteBuffer larger = ByteBuffer.allocate(size);
+            in.flip();
+            larger.put(in);
+            in = larger;
+        }
+
+        /**
+         * Parses the response received so far and completes the exchange once the response is complete.
+         *
+         * @param eof True if the server has closed the connection
+         * @return True if the exchange has been completed
+         */
+        private boolean parse(boolean eof) throws IOException {
+            byte[] data = in.array();
+            int length = in.position();
+            if (bodyStart < 0) {
+                int end = indexOf(data, Math.max(scanned - 3, 0), length, HEADER_END);
+                if (end < 0) {
+                    scanned = length;
+                    if (length > MAX_HEADER_SIZE)
+                        throw new IOException("The response header is too large.");
+                    if (eof)
+                        throw new EOFException("Connection closed before the response was received.");
+                    return false;
+                }
+
+                parseHeader(new String(data, 0, end, "ISO-8859-1"));
+                bodyStart = end + HEADER_END.length;
+                if (status / 100 == 1) {
+                    // Interim response, discarded
+                    discard(bodyStart);
+                    resetResponse();
+                    return parse(eof);
+                }
+                if (status == 204 || status == 304)
+                    contentLength = 0;
+                chunkStart = bodyStart;
+                bodyEnd = bodyStart;
+            }
+
+            int end;
+            if (chunked) {
+                end = decodeChunks(data, length);
+            } else if (contentLength >= 0) {
+                end = length - bodyStart >= contentLength ? bodyStart + (int) contentLength : -1;
+                bodyEnd = bodyStart + (int) Math.min(contentLength, length - bodyStart);
+            } else {
+                // Delimited by the end of the connection
+                end = eof ? length : -1;
+                bodyEnd = length;
+                keepAlive = false;
+            }
+
+            if (end < 0) {
+                if (eof)
+                    throw new EOFException("Connection closed before the response was complete.");
+                return false;
+            }
+
+            complete(end < length || eof);
+            return true;
+        }
+
+        private void parseHeader(String header) throws IOException {
+            String[] lines = header.split("\r\n");
+            String[] statusLine = lines[0].split(" ", 3);
+            if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/"))
+                throw new IOException("Invalid response: " + lines[0]);
+            try {
+                status = Integer.parseInt(statusLine[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid response: " + lines[0]);
+            }
+            reason = statusLine.length > 2 ? statusLine[2] : "";
+            keepAlive = !statusLine[0].equals("HTTP/1.0");
+            contentLength = -1;
+            chunked = false;
+
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon < 0)
+                    continue;
+                String name = lines[i].substring(0, colon).trim();
+                String value = lines[i].substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    try {
+                        contentLength = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid Content-Length: " + value);
+                    }
+                    if (contentLength < 0 || contentLength > MAX_RESPONSE_SIZE)
+                        throw new IOException("Invalid Content-Length: " + value);
+                } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                    chunked = !value.equalsIgnoreCase("identity");
+                } else if (name.equalsIgnoreCase("Connection")) {
+                    keepAlive = value.equalsIgnoreCase("keep-alive") ||
+                            (keepAlive && !value.equalsIgnoreCase("close"));
+                }
+            }
+        }
+
+        /**
+         * Decodes the complete chunks received so far, moving their data to the end of the decoded body.
+         *
+         * @return The end of the response, or -1 if it is not complete
+         */
+        private int decodeChunks(byte[] data, int length) throws IOException {
+            while (true) {
+                int lineEnd = indexOf(data, chunkStart, length, LINE_END);
+                if (lineEnd < 0) {
+                    if (length - chunkStart > 1024)
+                        throw new IOException("Invalid chunk.");
+                    return -1;
+                }
+
+                String line = new String(data, chunkStart, lineEnd - chunkStart, "ISO-8859-1");
+                int semicolon = line.indexOf(';');
+                if (semicolon >= 0)
+                    line = line.substring(0, semicolon);
+                int size;
+                try {
+                    size = Integer.parseInt(line.trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid chunk size: " + line);
+                }
+                if (size < 0 || size > MAX_RESPONSE_SIZE - (bodyEnd - bodyStart))
+                    throw new IOException("Invalid chunk size: " + line);
+
+                int dataStart = lineEnd + LINE_END.length;
+                if (size == 0) {
+                    // The trailer ends with an empty line
+                    if (length - dataStart >= 2 && data[dataStart] == '\r' && data[dataStart + 1] == '\n')
+                        return dataStart + 2;
+                    int end = indexOf(data, lineEnd, length, HEADER_END);
+                    return end < 0 ? -1 : end + HEADER_END.length;
+                }
+
+                if (length - dataStart < size + LINE_END.length)
+                    return -1;
+                System.arraycopy(data, dataStart, data, bodyEnd, size);
+                bodyEnd += size;
+                chunkStart = dataStart + size + LINE_END.length;
+            }
+        }
+
+        /**
+         * Completes the exchange and keeps the connection alive if possible.
+         *
+         * @param close True if the connection cannot be reused, e.g. because of unexpected data
+         */
+        private void complete(boolean close) {
+            Exchange exchange = this.exchange;
+            this.exchange = null;
+            this.out = null;
+            boolean reuse = keepAlive && !close;
+            exchange.complete(status, reason, in.array(), bodyStart, bodyEnd - bodyStart);
+
+            resetResponse();
+            if (in.capacity() > MAX_HEADER_SIZE) {
+                in = ByteBuffer.allocate(BUFFER_SIZE);
+            } else {
+                in.clear();
+            }
+
+            if (!reuse || closed) {
+                close();
+                return;
+            }
+
+            lastActivity = System.currentTimeMillis();
+            LinkedList<Connection> connections = idle.get(route);
+            if (connections == null) {
+                connections = new LinkedList<Connection>();
+                idle.put(route, connections);
+            }
+            connections.addLast(this);
+            if (key.isValid())
+                key.interestOps(SelectionKey.OP_READ);
+            dispatchWaiting();
+        }
+
+        private void resetResponse() {
+            scanned = 0;
+            bodyStart = -1;
+            chunked = false;
+            contentLength = -1;
+        }
+
+        private void discard(int count) {
+            in.flip();
+            in.position(count);
+            in.compact();
+        }
+
+        /**
+         * Closes the connection, failing the exchange in progress.
+         */
+        void fail(IOException e) {
+            Exchange exchange = this.exchange;
+            this.exchange = null;
+            close();
+            if (exchange != null)
+                exchange.fail(e, sent);
+        }
+
+        /**
+         * Closes the connection and starts waiting exchanges.
+         */
+        void close() {
+            if (disconnect())
+                dispatchWaiting();
+        }
+
+        /**
+         * Closes the connection.
+         *
+         * @return False if it has already been closed
+         */
+        boolean disconnect() {
+            if (!connections.remove(this))
+                return false;
+
+            LinkedList<Connection> list = idle.get(route);
+            if (list != null) {
+                list.remove(this);
+                if (list.isEmpty())
+                    idle.remove(route);
+            }
+            key.cancel();
+            NioTransport.close(channel);
+            if (engine != null)
+                engine.closeOutbound();
+            return true;
+        }
+    }
+
+    /**
+     * Checks whether a host name or IP address matches a certificate.
+     */
+    static boolean matches(String host, X509Certificate certificate) throws IOException {
+        boolean ip = isIpAddress(host);
+        boolean dnsNames = false;
+        Collection<List<?>> names;
+        try {
+            names = certificate.getSubjectAlternativeNames();
+        } catch (CertificateParsingException e) {
+            throw new SSLPeerUnverifiedException(e.toString());
+        }
+
+        if (names != null) {
+            for (List<?> name : names) {
+                int type = (Integer) name.get(0);
+                String value = (String) name.get(1);
+                if (type == 2) {
+                    dnsNames = true;
+                    if (!ip && matchesDnsName(host, value))
+                        return true;
+                } else if (type == 7 && ip && InetAddress.getByName(host).equals(InetAddress.getByName(value))) {
+                    return true;
+                }
+            }
+        }
+
+        if (ip || dnsNames)
+            return false;
+
+        // Common name of certificates without DNS names
+        String subject = certificate.getSubjectX500Principal().getName();
+        for (String part : subject.split(",")) {
+            if (part.startsWith("CN=") && matchesDnsName(host, part.substring(3)))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean matchesDnsName(String host, String name) {
+        host = host.toLowerCase(Locale.ENGLISH);
+        name = name.toLowerCase(Locale.ENGLISH);
+        if (!name.startsWith("*."))
+            return host.equals(name);
+
+        // The wildcard matches a single label
+        int dot = host.indexOf('.');
+        return dot > 0 && host.substring(dot).equals(name.substring(1));
+    }
+
+    private static boolean isIpAddress(String host) {
+        if (host.indexOf(':') >= 0)
+            return true;
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if ((c < '0' || c > '9') && c != '.')
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining())
+                return true;
+        }
+        return false;
+    }
+
+    private static int indexOf(byte[] data, int from, int to, byte[] pattern) {
+        outer:
+        for (int i = from; i <= to - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j])
+                    continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static byte[] ascii(String s) {
+        try {
+            return s.getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The default SSLContext, initialized on first use.
+     */
+    private static class DefaultSslContext {
+
+        static final SSLContext INSTANCE;
+
+        static {
+            try {
+                INSTANCE = SSLContext.getInstance("TLS");
+                INSTANCE.init(null, null, null);
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,669 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import org.springframework.web.client.HttpClientErrorException;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Durable send queue in front of a SendSmsClient. Every request is appended to a memory-mapped log on disk
+ * and forced to disk before it is sent; once the submission completed, an acknowledgement record holding
+ * the IDs of the submitted messages is appended. Requests that were enqueued but never acknowledged, e.g.
+ * because the process crashed while sending them, are recovered when the outbox is opened and can be sent
+ * again with replay(). Usage:
+ * <pre>
+ * Outbox outbox = new Outbox(new File("/var/spool/sms"), client);
+ * outbox.open();
+ * outbox.replay(callback);
+ * ...
+ * SendSmsResponse response = outbox.sendSms(request);
+ * ...
+ * outbox.close();
+ * </pre>
+ * Threads enqueueing concurrently share a single force of the log (group commit), so throughput is not
+ * limited to one disk flush per request. Acknowledgements are not forced; after a crash a request may
+ * therefore be sent again although it was submitted (at-least-once delivery). Set a user key on the request
+ * if the receiving side has to detect such duplicates.
+ * <p/>
+ * The log is split into segment files, which are deleted as soon as all requests in them and in all older
+ * segments have been acknowledged. Outbox instances are thread-safe.
+ */
+public class Outbox {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final byte ENQUEUE = 1;
+    private static final byte ACKNOWLEDGE = 2;
+
+    // Record layout: int payload length, byte type, long entry ID, payload, int CRC32 of type, ID and payload
+    private static final int HEADER_SIZE = 4 + 1 + 8;
+    private static final int TRAILER_SIZE = 4;
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("outbox-(\\d{20})\\.log");
+    private static final Marshaller MARSHALLER = new Marshaller();
+
+    private final File directory;
+    private final SendSmsClient client;
+    private int segmentSize = DEFAULT_SEGMENT_SIZE;
+
+    // Guarded by lock
+    private final Object lock = new Object();
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    private final Map<Long, Entry> pending = new LinkedHashMap<Long, Entry>();
+    private final CRC32 crc = new CRC32();
+    private final byte[] scratch = new byte[9];
+    private Segment current;
+    private long lastId;
+    private boolean open;
+
+    // Guarded by syncLock
+    private final Object syncLock = new Object();
+    private long durableId;
+    private boolean syncing;
+
+    /**
+     * Creates a new Outbox instance.
+     *
+     * @param directory The directory holding the log; created when the outbox is opened
+     * @param client    The client sending the requests
+     * @throws IllegalArgumentException Thrown if directory or client is null
+     */
+    public Outbox(File directory, SendSmsClient client) {
+        if (directory == null) {
+            throw new IllegalArgumentException(
+                    "No directory provided."
+            );
+        }
+
+        if (client == null) {
+            throw new IllegalArgumentException(
+                    "No client provided."
+            );
+        }
+
+        this.directory = directory;
+        this.client = client;
+    }
+
+    /**
+     * Gets the Directory property.
+     *
+     * @return The directory holding the log
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Gets the SegmentSize property.
+     *
+     * @return The size of a segment file in bytes
+     */
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Sets the SegmentSize property, by default 64 MB. Must be set before the outbox is opened.
+     * A request larger than a segment cannot be enqueued.
+     *
+     * @param segmentSize The size of a segment file in bytes
+     * @throws IllegalArgumentException Thrown if segmentSize is less than 4096
+     */
+    public void setSegmentSize(int segmentSize) {
+        if (segmentSize < 4096) {
+            throw new IllegalArgumentException(
+                    "The segment size must be at least 4096."
+            );
+        }
+
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Opens the log, recovering the requests that have not been acknowledged. Recovered requests are not
+     * sent until replay() is called. Records torn by a crash at the end of a segment are ignored.
+     *
+     * @throws IOException           Thrown if the directory or a segment cannot be read or written
+     * @throws IllegalStateException Thrown if the outbox is already open
+     */
+    public void open() throws IOException {
+        synchronized (lock) {
+            if (open) {
+                throw new IllegalStateException(
+                        "The outbox is already open."
+                );
+            }
+
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create directory " + directory + ".");
+            }
+
+            TreeMap<Long, File> files = new TreeMap<Long, File>();
+            File[] list = directory.listFiles();
+            if (list == null) {
+                throw new IOException("Cannot list directory " + directory + ".");
+            }
+            for (File file : list) {
+                Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+                if (matcher.matches())
+                    files.put(Long.valueOf(matcher.group(1)), file);
+            }
+
+            segments.clear();
+            pending.clear();
+            lastId = 0;
+            long index = 0;
+            for (Map.Entry<Long, File> file : files.entrySet()) {
+                index = file.getKey();
+                Segment segment = new Segment(index, file.getValue(), (int) file.getValue().length());
+                segments.add(segment);
+                recover(segment);
+            }
+
+            // Appending always starts in a new segment, behind whatever a crash left in the last one
+            current = new Segment(index + 1, segmentFile(index + 1), segmentSize);
+            segments.add(current);
+            synchronized (syncLock) {
+                durableId = lastId;
+            }
+            open = true;
+            compact();
+        }
+    }
+
+    /**
+     * Forces the log to disk and closes it. Requests that have not been acknowledged are recovered when
+     * the outbox is opened again.
+     *
+     * @throws IOException Thrown if the log cannot be forced or closed
+     */
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (!open)
+                return;
+
+            open = false;
+            current.buffer.force();
+            for (Segment segment : segments) {
+                segment.close();
+            }
+            segments.clear();
+            pending.clear();
+            current = null;
+        }
+    }
+
+    /**
+     * Enqueues the request durably, sends it and acknowledges it. Requests rejected by the endpoint
+     * (HttpClientErrorException) or by the Deduplicator of the client (DuplicateSubmissionException) are
+     * acknowledged as well, as sending them again would not succeed; after
+     * networking or communication problems (IOException) or other failures the request stays in the outbox
+     * and is sent again by replay().
+     *
+     * @param request The request; gets a user key as in SendSmsClient.sendSms if the client has a Deduplicator
+     * @return Response object containing a list of one or more submitted messages
+     * @throws HttpClientErrorException Thrown if the endpoint rejected the request
+     * @throws IOException              Thrown if the request could not be enqueued or sent
+     * @throws IllegalArgumentException Thrown if the client validates segments and a message exceeds the
+     *                                  concatenation limit; the request is not enqueued
+     * @throws IllegalStateException    Thrown if the outbox is not open
+     */
+    public SendSmsResponse sendSms(SendSmsRequest request) throws HttpClientErrorException, IOException {
+        client.validate(request);
+        client.assignUserKey(request);
+        SerializedSendSmsRequest serialized = new SerializedSendSmsRequest(request);
+        long id = enqueue(serialized);
+        return send(id, serialized);
+    }
+
+    /**
+     * Enqueues the request durably without sending it. The request must be acknowledged once it has been
+     * sent, e.g. by an AsyncSendSmsClient, or it is recovered when the outbox is opened again; replay() does
+     * not send it before.
+     *
+     * @param request The request; gets a user key as in SendSmsClient.sendSms if the client has a Deduplicator
+     * @return The ID of the entry to acknowledge
+     * @throws IOException              Thrown if the request could not be serialized or forced to disk
+     * @throws IllegalArgumentException Thrown if the client validates segments and a message exceeds the
+     *                                  concatenation limit
+     * @throws IllegalStateException    Thrown if the outbox is not open
+     */
+    public long enqueue(SendSmsRequest request) throws IOException {
+        client.validate(request);
+        client.assignUserKey(request);
+        return enqueue(new SerializedSendSmsRequest(request));
+    }
+
+    /**
+     * Acknowledges an entry, recording the IDs of the submitted messages. Unknown entries are ignored.
+     *
+     * @param id       The ID returned by enqueue
+     * @param response The response, or null if the request was rejected
+     * @throws IOException           Thrown if the acknowledgement could not be appended
+     * @throws IllegalStateException Thrown if the outbox is not open
+     */
+    public void acknowledge(long id, SendSmsResponse response) throws IOException {
+        StringBuilder ids = new StringBuilder();
+        if (response != null && response.getMessages() != null) {
+            for (Sms sms : response.getMessages()) {
+                if (sms.getId() == null)
+                    continue;
+                if (ids.length() > 0)
+                    ids.append(',');
+                ids.append(sms.getId());
+            }
+        }
+        byte[] payload = ids.toString().getBytes(Marshaller.DEFAULT_ENCODING);
+
+        synchronized (lock) {
+            Entry entry = pending.remove(id);
+            if (entry == null)
+                return;
+
+            append(ACKNOWLEDGE, id, payload, payload.length);
+            entry.segment.unacknowledged--;
+            compact();
+        }
+    }
+
+    /**
+     * Sends the requests recovered by open() and those sendSms failed to send that have not been
+     * acknowledged yet, oldest first, and reports each outcome to the callback. Replay stops at the first
+     * networking or communication problem; the remaining requests stay in the outbox. Requests rejected by
+     * the endpoint or by the Deduplicator of the client, e.g. because a timed out attempt may have been
+     * submitted, are reported and acknowledged, and replay continues with the next request. Requests that
+     * cannot be read are reported as IOException and dropped. Requests being sent, e.g. by a concurrent
+     * replay, are skipped.
+     *
+     * @param callback The callback receiving the outcomes, or null
+     * @return The number of requests acknowledged
+     * @throws IllegalStateException Thrown if the outbox is not open
+     */
+    public int replay(SendSmsCallback callback) {
+        List<Long> ids = new ArrayList<Long>();
+        synchronized (lock) {
+            checkOpen();
+            for (Map.Entry<Long, Entry> entry : pending.entrySet()) {
+                if (!entry.getValue().sending) {
+                    entry.getValue().sending = true;
+                    ids.add(entry.getKey());
+                }
+            }
+        }
+
+        int acknowledged = 0;
+        int i = 0;
+        try {
+            for (; i < ids.size(); i++) {
+                long id = ids.get(i);
+
+                SerializedSendSmsRequest serialized;
+                try {
+                    SendSmsRequest request = MARSHALLER.unmarshalSendSmsRequest(new ByteArrayInputStream(read(id)));
+                    // Requests enqueued while no Deduplicator was set have no user key
+                    client.assignUserKey(request);
+                    serialized = new SerializedSendSmsRequest(request);
+                } catch (IOException e) {
+                    try {
+                        acknowledge(id, null);
+                        acknowledged++;
+                    } catch (IOException ignored) {
+                        // The entry is recovered again next time
+                    }
+                    if (callback != null)
+                        callback.onFailure(e);
+                    continue;
+                }
+
+                try {
+                    SendSmsResponse response = send(id, serialized);
+                    acknowledged++;
+                    if (callback != null)
+                        callback.onSuccess(response);
+                } catch (HttpClientErrorException e) {
+                    acknowledged++;
+                    if (callback != null)
+                        callback.onFailure(e);
+                } catch (DuplicateSubmissionException e) {
+                    acknowledged++;
+                    if (callback != null)
+                        callback.onFailure(e);
+                } catch (IOException e) {
+                    if (callback != null)
+                        callback.onFailure(e);
+                    break;
+                } catch (RuntimeException e) {
+                    if (callback != null)
+                        callback.onFailure(e);
+                    break;
+                }
+            }
+        } finally {
+            // The entries not sent are replayed next time
+            for (; i < ids.size(); i++) {
+                release(ids.get(i));
+            }
+        }
+        return acknowledged;
+    }
+
+    /**
+     * Gets the number of requests enqueued but not acknowledged, including the recovered ones.
+     *
+     * @return The number of pending requests
+     */
+    public int getPendingCount() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Gets the number of segment files, including the one being appended to.
+     *
+     * @return The number of segments
+     */
+    public int getSegmentCount() {
+        synchronized (lock) {
+            return segments.size();
+        }
+    }
+
+    private SendSmsResponse send(long id, SerializedSendSmsRequest serialized)
+            throws HttpClientErrorException, IOException {
+        SendSmsResponse response;
+        try {
+            response = client.sendSms(serialized);
+        } catch (HttpClientErrorException e) {
+            acknowledge(id, null);
+            throw e;
+        } catch (DuplicateSubmissionException e) {
+            // Submitted or possibly submitted before; sending it again would be rejected as well
+            acknowledge(id, null);
+            throw e;
+        } catch (IOException e) {
+            release(id);
+            throw e;
+        } catch (RuntimeException e) {
+            release(id);
+            throw e;
+        }
+        acknowledge(id, response);
+        return response;
+    }
+
+    long enqueue(SerializedSendSmsRequest serialized) throws IOException {
+        long id;
+        synchronized (lock) {
+            id = lastId + 1;
+            int position = append(ENQUEUE, id, serialized.array(), serialized.getLength());
+            current.unacknowledged++;
+            pending.put(id, new Entry(current, position, serialized.getLength(), true));
+        }
+        sync(id);
+        return id;
+    }
+
+    /**
+     * Lets replay() send an entry that is no longer being sent.
+     */
+    private void release(long id) {
+        synchronized (lock) {
+            Entry entry = pending.get(id);
+            if (entry != null)
+                entry.sending = false;
+        }
+    }
+
+    /**
+     * Reads the body of a pending entry back from its segment.
+     */
+    private byte[] read(long id) throws IOException {
+        synchronized (lock) {
+            checkOpen();
+            Entry entry = pending.get(id);
+            if (entry == null) {
+                throw new IOException("Entry " + id + " is no longer pending.");
+            }
+
+            ByteBuffer buffer = entry.segment.buffer.duplicate();
+            buffer.position(entry.position);
+            byte[] body = new byte[entry.length];
+            buffer.get(body);
+            return body;
+        }
+    }
+
+    /**
+     * Appends a record to the current segment, rolling over to a new segment if it does not fit.
+     *
+     * @return The position of the payload in the current segment
+     */
+    private int append(byte type, long id, byte[] payload, int length) throws IOException {
+        checkOpen();
+        int size = HEADER_SIZE + length + TRAILER_SIZE;
+        if (size > segmentSize) {
+            throw new IllegalArgumentException(
+                    "The request is larger than the segment size."
+            );
+        }
+        if (current.buffer.remaining() < size) {
+            roll();
+        }
+
+        scratch[0] = type;
+        for (int i = 0; i < 8; i++) {
+            scratch[1 + i] = (byte) (id >>> (56 - 8 * i));
+        }
+        crc.reset();
+        crc.update(scratch, 0, scratch.length);
+        crc.update(payload, 0, length);
+
+        MappedByteBuffer buffer = current.buffer;
+        int position = buffer.position() + HEADER_SIZE;
+        buffer.putInt(length);
+        buffer.put(scratch);
+        buffer.put(payload, 0, length);
+        buffer.putInt((int) crc.getValue());
+        if (id > lastId)
+            lastId = id;
+        return position;
+    }
+
+    /**
+     * Forces the current segment, which makes all records appended before durable, and starts a new one.
+     */
+    private void roll() throws IOException {
+        current.buffer.force();
+        long index = current.index + 1;
+        current = new Segment(index, segmentFile(index), segmentSize);
+        segments.add(current);
+    }
+
+    /**
+     * Deletes the oldest segments as long as all their requests have been acknowledged.
+     */
+    private void compact() {
+        while (segments.size() > 1 && segments.getFirst().unacknowledged == 0) {
+            segments.removeFirst().delete();
+        }
+    }
+
+    /**
+     * Waits until the entry is on disk. One of the waiting threads forces the current segment on behalf of
+     * all records appended so far, while the others wait for it.
+     */
+    private void sync(long id) throws IOException {
+        while (true) {
+            synchronized (syncLock) {
+                while (syncing && durableId < id) {
+                    try {
+                        syncLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for the outbox.");
+                    }
+                }
+                if (durableId >= id)
+                    return;
+                syncing = true;
+            }
+
+            long target = 0;
+            try {
+                MappedByteBuffer buffer;
+                synchronized (lock) {
+                    checkOpen();
+                    target = lastId;
+                    buffer = current.buffer;
+                }
+                // Records in older segments were forced when rolling over
+                buffer.force();
+            } catch (RuntimeException e) {
+                target = 0;
+                throw e;
+            } finally {
+                synchronized (syncLock) {
+                    if (target > durableId)
+                        durableId = target;
+                    syncing = false;
+                    syncLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the records of a segment until the end of the valid records.
+     */
+    private void recover(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= HEADER_SIZE + TRAILER_SIZE) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            byte type = buffer.get();
+            if ((type != ENQUEUE && type != ACKNOWLEDGE) || length < 0 ||
+                    length > buffer.remaining() - 8 - TRAILER_SIZE) {
+                buffer.position(start);
+                break;
+            }
+
+            long id = buffer.getLong();
+            int position = buffer.position();
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            int checksum = buffer.getInt();
+
+            crc.reset();
+            crc.update(type);
+            for (int i = 0; i < 8; i++) {
+                crc.update((int) (id >>> (56 - 8 * i)));
+            }
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                buffer.position(start);
+                break;
+            }
+
+            if (type == ENQUEUE) {
+                pending.put(id, new Entry(segment, position, length, false));
+                segment.unacknowledged++;
+            } else {
+                Entry entry = pending.remove(id);
+                if (entry != null)
+                    entry.segment.unacknowledged--;
+            }
+            if (id > lastId)
+                lastId = id;
+        }
+    }
+
+    private void checkOpen() {
+        if (!open) {
+            throw new IllegalStateException(
+                    "The outbox is not open."
+            );
+        }
+    }
+
+    private File segmentFile(long index) {
+        return new File(directory, String.format("outbox-%020d.log", index));
+    }
+
+    /**
+     * A request enqueued but not acknowledged. The body is read back from the segment when it is replayed.
+     */
+    private static class Entry {
+
+        final Segment segment;
+        final int position;
+        final int length;
+        // Guarded by lock
+        boolean sending;
+
+        Entry(Segment segment, int position, int length, boolean sending) {
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+            this.sending = sending;
+        }
+    }
+
+    /**
+     * A segment file mapped into memory. Java offers no way to unmap a file: the mapping is released when
+     * the buffer is garbage collected, and closing the file does not end it. A deleted segment therefore
+     * stays mapped until then. Where a mapped file cannot be deleted, e.g. on Windows, delete() leaves it
+     * behind; it holds no pending requests, so the next open() recovers nothing from it and deletes it again.
+     */
+    private static class Segment {
+
+        final long index;
+        final File file;
+        final RandomAccessFile randomAccessFile;
+        final MappedByteBuffer buffer;
+        int unacknowledged;
+
+        Segment(long index, File file, int size) throws IOException {
+            this.index = index;
+            this.file = file;
+            this.randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                this.buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } catch (IOException e) {
+                randomAccessFile.close();
+                throw e;
+            }
+        }
+
+        void close() throws IOException {
+            randomAccessFile.close();
+        }
+
+        void delete() {
+            try {
+                close();
+            } catch (IOException ignored) {
+                // Deleted anyway
+            }
+            file.delete();
+        }
+    }
+}
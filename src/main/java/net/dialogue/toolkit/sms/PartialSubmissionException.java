@@ -0,0 +1,58 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown by SendSmsClient if a retry fails after earlier attempts of the submission have been answered. The
+ * messages of the earlier attempts are not lost: they are available from this exception, along with the
+ * recipients of the failed retry. The cause is the failure of the retry.
+ *
+ * @see RetryPolicy
+ */
+public class PartialSubmissionException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<Sms> messages;
+    private final List<String> recipients;
+
+    /**
+     * Creates a new PartialSubmissionException instance.
+     *
+     * @param messages   The messages of the earlier attempts
+     * @param recipients The recipients of the failed retry
+     * @param cause      The failure of the retry
+     */
+    public PartialSubmissionException(List<Sms> messages, List<String> recipients, Throwable cause) {
+        super("Retry to " + recipients + " failed: " + cause);
+        initCause(cause);
+        this.messages = Collections.unmodifiableList(messages);
+        this.recipients = Collections.unmodifiableList(recipients);
+    }
+
+    /**
+     * Gets the Messages property.
+     *
+     * @return The messages of the earlier attempts, submitted or failed permanently
+     */
+    public List<Sms> getMessages() {
+        return messages;
+    }
+
+    /**
+     * Gets the Recipients property.
+     *
+     * @return The recipients of the failed retry, whose messages may or may not have been submitted
+     */
+    public List<String> getRecipients() {
+        return recipients;
+    }
+}
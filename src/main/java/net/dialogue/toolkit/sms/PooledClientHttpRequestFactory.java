@@ -0,0 +1,280 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+
+import javax.net.ssl.SSLContext;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transport using Apache HttpComponents 4.x with a pool of persistent (keep-alive) connections, so that
+ * consecutive submissions reuse connections and TLS sessions instead of connecting and negotiating TLS again.
+ * <p/>
+ * Instances are normally configured through SendSmsClient.Builder. Each instance runs a thread evicting idle
+ * connections while IdleTimeout is positive; call {@link #destroy()}, or SendSmsClient.close() for a transport
+ * created by the builder, once the transport is no longer used to close the pooled connections and stop
+ * the thread.
+ */
+public class PooledClientHttpRequestFactory extends HttpComponentsClientHttpRequestFactory {
+
+    public static final int DEFAULT_MAX_TOTAL = 100;
+    public static final int DEFAULT_MAX_PER_ROUTE = 20;
+    public static final long DEFAULT_KEEP_ALIVE = 30 * 1000;
+    public static final long DEFAULT_IDLE_TIMEOUT = 30 * 1000;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT = 60 * 1000;
+    public static final long DEFAULT_POOL_TIMEOUT = 10 * 1000;
+    public static final int DEFAULT_SSL_SESSION_CACHE_SIZE = 100;
+    public static final int DEFAULT_SSL_SESSION_TIMEOUT = 24 * 60 * 60;
+
+    // ClientPNames.CONN_MANAGER_TIMEOUT of HttpClient 4.2, read under the same name by HttpClient 4.1
+    private static final String CONN_MANAGER_TIMEOUT = "http.conn-manager.timeout";
+
+    private final ThreadSafeClientConnManager connectionManager;
+    private final SSLContext sslContext;
+    private volatile long keepAlive = DEFAULT_KEEP_ALIVE;
+    private volatile long idleTimeout;
+    private Thread evictor;
+
+    /**
+     * Creates a new pooled transport using the default settings.
+     */
+    public PooledClientHttpRequestFactory() {
+        this(createSslContext());
+    }
+
+    /**
+     * Creates a new pooled transport using the default settings and the given SSLContext, e.g. to trust
+     * other certificates than those of the JRE. The SSLContext should not be shared with other transports,
+     * as setSslSessionCache configures its session cache.
+     *
+     * @param sslContext The SSLContext secure connections are created from
+     * @throws IllegalArgumentException Thrown if sslContext is null
+     */
+    public PooledClientHttpRequestFactory(SSLContext sslContext) {
+        if (sslContext == null) {
+            throw new IllegalArgumentException(
+                    "No SSLContext provided."
+            );
+        }
+
+        this.sslContext = sslContext;
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http", 80, PlainSocketFactory.getSocketFactory()));
+        schemeRegistry.register(new Scheme("https", 443, new SSLSocketFactory(sslContext)));
+        connectionManager = new ThreadSafeClientConnManager(schemeRegistry);
+
+        DefaultHttpClient httpClient = new DefaultHttpClient(connectionManager);
+        httpClient.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                return keepAliveDuration(response);
+            }
+        });
+        setHttpClient(httpClient);
+
+        setMaxTotal(DEFAULT_MAX_TOTAL);
+        setMaxPerRoute(DEFAULT_MAX_PER_ROUTE);
+        setConnectTimeout(DEFAULT_CONNECT_TIMEOUT);
+        setReadTimeout(DEFAULT_READ_TIMEOUT);
+        setPoolTimeout(DEFAULT_POOL_TIMEOUT);
+        setIdleTimeout(DEFAULT_IDLE_TIMEOUT);
+        setSslSessionCache(DEFAULT_SSL_SESSION_CACHE_SIZE, DEFAULT_SSL_SESSION_TIMEOUT);
+    }
+
+    /**
+     * Sets the maximum number of pooled connections in total.
+     *
+     * @param maxTotal The maximum number of connections
+     * @throws IllegalArgumentException Thrown if maxTotal is less than 1
+     */
+    public void setMaxTotal(int maxTotal) {
+        if (maxTotal < 1) {
+            throw new IllegalArgumentException(
+                    "The maximum number of connections must be at least 1."
+            );
+        }
+
+        connectionManager.setMaxTotal(maxTotal);
+    }
+
+    /**
+     * Sets the maximum number of pooled connections per route (endpoint).
+     *
+     * @param maxPerRoute The maximum number of connections per route
+     * @throws IllegalArgumentException Thrown if maxPerRoute is less than 1
+     */
+    public void setMaxPerRoute(int maxPerRoute) {
+        if (maxPerRoute < 1) {
+            throw new IllegalArgumentException(
+                    "The maximum number of connections per route must be at least 1."
+            );
+        }
+
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+    }
+
+    /**
+     * Sets how long an idle connection is kept alive unless the endpoint requests a shorter time through
+     * the Keep-Alive header.
+     *
+     * @param keepAlive The keep-alive time in milliseconds, or 0 for no limit
+     * @throws IllegalArgumentException Thrown if keepAlive is negative
+     */
+    public void setKeepAlive(long keepAlive) {
+        if (keepAlive < 0) {
+            throw new IllegalArgumentException(
+                    "The keep-alive time must not be negative."
+            );
+        }
+
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Sets the time after which idle and expired connections are evicted from the pool by a background thread.
+     *
+     * @param idleTimeout The idle timeout in milliseconds, or 0 to disable eviction
+     * @throws IllegalArgumentException Thrown if idleTimeout is negative
+     */
+    public synchronized void setIdleTimeout(long idleTimeout) {
+        if (idleTimeout < 0) {
+            throw new IllegalArgumentException(
+                    "The idle timeout must not be negative."
+            );
+        }
+
+        this.idleTimeout = idleTimeout;
+        if (idleTimeout == 0 && evictor != null) {
+            evictor.interrupt();
+            evictor = null;
+        } else if (idleTimeout > 0 && evictor == null) {
+            evictor = new Thread(new Runnable() {
+                public void run() {
+                    evict();
+                }
+            }, "PooledClientHttpRequestFactory-evictor");
+            evictor.setDaemon(true);
+            evictor.start();
+        }
+    }
+
+    /**
+     * Sets the maximum time to wait for a connection from the pool when all connections are in use.
+     *
+     * @param poolTimeout The pool timeout in milliseconds, or 0 to wait indefinitely
+     * @throws IllegalArgumentException Thrown if poolTimeout is negative
+     */
+    public void setPoolTimeout(long poolTimeout) {
+        if (poolTimeout < 0) {
+            throw new IllegalArgumentException(
+                    "The pool timeout must not be negative."
+            );
+        }
+
+        getHttpClient().getParams().setLongParameter(CONN_MANAGER_TIMEOUT, poolTimeout);
+    }
+
+    /**
+     * Sets the size and timeout of the cache of TLS sessions that can be resumed without a full handshake.
+     *
+     * @param size    The maximum number of cached sessions, or 0 for no limit
+     * @param timeout The time in seconds a session can be resumed, or 0 for no limit
+     */
+    public void setSslSessionCache(int size, int timeout) {
+        sslContext.getClientSessionContext().setSessionCacheSize(size);
+        sslContext.getClientSessionContext().setSessionTimeout(timeout);
+    }
+
+    /**
+     * Gets the connection manager maintaining the pool.
+     *
+     * @return The connection manager
+     */
+    public ThreadSafeClientConnManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    /**
+     * Gets the SSLContext whose session cache is shared by all connections of this transport.
+     *
+     * @return The SSLContext
+     */
+    public SSLContext getSslContext() {
+        return sslContext;
+    }
+
+    /**
+     * Closes the pooled connections and stops the eviction thread.
+     */
+    @Override
+    public void destroy() {
+        synchronized (this) {
+            if (evictor != null) {
+                evictor.interrupt();
+                evictor = null;
+            }
+        }
+        super.destroy();
+    }
+
+    private static SSLContext createSslContext() {
+        try {
+            // One SSLContext per transport, its client session cache allows resuming TLS sessions
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, null, null);
+            return sslContext;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private long keepAliveDuration(HttpResponse response) {
+        long duration = keepAlive > 0 ? keepAlive : Long.MAX_VALUE;
+        HeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+        while (it.hasNext()) {
+            HeaderElement element = it.nextElement();
+            if ("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+                try {
+                    duration = Math.min(duration, Long.parseLong(element.getValue()) * 1000);
+                } catch (NumberFormatException e) {
+                    // Ignore malformed header
+                }
+            }
+        }
+        return duration == Long.MAX_VALUE ? 0 : duration;
+    }
+
+    private void evict() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                long timeout = idleTimeout;
+                Thread.sleep(timeout > 0 ? Math.min(timeout, 5000) : 5000);
+                if (timeout > 0) {
+                    connectionManager.closeExpiredConnections();
+                    connectionManager.closeIdleConnections(timeout, TimeUnit.MILLISECONDS);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Destroyed
+        }
+    }
+}
@@ -0,0 +1,542 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Rolling counters of delivery reports by network and status code (and therefore State), and histograms of
+ * the delivery latency by network, e.g. for dashboards. Usage:
+ * <pre>
+ * ReportAggregator aggregator = new ReportAggregator();
+ * ...
+ * public void onReport(SmsReport report) {
+ *     aggregator.add(report);
+ * }
+ * ...
+ * ReportAggregator.Snapshot snapshot = aggregator.snapshot();
+ * long delivered = snapshot.getCount("O2", State.Delivered);
+ * </pre>
+ * Reports are counted in the interval of their timestamp, or of the time they are added if they have none.
+ * Reports timestamped before the window are not counted, and reports timestamped in the future are counted
+ * in the current interval. The window consists of a fixed number of intervals; counts older than the window
+ * are dropped as the window rolls on. Latencies can be passed with the report, e.g. from a
+ * CorrelationListener as the report timestamp minus the submit time, and are counted in bins of powers of
+ * two milliseconds.
+ * <p/>
+ * Memory is bounded: only the first networks up to the maximum get counters of their own; reports of
+ * further networks or without a network are counted under the network null. The current interval holds
+ * counters per stripe and network, allocated when first used, and threads add to the stripe chosen by their
+ * thread ID, so adding does not contend across cores and takes no lock. Once an interval has ended, its
+ * stripes are folded into a single set of totals, which reports arriving late add to directly; a snapshot
+ * therefore reads the stripes of the current interval only. ReportAggregator instances are thread-safe.
+ */
+public class ReportAggregator {
+
+    public static final int DEFAULT_INTERVALS = 12;
+    public static final long DEFAULT_INTERVAL_LENGTH = 5 * 60 * 1000;
+    public static final int DEFAULT_MAX_NETWORKS = 32;
+
+    // Status codes 00 to 7F, then one counter for unknown codes
+    static final int CODES = 0x80 + 1;
+    // Bin 0 counts latencies of 0, bin i latencies from 2^(i-1) to 2^i - 1 milliseconds
+    static final int LATENCY_BINS = 41;
+    private static final int WIDTH = CODES + LATENCY_BINS;
+
+    private final int intervals;
+    private final long intervalLength;
+    private final int maxNetworks;
+    private final int stripes;
+    private final ConcurrentMap<String, Integer> networks = new ConcurrentHashMap<String, Integer>();
+    private final List<String> networkNames = new ArrayList<String>();
+    private final AtomicReferenceArray<Interval> window;
+
+    /**
+     * Creates a new ReportAggregator instance with a window of one hour in intervals of five minutes and up
+     * to 32 networks.
+     */
+    public ReportAggregator() {
+        this(DEFAULT_INTERVALS, DEFAULT_INTERVAL_LENGTH, DEFAULT_MAX_NETWORKS);
+    }
+
+    /**
+     * Creates a new ReportAggregator instance.
+     *
+     * @param intervals      The number of intervals in the window
+     * @param intervalLength The length of an interval in milliseconds
+     * @param maxNetworks    The maximum number of networks counted separately
+     * @throws IllegalArgumentException Thrown if any argument is less than 1
+     */
+    public ReportAggregator(int intervals, long intervalLength, int maxNetworks) {
+        if (intervals < 1) {
+            throw new IllegalArgumentException(
+                    "The number of intervals must be at least 1."
+            );
+        }
+
+        if (intervalLength < 1) {
+            throw new IllegalArgumentException(
+                    "The interval length must be at least 1 millisecond."
+            );
+        }
+
+        if (maxNetworks < 1) {
+            throw new IllegalArgumentException(
+                    "The maximum number of networks must be at least 1."
+            );
+        }
+
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() && stripes < 16) {
+            stripes <<= 1;
+        }
+
+        this.intervals = intervals;
+        this.intervalLength = intervalLength;
+        this.maxNetworks = maxNetworks;
+        this.stripes = stripes;
+        this.window = new AtomicReferenceArray<Interval>(intervals);
+    }
+
+    /**
+     * Counts a delivery report without latency.
+     *
+     * @param report The delivery report
+     * @throws IllegalArgumentException Thrown if report is null
+     */
+    public void add(SmsReport report) {
+        add(report, -1);
+    }
+
+    /**
+     * Counts a delivery report and its latency.
+     *
+     * @param report  The delivery report
+     * @param latency The delivery latency in milliseconds, or a negative value if unknown
+     * @throws IllegalArgumentException Thrown if report is null
+     */
+    public void add(SmsReport report, long latency) {
+        if (report == null) {
+            throw new IllegalArgumentException(
+                    "No report provided."
+            );
+        }
+
+        int code = report.getStatusCode();
+        if (code < 0 || code >= CODES - 1)
+            code = CODES - 1;
+
+        long now = System.currentTimeMillis();
+        long current = now / intervalLength;
+        long epoch = report.getTimestamp() != null ?
+                Math.min(report.getTimestamp().getTime() / intervalLength, current) : current;
+        Interval interval = interval(epoch, current);
+        if (interval == null)
+            return;
+
+        if (epoch < current)
+            interval.close();
+        interval.add((int) Thread.currentThread().getId() & (stripes - 1), network(report.getNetwork()),
+                code, latency >= 0 ? CODES + bin(latency) : -1);
+    }
+
+    /**
+     * Adds up the counters of the window. Intervals that have ended are read from their totals, folding
+     * them first if no report has done so yet.
+     *
+     * @return The counts of the reports within the window
+     */
+    public Snapshot snapshot() {
+        long now = System.currentTimeMillis();
+        long epoch = now / intervalLength;
+        int networks = maxNetworks + 1;
+        long[] counts = new long[networks * WIDTH];
+        for (int i = 0; i < intervals; i++) {
+            Interval interval = window.get(i);
+            if (interval == null || interval.epoch <= epoch - intervals)
+                continue;
+
+            Counters counters;
+            if (interval.epoch < epoch) {
+                interval.close();
+                counters = interval.totals.get();
+            } else {
+                counters = interval.stripes;
+            }
+            for (int j = 0; j < counters.length(); j++) {
+                AtomicLongArray row = counters.get(j);
+                if (row == null)
+                    continue;
+                int base = (j % networks) * WIDTH;
+                for (int k = 0; k < WIDTH; k++) {
+                    counts[base + k] += row.get(k);
+                }
+            }
+        }
+
+        List<String> names;
+        synchronized (networkNames) {
+            names = new ArrayList<String>(networkNames);
+        }
+        return new Snapshot((epoch - intervals + 1) * intervalLength, now, names, counts);
+    }
+
+    /**
+     * Gets the interval of an epoch, or null if the epoch is before the window.
+     */
+    private Interval interval(long epoch, long current) {
+        if (epoch <= current - intervals)
+            return null;
+
+        int index = (int) (epoch % intervals);
+        while (true) {
+            Interval interval = window.get(index);
+            if (interval != null && interval.epoch == epoch)
+                return interval;
+            if (interval != null && interval.epoch > epoch)
+                return null;
+
+            // The replaced interval has left the window; counts added to it at the same time are lost
+            Interval next = new Interval(epoch, stripes, maxNetworks + 1);
+            if (window.compareAndSet(index, interval, next))
+                return next;
+        }
+    }
+
+    /**
+     * Gets the index of a network, registering it if there is room. Index 0 holds the other networks.
+     */
+    private int network(String network) {
+        if (network == null)
+            return 0;
+
+        Integer index = networks.get(network);
+        if (index != null)
+            return index;
+
+        synchronized (networkNames) {
+            index = networks.get(network);
+            if (index != null)
+                return index;
+            if (networkNames.size() >= maxNetworks)
+                return 0;
+            networkNames.add(network);
+            index = networkNames.size();
+            networks.put(network, index);
+            return index;
+        }
+    }
+
+    static int bin(long latency) {
+        return Math.min(64 - Long.numberOfLeadingZeros(latency), LATENCY_BINS - 1);
+    }
+
+    /**
+     * Rows of counters, one per network and possibly stripe, allocated when first used.
+     */
+    private static class Counters {
+
+        private final AtomicReferenceArray<AtomicLongArray> rows;
+
+        Counters(int length) {
+            this.rows = new AtomicReferenceArray<AtomicLongArray>(length);
+        }
+
+        int length() {
+            return rows.length();
+        }
+
+        AtomicLongArray get(int index) {
+            return rows.get(index);
+        }
+
+        AtomicLongArray row(int index) {
+            AtomicLongArray row = rows.get(index);
+            if (row == null) {
+                rows.compareAndSet(index, null, new AtomicLongArray(WIDTH));
+                row = rows.get(index);
+            }
+            return row;
+        }
+    }
+
+    /**
+     * Counters of one interval: striped while it is current, folded into totals once it has ended.
+     */
+    private static class Interval {
+
+        final long epoch;
+        final int networks;
+        final Counters stripes;
+        final AtomicReference<Counters> totals = new AtomicReference<Counters>();
+
+        Interval(long epoch, int stripes, int networks) {
+            this.epoch = epoch;
+            this.networks = networks;
+            this.stripes = new Counters(stripes * networks);
+        }
+
+        void add(int stripe, int network, int code, int bin) {
+            Counters totals = this.totals.get();
+            if (totals != null) {
+                AtomicLongArray row = totals.row(network);
+                row.incrementAndGet(code);
+                if (bin >= 0)
+                    row.incrementAndGet(bin);
+                return;
+            }
+
+            AtomicLongArray row = stripes.row(stripe * networks + network);
+            row.incrementAndGet(code);
+            if (bin >= 0)
+                row.incrementAndGet(bin);
+
+            // Closed meanwhile: close() may have folded the row before these counts were added
+            totals = this.totals.get();
+            if (totals != null) {
+                move(row, code, totals.row(network));
+                if (bin >= 0)
+                    move(row, bin, totals.row(network));
+            }
+        }
+
+        /**
+         * Folds the stripes into the totals. Counts are moved, so a count added while folding is moved
+         * either here or by the thread adding it.
+         */
+        void close() {
+            if (totals.get() != null || !totals.compareAndSet(null, new Counters(networks)))
+                return;
+
+            Counters totals = this.totals.get();
+            for (int i = 0; i < stripes.length(); i++) {
+                AtomicLongArray row = stripes.get(i);
+                if (row == null)
+                    continue;
+                for (int j = 0; j < WIDTH; j++) {
+                    if (row.get(j) != 0)
+                        move(row, j, totals.row(i % networks));
+                }
+            }
+        }
+
+        private static void move(AtomicLongArray from, int index, AtomicLongArray to) {
+            long count = from.getAndSet(index, 0);
+            if (count != 0)
+                to.addAndGet(index, count);
+        }
+    }
+
+    /**
+     * Counts of the delivery reports within the window, as of the time the snapshot was taken.
+     * Snapshot instances are immutable.
+     */
+    public static final class Snapshot {
+
+        private final long start;
+        private final long end;
+        private final List<String> networks;
+        private final long[] counts;
+
+        Snapshot(long start, long end, List<String> networks, long[] counts) {
+            this.start = start;
+            this.end = end;
+            this.networks = Collections.unmodifiableList(networks);
+            this.counts = counts;
+        }
+
+        /**
+         * Gets the Start property.
+         *
+         * @return The start of the window as returned by System.currentTimeMillis
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * Gets the End property.
+         *
+         * @return The time the snapshot was taken as returned by System.currentTimeMillis
+         */
+        public long getEnd() {
+            return end;
+        }
+
+        /**
+         * Gets the networks counted separately.
+         *
+         * @return The network names in the order they were first seen
+         */
+        public List<String> getNetworks() {
+            return networks;
+        }
+
+        /**
+         * Gets the number of reports of all networks.
+         *
+         * @return The number of reports
+         */
+        public long getTotal() {
+            long total = 0;
+            for (int network = 0; network <= networks.size(); network++) {
+                for (int code = 0; code < CODES; code++) {
+                    total += counts[network * WIDTH + code];
+                }
+            }
+            return total;
+        }
+
+        /**
+         * Gets the number of reports with a state, of all networks.
+         *
+         * @param state The state; Undefined counts unknown status codes
+         * @return The number of reports
+         */
+        public long getCount(State state) {
+            long count = 0;
+            for (int network = 0; network <= networks.size(); network++) {
+                count += count(network, state);
+            }
+            return count;
+        }
+
+        /**
+         * Gets the number of reports of a network with a state.
+         *
+         * @param network The network, or null for other networks and reports without network
+         * @param state   The state; Undefined counts unknown status codes
+         * @return The number of reports
+         */
+        public long getCount(String network, State state) {
+            int index = index(network);
+            return index < 0 ? 0 : count(index, state);
+        }
+
+        /**
+         * Gets the number of reports of a network with a status code.
+         *
+         * @param network    The network, or null for other networks and reports without network
+         * @param statusCode The status code, or -1 for unknown status codes
+         * @return The number of reports
+         */
+        public long getCount(String network, int statusCode) {
+            int index = index(network);
+            if (index < 0)
+                return 0;
+            int code = statusCode >= 0 && statusCode < CODES - 1 ? statusCode : CODES - 1;
+            return counts[index * WIDTH + code];
+        }
+
+        /**
+         * Gets the latency histogram of a network. Bin 0 counts latencies of 0, bin i latencies from 2^(i-1)
+         * to 2^i - 1 milliseconds.
+         *
+         * @param network The network, or null for other networks and reports without network
+         * @return The counts per bin
+         */
+        public long[] getLatencyHistogram(String network) {
+            long[] histogram = new long[LATENCY_BINS];
+            int index = index(network);
+            if (index >= 0)
+                System.arraycopy(counts, index * WIDTH + CODES, histogram, 0, LATENCY_BINS);
+            return histogram;
+        }
+
+        /**
+         * Gets an upper bound of a latency percentile of all networks.
+         *
+         * @param percentile The percentile, from 0 to 100
+         * @return The upper bound of the histogram bin in milliseconds, or -1 if no latencies were added
+         */
+        public long getLatencyPercentile(double percentile) {
+            long[] histogram = new long[LATENCY_BINS];
+            for (int network = 0; network <= networks.size(); network++) {
+                for (int bin = 0; bin < LATENCY_BINS; bin++) {
+                    histogram[bin] += counts[network * WIDTH + CODES + bin];
+                }
+            }
+            return percentile(histogram, percentile);
+        }
+
+        /**
+         * Gets an upper bound of a latency percentile of a network.
+         *
+         * @param network    The network, or null for other networks and reports without network
+         * @param percentile The percentile, from 0 to 100
+         * @return The upper bound of the histogram bin in milliseconds, or -1 if no latencies were added
+         */
+        public long getLatencyPercentile(String network, double percentile) {
+            return percentile(getLatencyHistogram(network), percentile);
+        }
+
+        private int index(String network) {
+            if (network == null)
+                return 0;
+            int index = networks.indexOf(network);
+            return index < 0 ? -1 : index + 1;
+        }
+
+        private long count(int network, State state) {
+            long count = 0;
+            for (int code = 0; code < CODES; code++) {
+                State codeState = StatusCodes.INSTANCE.getState(code);
+                if ((codeState == null ? State.Undefined : codeState) == state)
+                    count += counts[network * WIDTH + code];
+            }
+            return count;
+        }
+
+        private static long percentile(long[] histogram, double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException(
+                        "The percentile must be between 0 and 100."
+                );
+            }
+
+            long total = 0;
+            for (long count : histogram) {
+                total += count;
+            }
+            if (total == 0)
+                return -1;
+
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long cumulative = 0;
+            for (int bin = 0; bin < histogram.length; bin++) {
+                cumulative += histogram[bin];
+                if (cumulative >= rank && cumulative > 0)
+                    return bin == 0 ? 0 : (1L << bin) - 1;
+            }
+            return Long.MAX_VALUE;
+        }
+
+        /**
+         * Returns a string representation of this Snapshot instance.
+         *
+         * @return String representation
+         */
+        @Override
+        public String toString() {
+            return "Snapshot{" +
+                    "start=" + start +
+                    ", end=" + end +
+                    ", total=" + getTotal() +
+                    ", delivered=" + getCount(State.Delivered) +
+                    ", temporaryError=" + getCount(State.TemporaryError) +
+                    ", permanentError=" + getCount(State.PermanentError) +
+                    '}';
+        }
+    }
+}
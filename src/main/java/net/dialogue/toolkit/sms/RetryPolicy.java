@@ -0,0 +1,239 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Controls how SendSmsClient retries submissions. A submission is retried if it failed to connect to the
+ * endpoint, or for those recipients whose submitted messages all have a submission report in the
+ * StatusCodes.RetryError range; recipients whose messages were submitted successfully or failed permanently are
+ * never sent again. Other failures, such as read timeouts, are never retried, as the endpoint may already have
+ * accepted the messages.
+ * <p/>
+ * Retries wait for an exponentially growing backoff with random jitter and are limited by the maximum number
+ * of attempts, an overall deadline and a retry budget shared by all submissions of the client, which caps
+ * retries at a ratio of the submissions so that an endpoint in trouble does not face a retry storm.
+ * <p/>
+ * RetryPolicy instances are thread-safe and normally configured through SendSmsClient.Builder.
+ */
+public class RetryPolicy {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_INITIAL_BACKOFF = 100;
+    public static final long DEFAULT_MAX_BACKOFF = 5000;
+    public static final double DEFAULT_BUDGET_RATIO = 0.1;
+    public static final int DEFAULT_BUDGET_RESERVE = 10;
+
+    // Budget in thousandths of a retry
+    private static final long UNIT = 1000;
+
+    private final Random random = new Random();
+    private final AtomicLong budget;
+    private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private volatile long initialBackoff = DEFAULT_INITIAL_BACKOFF;
+    private volatile long maxBackoff = DEFAULT_MAX_BACKOFF;
+    private volatile double budgetRatio = DEFAULT_BUDGET_RATIO;
+    private volatile int budgetReserve = DEFAULT_BUDGET_RESERVE;
+    private volatile long deadline;
+
+    /**
+     * Creates a new RetryPolicy instance using the default settings.
+     */
+    public RetryPolicy() {
+        budget = new AtomicLong(DEFAULT_BUDGET_RESERVE * UNIT);
+    }
+
+    /**
+     * Gets the MaxAttempts property.
+     *
+     * @return The maximum number of attempts, including the first one
+     * @see RetryPolicy#setMaxAttempts(int)
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Sets the MaxAttempts property, by default 3.
+     *
+     * @param maxAttempts The maximum number of attempts, including the first one
+     * @throws IllegalArgumentException Thrown if maxAttempts is less than 1
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException(
+                    "The maximum number of attempts must be at least 1."
+            );
+        }
+
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Gets the InitialBackoff property.
+     *
+     * @return The backoff before the first retry in milliseconds
+     * @see RetryPolicy#setBackoff(long, long)
+     */
+    public long getInitialBackoff() {
+        return initialBackoff;
+    }
+
+    /**
+     * Gets the MaxBackoff property.
+     *
+     * @return The maximum backoff in milliseconds
+     * @see RetryPolicy#setBackoff(long, long)
+     */
+    public long getMaxBackoff() {
+        return maxBackoff;
+    }
+
+    /**
+     * Sets the backoff, by default 100 milliseconds doubling with every retry up to 5 seconds. The actual
+     * backoff is randomly chosen between half and all of it.
+     *
+     * @param initialBackoff The backoff before the first retry in milliseconds
+     * @param maxBackoff     The maximum backoff in milliseconds
+     * @throws IllegalArgumentException Thrown if initialBackoff is negative or greater than maxBackoff
+     */
+    public void setBackoff(long initialBackoff, long maxBackoff) {
+        if (initialBackoff < 0 || initialBackoff > maxBackoff) {
+            throw new IllegalArgumentException(
+                    "The initial backoff must not be negative or greater than the maximum backoff."
+            );
+        }
+
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+    }
+
+    /**
+     * Gets the BudgetRatio property.
+     *
+     * @return The number of retries allowed per submission
+     * @see RetryPolicy#setBudget(double, int)
+     */
+    public double getBudgetRatio() {
+        return budgetRatio;
+    }
+
+    /**
+     * Gets the BudgetReserve property.
+     *
+     * @return The number of retries allowed regardless of the ratio
+     * @see RetryPolicy#setBudget(double, int)
+     */
+    public int getBudgetReserve() {
+        return budgetReserve;
+    }
+
+    /**
+     * Sets the retry budget, by default 0.1 retries per submission with a reserve of 10 retries. Every
+     * submission adds the ratio to the budget, up to the reserve; every retry takes one from it.
+     *
+     * @param ratio   The number of retries allowed per submission
+     * @param reserve The number of retries allowed regardless of the ratio
+     * @throws IllegalArgumentException Thrown if ratio or reserve is negative
+     */
+    public void setBudget(double ratio, int reserve) {
+        if (ratio < 0 || reserve < 0) {
+            throw new IllegalArgumentException(
+                    "The retry budget must not be negative."
+            );
+        }
+
+        this.budgetRatio = ratio;
+        this.budgetReserve = reserve;
+        budget.set(reserve * UNIT);
+    }
+
+    /**
+     * Gets the Deadline property.
+     *
+     * @return The time in milliseconds after which a submission is no longer retried or 0 for no limit
+     * @see RetryPolicy#setDeadline(long)
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Sets the Deadline property. No retry is started if it could not begin within this time after the first
+     * attempt; use the connect and read timeouts of the transport to limit the time of each attempt.
+     *
+     * @param deadline The time in milliseconds after which a submission is no longer retried or 0 for no limit
+     * @throws IllegalArgumentException Thrown if deadline is negative
+     */
+    public void setDeadline(long deadline) {
+        if (deadline < 0) {
+            throw new IllegalArgumentException(
+                    "The deadline must not be negative."
+            );
+        }
+
+        this.deadline = deadline;
+    }
+
+    /**
+     * Checks if the message should be submitted again.
+     *
+     * @param sms The submitted message
+     * @return True if the submission report is in the StatusCodes.RetryError range, false otherwise
+     */
+    public boolean isRetryable(Sms sms) {
+        return StatusCodes.INSTANCE.isRetryError(sms.getStatusCode());
+    }
+
+    /**
+     * Adds a submission to the retry budget.
+     */
+    void onSubmission() {
+        long max = budgetReserve * UNIT;
+        long deposit = (long) (budgetRatio * UNIT);
+        while (true) {
+            long current = budget.get();
+            long next = Math.min(current + deposit, max);
+            if (next <= current || budget.compareAndSet(current, next))
+                return;
+        }
+    }
+
+    /**
+     * Gets the backoff before a retry if the retry is allowed, taking it from the retry budget.
+     *
+     * @param attempt The number of attempts made so far
+     * @param start   The time of the first attempt as returned by System.currentTimeMillis
+     * @return The backoff in milliseconds or -1 if the submission must not be retried
+     */
+    long retry(int attempt, long start) {
+        if (attempt >= maxAttempts)
+            return -1;
+
+        long backoff = Math.min(initialBackoff << Math.min(attempt - 1, 30), maxBackoff);
+        if (backoff > 1) {
+            long half = backoff / 2;
+            synchronized (random) {
+                backoff = half + (long) (random.nextDouble() * (backoff - half));
+            }
+        }
+
+        long deadline = this.deadline;
+        if (deadline > 0 && System.currentTimeMillis() + backoff - start > deadline)
+            return -1;
+
+        while (true) {
+            long current = budget.get();
+            if (current < UNIT)
+                return -1;
+            if (budget.compareAndSet(current, current - UNIT))
+                return backoff;
+        }
+    }
+}
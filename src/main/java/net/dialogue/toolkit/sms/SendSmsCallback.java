@@ -0,0 +1,30 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+/**
+ * Receives the outcome of an asynchronous message submission.
+ *
+ * @see AsyncSendSmsClient#sendSms(SendSmsRequest, SendSmsCallback)
+ */
+public interface SendSmsCallback {
+
+    /**
+     * Called when the submission completed.
+     *
+     * @param response Response object containing a list of one or more submitted messages
+     */
+    void onSuccess(SendSmsResponse response);
+
+    /**
+     * Called when the submission failed. Networking or communication problems with the endpoint are reported
+     * as java.io.IOException, exactly like SendSmsClient.sendSms throws them.
+     *
+     * @param e The cause of the failure
+     */
+    void onFailure(Throwable e);
+}
@@ -8,30 +8,58 @@ package net.dialogue.toolkit.sms;
 
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpRequest;
 import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
 import org.springframework.http.client.CommonsClientHttpRequestFactory;
 import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.http.client.SimpleClientHttpRequestFactory;
 import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RequestCallback;
 import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.ResponseExtractor;
 import org.springframework.web.client.RestOperations;
 
 import org.apache.commons.codec.binary.Base64;
 
+import javax.xml.transform.stream.StreamResult;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Client used for sending messages.
  */
 public class SendSmsClient {
 
+    private static final Marshaller MARSHALLER = new Marshaller();
+
     private RestOperations restOperations;
     private String endpoint;
+    private volatile EndpointGroup endpointGroup;
+    private volatile Governor governor;
+    private volatile RetryPolicy retryPolicy;
+    private volatile Deduplicator deduplicator;
+    private volatile boolean validateSegments;
     private String userName;
     private String password;
+    private volatile CredentialsProvider credentialsProvider;
+    private volatile Headers headers;
     private boolean secure = true;
     private String path = "/submit_sm";
+    // Created by the Builder and closed by close()
+    private volatile PooledClientHttpRequestFactory pooledTransport;
 
     /**
      * Creates a new SendSmsClient instance using the default configuration.
@@ -95,6 +123,114 @@ public class SendSmsClient {
         this.endpoint = endpoint;
     }
 
+    /**
+     * Gets the EndpointGroup property.
+     *
+     * @return The group of endpoints used for sending messages or null if the Endpoint property is used
+     * @see SendSmsClient#setEndpointGroup(EndpointGroup)
+     */
+    public EndpointGroup getEndpointGroup() {
+        return endpointGroup;
+    }
+
+    /**
+     * Sets the EndpointGroup property. If set, messages are sent to endpoints selected from the group
+     * instead of the Endpoint property.
+     *
+     * @param endpointGroup The group of endpoints used for sending messages or null to use the Endpoint property
+     */
+    public void setEndpointGroup(EndpointGroup endpointGroup) {
+        this.endpointGroup = endpointGroup;
+    }
+
+    /**
+     * Gets the Governor property.
+     *
+     * @return The governor limiting the submission rate and requests in flight or null if not limited
+     * @see SendSmsClient#setGovernor(Governor)
+     */
+    public Governor getGovernor() {
+        return governor;
+    }
+
+    /**
+     * Sets the Governor property. In non-blocking mode submissions exceeding the limits throw a
+     * java.util.concurrent.RejectedExecutionException.
+     *
+     * @param governor The governor limiting the submission rate and requests in flight or null for no limits
+     */
+    public void setGovernor(Governor governor) {
+        this.governor = governor;
+    }
+
+    /**
+     * Gets the RetryPolicy property.
+     *
+     * @return The policy for retrying submissions or null if submissions are not retried
+     * @see SendSmsClient#setRetryPolicy(RetryPolicy)
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Sets the RetryPolicy property.
+     *
+     * @param retryPolicy The policy for retrying submissions or null to not retry submissions
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Gets the Deduplicator property.
+     *
+     * @return The deduplicator rejecting resubmissions or null if submissions are not deduplicated
+     * @see SendSmsClient#setDeduplicator(Deduplicator)
+     */
+    public Deduplicator getDeduplicator() {
+        return deduplicator;
+    }
+
+    /**
+     * Sets the Deduplicator property. If set, submitting a request again to a recipient within the window of
+     * the deduplicator throws a DuplicateSubmissionException, and requests without a UserKey property get a
+     * derived user key unless the deduplicator does not assign user keys. The derived user key is set on the
+     * request passed to sendSms, so that request is changed and keeps the key when it is sent again. The body
+     * of a SerializedSendSmsRequest cannot be changed, so its request must have a user key then; call
+     * assignUserKey before serializing it. Outbox does so itself. Retries
+     * by the RetryPolicy belong to the same submission and are not rejected. Submissions that fail before
+     * the request is written, i.e. are rejected by the Governor, interrupted while waiting or fail to
+     * connect, are forgotten and can be submitted again, as are requests rejected by the endpoint.
+     *
+     * @param deduplicator The deduplicator rejecting resubmissions or null to not deduplicate submissions
+     */
+    public void setDeduplicator(Deduplicator deduplicator) {
+        this.deduplicator = deduplicator;
+    }
+
+    /**
+     * Gets the ValidateSegments property.
+     *
+     * @return True if messages are checked against the concatenation limit before they are sent
+     * @see SendSmsClient#setValidateSegments(boolean)
+     */
+    public boolean getValidateSegments() {
+        return validateSegments;
+    }
+
+    /**
+     * Sets the ValidateSegments property, by default false. If true, a request with a message needing more
+     * segments than its ConcatenationLimit property allows is rejected with an IllegalArgumentException
+     * before anything is sent. Requests without the property are limited to a single segment.
+     *
+     * @param validateSegments True to check messages against the concatenation limit
+     * @see MessageAnalyzer#getSegments(CharSequence)
+     */
+    public void setValidateSegments(boolean validateSegments) {
+        this.validateSegments = validateSegments;
+    }
+
     /**
      * Gets the UserName property.
      *
@@ -119,6 +255,7 @@ public class SendSmsClient {
         }
 
         this.userName = userName;
+        this.headers = null;
     }
 
     /**
@@ -145,6 +282,29 @@ public class SendSmsClient {
         }
 
         this.password = password;
+        this.headers = null;
+    }
+
+    /**
+     * Gets the CredentialsProvider property.
+     *
+     * @return The provider of the credentials used for sending messages or null if the UserName and Password
+     * properties are used
+     * @see SendSmsClient#setCredentialsProvider(CredentialsProvider)
+     */
+    public CredentialsProvider getCredentialsProvider() {
+        return credentialsProvider;
+    }
+
+    /**
+     * Sets the CredentialsProvider property. If set, the credentials it provides are used for sending messages
+     * instead of the UserName and Password properties, which allows rotating credentials at any time.
+     *
+     * @param credentialsProvider The provider of the credentials used for sending messages or null to use the
+     *                            UserName and Password properties
+     */
+    public void setCredentialsProvider(CredentialsProvider credentialsProvider) {
+        this.credentialsProvider = credentialsProvider;
     }
 
     /**
@@ -199,41 +359,506 @@ public class SendSmsClient {
     }
 
     /**
-     * Performs the message submission.
+     * Closes the pooled connections and stops the eviction thread of the pooled transport selected through
+     * SendSmsClient.Builder, if any; the client must not be used afterwards. Transports provided through
+     * Builder.transport or setRestOperations are left to their owner.
+     */
+    public void close() {
+        PooledClientHttpRequestFactory pooledTransport = this.pooledTransport;
+        this.pooledTransport = null;
+        if (pooledTransport != null)
+            pooledTransport.destroy();
+    }
+
+    /**
+     * Performs the message submission. If a RetryPolicy is set, the submission is retried as the policy
+     * allows and the response contains the messages of all attempts; if a retry fails, a
+     * PartialSubmissionException contains the messages of the earlier attempts.
      *
      * @param request Request object containing message(s), recipient(s) and other optional properties
      * @return Response object containing a list of one or more submitted messages
+     * @throws IllegalArgumentException Thrown if ValidateSegments is true and a message exceeds the
+     *                                  concatenation limit
      * @throws java.io.IOException Thrown if there is a networking or communication problem with the endpoint
+     * @throws DuplicateSubmissionException Thrown if a Deduplicator is set and the request has been submitted
+     *                                      to a recipient before
      */
     public SendSmsResponse sendSms(SendSmsRequest request) throws HttpClientErrorException, IOException {
+        validate(request);
+        assignUserKey(request);
+        return send(request, null);
+    }
+
+    /**
+     * Performs the message submission of a serialized request. The serialized body is sent as it is by every
+     * attempt, so a request that is sent repeatedly is marshalled only once. If a RetryPolicy is set, the
+     * submission is retried as the policy allows and the response contains the messages of all attempts; if a
+     * retry fails, a PartialSubmissionException contains the messages of the earlier attempts.
+     *
+     * @param serialized Serialized request object containing message(s), recipient(s) and other optional
+     *                   properties
+     * @return Response object containing a list of one or more submitted messages
+     * @throws IllegalArgumentException Thrown if serialized is null, ValidateSegments is true and a message
+     *                                  exceeds the concatenation limit, or a Deduplicator assigning user keys
+     *                                  is set and the request has no user key
+     * @throws java.io.IOException      Thrown if there is a networking or communication problem with the endpoint
+     * @throws DuplicateSubmissionException Thrown if a Deduplicator is set and the request has been submitted
+     *                                      to a recipient before
+     * @see SendSmsClient#assignUserKey(SendSmsRequest)
+     */
+    public SendSmsResponse sendSms(SerializedSendSmsRequest serialized) throws HttpClientErrorException, IOException {
+        if (serialized == null) {
+            throw new IllegalArgumentException(
+                    "No request provided."
+            );
+        }
+
+        validate(serialized.getRequest());
+        Deduplicator deduplicator = this.deduplicator;
+        if (deduplicator != null && deduplicator.getAssignUserKeys() && serialized.getRequest().getUserKey() == null) {
+            throw new IllegalArgumentException(
+                    "The serialized request has no user key; call assignUserKey before serializing it."
+            );
+        }
+
+        return send(serialized.getRequest(), serialized);
+    }
+
+    /**
+     * Sends the request, or its serialized body if the caller provided one. The request has been validated.
+     */
+    private SendSmsResponse send(SendSmsRequest request, SerializedSendSmsRequest serialized)
+            throws HttpClientErrorException, IOException {
+        Deduplicator deduplicator = this.deduplicator;
+        if (deduplicator == null) {
+            return retry(request, serialized);
+        }
+
+        // Registered before sending, as a timed out submission may have been accepted
+        String userKey = deduplicator.register(request);
         try {
-            return restOperations.postForObject(
-                    (secure ? "https://" : "http://") + endpoint + path,
-                    new HttpEntity<SendSmsRequest>(request, createHeaders()),
-                    SendSmsResponse.class);
-        } catch (ResourceAccessException e) {
-            if (e.getCause() instanceof IOException) {
-                throw (IOException) e.getCause();
-            } else {
+            return retry(request, serialized);
+        } catch (HttpClientErrorException e) {
+            deduplicator.forget(request, userKey);
+            throw e;
+        } catch (RejectedExecutionException e) {
+            deduplicator.forget(request, userKey);
+            throw e;
+        } catch (IOException e) {
+            if (isUnsent(e))
+                deduplicator.forget(request, userKey);
+            throw e;
+        }
+    }
+
+    private SendSmsResponse retry(SendSmsRequest request, SerializedSendSmsRequest serialized)
+            throws HttpClientErrorException, IOException {
+        RetryPolicy retryPolicy = this.retryPolicy;
+        if (retryPolicy == null) {
+            return post(request, serialized);
+        }
+
+        retryPolicy.onSubmission();
+        long start = System.currentTimeMillis();
+        List<Sms> messages = new ArrayList<Sms>();
+        SendSmsRequest pending = request;
+        try {
+            for (int attempt = 1; ; attempt++) {
+                SendSmsResponse response;
+                try {
+                    response = post(pending, serialized);
+                } catch (IOException e) {
+                    // Only a submission that never reached the endpoint is safe to send again
+                    long backoff = EndpointGroup.isConnectFailure(e) ? retryPolicy.retry(attempt, start) : -1;
+                    if (backoff < 0)
+                        throw e;
+                    backoff(backoff);
+                    continue;
+                }
+
+                if (response == null || response.getMessages() == null)
+                    return response;
+
+                // Recipients are retried only if all their messages can be retried
+                Map<String, Boolean> retryable = new LinkedHashMap<String, Boolean>();
+                for (Sms sms : response.getMessages()) {
+                    Boolean previous = retryable.get(sms.getRecipient());
+                    retryable.put(sms.getRecipient(),
+                            (previous == null || previous) && retryPolicy.isRetryable(sms));
+                }
+                Set<String> recipients = new LinkedHashSet<String>();
+                for (Map.Entry<String, Boolean> entry : retryable.entrySet()) {
+                    if (entry.getValue() && entry.getKey() != null)
+                        recipients.add(entry.getKey());
+                }
+
+                long backoff = recipients.isEmpty() ? -1 : retryPolicy.retry(attempt, start);
+                if (backoff < 0) {
+                    messages.addAll(response.getMessages());
+                    response.setMessages(messages);
+                    return response;
+                }
+
+                for (Sms sms : response.getMessages()) {
+                    if (!recipients.contains(sms.getRecipient()))
+                        messages.add(sms);
+                }
+                pending = new SendSmsRequest(request.getMessages(), new ArrayList<String>(recipients));
+                pending.putAll(request);
+                if (serialized != null)
+                    serialized = new SerializedSendSmsRequest(pending);
+                backoff(backoff);
+            }
+        } catch (IOException e) {
+            throw partial(messages, pending, e);
+        } catch (RuntimeException e) {
+            if (messages.isEmpty())
                 throw e;
+            throw partial(messages, pending, e);
+        }
+    }
+
+    /**
+     * Keeps the messages of earlier attempts if a retry fails.
+     */
+    private static IOException partial(List<Sms> messages, SendSmsRequest pending, Exception e) {
+        if (messages.isEmpty() && e instanceof IOException)
+            return (IOException) e;
+        return new PartialSubmissionException(messages, pending.getRecipients(), e);
+    }
+
+    /**
+     * Posts the serialized body if there is one, the request otherwise.
+     */
+    private SendSmsResponse post(SendSmsRequest request, SerializedSendSmsRequest serialized) throws IOException {
+        final Object body = serialized != null ? serialized : request;
+        return submit(request, new Submission<SendSmsResponse>() {
+            SendSmsResponse submit(String url) {
+                return restOperations.postForObject(
+                        url,
+                        new HttpEntity<Object>(body, createHeaders()),
+                        SendSmsResponse.class);
             }
+        });
+    }
+
+    /**
+     * Performs the message submission, passing each submitted message to the listener as soon as it has been
+     * read from the response. Unlike {@link #sendSms(SendSmsRequest)} the response is never held in memory as
+     * a whole, which makes this suitable for submissions to very large numbers of recipients. The submission
+     * is never retried, as messages have already been passed to the listener.
+     *
+     * @param request  Request object containing message(s), recipient(s) and other optional properties
+     * @param listener Listener receiving the submitted messages
+     * @throws IllegalArgumentException Thrown if ValidateSegments is true and a message exceeds the
+     *                                  concatenation limit
+     * @throws java.io.IOException Thrown if there is a networking or communication problem with the endpoint
+     */
+    public void sendSms(final SendSmsRequest request, final SmsListener listener)
+            throws HttpClientErrorException, IOException {
+        validate(request);
+        assignUserKey(request);
+        Deduplicator deduplicator = this.deduplicator;
+        String userKey = deduplicator != null ? deduplicator.register(request) : null;
+        try {
+            submit(request, new Submission<Object>() {
+                Object submit(String url) {
+                    return restOperations.execute(
+                            url,
+                            HttpMethod.POST,
+                            new SendSmsRequestCallback(new HttpEntity<SendSmsRequest>(request, createHeaders())),
+                            new SendSmsResponseExtractor(listener));
+                }
+            });
+        } catch (HttpClientErrorException e) {
+            if (deduplicator != null)
+                deduplicator.forget(request, userKey);
+            throw e;
+        } catch (RejectedExecutionException e) {
+            if (deduplicator != null)
+                deduplicator.forget(request, userKey);
+            throw e;
+        } catch (IOException e) {
+            if (deduplicator != null && isUnsent(e))
+                deduplicator.forget(request, userKey);
+            throw e;
+        }
+    }
+
+    /**
+     * Whether a submission failed before the request was written: it failed to connect, or the thread was
+     * interrupted while waiting for the Governor or before a retry. Socket timeouts are subclasses of
+     * InterruptedIOException and may have been written. A retry failing after earlier attempts that were
+     * submitted throws a PartialSubmissionException instead.
+     */
+    private static boolean isUnsent(IOException e) {
+        return EndpointGroup.isConnectFailure(e) || e.getClass() == InterruptedIOException.class;
+    }
+
+    void validate(SendSmsRequest request) {
+        if (!validateSegments)
+            return;
+
+        Integer concatenationLimit = request.getConcatenationLimit();
+        int limit = concatenationLimit != null ? concatenationLimit : 1;
+        List<String> messages = request.getMessages();
+        for (int i = 0; i < messages.size(); i++) {
+            int segments = MessageAnalyzer.getSegments(messages.get(i));
+            if (segments > limit) {
+                throw new IllegalArgumentException(
+                        "Message " + (i + 1) + " needs " + segments +
+                                " segments, more than the concatenation limit of " + limit + "."
+                );
+            }
+        }
+    }
+
+    /**
+     * Sets the user key the Deduplicator derives on a request without one, as sendSms does. Call this before
+     * serializing a request that is sent with sendSms(SerializedSendSmsRequest). Does nothing if no
+     * Deduplicator is set or it does not assign user keys.
+     *
+     * @param request The request, which is changed
+     */
+    public void assignUserKey(SendSmsRequest request) {
+        Deduplicator deduplicator = this.deduplicator;
+        if (deduplicator != null && deduplicator.getAssignUserKeys() && request != null &&
+                request.getUserKey() == null) {
+            request.setUserKey(deduplicator.deriveUserKey(request));
+        }
+    }
+
+    private static void backoff(long backoff) throws InterruptedIOException {
+        try {
+            Thread.sleep(backoff);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "Interrupted while waiting to retry."
+            );
+        }
+    }
+
+    /**
+     * Performs a submission within the limits of the Governor, if set.
+     */
+    private <T> T submit(SendSmsRequest request, Submission<T> submission) throws IOException {
+        Governor governor = this.governor;
+        if (governor == null) {
+            return submit(submission);
+        }
+
+        int cost = Governor.getCost(request);
+        if (governor.isBlocking()) {
+            try {
+                governor.acquire(cost);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(
+                        "Interrupted while waiting for the governor."
+                );
+            }
+        } else if (!governor.tryAcquire(cost)) {
+            throw new RejectedExecutionException(
+                    "Submission rate or concurrency limit exceeded."
+            );
+        }
+
+        try {
+            return submit(submission);
+        } finally {
+            governor.release();
+        }
+    }
+
+    /**
+     * Performs a submission on the endpoint or, if an EndpointGroup is set, on an endpoint selected from the
+     * group, trying other endpoints of the group as long as the submission fails to connect.
+     */
+    private <T> T submit(Submission<T> submission) throws IOException {
+        EndpointGroup group = endpointGroup;
+        if (group == null) {
+            try {
+                return submission.submit(createUrl(endpoint));
+            } catch (ResourceAccessException e) {
+                throw unwrap(e);
+            }
+        }
+
+        List<EndpointGroup.Endpoint> tried = new ArrayList<EndpointGroup.Endpoint>();
+        while (true) {
+            EndpointGroup.Lease lease = group.acquire(tried);
+            EndpointGroup.Endpoint endpoint = lease.endpoint;
+            long start = System.nanoTime();
+            boolean success = false;
+            try {
+                T result = submission.submit(createUrl(endpoint.getHost()));
+                success = true;
+                return result;
+            } catch (HttpClientErrorException e) {
+                // The endpoint is healthy, the request was rejected
+                success = true;
+                throw e;
+            } catch (ResourceAccessException e) {
+                IOException cause = unwrap(e);
+                tried.add(endpoint);
+                if (!EndpointGroup.isConnectFailure(cause) || tried.size() >= group.size())
+                    throw cause;
+            } finally {
+                group.release(lease, success, System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * A submission to be performed on a given URL.
+     */
+    private static abstract class Submission<T> {
+
+        abstract T submit(String url);
+    }
+
+    String createUrl(String endpoint) {
+        return (secure ? "https://" : "http://") + endpoint + path;
+    }
+
+    /**
+     * Unwraps the IOException RestTemplate wraps networking problems in.
+     */
+    static IOException unwrap(ResourceAccessException e) {
+        if (e.getCause() instanceof IOException) {
+            return (IOException) e.getCause();
+        } else {
+            throw e;
         }
     }
 
     /**
-     * Creates default headers using Content-Type: application/xml and credentials.
+     * Creates default headers using Content-Type: application/xml and credentials, encoded as UTF-8 for basic
+     * authentication. The headers are copied from a template kept until the credentials change, so the
+     * Authorization header is not encoded again for every submission; the copy may be modified.
      *
      * @return HTTP headers
+     * @throws IllegalStateException Thrown if the CredentialsProvider returned no credentials
      */
     protected HttpHeaders createHeaders() {
-        return new HttpHeaders() {
-            {
-                setContentType(MediaType.APPLICATION_XML);
+        String userName;
+        String password;
+        CredentialsProvider provider = credentialsProvider;
+        if (provider != null) {
+            Credentials credentials = provider.getCredentials();
+            if (credentials == null) {
+                throw new IllegalStateException(
+                        "The CredentialsProvider returned no credentials."
+                );
+            }
+
+            userName = credentials.getUserName();
+            password = credentials.getPassword();
+        } else {
+            userName = getUserName();
+            password = getPassword();
+        }
+
+        Headers headers = this.headers;
+        if (headers == null || !headers.isFor(userName, password)) {
+            headers = new Headers(userName, password);
+            this.headers = headers;
+        }
+        return headers.copy();
+    }
+
+    /**
+     * Immutable template of the default headers together with the credentials they were created for.
+     */
+    private static class Headers {
+
+        private final String userName;
+        private final String password;
+        private final HttpHeaders httpHeaders;
+
+        Headers(String userName, String password) {
+            this.userName = userName;
+            this.password = password;
+
+            HttpHeaders httpHeaders = new HttpHeaders();
+            httpHeaders.setContentType(MediaType.APPLICATION_XML);
+            try {
                 String authorization = "Basic " + new String(Base64.encodeBase64(
-                        (getUserName() + ":" + getPassword()).getBytes()));
-                set("Authorization", authorization);
+                        (userName + ":" + password).getBytes("UTF-8")), "US-ASCII");
+                httpHeaders.set("Authorization", authorization);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+            this.httpHeaders = HttpHeaders.readOnlyHttpHeaders(httpHeaders);
+        }
+
+        HttpHeaders copy() {
+            HttpHeaders copy = new HttpHeaders();
+            for (Map.Entry<String, List<String>> header : httpHeaders.entrySet()) {
+                copy.put(header.getKey(), new ArrayList<String>(header.getValue()));
             }
-        };
+            return copy;
+        }
+
+        boolean isFor(String userName, String password) {
+            return (userName == null ? this.userName == null : userName.equals(this.userName)) &&
+                    (password == null ? this.password == null : password.equals(this.password));
+        }
+    }
+
+    /**
+     * Writes the request headers and marshals the request body straight to the transport. A serialized
+     * request body is written as it is, with a Content-Length header.
+     */
+    static class SendSmsRequestCallback implements RequestCallback {
+
+        private static final List<MediaType> ACCEPT = Collections.unmodifiableList(Arrays.asList(
+                MediaType.APPLICATION_XML, MediaType.TEXT_XML, new MediaType("application", "*+xml")));
+
+        private final HttpEntity<?> entity;
+
+        SendSmsRequestCallback(HttpEntity<?> entity) {
+            this.entity = entity;
+        }
+
+        HttpEntity<?> getEntity() {
+            return entity;
+        }
+
+        public void doWithRequest(ClientHttpRequest request) throws IOException {
+            HttpHeaders headers = request.getHeaders();
+            headers.putAll(entity.getHeaders());
+            headers.setAccept(ACCEPT);
+            if (entity.getBody() instanceof SerializedSendSmsRequest) {
+                SerializedSendSmsRequest serialized = (SerializedSendSmsRequest) entity.getBody();
+                headers.setContentLength(serialized.getLength());
+                serialized.writeTo(request.getBody());
+            } else {
+                MARSHALLER.marshal(entity.getBody(), new StreamResult(request.getBody()));
+            }
+        }
+    }
+
+    /**
+     * Unmarshals the response while it is being received, handing each sms element to the listener.
+     */
+    static class SendSmsResponseExtractor implements ResponseExtractor<Object> {
+
+        private final SmsListener listener;
+
+        SendSmsResponseExtractor(SmsListener listener) {
+            this.listener = listener;
+        }
+
+        SmsListener getListener() {
+            return listener;
+        }
+
+        public Object extractData(ClientHttpResponse response) throws IOException {
+            MARSHALLER.unmarshal(response.getBody(), listener);
+            return null;
+        }
     }
 
     /**
@@ -254,6 +879,13 @@ public class SendSmsClient {
          */
         public static final ClientHttpRequestFactory TRANSPORT_SIMPLE_CLIENT;
 
+        /**
+         * Transport that uses standard J2SE facilities (HttpURLConnection) and writes the request body
+         * straight to the connection instead of buffering a copy of it. Request bodies are always sent
+         * with a Content-Length header.
+         */
+        public static final ClientHttpRequestFactory TRANSPORT_SIMPLE_STREAMING_CLIENT;
+
         /**
          * Transport using Apache Commons HttpClient 3.x. Note that the Commons HttpClient
          * project is no longer being actively developed and has been replaced by Apache HttpComponents.
@@ -268,6 +900,10 @@ public class SendSmsClient {
         static {
             TRANSPORT_SIMPLE_CLIENT = new SimpleClientHttpRequestFactory();
 
+            SimpleClientHttpRequestFactory transportSimpleStreamingClient = new SimpleClientHttpRequestFactory();
+            transportSimpleStreamingClient.setBufferRequestBody(false);
+            TRANSPORT_SIMPLE_STREAMING_CLIENT = transportSimpleStreamingClient;
+
             // Try to set up CommonsClientHttpRequestFactory,
             // fall back to SimpleClientHttpRequestFactory if dependency not on CLASSPATH
             ClientHttpRequestFactory transportCommonsClient;
@@ -294,6 +930,7 @@ public class SendSmsClient {
         }
 
         private SendSmsClient client = new SendSmsClient();
+        private PooledClientHttpRequestFactory pooledTransport;
 
         /**
          * Creates a new builder instance.
@@ -305,8 +942,8 @@ public class SendSmsClient {
         /**
          * Provides the underlying transport, a ClientHttpRequestFactory.
          * <p/>
-         * You can use TRANSPORT_SIMPLE_CLIENT, TRANSPORT_COMMONS_CLIENT, TRANSPORT_HTTP_COMPONENTS_CLIENT
-         * or your custom transport implementation.
+         * You can use TRANSPORT_SIMPLE_CLIENT, TRANSPORT_SIMPLE_STREAMING_CLIENT, TRANSPORT_COMMONS_CLIENT,
+         * TRANSPORT_HTTP_COMPONENTS_CLIENT or your custom transport implementation.
          * <p/>
          * Note that built-in credentials support is only available for transports of type
          * CommonsClientHttpRequestFactory and HttpComponentsClientHttpRequestFactory;
@@ -316,10 +953,132 @@ public class SendSmsClient {
          * @return The builder for chaining calls
          */
         public Builder transport(ClientHttpRequestFactory requestFactory) {
+            if (pooledTransport != null && pooledTransport != requestFactory) {
+                // Stops the eviction thread of the pooled transport being replaced
+                pooledTransport.destroy();
+            }
             client.setRestOperations(new SendSmsClientRestTemplate(requestFactory));
+            pooledTransport = null;
+            client.pooledTransport = null;
+            return this;
+        }
+
+        /**
+         * Uses a new pooled transport, a PooledClientHttpRequestFactory, which keeps connections alive and
+         * reuses them and their TLS sessions for consecutive submissions. Requires Apache HttpComponents 4.x.
+         * <p/>
+         * The pooled transport is configured through maxConnections, keepAlive, idleTimeout, connectTimeout,
+         * readTimeout, poolTimeout and sslSessionCache; calling any of these selects the pooled transport
+         * if not done already.
+         *
+         * @return The builder for chaining calls
+         */
+        public Builder pooledTransport() {
+            PooledClientHttpRequestFactory requestFactory = new PooledClientHttpRequestFactory();
+            transport(requestFactory);
+            pooledTransport = requestFactory;
+            client.pooledTransport = requestFactory;
             return this;
         }
 
+        /**
+         * Provides the maximum number of connections of the pooled transport.
+         *
+         * @param maxTotal    The maximum number of connections in total
+         * @param maxPerRoute The maximum number of connections per endpoint
+         * @return The builder for chaining calls
+         * @throws IllegalArgumentException Thrown if maxTotal or maxPerRoute is less than 1
+         * @see #pooledTransport()
+         */
+        public Builder maxConnections(int maxTotal, int maxPerRoute) {
+            pooled().setMaxTotal(maxTotal);
+            pooled().setMaxPerRoute(maxPerRoute);
+            return this;
+        }
+
+        /**
+         * Provides how long idle connections of the pooled transport are kept alive.
+         *
+         * @param keepAlive The keep-alive time in milliseconds, or 0 for no limit
+         * @return The builder for chaining calls
+         * @throws IllegalArgumentException Thrown if keepAlive is negative
+         * @see #pooledTransport()
+         */
+        public Builder keepAlive(long keepAlive) {
+            pooled().setKeepAlive(keepAlive);
+            return this;
+        }
+
+        /**
+         * Provides the time after which idle connections of the pooled transport are evicted.
+         *
+         * @param idleTimeout The idle timeout in milliseconds, or 0 to disable eviction
+         * @return The builder for chaining calls
+         * @throws IllegalArgumentException Thrown if idleTimeout is negative
+         * @see #pooledTransport()
+         */
+        public Builder idleTimeout(long idleTimeout) {
+            pooled().setIdleTimeout(idleTimeout);
+            return this;
+        }
+
+        /**
+         * Provides the connect timeout of the pooled transport.
+         *
+         * @param connectTimeout The connect timeout in milliseconds, or 0 for no timeout
+         * @return The builder for chaining calls
+         * @see #pooledTransport()
+         */
+        public Builder connectTimeout(int connectTimeout) {
+            pooled().setConnectTimeout(connectTimeout);
+            return this;
+        }
+
+        /**
+         * Provides the read (socket) timeout of the pooled transport.
+         *
+         * @param readTimeout The read timeout in milliseconds, or 0 for no timeout
+         * @return The builder for chaining calls
+         * @see #pooledTransport()
+         */
+        public Builder readTimeout(int readTimeout) {
+            pooled().setReadTimeout(readTimeout);
+            return this;
+        }
+
+        /**
+         * Provides the maximum time to wait for a connection of the pooled transport when all are in use.
+         *
+         * @param poolTimeout The pool timeout in milliseconds, or 0 to wait indefinitely
+         * @return The builder for chaining calls
+         * @throws IllegalArgumentException Thrown if poolTimeout is negative
+         * @see #pooledTransport()
+         */
+        public Builder poolTimeout(long poolTimeout) {
+            pooled().setPoolTimeout(poolTimeout);
+            return this;
+        }
+
+        /**
+         * Provides the size and timeout of the TLS session cache of the pooled transport.
+         *
+         * @param size    The maximum number of cached sessions, or 0 for no limit
+         * @param timeout The time in seconds a session can be resumed, or 0 for no limit
+         * @return The builder for chaining calls
+         * @see #pooledTransport()
+         */
+        public Builder sslSessionCache(int size, int timeout) {
+            pooled().setSslSessionCache(size, timeout);
+            return this;
+        }
+
+        private PooledClientHttpRequestFactory pooled() {
+            if (pooledTransport == null) {
+                pooledTransport();
+            }
+            return pooledTransport;
+        }
+
         /**
          * Provides the endpoint (host name) used for sending messages.
          *
@@ -332,6 +1091,116 @@ public class SendSmsClient {
             return this;
         }
 
+        /**
+         * Provides a comma-separated list of endpoints (host names) used for sending messages. Submissions are
+         * spread across the endpoints round-robin and failing endpoints are temporarily ejected.
+         *
+         * @param endpoints Comma-separated list of endpoints (host names)
+         * @return The builder for chaining calls
+         * @throws IllegalArgumentException Thrown if endpoints is null or empty
+         * @see EndpointGroup
+         */
+        public Builder endpoints(String endpoints) {
+            client.setEndpointGroup(new EndpointGroup(endpoints));
+            return this;
+        }
+
+        /**
+         * Provides the group of endpoints used for sending messages, configured with the endpoint
+         * selection strategy and ejection settings.
+         *
+         * @param endpointGroup The group of endpoints used for sending messages
+         * @return The builder for chaining calls
+         * @throws IllegalArgumentException Thrown if endpointGroup is null
+         */
+        public Builder endpoints(EndpointGroup endpointGroup) {
+            if (endpointGroup == null) {
+                throw new IllegalArgumentException(
+                        "No endpointGroup provided."
+                );
+            }
+
+            client.setEndpointGroup(endpointGroup);
+            return this;
+        }
+
+        /**
+         * Limits the rate of submitted messages, where a request counts one message per message and
+         * recipient.
+         *
+         * @param rate  The maximum number of messages per second or 0 for no limit
+         * @param burst The number of messages that can be submitted at once after a quiet period
+         * @return The builder for chaining calls
+         * @throws IllegalArgumentException Thrown if rate is negative or burst is less than 1
+         * @see Governor
+         */
+        public Builder rateLimit(double rate, int burst) {
+            governor().setRate(rate, burst);
+            return this;
+        }
+
+        /**
+         * Limits the number of requests in flight.
+         *
+         * @param maxInFlight The maximum number of requests in flight or 0 for no limit
+         * @return The builder for chaining calls
+         * @throws IllegalArgumentException Thrown if maxInFlight is negative
+         * @see Governor
+         */
+        public Builder maxInFlight(int maxInFlight) {
+            governor().setMaxInFlight(maxInFlight);
+            return this;
+        }
+
+        /**
+         * Indicates whether submissions exceeding the rate limit or maximum number of requests in flight
+         * wait (the default) or are rejected with a java.util.concurrent.RejectedExecutionException.
+         *
+         * @param blocking True to wait, false to reject
+         * @return The builder for chaining calls
+         * @see Governor
+         */
+        public Builder blocking(boolean blocking) {
+            governor().setBlocking(blocking);
+            return this;
+        }
+
+        /**
+         * Retries failed submissions using a RetryPolicy with the default settings.
+         *
+         * @return The builder for chaining calls
+         * @see RetryPolicy
+         */
+        public Builder retry() {
+            return retry(new RetryPolicy());
+        }
+
+        /**
+         * Retries failed submissions as the given policy allows.
+         *
+         * @param retryPolicy The policy for retrying submissions
+         * @return The builder for chaining calls
+         * @throws IllegalArgumentException Thrown if retryPolicy is null
+         * @see RetryPolicy
+         */
+        public Builder retry(RetryPolicy retryPolicy) {
+            if (retryPolicy == null) {
+                throw new IllegalArgumentException(
+                        "No retryPolicy provided."
+                );
+            }
+
+            client.setRetryPolicy(retryPolicy);
+            return this;
+        }
+
+        private Governor governor() {
+            if (client.getGovernor() == null) {
+                client.setGovernor(new Governor());
+            }
+            return client.getGovernor();
+        }
+
         /**
          * Provides the credentials (user name, password) used for sending messages.
          *
@@ -346,6 +1215,18 @@ public class SendSmsClient {
             return this;
         }
 
+        /**
+         * Provides the credentials provider used for sending messages, which allows rotating credentials
+         * without rebuilding the client.
+         *
+         * @param credentialsProvider The credentials provider
+         * @return The builder for chaining calls
+         */
+        public Builder credentials(CredentialsProvider credentialsProvider) {
+            client.setCredentialsProvider(credentialsProvider);
+            return this;
+        }
+
         /**
          * Indicates whether to enable or disable secure communication.
          * <p/>
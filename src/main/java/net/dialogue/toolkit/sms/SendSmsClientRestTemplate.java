@@ -28,6 +28,7 @@ public class SendSmsClientRestTemplate extends RestTemplate {
      */
     public static List<HttpMessageConverter<?>> MESSAGE_CONVERTERS = Collections.unmodifiableList(
             new ArrayList<HttpMessageConverter<?>>(Arrays.asList(
+                    new SerializedSendSmsRequestConverter(),
                     new MarshallingHttpMessageConverter(new Marshaller())
             )
             ));
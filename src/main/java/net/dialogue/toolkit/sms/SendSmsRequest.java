@@ -16,9 +16,26 @@ import java.util.*;
 
 /**
  * Request object containing message(s), recipient(s) and other optional properties.
+ * <p/>
+ * The properties are the X-E3-* elements of the request, kept in insertion order. Any property can be set
+ * through the Map interface; the typed properties are stored as they are sent and their getters parse the
+ * stored value on each call, without changing the request.
  */
 public class SendSmsRequest extends LinkedHashMap<String, String> implements Serializable {
 
+    private static final String CONCATENATION_LIMIT = "X-E3-Concatenation-Limit";
+    private static final String SCHEDULE_FOR = "X-E3-Schedule-For";
+    private static final String VALIDITY_PERIOD = "X-E3-Validity-Period";
+
+    private static final ThreadLocal<DateFormat> SCHEDULE_FORMAT = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            DateFormat format = new SimpleDateFormat("yyyyMMddHHmmss");
+            format.setTimeZone(TimeZone.getTimeZone("Europe/London"));
+            return format;
+        }
+    };
+
     private List<String> messages;
     private List<String> recipients;
 
@@ -190,10 +207,10 @@ public class SendSmsRequest extends LinkedHashMap<String, String> implements Ser
      * @see SendSmsRequest#setConcatenationLimit(Integer)
      */
     public Integer getConcatenationLimit() {
-        if (containsKey("X-E3-Concatenation-Limit"))
-            return Integer.parseInt(get("X-E3-Concatenation-Limit"));
-        else
+        String value = get(CONCATENATION_LIMIT);
+        if (value == null)
             return null;
+        return Integer.parseInt(value);
     }
 
     /**
@@ -204,10 +221,11 @@ public class SendSmsRequest extends LinkedHashMap<String, String> implements Ser
      * @param concatenationLimit The concatenation limit or null to disable the property
      */
     public void setConcatenationLimit(Integer concatenationLimit) {
-        if (concatenationLimit != null)
-            put("X-E3-Concatenation-Limit", Integer.toString(concatenationLimit));
-        else
-            remove("X-E3-Concatenation-Limit");
+        if (concatenationLimit != null) {
+            put(CONCATENATION_LIMIT, Integer.toString(concatenationLimit));
+        } else {
+            remove(CONCATENATION_LIMIT);
+        }
     }
 
     /**
@@ -217,16 +235,13 @@ public class SendSmsRequest extends LinkedHashMap<String, String> implements Ser
      * @see SendSmsRequest#setScheduleFor(java.util.Date)
      */
     public Date getScheduleFor() {
-        if (containsKey("X-E3-Schedule-For")) {
-            try {
-                DateFormat format = new SimpleDateFormat("yyyyMMddHHmmss");
-                format.setTimeZone(TimeZone.getTimeZone("Europe/London"));
-                return format.parse(get("X-E3-Schedule-For"));
-            } catch (ParseException e) {
-                throw new IllegalStateException(e);
-            }
-        } else {
+        String value = get(SCHEDULE_FOR);
+        if (value == null)
             return null;
+        try {
+            return SCHEDULE_FORMAT.get().parse(value);
+        } catch (ParseException e) {
+            throw new IllegalStateException(e);
         }
     }
 
@@ -237,11 +252,9 @@ public class SendSmsRequest extends LinkedHashMap<String, String> implements Ser
      */
     public void setScheduleFor(Date scheduleFor) {
         if (scheduleFor != null) {
-            DateFormat format = new SimpleDateFormat("yyyyMMddHHmmss");
-            format.setTimeZone(TimeZone.getTimeZone("Europe/London"));
-            put("X-E3-Schedule-For", format.format(scheduleFor));
+            put(SCHEDULE_FOR, formatScheduleFor(scheduleFor.getTime()));
         } else {
-            remove("X-E3-Schedule-For");
+            remove(SCHEDULE_FOR);
         }
     }
 
@@ -410,25 +423,22 @@ public class SendSmsRequest extends LinkedHashMap<String, String> implements Ser
      * @see SendSmsRequest#setValidityPeriod(Long)
      */
     public Long getValidityPeriod() {
-        if (containsKey("X-E3-Validity-Period")) {
-            String value = get("X-E3-Validity-Period");
-            long millis = Long.parseLong(value.replaceFirst("(\\d)+.", "$1"));
-            if (value.endsWith("m"))
-                millis *= MINUTE;
-            else if (value.endsWith("h"))
-                millis *= HOUR;
-            else if (value.endsWith("d"))
-                millis *= DAY;
-            else if (value.endsWith("w"))
-                millis *= WEEK;
-            else {
-                throw new IllegalStateException("Failed to parse X-E3-Validity-Period=" + value);
-            }
-
-            return millis;
-        } else {
+        String value = get(VALIDITY_PERIOD);
+        if (value == null)
             return null;
+        long millis = Long.parseLong(value.substring(0, Math.max(value.length() - 1, 0)));
+        if (value.endsWith("m"))
+            millis *= MINUTE;
+        else if (value.endsWith("h"))
+            millis *= HOUR;
+        else if (value.endsWith("d"))
+            millis *= DAY;
+        else if (value.endsWith("w"))
+            millis *= WEEK;
+        else {
+            throw new IllegalStateException("Failed to parse X-E3-Validity-Period=" + value);
         }
+        return millis;
     }
 
     /**
@@ -438,21 +448,39 @@ public class SendSmsRequest extends LinkedHashMap<String, String> implements Ser
      */
     public void setValidityPeriod(Long validityPeriod) {
         if (validityPeriod != null) {
-            String value;
-            if (validityPeriod >= WEEK && validityPeriod % WEEK == 0)
-                value = validityPeriod / WEEK + "w";
-            else if (validityPeriod >= DAY && validityPeriod % DAY == 0)
-                value = validityPeriod / DAY + "d";
-            else if (validityPeriod >= HOUR && validityPeriod % HOUR == 0)
-                value = validityPeriod / HOUR + "h";
-            else
-                value = validityPeriod / MINUTE + "m";
-            put("X-E3-Validity-Period", value);
+            put(VALIDITY_PERIOD, formatValidityPeriod(validityPeriod));
         } else {
-            remove("X-E3-Validity-Period");
+            remove(VALIDITY_PERIOD);
         }
     }
 
+    /**
+     * Formats a ScheduleFor property value.
+     *
+     * @param scheduleFor The schedule date and time in milliseconds since the epoch
+     * @return The property value
+     */
+    static String formatScheduleFor(long scheduleFor) {
+        return SCHEDULE_FORMAT.get().format(new Date(scheduleFor));
+    }
+
+    /**
+     * Formats a ValidityPeriod property value.
+     *
+     * @param validityPeriod The validity period in milliseconds
+     * @return The property value
+     */
+    static String formatValidityPeriod(long validityPeriod) {
+        if (validityPeriod >= WEEK && validityPeriod % WEEK == 0)
+            return validityPeriod / WEEK + "w";
+        else if (validityPeriod >= DAY && validityPeriod % DAY == 0)
+            return validityPeriod / DAY + "d";
+        else if (validityPeriod >= HOUR && validityPeriod % HOUR == 0)
+            return validityPeriod / HOUR + "h";
+        else
+            return validityPeriod / MINUTE + "m";
+    }
+
     @Override
     public String toString() {
 
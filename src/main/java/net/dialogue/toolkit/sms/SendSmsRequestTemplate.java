@@ -0,0 +1,241 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.StringWriter;
+import java.util.*;
+
+/**
+ * Immutable template for sending the same message(s) and properties to many recipients, e.g. campaigns.
+ * Usage:
+ * <pre>
+ * SendSmsRequest prototype = new SendSmsRequest();
+ * prototype.setMessage("This is a test message.");
+ * prototype.setUserTag("campaign-1");
+ * SendSmsRequestTemplate template = new SendSmsRequestTemplate(prototype);
+ *
+ * for (String recipient : recipients) {
+ *     client.sendSms(template.createRequest(recipient));
+ * }
+ * </pre>
+ * Requests created from a template share its messages list and property values, and the messages and
+ * properties are serialized to XML only once per template. Sending a request created from a template therefore
+ * only serializes its recipients and the properties changed on the request.
+ * <p/>
+ * Whether the serialized XML of the template applies is decided by reference identity (==), not equality: the
+ * messages list of the request must be the one of the template, and each property must hold the very String
+ * instance of the template at the same position. A property set again to an equal but different String, or a
+ * new messages list with the same messages, is serialized again; the XML is the same either way.
+ * <p/>
+ * SendSmsRequestTemplate instances are thread-safe.
+ */
+public final class SendSmsRequestTemplate implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> messages;
+    private final String[] keys;
+    private final String[] values;
+
+    // XML of the messages, each property and all properties, created on first use
+    private transient volatile Fragments fragments;
+
+    /**
+     * Creates a new SendSmsRequestTemplate instance from the messages and properties of a request.
+     * The recipients of the request are ignored; later changes to the request do not affect the template.
+     *
+     * @param prototype The request
+     * @throws IllegalArgumentException Thrown if prototype is null or has no message.
+     */
+    public SendSmsRequestTemplate(SendSmsRequest prototype) {
+        if (prototype == null) {
+            throw new IllegalArgumentException(
+                    "No prototype provided."
+            );
+        }
+
+        List<String> messages = prototype.getMessages();
+        if (messages == null || messages.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "No messages provided."
+            );
+        }
+
+        this.messages = Collections.unmodifiableList(new ArrayList<String>(messages));
+        this.keys = new String[prototype.size()];
+        this.values = new String[prototype.size()];
+        int i = 0;
+        for (Map.Entry<String, String> entry : prototype.entrySet()) {
+            keys[i] = entry.getKey();
+            values[i] = entry.getValue();
+            i++;
+        }
+    }
+
+    /**
+     * Gets the Messages property.
+     *
+     * @return The unmodifiable messages list
+     */
+    public List<String> getMessages() {
+        return messages;
+    }
+
+    /**
+     * Gets the properties.
+     *
+     * @return The unmodifiable properties in insertion order
+     */
+    public Map<String, String> getProperties() {
+        Map<String, String> properties = new LinkedHashMap<String, String>();
+        for (int i = 0; i < keys.length; i++) {
+            properties.put(keys[i], values[i]);
+        }
+        return Collections.unmodifiableMap(properties);
+    }
+
+    /**
+     * Creates a request for a single recipient. The request can be changed without affecting the template.
+     *
+     * @param recipient The recipient
+     * @return The request
+     * @throws IllegalArgumentException Thrown if recipient is null or empty.
+     */
+    public SendSmsRequest createRequest(String recipient) {
+        return createRequest(Arrays.asList(recipient));
+    }
+
+    /**
+     * Creates a request for a list of recipients. The request can be changed without affecting the template.
+     *
+     * @param recipients The recipients list
+     * @return The request
+     * @throws IllegalArgumentException Thrown if recipients is null or empty.
+     */
+    public SendSmsRequest createRequest(List<String> recipients) {
+        return new Request(this, recipients);
+    }
+
+    int size() {
+        return keys.length;
+    }
+
+    String keyAt(int index) {
+        return keys[index];
+    }
+
+    String valueAt(int index) {
+        return values[index];
+    }
+
+    /**
+     * Gets the serialized messages and properties, serializing them on first use.
+     *
+     * @throws IOException Thrown if a message or property cannot be serialized
+     */
+    Fragments getFragments() throws IOException {
+        Fragments fragments = this.fragments;
+        if (fragments == null) {
+            fragments = new Fragments(this);
+            this.fragments = fragments;
+        }
+        return fragments;
+    }
+
+    /**
+     * Returns a string representation of this SendSmsRequestTemplate instance.
+     *
+     * @return String representation
+     */
+    @Override
+    public String toString() {
+        return "SendSmsRequestTemplate{" +
+                "messages=" + messages +
+                ", properties=" + getProperties() +
+                '}';
+    }
+
+    /**
+     * Request created from a template, sharing the messages and property values of the template.
+     */
+    static final class Request extends SendSmsRequest {
+
+        private static final long serialVersionUID = 1L;
+
+        private final SendSmsRequestTemplate template;
+
+        /**
+         * Creates a new Request instance.
+         *
+         * @param template   The template
+         * @param recipients The recipients list
+         * @throws IllegalArgumentException Thrown if recipients is null or empty.
+         */
+        Request(SendSmsRequestTemplate template, List<String> recipients) {
+            super(template.getMessages(), recipients);
+            this.template = template;
+            for (int i = 0; i < template.size(); i++) {
+                put(template.keyAt(i), template.valueAt(i));
+            }
+        }
+
+        /**
+         * Gets the template the request was created from.
+         *
+         * @return The template
+         */
+        SendSmsRequestTemplate getTemplate() {
+            return template;
+        }
+
+        /**
+         * Checks if the properties are still exactly those of the template, the same instances in the same order.
+         */
+        boolean isShared() {
+            if (size() != template.size())
+                return false;
+
+            int i = 0;
+            for (Map.Entry<String, String> entry : entrySet()) {
+                if (entry.getKey() != template.keyAt(i) || entry.getValue() != template.valueAt(i))
+                    return false;
+                i++;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * XML fragments of a template.
+     */
+    static class Fragments {
+
+        final String messages;
+        final String[] properties;
+        final String allProperties;
+
+        Fragments(SendSmsRequestTemplate template) throws IOException {
+            StringWriter writer = new StringWriter();
+            for (String message : template.messages) {
+                Marshaller.writeElement(writer, "X-E3-Message", message);
+            }
+            messages = writer.toString();
+
+            properties = new String[template.keys.length];
+            StringBuilder all = new StringBuilder();
+            for (int i = 0; i < properties.length; i++) {
+                writer = new StringWriter();
+                Marshaller.writeElement(writer, template.keys[i], template.values[i]);
+                properties[i] = writer.toString();
+                all.append(properties[i]);
+            }
+            allProperties = all.toString();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A SendSmsRequest serialized once into the bytes of the HTTP request body. SendSmsClient sends the same
+ * bytes for every attempt of a submission, including retries after networking problems and failover to
+ * another endpoint, and writes them with a Content-Length header. Serialize a request yourself to send
+ * it repeatedly without marshalling it again. SendSmsClient.sendSms(SendSmsRequest) does not serialize
+ * requests this way; it marshals them as it always did.
+ * <p/>
+ * The bytes are a snapshot; later changes to the request are not reflected. The body never changes and can
+ * be sent by several threads at once, but getRequest returns the serialized request itself, not a copy,
+ * which must not be changed while it is being sent. For a serialized CompactSendSmsRequest, getRequest returns
+ * a SendSmsRequest converted from it on first use.
+ */
+public final class SerializedSendSmsRequest {
+
+    private static final Marshaller MARSHALLER = new Marshaller();
+
+    private final CompactSendSmsRequest compactRequest;
+    private SendSmsRequest request;
+    private final byte[] body;
+    private final int length;
+
+    /**
+     * Creates a new SerializedSendSmsRequest instance, marshalling the request using UTF-8.
+     *
+     * @param request The request
+     * @throws IllegalArgumentException Thrown if request is null
+     * @throws IOException              Thrown if the request could not be marshalled
+     */
+    public SerializedSendSmsRequest(SendSmsRequest request) throws IOException {
+        if (request == null) {
+            throw new IllegalArgumentException(
+                    "No request provided."
+            );
+        }
+
+        Body body = new Body();
+        MARSHALLER.marshalOutputStream(request, body);
+        this.compactRequest = null;
+        this.request = request;
+        this.body = body.getBuffer();
+        this.length = body.size();
+    }
+
+    /**
+     * Creates a new SerializedSendSmsRequest instance, marshalling the compact request using UTF-8.
+     *
+     * @param request The request
+     * @throws IllegalArgumentException Thrown if request is null
+     * @throws IOException              Thrown if the request could not be marshalled
+     */
+    public SerializedSendSmsRequest(CompactSendSmsRequest request) throws IOException {
+        if (request == null) {
+            throw new IllegalArgumentException(
+                    "No request provided."
+            );
+        }
+
+        Body body = new Body();
+        MARSHALLER.marshalOutputStream(request, body);
+        this.compactRequest = request;
+        this.body = body.getBuffer();
+        this.length = body.size();
+    }
+
+    /**
+     * Gets the request that was serialized. This is the request itself, so changes made to it after it was
+     * serialized are visible here but not in the body. For a compact request it is the SendSmsRequest converted
+     * from it on first use, which later changes to the compact request do not affect.
+     *
+     * @return The request
+     */
+    public synchronized SendSmsRequest getRequest() {
+        if (request == null)
+            request = compactRequest.toSendSmsRequest();
+        return request;
+    }
+
+    /**
+     * Gets the request that was serialized as it was given, a SendSmsRequest or a CompactSendSmsRequest.
+     */
+    Object getSource() {
+        return compactRequest != null ? compactRequest : getRequest();
+    }
+
+    /**
+     * Gets the length of the body.
+     *
+     * @return The number of bytes
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Gets the body without copying it.
+     *
+     * @return Read-only buffer of the body
+     */
+    public ByteBuffer getBody() {
+        return ByteBuffer.wrap(body, 0, length).asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes the body.
+     *
+     * @param out The stream to write to
+     * @throws IOException Thrown if writing failed
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(body, 0, length);
+    }
+
+    /**
+     * Gets the array holding the body, which must not be modified. Only the first getLength() bytes belong
+     * to the body.
+     */
+    byte[] array() {
+        return body;
+    }
+
+    /**
+     * Returns a string representation of this SerializedSendSmsRequest instance.
+     *
+     * @return String representation
+     */
+    @Override
+    public String toString() {
+        try {
+            return new String(body, 0, length, Marshaller.DEFAULT_ENCODING);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Output stream handing out its buffer, so the body is not copied once more.
+     */
+    private static class Body extends ByteArrayOutputStream {
+
+        Body() {
+            super(1024);
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
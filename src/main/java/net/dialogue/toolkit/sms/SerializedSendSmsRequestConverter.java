@@ -0,0 +1,68 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Writes a SerializedSendSmsRequest as it is, with a Content-Length header so that streaming transports
+ * do not fall back to chunked transfer encoding.
+ */
+class SerializedSendSmsRequestConverter implements HttpMessageConverter<SerializedSendSmsRequest> {
+
+    private static final List<MediaType> MEDIA_TYPES = Collections.unmodifiableList(Arrays.asList(
+            MediaType.APPLICATION_XML, MediaType.TEXT_XML, new MediaType("application", "*+xml")));
+
+    public boolean canRead(Class<?> clazz, MediaType mediaType) {
+        return false;
+    }
+
+    public boolean canWrite(Class<?> clazz, MediaType mediaType) {
+        if (!SerializedSendSmsRequest.class.isAssignableFrom(clazz))
+            return false;
+        if (mediaType == null || MediaType.ALL.equals(mediaType))
+            return true;
+        for (MediaType supported : MEDIA_TYPES) {
+            if (supported.isCompatibleWith(mediaType))
+                return true;
+        }
+        return false;
+    }
+
+    public List<MediaType> getSupportedMediaTypes() {
+        return MEDIA_TYPES;
+    }
+
+    public SerializedSendSmsRequest read(Class<? extends SerializedSendSmsRequest> clazz,
+                                         HttpInputMessage inputMessage)
+            throws IOException, HttpMessageNotReadableException {
+        throw new HttpMessageNotReadableException(
+                "Reading a SerializedSendSmsRequest is not supported."
+        );
+    }
+
+    public void write(SerializedSendSmsRequest request, MediaType contentType, HttpOutputMessage outputMessage)
+            throws IOException {
+        HttpHeaders headers = outputMessage.getHeaders();
+        if (headers.getContentType() == null) {
+            headers.setContentType(contentType == null || contentType.isWildcardType() ||
+                    contentType.isWildcardSubtype() ? MediaType.APPLICATION_XML : contentType);
+        }
+        headers.setContentLength(request.getLength());
+        request.writeTo(outputMessage.getBody());
+    }
+}
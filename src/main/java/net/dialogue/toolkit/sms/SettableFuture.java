@@ -0,0 +1,37 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A Future completed explicitly through set or setException rather than by running a task.
+ */
+class SettableFuture<V> extends FutureTask<V> {
+
+    private static final Callable<Object> NEVER_CALLED = new Callable<Object>() {
+        public Object call() throws Exception {
+            throw new IllegalStateException();
+        }
+    };
+
+    @SuppressWarnings("unchecked")
+    SettableFuture() {
+        super((Callable<V>) NEVER_CALLED);
+    }
+
+    @Override
+    public void set(V v) {
+        super.set(v);
+    }
+
+    @Override
+    public void setException(Throwable t) {
+        super.setException(t);
+    }
+}
@@ -16,6 +16,7 @@ public class Sms implements Serializable {
     private String id;
     private String recipient;
     private String submissionReport;
+    private int statusCode = -1;
     private String errorDescription;
 
     /**
@@ -70,6 +71,17 @@ public class Sms implements Serializable {
      */
     public void setSubmissionReport(String submissionReport) {
         this.submissionReport = submissionReport;
+        this.statusCode = submissionReport == null || submissionReport.length() == 0 ?
+                -1 : StatusCodes.decode(submissionReport);
+    }
+
+    /**
+     * Gets the outcome (status code) of the submission as integer; 0 means successful.
+     *
+     * @return The submission report or -1 if not set or not a hexadecimal number
+     */
+    public int getStatusCode() {
+        return statusCode;
     }
 
     /**
@@ -94,9 +106,15 @@ public class Sms implements Serializable {
      * Checks if the submission was successful.
      *
      * @return True if the submission was successful, false otherwise.
+     * @throws IllegalArgumentException Thrown if the submission report is null or empty.
      */
     public boolean isSuccessful() {
-        return StatusCodes.INSTANCE.isTransactionCompleted(submissionReport);
+        if (submissionReport == null || submissionReport.length() == 0) {
+            throw new IllegalArgumentException(
+                    "No status code provided."
+            );
+        }
+        return StatusCodes.INSTANCE.isTransactionCompleted(statusCode);
     }
 
     /**
@@ -0,0 +1,22 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+/**
+ * Receives the submitted messages of a response one at a time, as they are read from the endpoint.
+ *
+ * @see SendSmsClient#sendSms(SendSmsRequest, SmsListener)
+ */
+public interface SmsListener {
+
+    /**
+     * Called once for each submitted message, in the order the endpoint returns them.
+     *
+     * @param sms Details of an individual submission
+     */
+    void onSms(Sms sms);
+}
@@ -5,21 +5,13 @@
  */
 package net.dialogue.toolkit.sms;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 import java.io.*;
-import java.text.DateFormat;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.text.MessageFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.TimeZone;
 
 /**
  * Allows parsing incoming message reply POST requests.
@@ -96,25 +88,140 @@ public class SmsReply implements Serializable {
      */
     public void setHexMessage(String hexMessage) {
         this.hexMessage = hexMessage;
+        this.message = null;
     }
 
+    private String dataCodingScheme;
+
+    /**
+     * Gets the data coding scheme of the message, 08 indicating UCS-2 (UTF-16) encoded text; any other value
+     * indicates ISO-8859-15 encoded text.
+     * @return The data coding scheme as hexadecimal string
+     */
+    public String getDataCodingScheme() {
+        return dataCodingScheme;
+    }
+
+    /**
+     * Sets the data coding scheme of the message, 08 indicating UCS-2 (UTF-16) encoded text; any other value
+     * indicates ISO-8859-15 encoded text.
+     * @param dataCodingScheme The data coding scheme as hexadecimal string
+     */
+    public void setDataCodingScheme(String dataCodingScheme) {
+        this.dataCodingScheme = dataCodingScheme;
+        this.message = null;
+    }
+
+    private transient String message;
+
     /**
-     * Gets the message text.
+     * Gets the message text. The text is decoded once and cached until the hex-encoded message text or data
+     * coding scheme changes.
      * @return The message text
      */
     public String getMessage() {
-        int len = hexMessage.length();
-        byte[] data = new byte[len / 2];
-        for (int i = 0; i < len; i += 2) {
-            data[i / 2] = (byte) ((Character.digit(hexMessage.charAt(i), 16) << 4)
-                    + Character.digit(hexMessage.charAt(i + 1), 16));
+        String message = this.message;
+        if (message == null && hexMessage != null) {
+            CharBuffer buffer = CharBuffer.allocate(getMessageLength());
+            getMessage(buffer);
+            message = new String(buffer.array(), 0, buffer.position());
+            this.message = message;
+        }
+        return message;
+    }
+
+    /**
+     * Gets the length of the message text in chars.
+     * @return The length of the message text
+     */
+    public int getMessageLength() {
+        return isUcs2() ? hexMessage.length() / 4 : hexMessage.length() / 2;
+    }
+
+    /**
+     * Decodes the message text into the given buffer without creating intermediate objects.
+     * @param buffer The buffer receiving the message text
+     * @return The number of chars written
+     * @throws java.nio.BufferOverflowException if the buffer has less than getMessageLength() chars remaining
+     */
+    public int getMessage(CharBuffer buffer) {
+        int length = getMessageLength();
+        if (buffer.remaining() < length)
+            throw new BufferOverflowException();
+
+        String hex = hexMessage;
+        if (isUcs2()) {
+            for (int i = 0; i < length * 4; i += 4) {
+                buffer.put((char) ((hexDigit(hex, i) << 12) | (hexDigit(hex, i + 1) << 8) |
+                        (hexDigit(hex, i + 2) << 4) | hexDigit(hex, i + 3)));
+            }
+        } else {
+            for (int i = 0; i < length * 2; i += 2) {
+                buffer.put(ISO_8859_15[((hexDigit(hex, i) << 4) + hexDigit(hex, i + 1)) & 0xFF]);
+            }
         }
+        return length;
+    }
 
-        try {
-            return new String(data, "ISO-8859-15");
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
+    /**
+     * Decodes the raw message data, as encoded according to the data coding scheme, into the given buffer.
+     * @param buffer The buffer receiving the message data
+     * @return The number of bytes written
+     * @throws java.nio.BufferOverflowException if the buffer has less than half the length of the hex-encoded
+     * message text remaining
+     */
+    public int getMessageData(ByteBuffer buffer) {
+        String hex = hexMessage;
+        int length = hex.length() / 2;
+        if (buffer.remaining() < length)
+            throw new BufferOverflowException();
+
+        for (int i = 0; i < length * 2; i += 2) {
+            buffer.put((byte) ((hexDigit(hex, i) << 4) + hexDigit(hex, i + 1)));
         }
+        return length;
+    }
+
+    private boolean isUcs2() {
+        return "08".equals(dataCodingScheme);
+    }
+
+    /**
+     * Gets the value of a hex digit; like Character.digit, -1 for other characters.
+     */
+    private static int hexDigit(String hex, int index) {
+        char c = hex.charAt(index);
+        return c < 128 ? HEX_DIGITS[c] : -1;
+    }
+
+    private static final byte[] HEX_DIGITS = new byte[128];
+
+    /**
+     * ISO-8859-15 differs from ISO-8859-1 in eight positions only.
+     */
+    private static final char[] ISO_8859_15 = new char[256];
+
+    static {
+        Arrays.fill(HEX_DIGITS, (byte) -1);
+        for (int i = 0; i < 10; i++) {
+            HEX_DIGITS['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX_DIGITS['A' + i] = (byte) (10 + i);
+            HEX_DIGITS['a' + i] = (byte) (10 + i);
+        }
+
+        for (int i = 0; i < 256; i++) {
+            ISO_8859_15[i] = (char) i;
+        }
+        ISO_8859_15[0xA4] = '\u20AC';
+        ISO_8859_15[0xA6] = '\u0160';
+        ISO_8859_15[0xA8] = '\u0161';
+        ISO_8859_15[0xB4] = '\u017D';
+        ISO_8859_15[0xB8] = '\u017E';
+        ISO_8859_15[0xBC] = '\u0152';
+        ISO_8859_15[0xBD] = '\u0153';
+        ISO_8859_15[0xBE] = '\u0178';
     }
 
     private Date timestamp;
@@ -180,17 +287,7 @@ public class SmsReply implements Serializable {
      * @throws IOException if parsing the input string failed
      */
     public static SmsReply getInstance(Reader reader) throws IOException {
-        try {
-            DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
-            Document document = documentBuilder.parse(new InputSource(reader));
-
-            return getInstance(document);
-        } catch (ParserConfigurationException e) {
-            throw new RuntimeException(e);
-        } catch (SAXException e) {
-            throw new IOException(e.toString());
-        }
+        return CallbackParser.INSTANCE.parseReply(reader);
     }
 
     /**
@@ -200,40 +297,6 @@ public class SmsReply implements Serializable {
      * @throws IOException if parsing the input string failed
      */
     public static SmsReply getInstance(InputStream stream) throws IOException {
-        try {
-            DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
-            Document document = documentBuilder.parse(new InputSource(stream));
-
-            return getInstance(document);
-        } catch (ParserConfigurationException e) {
-            throw new RuntimeException(e);
-        } catch (SAXException e) {
-            throw new IOException(e.toString());
-        }
-    }
-
-    private static SmsReply getInstance(Document document) throws IOException {
-        SmsReply reply = new SmsReply();
-        Element element = document.getDocumentElement();
-
-        reply.setId(element.getAttribute("X-E3-ID"));
-        reply.setSender(element.getAttribute("X-E3-Originating-Address"));
-        reply.setSessionId(element.getAttribute("X-E3-Session-ID"));
-        reply.setHexMessage(element.getAttribute("X-E3-Hex-Message"));
-
-        DateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        format.setTimeZone(TimeZone.getTimeZone("Europe/London"));
-        try {
-            reply.setTimestamp(format.parse(element.getAttribute("X-E3-Timestamp")));
-        } catch (ParseException e) {
-            throw new IOException(
-                    "Failed to parse X-E3-Timestamp: " + element.getAttribute("X-E3-Timestamp")
-            );
-        }
-
-        reply.setNetwork(element.getAttribute("X-E3-Network"));
-
-        return reply;
+        return CallbackParser.INSTANCE.parseReply(stream);
     }
 }
@@ -6,21 +6,9 @@
 
 package net.dialogue.toolkit.sms;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 import java.io.*;
-import java.text.DateFormat;
 import java.text.MessageFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.TimeZone;
 
 /**
  * Allows parsing incoming message report POST requests.
@@ -64,6 +52,8 @@ public class SmsReport implements Serializable {
     }
 
     private String deliveryReport;
+    private int statusCode = -1;
+    private State state = State.Undefined;
 
     /**
      * Gets the delivery report value, 00 to 1F indicating a successful delivery, 20 to 3F indicating a temporary error and 40 to 7F indicating a permanent error.
@@ -79,6 +69,21 @@ public class SmsReport implements Serializable {
      */
     public void setDeliveryReport(String deliveryReport) {
         this.deliveryReport = deliveryReport;
+        if (deliveryReport == null || deliveryReport.length() == 0) {
+            statusCode = -1;
+            state = State.Undefined;
+        } else {
+            statusCode = StatusCodes.decode(deliveryReport);
+            state = StatusCodes.INSTANCE.getState(statusCode);
+        }
+    }
+
+    /**
+     * Gets the delivery report value as integer.
+     * @return The delivery report value or -1 if not set or not a hexadecimal number
+     */
+    public int getStatusCode() {
+        return statusCode;
     }
 
     private String userKey;
@@ -140,17 +145,8 @@ public class SmsReport implements Serializable {
      * @return The delivery report state
      */
     public State getState() {
-        if (deliveryReport == null || deliveryReport.length() == 0)
-            return State.Undefined;
-
-        StatusCodes statusCodes = StatusCodes.INSTANCE;
-        if (statusCodes.isTransactionCompleted(deliveryReport))
-            return State.Delivered;
-        if (statusCodes.isTemporaryError(deliveryReport))
-            return State.TemporaryError;
-        if (statusCodes.isPermanentError(deliveryReport) ||
-                statusCodes.isRetryError(deliveryReport))
-            return State.PermanentError;
+        if (state != null)
+            return state;
         throw new IllegalStateException(
                 "Unknown delivery report value: " + deliveryReport
         );
@@ -161,7 +157,7 @@ public class SmsReport implements Serializable {
      * @return True if the delivery report state is State.Delivered, false otherwise.
      */
     public boolean isSuccessful() {
-        return getState().equals(State.Delivered);
+        return getState() == State.Delivered;
     }
 
     /**
@@ -191,17 +187,7 @@ public class SmsReport implements Serializable {
      * @throws IOException  if parsing the input string failed
      */
     public static SmsReport getInstance(Reader reader) throws IOException {
-        try {
-            DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
-            Document document = documentBuilder.parse(new InputSource(reader));
-
-            return getInstance(document);
-        } catch (ParserConfigurationException e) {
-            throw new RuntimeException(e);
-        } catch (SAXException e) {
-            throw new IOException(e.toString());
-        }
+        return CallbackParser.INSTANCE.parseReport(reader);
     }
 
     /**
@@ -211,40 +197,6 @@ public class SmsReport implements Serializable {
      * @throws IOException  if parsing the input string failed
      */
     public static SmsReport getInstance(InputStream stream) throws IOException {
-        try {
-            DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
-            Document document = documentBuilder.parse(new InputSource(stream));
-
-            return getInstance(document);
-        } catch (ParserConfigurationException e) {
-            throw new RuntimeException(e);
-        } catch (SAXException e) {
-            throw new IOException(e.toString());
-        }
-    }
-
-    private static SmsReport getInstance(Document document) throws IOException {
-        SmsReport report = new SmsReport();
-        Element element = document.getDocumentElement();
-
-        report.setId(element.getAttribute("X-E3-ID"));
-        report.setRecipient(element.getAttribute("X-E3-Recipients"));
-        report.setDeliveryReport(element.getAttribute("X-E3-Delivery-Report"));
-        report.setUserKey(element.getAttribute("X-E3-User-Key"));
-
-        DateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        format.setTimeZone(TimeZone.getTimeZone("Europe/London"));
-        try {
-            report.setTimestamp(format.parse(element.getAttribute("X-E3-Timestamp")));
-        } catch (ParseException e) {
-            throw new IOException(
-                    "Failed to parse X-E3-Timestamp: " + element.getAttribute("X-E3-Timestamp")
-            );
-        }
-
-        report.setNetwork(element.getAttribute("X-E3-Network"));
-
-        return report;
+        return CallbackParser.INSTANCE.parseReport(stream);
     }
 }
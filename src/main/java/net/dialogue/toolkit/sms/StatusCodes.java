@@ -6,12 +6,11 @@
 
 package net.dialogue.toolkit.sms;
 
-import java.util.Formatter;
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * List of common status codes. This list is not exhaustive.
+ * <p/>
+ * Status codes are two-digit hexadecimal strings between 00 and 7F. Their category, State and description
+ * are looked up in tables indexed by the code, so checking a status code does not allocate any objects.
  */
 public class StatusCodes {
 
@@ -20,6 +19,37 @@ public class StatusCodes {
      */
     public static final StatusCodes INSTANCE = new StatusCodes();
 
+    /**
+     * Status code categories.
+     */
+    public enum Category {
+
+        /**
+         * Transaction completed (00 to 1F)
+         */
+        TransactionCompleted,
+
+        /**
+         * Temporary error (20 to 3F)
+         */
+        TemporaryError,
+
+        /**
+         * Permanent error (40 to 5F)
+         */
+        PermanentError,
+
+        /**
+         * Retry error (60 to 7F)
+         */
+        RetryError,
+
+        /**
+         * Invalid status code or outside of 00 to 7F
+         */
+        Unknown
+    }
+
     // Transaction Completed (00 to 1F)
     public static class TransactionCompleted {
 
@@ -98,62 +128,88 @@ public class StatusCodes {
         public static final String STATUS_EXPENDITURE_LIMIT_REACHED = "7B";
     }
 
-    private static Map<String, String> STATUS_CODES = new HashMap<String, String>();
+    private static final int SIZE = RetryError.END + 1;
+
+    private static final String[] DESCRIPTIONS = new String[SIZE];
+    private static final Category[] CATEGORIES = new Category[SIZE];
+    private static final State[] STATES = new State[SIZE];
+
+    // Value of each ASCII hexadecimal digit, -1 for other characters
+    private static final byte[] HEX_DIGITS = new byte[128];
 
     static {
+        for (int c = 0; c < HEX_DIGITS.length; c++) {
+            HEX_DIGITS[c] = (byte) Character.digit((char) c, 16);
+        }
+
+        for (int code = 0; code < SIZE; code++) {
+            if (code <= TransactionCompleted.END) {
+                CATEGORIES[code] = Category.TransactionCompleted;
+                STATES[code] = State.Delivered;
+            } else if (code <= TemporaryError.END) {
+                CATEGORIES[code] = Category.TemporaryError;
+                STATES[code] = State.TemporaryError;
+            } else if (code <= PermanentError.END) {
+                CATEGORIES[code] = Category.PermanentError;
+                STATES[code] = State.PermanentError;
+            } else {
+                CATEGORIES[code] = Category.RetryError;
+                STATES[code] = State.PermanentError;
+            }
+        }
 
         // Transaction Completed (00 to 1F)
-        STATUS_CODES.put(TransactionCompleted.STATUS_SUCCESSFUL, "Successful");
-        STATUS_CODES.put(TransactionCompleted.STATUS_SENT_TO_SME, "Sent to SME but unable to confirm");
-        STATUS_CODES.put(TransactionCompleted.STATUS_REPLACED_AT_SMSC, "Replaced at the SMSC");
+        put(TransactionCompleted.STATUS_SUCCESSFUL, "Successful");
+        put(TransactionCompleted.STATUS_SENT_TO_SME, "Sent to SME but unable to confirm");
+        put(TransactionCompleted.STATUS_REPLACED_AT_SMSC, "Replaced at the SMSC");
 
         // Permanent Errors (40 to 5F)
-        STATUS_CODES.put(PermanentError.STATUS_REMOTE_PROCEDURE_ERROR, "Remote procedure error");
-        STATUS_CODES.put(PermanentError.STATUS_INCOMPATIBLE_DESTINATION, "Incompatible destination");
-        STATUS_CODES.put(PermanentError.STATUS_CONNECTION_REJECTED_BY_SME, "Connection rejected by SME");
-        STATUS_CODES.put(PermanentError.STATUS_NOT_OBTAINABLE, "Not obtainable");
-        STATUS_CODES.put(PermanentError.STATUS_QOS_NOT_AVAILABLE, "Quality of service not available");
-        STATUS_CODES.put(PermanentError.STATUS_NO_INTERWORKING_AVAILABLE, "No interworking available");
-        STATUS_CODES.put(PermanentError.STATUS_VALIDITY_PERIOD_EXPIRED, "Validity period expired");
-        STATUS_CODES.put(PermanentError.STATUS_MESSAGE_DELETED_BY_SME, "Message deleted by originating SME");
-        STATUS_CODES.put(PermanentError.STATUS_MESSAGE_DELETED_BY_SMSC, "Message deleted by SMSC admin");
-        STATUS_CODES.put(PermanentError.STATUS_MESSAGE_DOES_NOT_EXIST, "Message does not exist");
-        STATUS_CODES.put(PermanentError.STATUS_UNKNOWN_SUBSCRIBER, "Unknown subscriber");
-        STATUS_CODES.put(PermanentError.STATUS_SMSC_ERROR, "SMSC Error");
-        STATUS_CODES.put(PermanentError.STATUS_MAX_ATTEMPTS_REACHED, "Maximum submission attempts reached");
-        STATUS_CODES.put(PermanentError.STATUS_MAX_TTL_REACHED, "Maximum Time To Live (TTL) for message reached");
-        STATUS_CODES.put(PermanentError.STATUS_INVALID_DATA_IN_MESSAGE, "Invalid data in message");
-        STATUS_CODES.put(PermanentError.STATUS_NON_ROUTABLE, "Non-routable (operator used rejected message)");
-        STATUS_CODES.put(PermanentError.STATUS_AUTHENTICATION_FAILURE, "Authentication failure (UCP 60 mainly could be used by login page)");
-        STATUS_CODES.put(PermanentError.STATUS_NO_RESPONSE_FROM_SME, "No response from the SME");
-        STATUS_CODES.put(PermanentError.STATUS_SME_REJECTED_MESSAGE, "SME rejected message");
-        STATUS_CODES.put(PermanentError.STATUS_UNKNOWN_ERROR, "Unknown error");
-        STATUS_CODES.put(PermanentError.STATUS_OPERATOR_BAR, "Operator bar");
-        STATUS_CODES.put(PermanentError.STATUS_REQUEST_ID_NOT_FOUND, "Request ID not found");
-        STATUS_CODES.put(PermanentError.STATUS_REQUEST_PREMIUM_CHARGE_ROUTING_ERROR, "Premium charge routing error");
-        STATUS_CODES.put(PermanentError.STATUS_SERVICE_ID_NOT_PROVISIONED, "Service ID is not provisioned");
-        STATUS_CODES.put(PermanentError.STATUS_MSISDN_DISCONNECTED_AND_IN_QUARANTINE, "MSISDN disconnected and in quarantine. MSISDN must be removed from databases.");
-        STATUS_CODES.put(PermanentError.STATUS_VALIDITY_PERIOD_EXPIRED_WITH_NO_RECEIPT_FROM_CARRIER, "Validity period expired with no receipt from carrier");
+        put(PermanentError.STATUS_REMOTE_PROCEDURE_ERROR, "Remote procedure error");
+        put(PermanentError.STATUS_INCOMPATIBLE_DESTINATION, "Incompatible destination");
+        put(PermanentError.STATUS_CONNECTION_REJECTED_BY_SME, "Connection rejected by SME");
+        put(PermanentError.STATUS_NOT_OBTAINABLE, "Not obtainable");
+        put(PermanentError.STATUS_QOS_NOT_AVAILABLE, "Quality of service not available");
+        put(PermanentError.STATUS_NO_INTERWORKING_AVAILABLE, "No interworking available");
+        put(PermanentError.STATUS_VALIDITY_PERIOD_EXPIRED, "Validity period expired");
+        put(PermanentError.STATUS_MESSAGE_DELETED_BY_SME, "Message deleted by originating SME");
+        put(PermanentError.STATUS_MESSAGE_DELETED_BY_SMSC, "Message deleted by SMSC admin");
+        put(PermanentError.STATUS_MESSAGE_DOES_NOT_EXIST, "Message does not exist");
+        put(PermanentError.STATUS_UNKNOWN_SUBSCRIBER, "Unknown subscriber");
+        put(PermanentError.STATUS_SMSC_ERROR, "SMSC Error");
+        put(PermanentError.STATUS_MAX_ATTEMPTS_REACHED, "Maximum submission attempts reached");
+        put(PermanentError.STATUS_MAX_TTL_REACHED, "Maximum Time To Live (TTL) for message reached");
+        put(PermanentError.STATUS_INVALID_DATA_IN_MESSAGE, "Invalid data in message");
+        put(PermanentError.STATUS_NON_ROUTABLE, "Non-routable (operator used rejected message)");
+        put(PermanentError.STATUS_AUTHENTICATION_FAILURE, "Authentication failure (UCP 60 mainly could be used by login page)");
+        put(PermanentError.STATUS_NO_RESPONSE_FROM_SME, "No response from the SME");
+        put(PermanentError.STATUS_SME_REJECTED_MESSAGE, "SME rejected message");
+        put(PermanentError.STATUS_UNKNOWN_ERROR, "Unknown error");
+        put(PermanentError.STATUS_OPERATOR_BAR, "Operator bar");
+        put(PermanentError.STATUS_REQUEST_ID_NOT_FOUND, "Request ID not found");
+        put(PermanentError.STATUS_REQUEST_PREMIUM_CHARGE_ROUTING_ERROR, "Premium charge routing error");
+        put(PermanentError.STATUS_SERVICE_ID_NOT_PROVISIONED, "Service ID is not provisioned");
+        put(PermanentError.STATUS_MSISDN_DISCONNECTED_AND_IN_QUARANTINE, "MSISDN disconnected and in quarantine. MSISDN must be removed from databases.");
+        put(PermanentError.STATUS_VALIDITY_PERIOD_EXPIRED_WITH_NO_RECEIPT_FROM_CARRIER, "Validity period expired with no receipt from carrier");
 
         // Retry Errors (60 to 7F)
-        STATUS_CODES.put(RetryError.STATUS_CONGESTION, "Congestion");
-        STATUS_CODES.put(RetryError.STATUS_SME_BUSY, "SME busy");
-        STATUS_CODES.put(RetryError.STATUS_NO_RESPONSE_FROM_SME, "No response from SME");
-        STATUS_CODES.put(RetryError.STATUS_SERVICE_REJECTED, "Service rejected");
-        STATUS_CODES.put(RetryError.STATUS_QOS_NOT_AVAILABLE, "Quality of service not available");
-        STATUS_CODES.put(RetryError.STATUS_ERROR_IN_SME, "Error in SME");
-        STATUS_CODES.put(RetryError.STATUS_MAX_SUBMISSION_ATTEMPTS_REACHED, "Max submission attempt reached (finalised before validity period expired)");
-        STATUS_CODES.put(RetryError.STATUS_MAX_TTL_REACHED, "Max TTL for message reached (finalised when validity period expired)");
-        STATUS_CODES.put(RetryError.STATUS_DATABASE_SUBSYSTEM_ERROR, "Database sub-system error");
-        STATUS_CODES.put(RetryError.STATUS_CORE_DEPENDANCY_MISSING, "Core dependency missing");
-        STATUS_CODES.put(RetryError.STATUS_INSUFFICIENT_PREPAY_CREDIT, "Insufficient prepay credit");
-        STATUS_CODES.put(RetryError.STATUS_CORE_CONFIGURATION_ERROR, "Core configuration error");
-        STATUS_CODES.put(RetryError.STATUS_PLUGIN_SUBSYSTEM_ERROR, "Plug-in sub-system error");
-        STATUS_CODES.put(RetryError.STATUS_ROUTING_LOOP_DETECTED, "Routing loop detected");
-        STATUS_CODES.put(RetryError.STATUS_O2_AGE_VERIFICATION_ERROR, "Age verification failure");
-        STATUS_CODES.put(RetryError.STATUS_ORANGE_AGE_VERIFICATION_ERROR, "Age verification failure");
-        STATUS_CODES.put(RetryError.STATUS_MESSAGE_IN_FLIGHT_UNKNOWN_STATUS, "Message in flight with unknown status");
-        STATUS_CODES.put(RetryError.STATUS_EXPENDITURE_LIMIT_REACHED, "Expenditure limit reached");
+        put(RetryError.STATUS_CONGESTION, "Congestion");
+        put(RetryError.STATUS_SME_BUSY, "SME busy");
+        put(RetryError.STATUS_NO_RESPONSE_FROM_SME, "No response from SME");
+        put(RetryError.STATUS_SERVICE_REJECTED, "Service rejected");
+        put(RetryError.STATUS_QOS_NOT_AVAILABLE, "Quality of service not available");
+        put(RetryError.STATUS_ERROR_IN_SME, "Error in SME");
+        put(RetryError.STATUS_MAX_SUBMISSION_ATTEMPTS_REACHED, "Max submission attempt reached (finalised before validity period expired)");
+        put(RetryError.STATUS_MAX_TTL_REACHED, "Max TTL for message reached (finalised when validity period expired)");
+        put(RetryError.STATUS_DATABASE_SUBSYSTEM_ERROR, "Database sub-system error");
+        put(RetryError.STATUS_CORE_DEPENDANCY_MISSING, "Core dependency missing");
+        put(RetryError.STATUS_INSUFFICIENT_PREPAY_CREDIT, "Insufficient prepay credit");
+        put(RetryError.STATUS_CORE_CONFIGURATION_ERROR, "Core configuration error");
+        put(RetryError.STATUS_PLUGIN_SUBSYSTEM_ERROR, "Plug-in sub-system error");
+        put(RetryError.STATUS_ROUTING_LOOP_DETECTED, "Routing loop detected");
+        put(RetryError.STATUS_O2_AGE_VERIFICATION_ERROR, "Age verification failure");
+        put(RetryError.STATUS_ORANGE_AGE_VERIFICATION_ERROR, "Age verification failure");
+        put(RetryError.STATUS_MESSAGE_IN_FLIGHT_UNKNOWN_STATUS, "Message in flight with unknown status");
+        put(RetryError.STATUS_EXPENDITURE_LIMIT_REACHED, "Expenditure limit reached");
     }
 
     /**
@@ -168,11 +224,7 @@ public class StatusCodes {
                     "No status code provided."
             );
         }
-        try {
-            return isTransactionCompleted(Integer.parseInt(statusCode, 16));
-        } catch (NumberFormatException e) {
-            return false;
-        }
+        return classify(decode(statusCode)) == Category.TransactionCompleted;
     }
 
     /**
@@ -196,11 +248,7 @@ public class StatusCodes {
                     "No status code provided."
             );
         }
-        try {
-            return isTemporaryError(Integer.parseInt(statusCode, 16));
-        } catch (NumberFormatException e) {
-            return false;
-        }
+        return classify(decode(statusCode)) == Category.TemporaryError;
     }
 
     /**
@@ -224,11 +272,7 @@ public class StatusCodes {
                     "No status code provided."
             );
         }
-        try {
-            return isPermanentError(Integer.parseInt(statusCode, 16));
-        } catch (NumberFormatException e) {
-            return false;
-        }
+        return classify(decode(statusCode)) == Category.PermanentError;
     }
 
     /**
@@ -252,11 +296,7 @@ public class StatusCodes {
                     "No status code provided."
             );
         }
-        try {
-            return isRetryError(Integer.parseInt(statusCode, 16));
-        } catch (NumberFormatException e) {
-            return false;
-        }
+        return classify(decode(statusCode)) == Category.RetryError;
     }
 
     /**
@@ -268,6 +308,39 @@ public class StatusCodes {
         return statusCode >= RetryError.START && statusCode <= RetryError.END;
     }
 
+    /**
+     * Returns the category of the provided status code.
+     * @param statusCode The status code as hexadecimal string
+     * @return The category, Category.Unknown if the status code is invalid or outside of 00 to 7F
+     * @throws IllegalArgumentException Thrown if statusCode is null or empty.
+     */
+    public Category classify(String statusCode) {
+        if(statusCode == null || statusCode.length() == 0) {
+            throw new IllegalArgumentException(
+                    "No status code provided."
+            );
+        }
+        return classify(decode(statusCode));
+    }
+
+    /**
+     * Returns the category of the provided status code.
+     * @param statusCode The status code as integer
+     * @return The category, Category.Unknown if the status code is outside of 00 to 7F
+     */
+    public Category classify(int statusCode) {
+        return statusCode >= 0 && statusCode < SIZE ? CATEGORIES[statusCode] : Category.Unknown;
+    }
+
+    /**
+     * Returns the State of the provided status code.
+     * @param statusCode The status code as integer
+     * @return The State, null if the status code is outside of 00 to 7F
+     */
+    State getState(int statusCode) {
+        return statusCode >= 0 && statusCode < SIZE ? STATES[statusCode] : null;
+    }
+
     /**
      * Returns a description of the provided status code.
      * @param statusCode The status code as hexadecimal string
@@ -280,7 +353,13 @@ public class StatusCodes {
                     "No status code provided."
             );
         }
-        String res = STATUS_CODES.get(statusCode.toUpperCase());
+        String res = null;
+        if (statusCode.length() == 2) {
+            int code = decode(statusCode.charAt(0), statusCode.charAt(1));
+            if (code >= 0 && code < SIZE) {
+                res = DESCRIPTIONS[code];
+            }
+        }
         if(res == null) {
             res = "Unknown status code " + statusCode;
         }
@@ -293,8 +372,56 @@ public class StatusCodes {
      * @return Description mapped from the status code
      */
     public String getDescription(int statusCode) {
-        StringBuilder b = new StringBuilder();
-        new Formatter(b).format("%02X", statusCode);
-        return getDescription(b.toString());
+        if (statusCode >= 0 && statusCode < SIZE && DESCRIPTIONS[statusCode] != null) {
+            return DESCRIPTIONS[statusCode];
+        }
+        String hex = Integer.toHexString(statusCode).toUpperCase();
+        return "Unknown status code " + (hex.length() < 2 ? "0" + hex : hex);
+    }
+
+    /**
+     * Decodes a status code the same way as Integer.parseInt(statusCode, 16), decoding the usual two
+     * hexadecimal digits in a single pass.
+     * @param statusCode The status code as hexadecimal string, not null
+     * @return The status code as integer, -1 if statusCode is not a valid hexadecimal number
+     */
+    static int decode(String statusCode) {
+        if (statusCode.length() == 2) {
+            char first = statusCode.charAt(0);
+            char second = statusCode.charAt(1);
+            int code = decode(first, second);
+            if (code >= 0)
+                return code;
+
+            // Signed single digit; other non-ASCII digits are left to Integer.parseInt
+            if (first < 128 && second < 128) {
+                int digit = HEX_DIGITS[second];
+                if (digit >= 0 && first == '+')
+                    return digit;
+                if (digit >= 0 && first == '-')
+                    return -digit;
+                return -1;
+            }
+        }
+
+        try {
+            return Integer.parseInt(statusCode, 16);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Decodes two hexadecimal digits.
+     * @return The value between 0x00 and 0xFF, negative if either character is not a hexadecimal digit
+     */
+    private static int decode(char high, char low) {
+        int h = high < 128 ? HEX_DIGITS[high] : -1;
+        int l = low < 128 ? HEX_DIGITS[low] : -1;
+        return h < 0 || l < 0 ? -1 : h << 4 | l;
+    }
+
+    private static void put(String statusCode, String description) {
+        DESCRIPTIONS[Integer.parseInt(statusCode, 16)] = description;
     }
 }
@@ -0,0 +1,105 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.*;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+
+/**
+ * Self-signed certificate for CN=localhost and the subject alternative names localhost and 127.0.0.1,
+ * generated by the keytool of the running JRE on first use.
+ */
+public class StubCertificate {
+
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    private static KeyStore keyStore;
+
+    /**
+     * Gets a context presenting the certificate, for servers.
+     */
+    public static SSLContext getServerContext() throws IOException {
+        try {
+            KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(getKeyStore(), PASSWORD);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagerFactory.getKeyManagers(), null, null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e.toString());
+        }
+    }
+
+    /**
+     * Gets a context trusting only the certificate, for clients.
+     */
+    public static SSLContext getClientContext() throws IOException {
+        try {
+            TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagerFactory.init(getKeyStore());
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, trustManagerFactory.getTrustManagers(), null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e.toString());
+        }
+    }
+
+    public static X509Certificate getCertificate() throws IOException {
+        try {
+            return (X509Certificate) getKeyStore().getCertificate("stub");
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e.toString());
+        }
+    }
+
+    private static synchronized KeyStore getKeyStore() throws IOException, GeneralSecurityException {
+        if (keyStore != null)
+            return keyStore;
+
+        File file = File.createTempFile("stub", ".jks");
+        file.delete();
+        try {
+            String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+            Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "stub", "-keyalg", "RSA",
+                    "-keysize", "2048", "-validity", "365", "-dname", "CN=localhost",
+                    "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-keystore", file.getPath(), "-storetype", "JKS",
+                    "-storepass", new String(PASSWORD), "-keypass", new String(PASSWORD))
+                    .redirectErrorStream(true).start();
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            InputStream in = process.getInputStream();
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                output.write(buffer, 0, n);
+            }
+            try {
+                if (process.waitFor() != 0)
+                    throw new IOException("keytool failed: " + output);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+
+            KeyStore keyStore = KeyStore.getInstance("JKS");
+            InputStream stream = new FileInputStream(file);
+            try {
+                keyStore.load(stream, PASSWORD);
+            } finally {
+                stream.close();
+            }
+            StubCertificate.keyStore = keyStore;
+            return keyStore;
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import java.io.*;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal loopback HTTP/1.1 server standing in for the messaging endpoint in tests. Answers every
+ * POST with a sendSmsResponse containing one successful sms element per message and recipient.
+ * Secure servers use the certificate of StubCertificate.
+ */
+public class StubServer {
+
+    private static final Pattern MESSAGE = Pattern.compile("<X-E3-Message>(.*?)</X-E3-Message>");
+    private static final Pattern RECIPIENT = Pattern.compile("<X-E3-Recipients>(.*?)</X-E3-Recipients>");
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger concurrent = new AtomicInteger();
+    private final AtomicInteger maxConcurrent = new AtomicInteger();
+    private final AtomicInteger status = new AtomicInteger(200);
+    private volatile long delay;
+    private volatile String lastRequest;
+    private volatile String lastAuthorization;
+    private volatile boolean lastChunked;
+    private volatile boolean keepAlive = true;
+    private final Set<String> sessions = Collections.synchronizedSet(new HashSet<String>());
+
+    public StubServer() throws IOException {
+        this(false);
+    }
+
+    public StubServer(boolean secure) throws IOException {
+        this(secure, null);
+    }
+
+    /**
+     * Creates a secure server accepting only the given TLS protocol versions, e.g. TLSv1.2, whose resumed
+     * sessions keep their session ID.
+     */
+    public StubServer(boolean secure, String[] protocols) throws IOException {
+        if (secure) {
+            SSLContext context = StubCertificate.getServerContext();
+            SSLServerSocket sslServerSocket = (SSLServerSocket) context.getServerSocketFactory()
+                    .createServerSocket(0, 1000, InetAddress.getByName("127.0.0.1"));
+            if (protocols != null)
+                sslServerSocket.setEnabledProtocols(protocols);
+            serverSocket = sslServerSocket;
+        } else {
+            serverSocket = new ServerSocket(0, 1000, InetAddress.getByName("127.0.0.1"));
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                accept();
+            }
+        });
+    }
+
+    /**
+     * Gets the endpoint (host name and port) to configure the client with.
+     */
+    public String getEndpoint() {
+        return "127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    /**
+     * Delays every response by the given number of milliseconds.
+     */
+    public void setDelay(long delay) {
+        this.delay = delay;
+    }
+
+    /**
+     * Answers every request with the given HTTP status code instead of 200.
+     */
+    public void setStatus(int status) {
+        this.status.set(status);
+    }
+
+    /**
+     * Closes every connection after its response if false.
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    public int getConnections() {
+        return connections.get();
+    }
+
+    public int getRequests() {
+        return requests.get();
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent.get();
+    }
+
+    public String getLastRequest() {
+        return lastRequest;
+    }
+
+    public String getLastAuthorization() {
+        return lastAuthorization;
+    }
+
+    public boolean isLastChunked() {
+        return lastChunked;
+    }
+
+    /**
+     * Gets the number of distinct TLS sessions of secure connections, less than getConnections() if
+     * sessions have been resumed.
+     */
+    public int getSessions() {
+        return sessions.size();
+    }
+
+    public void close() throws IOException {
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                final Socket socket = serverSocket.accept();
+                connections.incrementAndGet();
+                executor.execute(new Runnable() {
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            // Closed
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            while (true) {
+                String requestLine = readLine(in);
+                if (requestLine == null || requestLine.length() == 0)
+                    break;
+
+                int contentLength = 0;
+                boolean chunked = false;
+                boolean close = false;
+                String authorization = null;
+                String line;
+                while ((line = readLine(in)) != null && line.length() > 0) {
+                    int colon = line.indexOf(':');
+                    String name = line.substring(0, colon).trim().toLowerCase();
+                    String value = line.substring(colon + 1).trim();
+                    if (name.equals("content-length"))
+                        contentLength = Integer.parseInt(value);
+                    else if (name.equals("transfer-encoding"))
+                        chunked = value.equalsIgnoreCase("chunked");
+                    else if (name.equals("connection"))
+                        close = value.equalsIgnoreCase("close");
+                    else if (name.equals("authorization"))
+                        authorization = value;
+                }
+
+                byte[] body = chunked ? readChunked(in) : readFully(in, contentLength);
+                if (socket instanceof SSLSocket)
+                    sessions.add(new BigInteger(1, ((SSLSocket) socket).getSession().getId()).toString(16));
+                close |= !keepAlive;
+                String request = new String(body, "UTF-8");
+                lastRequest = request;
+                lastAuthorization = authorization;
+                lastChunked = chunked;
+                requests.incrementAndGet();
+
+                int current = concurrent.incrementAndGet();
+                int max;
+                while (current > (max = maxConcurrent.get()) && !maxConcurrent.compareAndSet(max, current)) {
+                    // Retry
+                }
+                try {
+                    if (delay > 0)
+                        Thread.sleep(delay);
+                } finally {
+                    concurrent.decrementAndGet();
+                }
+
+                int code = status.get();
+                byte[] response = (code == 200 ? respond(request) : "").getBytes("UTF-8");
+                out.write(("HTTP/1.1 " + code + " Stub\r\n" +
+                        "Content-Type: application/xml\r\n" +
+                        "Content-Length: " + response.length + "\r\n" +
+                        (close ? "Connection: close\r\n" : "") +
+                        "\r\n").getBytes("ISO-8859-1"));
+                out.write(response);
+                out.flush();
+
+                if (close)
+                    break;
+            }
+        } catch (SocketException e) {
+            // Client went away
+        } catch (SSLException e) {
+            // Client rejected the certificate
+        } catch (IOException e) {
+            // Client sent an incomplete request
+        } catch (InterruptedException e) {
+            // Shut down
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * Creates the response body for the given request body.
+     */
+    protected String respond(String request) {
+        StringBuilder response = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?><sendSmsResponse>");
+        int id = 0;
+        Matcher messages = MESSAGE.matcher(request);
+        while (messages.find()) {
+            Matcher recipients = RECIPIENT.matcher(request);
+            while (recipients.find()) {
+                response.append("<sms X-E3-ID=\"").append(Integer.toHexString(++id).toUpperCase())
+                        .append("\" X-E3-Recipients=\"").append(recipients.group(1))
+                        .append("\" X-E3-Submission-Report=\"00\"/>");
+            }
+        }
+        return response.append("</sendSmsResponse>").toString();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n')
+                return line.toString();
+            if (c != '\r')
+                line.append((char) c);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] data = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int n = in.read(data, offset, length - offset);
+            if (n < 0)
+                throw new EOFException();
+            offset += n;
+        }
+        return data;
+    }
+
+    private static byte[] readChunked(InputStream in) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        while (true) {
+            int size = Integer.parseInt(readLine(in).trim(), 16);
+            if (size == 0) {
+                readLine(in);
+                return data.toByteArray();
+            }
+            data.write(readFully(in, size));
+            readLine(in);
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import org.junit.Test;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TestAsyncClient {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void client_null() throws Exception {
+        new AsyncSendSmsClient(null, 1);
+    }
+
+    @Test
+    public void mock() throws Exception {
+        AsyncSendSmsClient client = new AsyncSendSmsClient(
+                new SendSmsClient(new MockRestTemplate.SucceededMockRestTemplate()), 2);
+
+        SendSmsResponse response = client.sendSms(new SendSmsRequest("message", "recipient")).get();
+        assertEquals(1, response.getMessages().size());
+        assertTrue(response.getMessages().get(0).isSuccessful());
+        client.shutdown();
+    }
+
+    @Test
+    public void concurrency() throws Exception {
+        StubServer server = new StubServer();
+        server.setDelay(200);
+        try {
+            AsyncSendSmsClient client = new AsyncSendSmsClient(new SendSmsClient.Builder()
+                    .endpoint(server.getEndpoint())
+                    .credentials("user123", "pass456")
+                    .secure(false)
+                    .build(), 20);
+
+            // 40 submissions of 200ms each take 8s one after another, about 400ms on 20 threads
+            long start = System.currentTimeMillis();
+            List<Future<SendSmsResponse>> futures = new ArrayList<Future<SendSmsResponse>>();
+            for (int n = 0; n < 40; n++) {
+                futures.add(client.sendSms(new SendSmsRequest("message", "4479" + n)));
+            }
+            for (int n = 0; n < futures.size(); n++) {
+                SendSmsResponse response = futures.get(n).get(10, TimeUnit.SECONDS);
+                assertEquals("4479" + n, response.getMessages().get(0).getRecipient());
+            }
+            long elapsed = System.currentTimeMillis() - start;
+
+            assertTrue("Elapsed " + elapsed + "ms", elapsed < 4000);
+            assertTrue(server.getMaxConcurrent() > 10);
+            client.shutdown();
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void threadPerSubmission() throws Exception {
+        StubServer server = new StubServer();
+        server.setDelay(200);
+        try {
+            AsyncSendSmsClient client = new AsyncSendSmsClient(builder(server).build(), 2);
+
+            // Every submission holds a thread until its response arrives, 2 at a time
+            long start = System.currentTimeMillis();
+            List<Future<SendSmsResponse>> futures = new ArrayList<Future<SendSmsResponse>>();
+            for (int n = 0; n < 6; n++) {
+                futures.add(client.sendSms(new SendSmsRequest("message", "4479" + n)));
+            }
+            for (Future<SendSmsResponse> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+            long elapsed = System.currentTimeMillis() - start;
+
+            assertTrue("Elapsed " + elapsed + "ms", elapsed >= 600);
+            assertEquals(2, server.getMaxConcurrent());
+            client.shutdown();
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void nonBlocking() throws Exception {
+        StubServer server = new StubServer();
+        server.setDelay(500);
+        try {
+            AsyncSendSmsClient client = new AsyncSendSmsClient(builder(server).build());
+
+            // 400 submissions of 500ms each, all in flight at once on the single I/O thread
+            long start = System.currentTimeMillis();
+            List<Future<SendSmsResponse>> futures = new ArrayList<Future<SendSmsResponse>>();
+            for (int n = 0; n < 400; n++) {
+                futures.add(client.sendSms(new SendSmsRequest("message", "4479" + n)));
+            }
+            for (int n = 0; n < futures.size(); n++) {
+                SendSmsResponse response = futures.get(n).get(10, TimeUnit.SECONDS);
+                assertEquals("4479" + n, response.getMessages().get(0).getRecipient());
+            }
+            long elapsed = System.currentTimeMillis() - start;
+
+            assertTrue("Elapsed " + elapsed + "ms", elapsed < 5000);
+            assertTrue(server.getMaxConcurrent() > 100);
+            assertTrue(server.getLastAuthorization().startsWith("Basic "));
+
+            client.shutdown();
+            assertTrue(client.getTransport().isClosed());
+            try {
+                client.sendSms(new SendSmsRequest("message", "recipient"));
+                fail();
+            } catch (RejectedExecutionException e) {
+                // Expected
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void nonBlocking_status() throws Exception {
+        StubServer server = new StubServer();
+        try {
+            AsyncSendSmsClient client = new AsyncSendSmsClient(builder(server).build());
+
+            server.setStatus(400);
+            try {
+                client.sendSms(new SendSmsRequest("message", "recipient")).get(10, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertEquals(400, ((HttpClientErrorException) e.getCause()).getStatusCode().value());
+            }
+
+            server.setStatus(503);
+            try {
+                client.sendSms(new SendSmsRequest("message", "recipient")).get(10, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertEquals(503, ((HttpServerErrorException) e.getCause()).getStatusCode().value());
+            }
+            client.shutdown();
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void nonBlocking_governor() throws Exception {
+        StubServer server = new StubServer();
+        server.setDelay(500);
+        try {
+            AsyncSendSmsClient client = new AsyncSendSmsClient(builder(server)
+                    .maxInFlight(1)
+                    .blocking(false)
+                    .build());
+
+            Future<SendSmsResponse> first = client.sendSms(new SendSmsRequest("message", "recipient"));
+            try {
+                client.sendSms(new SendSmsRequest("message", "recipient")).get(10, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+            assertEquals(1, first.get(10, TimeUnit.SECONDS).getMessages().size());
+            client.shutdown();
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void nonBlocking_connectFailure() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+
+        Deduplicator deduplicator = new Deduplicator(16, Deduplicator.DEFAULT_WINDOW);
+        SendSmsClient sendSmsClient = new SendSmsClient.Builder()
+                .endpoint("127.0.0.1:" + port)
+                .credentials("user123", "pass456")
+                .secure(false)
+                .build();
+        sendSmsClient.setDeduplicator(deduplicator);
+        AsyncSendSmsClient client = new AsyncSendSmsClient(sendSmsClient);
+
+        SendSmsRequest request = new SendSmsRequest("message", "447700900000");
+        request.setUserKey("key");
+        try {
+            client.sendSms(request).get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+
+        // The request never reached the endpoint and may be sent again
+        assertFalse(deduplicator.contains("key", "447700900000"));
+        client.shutdown();
+    }
+
+    @Test
+    public void nonBlocking_failover() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+
+        StubServer server = new StubServer();
+        try {
+            // The first endpoint refuses connections, the submission fails over to the second
+            SendSmsClient sendSmsClient = new SendSmsClient.Builder()
+                    .endpoints("127.0.0.1:" + port + "," + server.getEndpoint())
+                    .credentials("user123", "pass456")
+                    .secure(false)
+                    .build();
+            final List<String> threads = new ArrayList<String>();
+            sendSmsClient.setCredentialsProvider(new CredentialsProvider() {
+                public Credentials getCredentials() {
+                    synchronized (threads) {
+                        threads.add(Thread.currentThread().getName());
+                    }
+                    return new Credentials("user123", "pass456");
+                }
+            });
+            AsyncSendSmsClient client = new AsyncSendSmsClient(sendSmsClient);
+
+            SendSmsResponse response = client.sendSms(new SendSmsRequest("message", "447700900000"))
+                    .get(10, TimeUnit.SECONDS);
+            assertEquals("447700900000", response.getMessages().get(0).getRecipient());
+            assertEquals(1, server.getRequests());
+
+            // Credentials are never got on the I/O thread of the transport
+            synchronized (threads) {
+                assertFalse(threads.isEmpty());
+                for (String thread : threads) {
+                    assertFalse(thread, thread.startsWith("NioTransport"));
+                }
+            }
+            client.shutdown();
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void callback() throws Exception {
+        StubServer server = new StubServer();
+        try {
+            AsyncSendSmsClient client = new AsyncSendSmsClient(new SendSmsClient.Builder()
+                    .endpoint(server.getEndpoint())
+                    .credentials("user123", "pass456")
+                    .secure(false)
+                    .build(), 1);
+
+            final CountDownLatch latch = new CountDownLatch(1);
+            final AtomicReference<SendSmsResponse> result = new AtomicReference<SendSmsResponse>();
+            client.sendSms(new SendSmsRequest("message", "recipient"), new SendSmsCallback() {
+                public void onSuccess(SendSmsResponse response) {
+                    result.set(response);
+                    latch.countDown();
+                }
+
+                public void onFailure(Throwable e) {
+                    latch.countDown();
+                }
+            });
+
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+            assertEquals("recipient", result.get().getMessages().get(0).getRecipient());
+            client.shutdown();
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void ioException() throws Exception {
+        // Find a port nobody listens on
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+
+        AsyncSendSmsClient client = new AsyncSendSmsClient(new SendSmsClient.Builder()
+                .endpoint("127.0.0.1:" + port)
+                .credentials("user123", "pass456")
+                .secure(false)
+                .build(), 1);
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Future<SendSmsResponse> future = client.sendSms(new SendSmsRequest("message", "recipient"),
+                new SendSmsCallback() {
+                    public void onSuccess(SendSmsResponse response) {
+                        latch.countDown();
+                    }
+
+                    public void onFailure(Throwable e) {
+                        failure.set(e);
+                        latch.countDown();
+                    }
+                });
+
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertTrue(failure.get() instanceof IOException);
+        client.shutdown();
+    }
+
+    private static SendSmsClient.Builder builder(StubServer server) {
+        return new SendSmsClient.Builder()
+                .endpoint(server.getEndpoint())
+                .credentials("user123", "pass456")
+                .secure(false);
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class TestBatchingClient {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void client_null() throws Exception {
+        new BatchingSendSmsClient(null, 100, 100);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void multiple_recipients() throws Exception {
+        BatchingSendSmsClient client = new BatchingSendSmsClient(new AsyncSendSmsClient(
+                new SendSmsClient(new MockRestTemplate.SucceededMockRestTemplate()), 1), 100, 100);
+        client.sendSms(new SendSmsRequest("message", Arrays.asList("recipient", "recipient2")));
+    }
+
+    @Test
+    public void window() throws Exception {
+        StubServer server = new StubServer();
+        try {
+            AsyncSendSmsClient async = createClient(server);
+            BatchingSendSmsClient client = new BatchingSendSmsClient(async, 200, 1000);
+
+            List<Future<Sms>> futures = new ArrayList<Future<Sms>>();
+            for (int n = 0; n < 100; n++) {
+                SendSmsRequest request = new SendSmsRequest("message", "4479" + n);
+                request.setUserTag(n % 2 == 0 ? "even" : "odd");
+                futures.add(client.sendSms(request));
+            }
+            for (int n = 0; n < futures.size(); n++) {
+                Sms sms = futures.get(n).get(10, TimeUnit.SECONDS);
+                assertEquals("4479" + n, sms.getRecipient());
+                assertTrue(sms.isSuccessful());
+            }
+
+            // One request per distinct user tag
+            assertEquals(2, server.getRequests());
+            client.shutdown();
+            async.shutdown();
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void size() throws Exception {
+        StubServer server = new StubServer();
+        try {
+            AsyncSendSmsClient async = createClient(server);
+            BatchingSendSmsClient client = new BatchingSendSmsClient(async, 60 * 1000, 10);
+
+            List<Future<Sms>> futures = new ArrayList<Future<Sms>>();
+            for (int n = 0; n < 30; n++) {
+                futures.add(client.sendSms(new SendSmsRequest("message", "4479" + n)));
+            }
+            for (int n = 0; n < futures.size(); n++) {
+                assertEquals("4479" + n, futures.get(n).get(10, TimeUnit.SECONDS).getRecipient());
+            }
+
+            assertEquals(3, server.getRequests());
+            client.shutdown();
+            async.shutdown();
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void duplicate_recipient() throws Exception {
+        StubServer server = new StubServer();
+        try {
+            AsyncSendSmsClient async = createClient(server);
+            BatchingSendSmsClient client = new BatchingSendSmsClient(async, 60 * 1000, 10);
+
+            Future<Sms> first = client.sendSms(new SendSmsRequest("message", "447900"));
+            Future<Sms> second = client.sendSms(new SendSmsRequest("message", "447900"));
+            client.flush();
+
+            assertEquals("447900", first.get(10, TimeUnit.SECONDS).getRecipient());
+            assertEquals("447900", second.get(10, TimeUnit.SECONDS).getRecipient());
+            assertEquals(2, server.getRequests());
+            client.shutdown();
+            async.shutdown();
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void ioException() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+
+        AsyncSendSmsClient async = new AsyncSendSmsClient(new SendSmsClient.Builder()
+                .endpoint("127.0.0.1:" + port)
+                .credentials("user123", "pass456")
+                .secure(false)
+                .build(), 1);
+        BatchingSendSmsClient client = new BatchingSendSmsClient(async, 10, 100);
+
+        Future<Sms> future = client.sendSms(new SendSmsRequest("message", "recipient"));
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        client.shutdown();
+        async.shutdown();
+    }
+
+    @Test
+    public void noMessages() throws Exception {
+        for (final boolean foreign : new boolean[]{true, false}) {
+            SendSmsClient sendSmsClient = new SendSmsClient();
+            sendSmsClient.setRestOperations(new MockRestTemplate.SucceededMockRestTemplate() {
+                @Override
+                public <T> T postForObject(String url, Object entity, Class<T> responseType, Object... uriVariables) {
+                    // A foreign root element is unmarshalled as null, an empty response has no messages
+                    if (foreign)
+                        return null;
+                    SendSmsResponse response = new SendSmsResponse();
+                    response.setMessages(null);
+                    return responseType.cast(response);
+                }
+            });
+            AsyncSendSmsClient async = new AsyncSendSmsClient(sendSmsClient, 1);
+            BatchingSendSmsClient client = new BatchingSendSmsClient(async, 10, 100);
+
+            Future<Sms> first = client.sendSms(new SendSmsRequest("message", "1"));
+            Future<Sms> second = client.sendSms(new SendSmsRequest("message", "2"));
+            for (Future<Sms> future : Arrays.asList(first, second)) {
+                try {
+                    future.get(10, TimeUnit.SECONDS);
+                    fail();
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof IllegalStateException);
+                }
+            }
+            client.shutdown();
+            async.shutdown();
+        }
+    }
+
+    @Test
+    public void shutdown() throws Exception {
+        StubServer server = new StubServer();
+        try {
+            AsyncSendSmsClient async = createClient(server);
+            BatchingSendSmsClient client = new BatchingSendSmsClient(async, 60 * 1000, 10);
+
+            Future<Sms> queued = client.sendSms(new SendSmsRequest("message", "447900"));
+            client.shutdown();
+            assertEquals("447900", queued.get(10, TimeUnit.SECONDS).getRecipient());
+
+            // Rejected rather than queued in a batch that is never sent
+            try {
+                client.sendSms(new SendSmsRequest("message", "447901"));
+                fail();
+            } catch (RejectedExecutionException e) {
+                // Expected
+            }
+            async.shutdown();
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void send_unlocked() throws Exception {
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        AsyncSendSmsClient async = new AsyncSendSmsClient(
+                new SendSmsClient(new MockRestTemplate.SucceededMockRestTemplate()), 1) {
+            @Override
+            public Future<SendSmsResponse> sendSms(SendSmsRequest request, SendSmsCallback callback) {
+                // The first batch blocks like a submission waiting for a blocking Governor
+                if (sending.getCount() > 0) {
+                    sending.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.sendSms(request, callback);
+            }
+        };
+        final BatchingSendSmsClient client = new BatchingSendSmsClient(async, 60 * 1000, 10);
+
+        Thread sender = new Thread() {
+            public void run() {
+                // The second submission to the same recipient sends the first batch
+                client.sendSms(new SendSmsRequest("message", "447900"));
+                client.sendSms(new SendSmsRequest("message", "447900"));
+            }
+        };
+        sender.start();
+        try {
+            assertTrue(sending.await(10, TimeUnit.SECONDS));
+
+            // Other submissions are not held up while a batch is being sent
+            Future<Sms> future = client.sendSms(new SendSmsRequest("other", "447901"));
+            client.flush();
+            assertEquals("447901", future.get(10, TimeUnit.SECONDS).getRecipient());
+        } finally {
+            release.countDown();
+        }
+        sender.join(10000);
+        client.shutdown();
+        async.shutdown();
+    }
+
+    private static AsyncSendSmsClient createClient(StubServer server) {
+        return new AsyncSendSmsClient(new SendSmsClient.Builder()
+                .endpoint(server.getEndpoint())
+                .credentials("user123", "pass456")
+                .secure(false)
+                .build(), 4);
+    }
+}
@@ -54,6 +54,67 @@ public class TestBuilder {
         assertEquals(((RestTemplate)client.getRestOperations()).getRequestFactory(), customTransport);
     }
 
+    @Test
+    public void pooledTransport() throws Exception {
+
+        SendSmsClient client = new SendSmsClient.Builder()
+                .pooledTransport()
+                .build();
+        PooledClientHttpRequestFactory transport = (PooledClientHttpRequestFactory)
+                ((RestTemplate) client.getRestOperations()).getRequestFactory();
+        assertEquals(PooledClientHttpRequestFactory.DEFAULT_MAX_TOTAL,
+                transport.getConnectionManager().getMaxTotal());
+        assertEquals(PooledClientHttpRequestFactory.DEFAULT_MAX_PER_ROUTE,
+                transport.getConnectionManager().getDefaultMaxPerRoute());
+        transport.destroy();
+
+        // Configuring the pool selects the pooled transport
+        client = new SendSmsClient.Builder()
+                .maxConnections(50, 10)
+                .keepAlive(5000)
+                .idleTimeout(10000)
+                .connectTimeout(1000)
+                .readTimeout(2000)
+                .poolTimeout(3000)
+                .sslSessionCache(10, 3600)
+                .build();
+        transport = (PooledClientHttpRequestFactory)
+                ((RestTemplate) client.getRestOperations()).getRequestFactory();
+        assertEquals(50, transport.getConnectionManager().getMaxTotal());
+        assertEquals(10, transport.getConnectionManager().getDefaultMaxPerRoute());
+        assertEquals(10, transport.getSslContext().getClientSessionContext().getSessionCacheSize());
+        assertEquals(3600, transport.getSslContext().getClientSessionContext().getSessionTimeout());
+        transport.destroy();
+
+        // Another transport replaces the pooled transport, which is destroyed
+        int evictors = evictors();
+        SendSmsClient.Builder builder = new SendSmsClient.Builder().pooledTransport();
+        assertEquals(evictors + 1, evictors());
+        client = builder
+                .transport(TRANSPORT_SIMPLE_CLIENT)
+                .build();
+        assertSame(TRANSPORT_SIMPLE_CLIENT, ((RestTemplate) client.getRestOperations()).getRequestFactory());
+        for (int n = 0; n < 100 && evictors() > evictors; n++) {
+            Thread.sleep(10);
+        }
+        assertEquals(evictors, evictors());
+    }
+
+    private static int evictors() {
+        int evictors = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("PooledClientHttpRequestFactory-evictor") && thread.isAlive())
+                evictors++;
+        }
+        return evictors;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maxConnections_invalid() throws Exception {
+        new SendSmsClient.Builder()
+                .maxConnections(0, 1);
+    }
+
     @Test
     public void endpoint() throws Exception {
 
@@ -0,0 +1,251 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class TestCallbackParser {
+
+    private static final String REPORT =
+            "<?xml version=\"1.0\"?><callback X-E3-Delivery-Report=\"00\" X-E3-ID=\"90A9893BC2B645918034F4C358A062CE\" " +
+                    "X-E3-Recipients=\"447xxxxxxxxx\" X-E3-Timestamp=\"2011-12-01 18:02:21\"/>";
+
+    private static final String REPLY =
+            "<callback X-E3-Hex-Message=\"41\" X-E3-Originating-Address=\"447xxxxxxxxx\" " +
+                    "X-E3-Timestamp=\"2011-11-25 12:14:23.000000\"/>";
+
+    private static final TimeZone LONDON = TimeZone.getTimeZone("Europe/London");
+
+    @Test
+    public void missing_attributes() throws Exception {
+        SmsReport report = CallbackParser.INSTANCE.parseReport(new StringReader(REPORT));
+        assertEquals("90A9893BC2B645918034F4C358A062CE", report.getId());
+        assertEquals("", report.getUserKey());
+        assertEquals("", report.getNetwork());
+        assertEquals(1322762541000L, report.getTimestamp().getTime());
+    }
+
+    @Test
+    public void parse_handler() throws Exception {
+        final List<Object> callbacks = new ArrayList<Object>();
+        CallbackHandler handler = new CallbackHandler() {
+            public void onReport(SmsReport report) {
+                callbacks.add(report);
+            }
+
+            public void onReply(SmsReply reply) {
+                callbacks.add(reply);
+            }
+        };
+        CallbackParser.INSTANCE.parse(new ByteArrayInputStream(REPORT.getBytes("UTF-8")), handler);
+        CallbackParser.INSTANCE.parse(new ByteArrayInputStream(("<callback X-E3-Hex-Message=\"41\" " +
+                "X-E3-Timestamp=\"2011-11-25 12:14:23.000000\"/>").getBytes("UTF-8")), handler);
+
+        assertTrue(callbacks.get(0) instanceof SmsReport);
+        assertEquals("A", ((SmsReply) callbacks.get(1)).getMessage());
+    }
+
+    @Test(expected = IOException.class)
+    public void malformed() throws Exception {
+        CallbackParser.INSTANCE.parseReport(new StringReader("<callback X-E3-ID=\"1"));
+    }
+
+    @Test(expected = IOException.class)
+    public void timestamp_missing() throws Exception {
+        CallbackParser.INSTANCE.parseReport(new StringReader("<callback X-E3-ID=\"1\"/>"));
+    }
+
+    @Test
+    public void timestamps() throws Exception {
+        // Daylight saving time transitions, leap days and irregular values
+        String[] values = {
+                "2011-03-27 00:59:59", "2011-03-27 01:00:00", "2011-03-27 01:30:00", "2011-03-27 02:00:00",
+                "2011-10-30 00:59:59", "2011-10-30 01:00:00", "2011-10-30 01:30:00", "2011-10-30 02:00:00",
+                "2012-02-29 12:00:00", "2011-02-29 12:00:00", "2000-02-29 23:59:59", "1970-01-01 00:00:00",
+                "2011-11-25 12:14:23.000000", "2011-1-5 1:2:3", "2011-12-01 24:00:00", "2011-12-01 18:02:21x"
+        };
+        for (String value : values) {
+            assertEquals(value, parse(value), CallbackParser.parseTimestamp(value));
+        }
+
+        Random random = new Random(42);
+        for (int n = 0; n < 20000; n++) {
+            String value = String.format("%04d-%02d-%02d %02d:%02d:%02d", 1990 + random.nextInt(50),
+                    1 + random.nextInt(12), 1 + random.nextInt(31), random.nextInt(24), random.nextInt(60),
+                    random.nextInt(60));
+            assertEquals(value, parse(value), CallbackParser.parseTimestamp(value));
+        }
+    }
+
+    @Test
+    public void concurrency() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Long>> futures = new ArrayList<Future<Long>>();
+            for (int t = 0; t < 8; t++) {
+                futures.add(executor.submit(new Callable<Long>() {
+                    public Long call() throws Exception {
+                        long sum = 0;
+                        for (int n = 0; n < 2000; n++) {
+                            sum += SmsReport.getInstance(REPORT).getTimestamp().getTime() - 1322762541000L;
+                            sum += SmsReport.getInstance(REPORT.replace("2011-12-01 18:02:21", "2011-10-30 01:30:00"))
+                                    .getTimestamp().getTime() - 1319938200000L;
+                        }
+                        return sum;
+                    }
+                }));
+            }
+            for (Future<Long> future : futures) {
+                assertEquals(0L, future.get().longValue());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void batch_lines() throws Exception {
+        String batch = REPORT + "\n" + REPLY + "\r\n" + REPORT.replace("<?xml version=\"1.0\"?>", "") + "\n";
+        CountingHandler handler = new CountingHandler();
+
+        assertEquals(3, CallbackParser.INSTANCE.parseBatch(new StringReader(batch), handler));
+        assertEquals(2, handler.reports.size());
+        assertEquals(1, handler.replies.size());
+        assertEquals("A", handler.replies.get(0).getMessage());
+        assertEquals(1322762541000L, handler.reports.get(1).getTimestamp().getTime());
+    }
+
+    @Test
+    public void batch_wrapped() throws Exception {
+        String batch = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<callbacks>\n" +
+                REPORT.replace("<?xml version=\"1.0\"?>", "") + "\n" + REPLY + "\n</callbacks>";
+        CountingHandler handler = new CountingHandler();
+
+        assertEquals(2, CallbackParser.INSTANCE.parseBatch(
+                new ByteArrayInputStream(batch.getBytes("UTF-8")), handler));
+        assertEquals(1, handler.reports.size());
+        assertEquals(1, handler.replies.size());
+    }
+
+    @Test
+    public void batch_encoding() throws Exception {
+        // Declared encodings are ignored, the batch is decoded as a whole
+        String reply = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>" +
+                REPLY.replace("/>", " X-E3-Network=\"Bouygues T\u00e9l\u00e9com\"/>");
+        byte[] batch = (reply + "\n" + reply).getBytes("ISO-8859-1");
+        CountingHandler handler = new CountingHandler();
+
+        assertEquals(2, CallbackParser.INSTANCE.parseBatch(new ByteArrayInputStream(batch), "ISO-8859-1", handler));
+        assertEquals("Bouygues T\u00e9l\u00e9com", handler.replies.get(1).getNetwork());
+    }
+
+    @Test
+    public void batch_small_reads() throws Exception {
+        // Declarations split across reads of the underlying reader
+        final Reader in = new StringReader(REPORT + "\n" + REPORT + "\n" + REPORT);
+        Reader trickle = new Reader() {
+            public int read(char[] chars, int offset, int length) throws IOException {
+                return in.read(chars, offset, Math.min(length, 3));
+            }
+
+            public void close() throws IOException {
+            }
+        };
+        CountingHandler handler = new CountingHandler();
+        assertEquals(3, CallbackParser.INSTANCE.parseBatch(trickle, handler));
+    }
+
+    @Test
+    public void batch_malformed() throws Exception {
+        CountingHandler handler = new CountingHandler();
+        try {
+            CallbackParser.INSTANCE.parseBatch(new StringReader(REPORT + "\n" + REPLY + "\n<callback X-E3-ID=\"1"),
+                    handler);
+            fail();
+        } catch (IOException e) {
+            // Expected
+        }
+        assertEquals(1, handler.reports.size());
+        assertEquals(1, handler.replies.size());
+    }
+
+    @Test
+    public void batch_large() throws Exception {
+        // Generated on the fly, never held in memory as a whole
+        final int records = 200000;
+        Reader in = new Reader() {
+            private final String line = REPORT + "\n";
+            private int record;
+            private int index;
+
+            public int read(char[] chars, int offset, int length) {
+                if (record == records)
+                    return -1;
+                int n = 0;
+                while (n < length && record < records) {
+                    chars[offset + n++] = line.charAt(index++);
+                    if (index == line.length()) {
+                        index = 0;
+                        record++;
+                    }
+                }
+                return n;
+            }
+
+            public void close() {
+            }
+        };
+
+        final int[] count = new int[1];
+        assertEquals(records, CallbackParser.INSTANCE.parseBatch(in, new CallbackHandler() {
+            public void onReport(SmsReport report) {
+                count[0]++;
+            }
+
+            public void onReply(SmsReply reply) {
+            }
+        }));
+        assertEquals(records, count[0]);
+    }
+
+    private static class CountingHandler implements CallbackHandler {
+
+        final List<SmsReport> reports = new ArrayList<SmsReport>();
+        final List<SmsReply> replies = new ArrayList<SmsReply>();
+
+        public void onReport(SmsReport report) {
+            reports.add(report);
+        }
+
+        public void onReply(SmsReply reply) {
+            replies.add(reply);
+        }
+    }
+
+    private static Date parse(String value) throws Exception {
+        DateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        format.setTimeZone(LONDON);
+        return format.parse(value);
+    }
+}
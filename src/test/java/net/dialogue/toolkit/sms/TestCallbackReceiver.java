@@ -0,0 +1,324 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestCallbackReceiver {
+
+    private static final String REPORT =
+            "<callback X-E3-Delivery-Report=\"00\" X-E3-ID=\"90A9893BC2B645918034F4C358A062CE\" " +
+                    "X-E3-Network=\"Orange\" X-E3-Recipients=\"447xxxxxxxxx\" " +
+                    "X-E3-Timestamp=\"2011-12-01 18:02:21\" X-E3-User-Key=\"myKey1234\"/>";
+
+    private static final String REPLY =
+            "<callback X-E3-Hex-Message=\"54657374204D657373616765\" X-E3-ID=\"809EF683F022441DB9C4895AED6382CF\" " +
+                    "X-E3-Network=\"Orange\" X-E3-Originating-Address=\"447xxxxxxxxx\" " +
+                    "X-E3-Session-ID=\"1234567890\" X-E3-Timestamp=\"2011-11-25 12:14:23.000000\"/>";
+
+    @Test(expected = IllegalArgumentException.class)
+    public void handler_null() throws Exception {
+        new CallbackReceiver(new InetSocketAddress(0), null);
+    }
+
+    @Test
+    public void report_and_reply() throws Exception {
+        final List<Object> callbacks = new ArrayList<Object>();
+        final CountDownLatch latch = new CountDownLatch(2);
+        CallbackReceiver receiver = new CallbackReceiver(new InetSocketAddress("127.0.0.1", 0), new CallbackHandler() {
+            public void onReport(SmsReport report) {
+                callbacks.add(report);
+                latch.countDown();
+            }
+
+            public void onReply(SmsReply reply) {
+                callbacks.add(reply);
+                latch.countDown();
+            }
+        });
+        receiver.start();
+        try {
+            Client client = new Client(receiver.getPort());
+            assertEquals(200, client.post(REPORT));
+            assertEquals(200, client.post(REPLY));
+            client.close();
+
+            latch.await();
+            assertEquals("myKey1234", ((SmsReport) callbacks.get(0)).getUserKey());
+            assertEquals("Test Message", ((SmsReply) callbacks.get(1)).getMessage());
+            assertEquals(2L, receiver.getReceived());
+            assertEquals(0L, receiver.getDropped());
+        } finally {
+            receiver.stop();
+        }
+    }
+
+    @Test
+    public void idle_timeout() throws Exception {
+        CallbackReceiver receiver = new CallbackReceiver(new InetSocketAddress("127.0.0.1", 0), new CountingHandler());
+        receiver.setIdleTimeout(200);
+        receiver.start();
+        try {
+            // Incomplete request sent slowly
+            Socket socket = new Socket("127.0.0.1", receiver.getPort());
+            socket.setSoTimeout(10000);
+            OutputStream out = socket.getOutputStream();
+            long start = System.currentTimeMillis();
+            try {
+                for (int i = 0; i < 20; i++) {
+                    out.write('P');
+                    out.flush();
+                    Thread.sleep(50);
+                }
+            } catch (IOException e) {
+                // Closed by the receiver
+            }
+            assertEquals(-1, socket.getInputStream().read());
+            assertTrue(System.currentTimeMillis() - start < 10000);
+            socket.close();
+
+            // Idle keep-alive connection
+            Client client = new Client(receiver.getPort());
+            assertEquals(200, client.post(REPORT));
+            client.socket.setSoTimeout(10000);
+            assertEquals(-1, client.in.read());
+            client.close();
+        } finally {
+            receiver.stop();
+        }
+    }
+
+    @Test
+    public void max_connections() throws Exception {
+        CallbackReceiver receiver = new CallbackReceiver(new InetSocketAddress("127.0.0.1", 0), new CountingHandler());
+        receiver.setMaxConnections(1);
+        receiver.start();
+        try {
+            Client client = new Client(receiver.getPort());
+            assertEquals(200, client.post(REPORT));
+
+            Socket socket = new Socket("127.0.0.1", receiver.getPort());
+            socket.setSoTimeout(10000);
+            assertEquals(-1, socket.getInputStream().read());
+            socket.close();
+
+            assertEquals(200, client.post(REPORT));
+            client.close();
+
+            // Accepted again once the first connection has been closed
+            int status = 0;
+            for (int i = 0; i < 100 && status != 200; i++) {
+                client = new Client(receiver.getPort());
+                try {
+                    status = client.post(REPORT);
+                } catch (IOException e) {
+                    Thread.sleep(50);
+                } finally {
+                    client.close();
+                }
+            }
+            assertEquals(200, status);
+        } finally {
+            receiver.stop();
+        }
+    }
+
+    @Test
+    public void invalid_requests() throws Exception {
+        CallbackReceiver receiver = new CallbackReceiver(new InetSocketAddress("127.0.0.1", 0), new CountingHandler());
+        receiver.start();
+        try {
+            Socket socket = new Socket("127.0.0.1", receiver.getPort());
+            socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: x\r\n\r\n".getBytes("ISO-8859-1"));
+            assertEquals(405, Client.readStatus(new BufferedInputStream(socket.getInputStream())));
+            socket.close();
+
+            Client client = new Client(receiver.getPort());
+            StringBuilder large = new StringBuilder(REPORT);
+            while (large.length() < CallbackReceiver.DEFAULT_MAX_REQUEST_SIZE)
+                large.append(' ');
+            assertEquals(413, client.post(large.toString()));
+            client.close();
+
+            // Would overflow when added to the header size
+            socket = new Socket("127.0.0.1", receiver.getPort());
+            socket.getOutputStream().write(("POST /callback HTTP/1.1\r\nHost: x\r\n" +
+                    "Content-Length: " + Integer.MAX_VALUE + "\r\n\r\n").getBytes("ISO-8859-1"));
+            assertEquals(413, Client.readStatus(new BufferedInputStream(socket.getInputStream())));
+            socket.close();
+
+            client = new Client(receiver.getPort());
+            assertEquals(200, client.post("<not-a-callback/>"));
+            client.close();
+        } finally {
+            receiver.stop();
+        }
+        assertEquals(1L, receiver.getFailed());
+    }
+
+    @Test
+    public void backpressure() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger handled = new AtomicInteger();
+        CallbackReceiver receiver = new CallbackReceiver(new InetSocketAddress("127.0.0.1", 0), new CallbackHandler() {
+            public void onReport(SmsReport report) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // Ignore
+                }
+                handled.incrementAndGet();
+            }
+
+            public void onReply(SmsReply reply) {
+            }
+        });
+        receiver.setQueueCapacity(10);
+        receiver.start();
+        try {
+            Client client = new Client(receiver.getPort());
+            int accepted = 0;
+            int rejected = 0;
+            for (int n = 0; n < 50; n++) {
+                int status = client.post(REPORT);
+                if (status == 200)
+                    accepted++;
+                else if (status == 503)
+                    rejected++;
+            }
+            client.close();
+
+            // One callback blocks the dispatch thread, ten wait in the queue
+            assertEquals(11, accepted);
+            assertEquals(39, rejected);
+            assertEquals(10, receiver.getQueueDepth());
+            assertEquals(39L, receiver.getDropped());
+        } finally {
+            release.countDown();
+            receiver.stop();
+        }
+        assertEquals(11, handled.get());
+    }
+
+    @Test
+    public void load() throws Exception {
+        final CountingHandler handler = new CountingHandler();
+        final CallbackReceiver receiver = new CallbackReceiver(new InetSocketAddress("127.0.0.1", 0), handler);
+        receiver.setQueueCapacity(100000);
+        receiver.setDispatchThreads(4);
+        receiver.start();
+
+        // Load generator: 10 keep-alive connections posting 400 callbacks each
+        ExecutorService executor = Executors.newFixedThreadPool(10);
+        try {
+            List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (int c = 0; c < 10; c++) {
+                futures.add(executor.submit(new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        Client client = new Client(receiver.getPort());
+                        int accepted = 0;
+                        for (int n = 0; n < 400; n++) {
+                            if (client.post(n % 2 == 0 ? REPORT : REPLY) == 200)
+                                accepted++;
+                        }
+                        client.close();
+                        return accepted;
+                    }
+                }));
+            }
+            int accepted = 0;
+            for (Future<Integer> future : futures) {
+                accepted += future.get();
+            }
+            assertEquals(4000, accepted);
+        } finally {
+            executor.shutdown();
+            receiver.stop();
+        }
+
+        assertEquals(4000L, receiver.getReceived());
+        assertEquals(2000, handler.reports.get());
+        assertEquals(2000, handler.replies.get());
+        assertEquals(0L, receiver.getFailed());
+    }
+
+    private static class CountingHandler implements CallbackHandler {
+
+        final AtomicInteger reports = new AtomicInteger();
+        final AtomicInteger replies = new AtomicInteger();
+
+        public void onReport(SmsReport report) {
+            reports.incrementAndGet();
+        }
+
+        public void onReply(SmsReply reply) {
+            replies.incrementAndGet();
+        }
+    }
+
+    /**
+     * Keep-alive HTTP client posting callbacks like the messaging platform does.
+     */
+    private static class Client {
+
+        private final Socket socket;
+        private final OutputStream out;
+        private final InputStream in;
+
+        Client(int port) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            out = new BufferedOutputStream(socket.getOutputStream());
+            in = new BufferedInputStream(socket.getInputStream());
+        }
+
+        int post(String body) throws IOException {
+            byte[] data = body.getBytes("UTF-8");
+            out.write(("POST /callback HTTP/1.1\r\nHost: localhost\r\nContent-Type: text/xml\r\n" +
+                    "Content-Length: " + data.length + "\r\n\r\n").getBytes("ISO-8859-1"));
+            out.write(data);
+            out.flush();
+            return readStatus(in);
+        }
+
+        static int readStatus(InputStream in) throws IOException {
+            String statusLine = readLine(in);
+            while (readLine(in).length() > 0) {
+                // Skip headers, responses have no body
+            }
+            return Integer.parseInt(statusLine.split(" ")[1]);
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c < 0)
+                    throw new EOFException();
+                if (c != '\r')
+                    line.append((char) c);
+            }
+            return line.toString();
+        }
+    }
+}
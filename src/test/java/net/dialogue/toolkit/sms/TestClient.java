@@ -3,10 +3,23 @@ package net.dialogue.toolkit.sms;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpRequestFactory;
 import org.springframework.http.client.SimpleClientHttpRequestFactory;
 import org.springframework.web.client.RestOperations;
 import org.springframework.web.client.RestTemplate;
 
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static net.dialogue.toolkit.sms.SendSmsClient.Builder.*;
+
 public class TestClient {
 
     @Test
@@ -64,6 +77,66 @@ public class TestClient {
         assertEquals(client.getPassword(), "pass456");
     }
 
+    @Test
+    public void headers() throws Exception {
+
+        SendSmsClient client = new SendSmsClient();
+        client.setUserName("user123");
+        client.setPassword("pass456");
+
+        HttpHeaders headers = client.createHeaders();
+        assertEquals(MediaType.APPLICATION_XML, headers.getContentType());
+        assertEquals("Basic dXNlcjEyMzpwYXNzNDU2", headers.getFirst("Authorization"));
+
+        // Reused until the credentials change
+        assertEquals(headers, client.createHeaders());
+        client.setPassword("pass789");
+        assertEquals("Basic dXNlcjEyMzpwYXNzNzg5", client.createHeaders().getFirst("Authorization"));
+
+        // Non-ASCII credentials are encoded as UTF-8
+        client.setPassword("p\u00e4ss");
+        assertEquals("Basic dXNlcjEyMzpww6Rzcw==", client.createHeaders().getFirst("Authorization"));
+    }
+
+    @Test
+    public void headers_copy() throws Exception {
+        SendSmsClient client = new SendSmsClient();
+        client.setUserName("user123");
+        client.setPassword("pass456");
+
+        // Changing the returned headers does not affect later submissions
+        HttpHeaders headers = client.createHeaders();
+        headers.add("Authorization", "Basic");
+        headers.set("X-Custom", "value");
+        assertNotSame(headers, client.createHeaders());
+        assertEquals(Arrays.asList("Basic dXNlcjEyMzpwYXNzNDU2"), client.createHeaders().get("Authorization"));
+        assertNull(client.createHeaders().getFirst("X-Custom"));
+    }
+
+    @Test
+    public void credentialsProvider() throws Exception {
+
+        final Credentials[] credentials = {new Credentials("user123", "pass456")};
+        SendSmsClient client = new SendSmsClient();
+        assertNull(client.getCredentialsProvider());
+
+        CredentialsProvider provider = new CredentialsProvider() {
+            public Credentials getCredentials() {
+                return credentials[0];
+            }
+        };
+        client.setCredentialsProvider(provider);
+        assertSame(provider, client.getCredentialsProvider());
+
+        HttpHeaders headers = client.createHeaders();
+        assertEquals("Basic dXNlcjEyMzpwYXNzNDU2", headers.getFirst("Authorization"));
+        assertEquals(headers, client.createHeaders());
+
+        // Rotated credentials take effect on the next submission
+        credentials[0] = new Credentials("user123", "pass789");
+        assertEquals("Basic dXNlcjEyMzpwYXNzNzg5", client.createHeaders().getFirst("Authorization"));
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void userName_null() throws Exception {
         SendSmsClient client = new SendSmsClient();
@@ -131,4 +204,151 @@ public class TestClient {
         SendSmsClient client = new SendSmsClient();
         client.setPath("mypath");
     }
+
+    @Test
+    public void sendSms_listener_mock() throws Exception {
+        SendSmsClient client = new SendSmsClient(new MockRestTemplate.SucceededMockRestTemplate());
+        final List<Sms> received = new ArrayList<Sms>();
+        client.sendSms(new SendSmsRequest(Arrays.asList("message", "message2"), Arrays.asList("1", "2", "3")),
+                new SmsListener() {
+                    public void onSms(Sms sms) {
+                        received.add(sms);
+                    }
+                });
+        assertEquals(6, received.size());
+        assertEquals("3", received.get(2).getRecipient());
+        assertTrue(received.get(2).isSuccessful());
+
+        client = new SendSmsClient(new MockRestTemplate.FailingMockRestTemplate());
+        received.clear();
+        client.sendSms(new SendSmsRequest("message", "1"),
+                new SmsListener() {
+                    public void onSms(Sms sms) {
+                        received.add(sms);
+                    }
+                });
+        assertEquals(1, received.size());
+        assertFalse(received.get(0).isSuccessful());
+    }
+
+    @Test
+    public void sendSms_listener_transports() throws Exception {
+        StubServer server = new StubServer();
+        try {
+            for (ClientHttpRequestFactory transport : Arrays.asList(
+                    TRANSPORT_SIMPLE_CLIENT, TRANSPORT_SIMPLE_STREAMING_CLIENT,
+                    TRANSPORT_COMMONS_CLIENT, TRANSPORT_HTTP_COMPONENTS_CLIENT)) {
+                SendSmsClient client = new SendSmsClient.Builder()
+                        .transport(transport)
+                        .endpoint(server.getEndpoint())
+                        .credentials("user123", "pass456")
+                        .secure(false)
+                        .build();
+
+                List<String> recipients = new ArrayList<String>();
+                for (int n = 0; n < 500; n++) {
+                    recipients.add("4479" + n);
+                }
+
+                final List<Sms> received = new ArrayList<Sms>();
+                client.sendSms(new SendSmsRequest("message", recipients), new SmsListener() {
+                    public void onSms(Sms sms) {
+                        received.add(sms);
+                    }
+                });
+                assertEquals(recipients.size(), received.size());
+                for (int n = 0; n < recipients.size(); n++) {
+                    assertEquals(recipients.get(n), received.get(n).getRecipient());
+                    assertTrue(received.get(n).isSuccessful());
+                }
+                assertEquals(new SendSmsRequest("message", recipients).toString(), server.getLastRequest());
+                // The request is marshalled while it is written, so a streaming transport sends it chunked
+                assertEquals(transport == TRANSPORT_SIMPLE_STREAMING_CLIENT, server.isLastChunked());
+
+                // Same result as the non-streaming call
+                assertEquals(recipients.size(),
+                        client.sendSms(new SendSmsRequest("message", recipients)).getMessages().size());
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void pooledTransport_reuse() throws Exception {
+        StubServer server = new StubServer();
+        SendSmsClient client = new SendSmsClient.Builder()
+                .maxConnections(10, 3)
+                .endpoint(server.getEndpoint())
+                .credentials("user123", "pass456")
+                .secure(false)
+                .build();
+        try {
+            // Consecutive submissions reuse a single connection
+            for (int n = 0; n < 20; n++) {
+                assertTrue(client.sendSms(new SendSmsRequest("message", "recipient")).getMessages().get(0).isSuccessful());
+            }
+            assertEquals(20, server.getRequests());
+            assertEquals(1, server.getConnections());
+
+            // Concurrent submissions never open more connections than allowed per route
+            server.setDelay(20);
+            AsyncSendSmsClient asyncClient = new AsyncSendSmsClient(client, 10);
+            List<java.util.concurrent.Future<SendSmsResponse>> futures =
+                    new ArrayList<java.util.concurrent.Future<SendSmsResponse>>();
+            for (int n = 0; n < 50; n++) {
+                futures.add(asyncClient.sendSms(new SendSmsRequest("message", "recipient")));
+            }
+            for (java.util.concurrent.Future<SendSmsResponse> future : futures) {
+                assertTrue(future.get().getMessages().get(0).isSuccessful());
+            }
+            asyncClient.shutdown();
+            assertEquals(70, server.getRequests());
+            assertTrue(server.getConnections() <= 3);
+        } finally {
+            client.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void pooledTransport_tlsSessionReuse() throws Exception {
+        StubServer server = new StubServer(true, new String[]{"TLSv1.2"});
+        server.setKeepAlive(false);
+        PooledClientHttpRequestFactory transport = new PooledClientHttpRequestFactory(StubCertificate.getClientContext());
+        SendSmsClient client = new SendSmsClient.Builder()
+                .transport(transport)
+                .endpoint(server.getEndpoint().replace("127.0.0.1", "localhost"))
+                .credentials("user123", "pass456")
+                .build();
+        try {
+            // Every submission opens a new connection, which resumes the TLS session of the first one
+            for (int n = 0; n < 3; n++) {
+                assertTrue(client.sendSms(new SendSmsRequest("message", "recipient")).getMessages().get(0).isSuccessful());
+            }
+            assertEquals(3, server.getConnections());
+            assertEquals(1, server.getSessions());
+        } finally {
+            transport.destroy();
+            server.close();
+        }
+    }
+
+    @Test
+    public void close() throws Exception {
+        SendSmsClient client = new SendSmsClient.Builder()
+                .pooledTransport()
+                .build();
+        PooledClientHttpRequestFactory transport = (PooledClientHttpRequestFactory)
+                ((RestTemplate) client.getRestOperations()).getRequestFactory();
+        client.close();
+
+        try {
+            transport.getConnectionManager().requestConnection(new HttpRoute(new HttpHost("localhost")), null)
+                    .getConnection(1, TimeUnit.SECONDS);
+            fail();
+        } catch (IllegalStateException e) {
+            // Shut down
+        }
+    }
 }
@@ -0,0 +1,157 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Date;
+
+import static net.dialogue.toolkit.sms.SendSmsClient.Builder.TRANSPORT_SIMPLE_STREAMING_CLIENT;
+import static org.junit.Assert.*;
+
+public class TestCompactRequest {
+
+    private static CompactSendSmsRequest newRequest() {
+        CompactSendSmsRequest request = new CompactSendSmsRequest(
+                Arrays.asList("message", "\u20ac & <>"), Arrays.asList("447700900000", "447700900001"));
+        request.setProperty("X-E3-Custom", "custom");
+        request.setValidityPeriod(2 * 60 * 60 * 1000L);
+        request.setUserTag("tag");
+        request.setSessionId("session");
+        request.setSessionReplyPath("http://localhost/session");
+        request.setUserKey("key");
+        request.setReplyPath("http://localhost/reply");
+        request.setConfirmDelivery(true);
+        request.setScheduleFor(new Date(1330000000000L));
+        request.setConcatenationLimit(3);
+        request.setSender("sender");
+        return request;
+    }
+
+    @Test
+    public void properties() {
+        CompactSendSmsRequest request = newRequest();
+        assertEquals("sender", request.getSender());
+        assertEquals(Integer.valueOf(3), request.getConcatenationLimit());
+        assertEquals(new Date(1330000000000L), request.getScheduleFor());
+        assertEquals(Boolean.TRUE, request.getConfirmDelivery());
+        assertEquals("http://localhost/reply", request.getReplyPath());
+        assertEquals("key", request.getUserKey());
+        assertEquals("http://localhost/session", request.getSessionReplyPath());
+        assertEquals("session", request.getSessionId());
+        assertEquals("tag", request.getUserTag());
+        assertEquals(Long.valueOf(2 * 60 * 60 * 1000L), request.getValidityPeriod());
+        assertEquals("custom", request.getProperty("X-E3-Custom"));
+
+        request.setConcatenationLimit(null);
+        request.setScheduleFor(null);
+        request.setConfirmDelivery(null);
+        request.setValidityPeriod(null);
+        request.setProperty("X-E3-Custom", null);
+        assertNull(request.getConcatenationLimit());
+        assertNull(request.getScheduleFor());
+        assertNull(request.getConfirmDelivery());
+        assertNull(request.getValidityPeriod());
+        assertNull(request.getProperty("X-E3-Custom"));
+    }
+
+    @Test
+    public void sameXmlAsSendSmsRequest() throws Exception {
+        CompactSendSmsRequest request = newRequest();
+        SendSmsRequest converted = request.toSendSmsRequest();
+        assertEquals(request.getMessages(), converted.getMessages());
+        assertEquals(request.getRecipients(), converted.getRecipients());
+        assertEquals(request.getScheduleFor(), converted.getScheduleFor());
+        assertEquals(request.getValidityPeriod(), converted.getValidityPeriod());
+        assertEquals("custom", converted.get("X-E3-Custom"));
+        assertEquals(converted.toString(), request.toString());
+
+        // The same properties set on a SendSmsRequest in the order they are written
+        SendSmsRequest expected = new SendSmsRequest(request.getMessages(), request.getRecipients());
+        expected.setSender("sender");
+        expected.setConcatenationLimit(3);
+        expected.setScheduleFor(new Date(1330000000000L));
+        expected.setConfirmDelivery(true);
+        expected.setReplyPath("http://localhost/reply");
+        expected.setUserKey("key");
+        expected.setSessionReplyPath("http://localhost/session");
+        expected.setSessionId("session");
+        expected.setUserTag("tag");
+        expected.setValidityPeriod(2 * 60 * 60 * 1000L);
+        expected.put("X-E3-Custom", "custom");
+        assertEquals(expected.toString(), request.toString());
+
+        Marshaller marshaller = new Marshaller();
+        marshaller.setEncoding("ISO-8859-1");
+        StringWriter expectedXml = new StringWriter();
+        marshaller.marshalWriter(expected, expectedXml);
+        StringWriter actualXml = new StringWriter();
+        marshaller.marshalWriter(request, actualXml);
+        assertEquals(expectedXml.toString(), actualXml.toString());
+    }
+
+    @Test
+    public void otherProperties() {
+        CompactSendSmsRequest request = new CompactSendSmsRequest("message", "447700900000");
+        request.setProperty("X-E3-A", "1");
+        request.setProperty("X-E3-B", "2");
+        request.setProperty("X-E3-C", "3");
+        request.setProperty("X-E3-A", "4");
+        request.setProperty("X-E3-B", null);
+
+        SendSmsRequest expected = new SendSmsRequest("message", "447700900000");
+        expected.put("X-E3-A", "4");
+        expected.put("X-E3-C", "3");
+        assertEquals(expected.toString(), request.toString());
+        assertEquals(expected, request.toSendSmsRequest());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void typedProperty() {
+        new CompactSendSmsRequest("message", "447700900000").setProperty("X-E3-User-Key", "key");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noRecipient() {
+        new CompactSendSmsRequest("message", "");
+    }
+
+    @Test
+    public void serialized() throws Exception {
+        CompactSendSmsRequest request = newRequest();
+        SerializedSendSmsRequest serialized = new SerializedSendSmsRequest(request);
+        assertEquals(request.toString(), serialized.toString());
+        assertEquals(request.toSendSmsRequest(), serialized.getRequest());
+        assertSame(serialized.getRequest(), serialized.getRequest());
+    }
+
+    @Test
+    public void sendSms() throws Exception {
+        StubServer server = new StubServer();
+        try {
+            SendSmsClient client = new SendSmsClient.Builder()
+                    .transport(TRANSPORT_SIMPLE_STREAMING_CLIENT)
+                    .endpoint(server.getEndpoint())
+                    .credentials("user123", "pass456")
+                    .secure(false)
+                    .build();
+
+            CompactSendSmsRequest request = new CompactSendSmsRequest(
+                    Arrays.asList("message"), Arrays.asList("447700900000", "447700900001"));
+            request.setUserTag("tag");
+            SerializedSendSmsRequest serialized = new SerializedSendSmsRequest(request);
+            SendSmsResponse response = client.sendSms(serialized);
+            assertEquals(2, response.getMessages().size());
+            assertTrue(response.getMessages().get(0).isSuccessful());
+            assertEquals(request.toString(), server.getLastRequest());
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestCorrelationIndex {
+
+    private static class RecordingListener implements CorrelationListener {
+
+        final List<SmsReport> reports = new ArrayList<SmsReport>();
+        final List<Integer> tags = new ArrayList<Integer>();
+        final List<State> expired = new ArrayList<State>();
+
+        public void onFinalState(int tag, long submitTime, SmsReport report) {
+            tags.add(tag);
+            reports.add(report);
+        }
+
+        public void onExpired(int tag, long submitTime, State state) {
+            tags.add(tag);
+            expired.add(state);
+        }
+    }
+
+    private static SmsReport report(String id, String deliveryReport) {
+        SmsReport report = new SmsReport();
+        report.setId(id);
+        report.setDeliveryReport(deliveryReport);
+        return report;
+    }
+
+    private static Sms sms(String id) {
+        Sms sms = new Sms();
+        sms.setId(id);
+        sms.setSubmissionReport("00");
+        return sms;
+    }
+
+    @Test
+    public void finalState() {
+        RecordingListener listener = new RecordingListener();
+        CorrelationIndex index = new CorrelationIndex(1000, CorrelationIndex.DEFAULT_TTL, listener);
+        assertTrue(index.record(sms("id1"), 7));
+        assertTrue(index.record(sms("id2"), 8));
+        assertFalse(index.record(new Sms(), 9));
+        assertEquals(2, index.size());
+        assertEquals(State.Undefined, index.getState("id1"));
+        assertTrue(index.getSubmitTime("id1") > 0);
+
+        // Temporary errors are recorded but not final
+        assertTrue(index.onReport(report("id1", "20")));
+        assertEquals(State.TemporaryError, index.getState("id1"));
+        assertTrue(listener.reports.isEmpty());
+
+        SmsReport delivered = report("id1", "00");
+        assertTrue(index.onReport(delivered));
+        assertEquals(1, listener.reports.size());
+        assertSame(delivered, listener.reports.get(0));
+        assertEquals(Integer.valueOf(7), listener.tags.get(0));
+        assertNull(index.getState("id1"));
+        assertEquals(-1L, index.getSubmitTime("id1"));
+        assertEquals(1, index.size());
+
+        // Unknown and repeated reports
+        assertFalse(index.onReport(report("id1", "00")));
+        assertFalse(index.onReport(report("unknown", "00")));
+        assertTrue(index.onReport(report("id2", "40")));
+        assertEquals(Integer.valueOf(8), listener.tags.get(1));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void expire() {
+        RecordingListener listener = new RecordingListener();
+        CorrelationIndex index = new CorrelationIndex(1000, 1000, listener);
+        long now = System.currentTimeMillis();
+        index.record("old", 1, now - 2000);
+        index.record("old2", 2, now - 2000);
+        index.record("new", 3, now);
+        index.onReport(report("old2", "20"));
+
+        assertEquals(2, index.expire());
+        assertEquals(2, listener.expired.size());
+        assertTrue(listener.expired.contains(State.TemporaryError));
+        assertTrue(listener.expired.contains(State.Undefined));
+        assertEquals(1, index.size());
+        assertEquals(State.Undefined, index.getState("new"));
+    }
+
+    @Test
+    public void full() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        CorrelationIndex index = new CorrelationIndex(64, 1000, listener);
+        long submitTime = System.currentTimeMillis() - 800;
+        int recorded = 0;
+        for (int n = 0; n < 10000; n++) {
+            if (index.record("id" + n, n, submitTime))
+                recorded++;
+        }
+        assertTrue(recorded >= 64);
+        assertTrue(recorded < 10000);
+        assertEquals(recorded, index.size());
+        assertTrue(listener.expired.isEmpty());
+
+        // Expired messages make room for new ones
+        Thread.sleep(300);
+        for (int n = 0; n < 100; n++) {
+            assertTrue(index.record("new" + n, n, System.currentTimeMillis()));
+        }
+        assertFalse(listener.expired.isEmpty());
+    }
+
+    @Test
+    public void manyMessages() {
+        RecordingListener listener = new RecordingListener();
+        CorrelationIndex index = new CorrelationIndex(100000, CorrelationIndex.DEFAULT_TTL, listener);
+        long now = System.currentTimeMillis();
+        for (int n = 0; n < 100000; n++) {
+            assertTrue(index.record("id" + n, n, now));
+        }
+        assertEquals(100000, index.size());
+
+        // Removing entries must keep all others reachable
+        for (int n = 0; n < 100000; n += 2) {
+            assertTrue(index.onReport(report("id" + n, "00")));
+        }
+        for (int n = 1; n < 100000; n += 2) {
+            assertEquals(State.Undefined, index.getState("id" + n));
+        }
+        for (int n = 0; n < 100000; n += 2) {
+            assertNull(index.getState("id" + n));
+        }
+        assertEquals(50000, index.size());
+        assertEquals(50000, listener.reports.size());
+    }
+
+    @Test
+    public void file() throws Exception {
+        File file = File.createTempFile("correlation", ".idx");
+        try {
+            RecordingListener listener = new RecordingListener();
+            CorrelationIndex index = new CorrelationIndex(1000, CorrelationIndex.DEFAULT_TTL, listener, file);
+            try {
+                assertTrue(file.length() > 0);
+                assertTrue(index.record(sms("id1"), 7));
+                assertTrue(index.onReport(report("id1", "00")));
+                assertEquals(1, listener.reports.size());
+            } finally {
+                index.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullListener() {
+        new CorrelationIndex(1000, CorrelationIndex.DEFAULT_TTL, null);
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import org.junit.Test;
+import org.springframework.web.client.HttpClientErrorException;
+
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.util.Arrays;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.*;
+
+public class TestDeduplicator {
+
+    private static SendSmsClient client(Deduplicator deduplicator) {
+        SendSmsClient client = new SendSmsClient();
+        client.setRestOperations(new MockRestTemplate.SucceededMockRestTemplate());
+        client.setDeduplicator(deduplicator);
+        return client;
+    }
+
+    @Test
+    public void register() {
+        Deduplicator deduplicator = new Deduplicator(1000, Deduplicator.DEFAULT_WINDOW);
+        assertEquals(1024, deduplicator.getCapacity());
+        assertTrue(deduplicator.register("key", "447700900000"));
+        assertFalse(deduplicator.register("key", "447700900000"));
+        assertTrue(deduplicator.register("key", "447700900001"));
+        assertTrue(deduplicator.register("key2", "447700900000"));
+        assertTrue(deduplicator.contains("key", "447700900000"));
+
+        deduplicator.forget("key", "447700900000");
+        assertFalse(deduplicator.contains("key", "447700900000"));
+        assertTrue(deduplicator.register("key", "447700900000"));
+    }
+
+    @Test
+    public void window() throws Exception {
+        Deduplicator deduplicator = new Deduplicator(16, 50);
+        assertTrue(deduplicator.register("key", "447700900000"));
+        assertFalse(deduplicator.register("key", "447700900000"));
+        Thread.sleep(100);
+        assertFalse(deduplicator.contains("key", "447700900000"));
+        assertTrue(deduplicator.register("key", "447700900000"));
+    }
+
+    @Test
+    public void bounded() {
+        // Far more pairs than entries; the table evicts the oldest and keeps the most recent ones
+        Deduplicator deduplicator = new Deduplicator(64, Deduplicator.DEFAULT_WINDOW);
+        for (int n = 0; n < 10000; n++) {
+            assertTrue(deduplicator.register("key", String.valueOf(n)));
+        }
+        assertTrue(deduplicator.contains("key", "9999"));
+        assertTrue(deduplicator.register("key", "0"));
+    }
+
+    @Test
+    public void deriveUserKey() {
+        Deduplicator deduplicator = new Deduplicator(16, Deduplicator.DEFAULT_WINDOW);
+        SendSmsRequest request = new SendSmsRequest("message", "447700900000");
+        String key = deduplicator.deriveUserKey(request);
+        assertEquals(16, key.length());
+
+        // Recipients and the user key do not matter
+        SendSmsRequest other = new SendSmsRequest("message", Arrays.asList("447700900001", "447700900002"));
+        other.setUserKey("key");
+        assertEquals(key, deduplicator.deriveUserKey(other));
+
+        other.setSender("sender");
+        assertFalse(key.equals(deduplicator.deriveUserKey(other)));
+        assertFalse(key.equals(deduplicator.deriveUserKey(new SendSmsRequest("message2", "447700900000"))));
+    }
+
+    @Test
+    public void sendSms() throws Exception {
+        SendSmsClient client = client(new Deduplicator(1000, Deduplicator.DEFAULT_WINDOW));
+        SendSmsRequest request = new SendSmsRequest("message", Arrays.asList("447700900000", "447700900001"));
+        assertEquals(2, client.sendSms(request).getMessages().size());
+        String userKey = request.getUserKey();
+        assertNotNull(userKey);
+
+        // The same message to one of the recipients again, as a new request
+        try {
+            client.sendSms(new SendSmsRequest("message", Arrays.asList("447700900002", "447700900001")));
+            fail("DuplicateSubmissionException expected");
+        } catch (DuplicateSubmissionException e) {
+            assertEquals(userKey, e.getUserKey());
+            assertEquals(Arrays.asList("447700900001"), e.getRecipients());
+        }
+
+        // Nothing was registered for the rejected request
+        assertEquals(1, client.sendSms(new SendSmsRequest("message", "447700900002")).getMessages().size());
+
+        // A distinct user key is a new submission
+        request = new SendSmsRequest("message", "447700900000");
+        request.setUserKey("other");
+        assertEquals(1, client.sendSms(request).getMessages().size());
+    }
+
+    @Test
+    public void assignUserKeys() throws Exception {
+        Deduplicator deduplicator = new Deduplicator(16, Deduplicator.DEFAULT_WINDOW);
+        deduplicator.setAssignUserKeys(false);
+        SendSmsClient client = client(deduplicator);
+        SendSmsRequest request = new SendSmsRequest("message", "447700900000");
+        client.sendSms(request);
+        assertNull(request.getUserKey());
+        assertTrue(deduplicator.contains(deduplicator.deriveUserKey(request), "447700900000"));
+    }
+
+    @Test
+    public void rejected() throws Exception {
+        Deduplicator deduplicator = new Deduplicator(16, Deduplicator.DEFAULT_WINDOW);
+        StubServer server = new StubServer();
+        try {
+            server.setStatus(400);
+            SendSmsClient client = new SendSmsClient.Builder()
+                    .endpoint(server.getEndpoint())
+                    .credentials("user123", "pass456")
+                    .secure(false)
+                    .build();
+            client.setDeduplicator(deduplicator);
+            SendSmsRequest request = new SendSmsRequest("message", "447700900000");
+            for (int n = 0; n < 2; n++) {
+                try {
+                    client.sendSms(request);
+                    fail("HttpClientErrorException expected");
+                } catch (HttpClientErrorException e) {
+                    // Rejected requests can be submitted again
+                }
+            }
+            assertFalse(deduplicator.contains(request.getUserKey(), "447700900000"));
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void governorRejected() throws Exception {
+        Deduplicator deduplicator = new Deduplicator(16, Deduplicator.DEFAULT_WINDOW);
+        SendSmsClient client = client(deduplicator);
+        Governor governor = new Governor();
+        governor.setRate(0.001, 1);
+        governor.setBlocking(false);
+        client.setGovernor(governor);
+        client.sendSms(new SendSmsRequest("message", "447700900000"));
+
+        SendSmsRequest request = new SendSmsRequest("message", "447700900001");
+        for (int n = 0; n < 2; n++) {
+            try {
+                client.sendSms(request);
+                fail("RejectedExecutionException expected");
+            } catch (RejectedExecutionException e) {
+                // Rejected before sending, so it can be submitted again
+            }
+        }
+        assertFalse(deduplicator.contains(request.getUserKey(), "447700900001"));
+    }
+
+    @Test
+    public void governorInterrupted() throws Exception {
+        Deduplicator deduplicator = new Deduplicator(16, Deduplicator.DEFAULT_WINDOW);
+        SendSmsClient client = client(deduplicator);
+        Governor governor = new Governor();
+        governor.setRate(0.001, 1);
+        client.setGovernor(governor);
+        client.sendSms(new SendSmsRequest("message", "447700900000"));
+
+        SendSmsRequest request = new SendSmsRequest("message", "447700900001");
+        Thread.currentThread().interrupt();
+        try {
+            client.sendSms(request);
+            fail("InterruptedIOException expected");
+        } catch (InterruptedIOException e) {
+            assertTrue(Thread.interrupted());
+        }
+        assertFalse(deduplicator.contains(request.getUserKey(), "447700900001"));
+    }
+
+    @Test
+    public void connectFailure() throws Exception {
+        Deduplicator deduplicator = new Deduplicator(16, Deduplicator.DEFAULT_WINDOW);
+        SendSmsClient client = new SendSmsClient.Builder()
+                .endpoint("127.0.0.1:1")
+                .credentials("user123", "pass456")
+                .secure(false)
+                .build();
+        client.setDeduplicator(deduplicator);
+        SendSmsRequest request = new SendSmsRequest("message", "447700900000");
+        for (int n = 0; n < 2; n++) {
+            try {
+                client.sendSms(request);
+                fail("ConnectException expected");
+            } catch (ConnectException e) {
+                // Never reached the endpoint, so it can be submitted again
+            }
+        }
+        assertFalse(deduplicator.contains(request.getUserKey(), "447700900000"));
+    }
+
+    @Test
+    public void serialized() throws Exception {
+        SendSmsClient client = client(new Deduplicator(16, Deduplicator.DEFAULT_WINDOW));
+        SendSmsRequest request = new SendSmsRequest("message", "447700900000");
+        try {
+            client.sendSms(new SerializedSendSmsRequest(request));
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // The body would go out without the user key
+        }
+
+        client.assignUserKey(request);
+        assertNotNull(request.getUserKey());
+        SerializedSendSmsRequest serialized = new SerializedSendSmsRequest(request);
+        assertTrue(serialized.toString().contains(request.getUserKey()));
+        assertEquals(1, client.sendSms(serialized).getMessages().size());
+    }
+
+    @Test
+    public void confirm() {
+        Deduplicator deduplicator = new Deduplicator(16, Deduplicator.DEFAULT_WINDOW);
+        assertTrue(deduplicator.register("key", "447700900000"));
+        assertFalse(deduplicator.isConfirmed("key", "447700900000"));
+
+        SmsReport report = new SmsReport();
+        report.setUserKey("key");
+        report.setRecipient("447700900000");
+        assertTrue(deduplicator.confirm(report));
+        assertTrue(deduplicator.isConfirmed("key", "447700900000"));
+        assertTrue(deduplicator.contains("key", "447700900000"));
+
+        // Reports of pairs not registered, e.g. after a restart
+        report.setRecipient("447700900001");
+        assertTrue(deduplicator.confirm(report));
+        assertTrue(deduplicator.isConfirmed("key", "447700900001"));
+        assertFalse(deduplicator.register("key", "447700900001"));
+
+        assertFalse(deduplicator.confirm(new SmsReport()));
+    }
+}
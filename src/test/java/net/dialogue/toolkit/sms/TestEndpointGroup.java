@@ -0,0 +1,249 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import org.springframework.web.client.HttpServerErrorException;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class TestEndpointGroup {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void endpoints_null() throws Exception {
+        new EndpointGroup((String) null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void endpoints_empty() throws Exception {
+        new EndpointGroup("a,,b");
+    }
+
+    @Test
+    public void endpoints() throws Exception {
+        EndpointGroup group = new EndpointGroup(" a , b ");
+        assertEquals(2, group.getEndpoints().size());
+        assertEquals("a", group.getEndpoints().get(0).getHost());
+        assertEquals("b", group.getEndpoints().get(1).getHost());
+    }
+
+    @Test
+    public void roundRobin() throws Exception {
+        StubServer server1 = new StubServer();
+        StubServer server2 = new StubServer();
+        try {
+            SendSmsClient client = createClient(new EndpointGroup(
+                    server1.getEndpoint() + "," + server2.getEndpoint()));
+            for (int n = 0; n < 10; n++) {
+                assertTrue(client.sendSms(new SendSmsRequest("message", "recipient")).getMessages().get(0).isSuccessful());
+            }
+            assertEquals(5, server1.getRequests());
+            assertEquals(5, server2.getRequests());
+        } finally {
+            server1.close();
+            server2.close();
+        }
+    }
+
+    @Test
+    public void leastOutstanding() throws Exception {
+        StubServer slow = new StubServer();
+        StubServer fast = new StubServer();
+        slow.setDelay(500);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            EndpointGroup group = new EndpointGroup(slow.getEndpoint() + "," + fast.getEndpoint());
+            group.setStrategy(EndpointGroup.Strategy.LEAST_OUTSTANDING);
+            final SendSmsClient client = createClient(group);
+
+            List<Future<SendSmsResponse>> futures = new ArrayList<Future<SendSmsResponse>>();
+            for (int n = 0; n < 20; n++) {
+                futures.add(executor.submit(new java.util.concurrent.Callable<SendSmsResponse>() {
+                    public SendSmsResponse call() throws Exception {
+                        return client.sendSms(new SendSmsRequest("message", "recipient"));
+                    }
+                }));
+            }
+            for (Future<SendSmsResponse> future : futures) {
+                future.get();
+            }
+
+            // The slow endpoint is busy most of the time
+            assertTrue(slow.getRequests() < 5);
+            assertEquals(20, slow.getRequests() + fast.getRequests());
+        } finally {
+            executor.shutdown();
+            slow.close();
+            fast.close();
+        }
+    }
+
+    @Test
+    public void latencyWeighted() throws Exception {
+        StubServer slow = new StubServer();
+        StubServer fast = new StubServer();
+        slow.setDelay(100);
+        try {
+            EndpointGroup group = new EndpointGroup(slow.getEndpoint() + "," + fast.getEndpoint());
+            group.setStrategy(EndpointGroup.Strategy.LATENCY_WEIGHTED);
+            SendSmsClient client = createClient(group);
+            for (int n = 0; n < 40; n++) {
+                client.sendSms(new SendSmsRequest("message", "recipient"));
+            }
+
+            assertTrue(group.getEndpoints().get(0).getLatency() > group.getEndpoints().get(1).getLatency());
+            assertTrue(slow.getRequests() < fast.getRequests());
+        } finally {
+            slow.close();
+            fast.close();
+        }
+    }
+
+    @Test
+    public void failover() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        String down = "127.0.0.1:" + socket.getLocalPort();
+        socket.close();
+
+        StubServer server = new StubServer();
+        try {
+            EndpointGroup group = new EndpointGroup(down + "," + server.getEndpoint());
+            group.setFailureThreshold(2);
+            SendSmsClient client = createClient(group);
+            for (int n = 0; n < 10; n++) {
+                assertTrue(client.sendSms(new SendSmsRequest("message", "recipient")).getMessages().get(0).isSuccessful());
+            }
+
+            assertEquals(10, server.getRequests());
+            EndpointGroup.Endpoint endpoint = group.getEndpoints().get(0);
+            assertFalse(endpoint.isAvailable());
+            assertEquals(2, endpoint.getFailures());
+            assertTrue(group.getEndpoints().get(1).isAvailable());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void allDown() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        String down = "127.0.0.1:" + socket.getLocalPort();
+        socket.close();
+
+        SendSmsClient client = createClient(new EndpointGroup(down + "," + down));
+        try {
+            client.sendSms(new SendSmsRequest("message", "recipient"));
+            fail();
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void serverError() throws Exception {
+        StubServer failing = new StubServer();
+        StubServer server = new StubServer();
+        failing.setStatus(503);
+        try {
+            EndpointGroup group = new EndpointGroup(failing.getEndpoint() + "," + server.getEndpoint());
+            group.setFailureThreshold(1);
+            SendSmsClient client = createClient(group);
+
+            // Server errors are not retried on another endpoint, but eject the endpoint
+            try {
+                client.sendSms(new SendSmsRequest("message", "recipient"));
+                fail();
+            } catch (HttpServerErrorException e) {
+                // Expected
+            }
+            assertFalse(group.getEndpoints().get(0).isAvailable());
+
+            for (int n = 0; n < 5; n++) {
+                client.sendSms(new SendSmsRequest("message", "recipient"));
+            }
+            assertEquals(1, failing.getRequests());
+            assertEquals(5, server.getRequests());
+        } finally {
+            failing.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void halfOpen() throws Exception {
+        EndpointGroup group = new EndpointGroup("a,b");
+        group.setFailureThreshold(1);
+        group.setEjectionTime(100);
+        EndpointGroup.Endpoint a = group.getEndpoints().get(0);
+        EndpointGroup.Endpoint b = group.getEndpoints().get(1);
+
+        // Still in progress on the endpoint while it is ejected and probed
+        EndpointGroup.Lease earlier = group.acquire(null);
+        assertSame(a, earlier.endpoint);
+        assertSame(b, group.acquire(null).endpoint);
+
+        EndpointGroup.Lease lease = group.acquire(null);
+        assertSame(a, lease.endpoint);
+        group.release(lease, false, 0);
+        assertFalse(a.isAvailable());
+        Thread.sleep(150);
+
+        // A single probe while the ejection has ended
+        EndpointGroup.Lease probe = group.acquire(null);
+        assertSame(a, probe.endpoint);
+        assertTrue(probe.probe);
+        for (int n = 0; n < 4; n++) {
+            lease = group.acquire(null);
+            assertSame(b, lease.endpoint);
+            assertFalse(lease.probe);
+        }
+
+        // Another submission on the endpoint completing does not end the probe
+        assertFalse(earlier.probe);
+        group.release(earlier, false, 0);
+        Thread.sleep(150);
+        for (int n = 0; n < 4; n++) {
+            assertSame(b, group.acquire(null).endpoint);
+        }
+
+        // A failed probe ejects the endpoint once more
+        group.release(probe, false, 0);
+        assertFalse(a.isAvailable());
+        for (int n = 0; n < 4; n++) {
+            assertSame(b, group.acquire(null).endpoint);
+        }
+        Thread.sleep(150);
+
+        // A successful probe makes the endpoint available for all submissions
+        probe = group.acquire(null);
+        assertSame(a, probe.endpoint);
+        group.release(probe, true, 1000);
+        assertEquals(0, a.getFailures());
+        int selected = 0;
+        for (int n = 0; n < 4; n++) {
+            if (group.acquire(null).endpoint == a)
+                selected++;
+        }
+        assertEquals(2, selected);
+    }
+
+    private static SendSmsClient createClient(EndpointGroup group) {
+        return new SendSmsClient.Builder()
+                .endpoints(group)
+                .credentials("user123", "pass456")
+                .secure(false)
+                .build();
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+public class TestGovernor {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rate_invalid() throws Exception {
+        new Governor().setRate(-1, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maxInFlight_invalid() throws Exception {
+        new Governor().setMaxInFlight(-1);
+    }
+
+    @Test
+    public void cost() throws Exception {
+        assertEquals(1, Governor.getCost(new SendSmsRequest("message", "recipient")));
+        assertEquals(6, Governor.getCost(new SendSmsRequest(
+                Arrays.asList("message", "message2"), Arrays.asList("a", "b", "c"))));
+    }
+
+    @Test
+    public void tryAcquire_burst() throws Exception {
+        Governor governor = new Governor();
+        governor.setRate(10, 5);
+
+        for (int n = 0; n < 5; n++) {
+            assertTrue(governor.tryAcquire(1));
+            governor.release();
+        }
+        assertFalse(governor.tryAcquire(1));
+
+        // One token every 100ms
+        Thread.sleep(250);
+        assertTrue(governor.tryAcquire(2));
+        governor.release();
+        assertFalse(governor.tryAcquire(1));
+    }
+
+    @Test
+    public void tryAcquire_cost_above_burst() throws Exception {
+        Governor governor = new Governor();
+        governor.setRate(10, 5);
+
+        assertTrue(governor.tryAcquire(20));
+        governor.release();
+        assertFalse(governor.tryAcquire(1));
+    }
+
+    @Test
+    public void acquire_rate() throws Exception {
+        Governor governor = new Governor();
+        governor.setRate(100, 10);
+
+        // 10 at once, 50 more at 10ms each
+        long start = System.currentTimeMillis();
+        for (int n = 0; n < 60; n++) {
+            governor.acquire(1);
+            governor.release();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("Elapsed " + elapsed + "ms", elapsed >= 450 && elapsed < 2000);
+    }
+
+    @Test
+    public void acquire_rateBeforeInFlight() throws Exception {
+        final Governor governor = new Governor();
+        governor.setRate(10, 1);
+        governor.setMaxInFlight(1);
+        governor.acquire(1);
+
+        // Waits 900ms for 10 tokens while the only in-flight permit is held for 500ms
+        long start = System.currentTimeMillis();
+        Thread releaser = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    // Release right away
+                }
+                governor.release();
+            }
+        };
+        releaser.start();
+        governor.acquire(10);
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("Elapsed " + elapsed + "ms", elapsed >= 800 && elapsed < 1300);
+        governor.release();
+    }
+
+    @Test
+    public void maxInFlight_resize() throws Exception {
+        Governor governor = new Governor();
+        governor.setMaxInFlight(2);
+        assertTrue(governor.tryAcquire(1));
+        assertTrue(governor.tryAcquire(1));
+        assertFalse(governor.tryAcquire(1));
+
+        governor.setMaxInFlight(3);
+        assertTrue(governor.tryAcquire(1));
+        governor.setMaxInFlight(1);
+        governor.release();
+        governor.release();
+        assertFalse(governor.tryAcquire(1));
+        governor.release();
+        assertTrue(governor.tryAcquire(1));
+    }
+
+    @Test
+    public void client_maxInFlight() throws Exception {
+        StubServer server = new StubServer();
+        server.setDelay(50);
+        ExecutorService executor = Executors.newFixedThreadPool(10);
+        try {
+            final SendSmsClient client = new SendSmsClient.Builder()
+                    .endpoint(server.getEndpoint())
+                    .credentials("user123", "pass456")
+                    .secure(false)
+                    .maxInFlight(2)
+                    .build();
+
+            List<Future<SendSmsResponse>> futures = new ArrayList<Future<SendSmsResponse>>();
+            for (int n = 0; n < 20; n++) {
+                futures.add(executor.submit(new Callable<SendSmsResponse>() {
+                    public SendSmsResponse call() throws Exception {
+                        return client.sendSms(new SendSmsRequest("message", "recipient"));
+                    }
+                }));
+            }
+            for (Future<SendSmsResponse> future : futures) {
+                assertTrue(future.get().getMessages().get(0).isSuccessful());
+            }
+
+            assertEquals(20, server.getRequests());
+            assertTrue(server.getMaxConcurrent() <= 2);
+        } finally {
+            executor.shutdown();
+            server.close();
+        }
+    }
+
+    @Test
+    public void client_nonBlocking() throws Exception {
+        SendSmsClient client = new SendSmsClient.Builder()
+                .endpoint("endpoint")
+                .credentials("user123", "pass456")
+                .rateLimit(1, 3)
+                .blocking(false)
+                .build();
+        client.setRestOperations(new MockRestTemplate.SucceededMockRestTemplate());
+
+        client.sendSms(new SendSmsRequest("message", Arrays.asList("a", "b", "c")));
+        try {
+            client.sendSms(new SendSmsRequest("message", "recipient"));
+            fail();
+        } catch (RejectedExecutionException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TestMarshaller {
+
+    @Test
+    public void marshal_simple() throws Exception {
+        SendSmsRequest request = new SendSmsRequest("message", "recipient");
+        assertMarshalledLikeDom(request);
+    }
+
+    @Test
+    public void marshal_properties() throws Exception {
+        SendSmsRequest request = new SendSmsRequest(
+                Arrays.asList("message", "message2"),
+                Arrays.asList("recipient", "recipient2"));
+        request.setSender("sender");
+        request.setConcatenationLimit(3);
+        request.setConfirmDelivery(true);
+        request.setUserKey("1234567890");
+        request.setValidityPeriod(1000L * 60 * 60 * 24 * 7);
+        request.put("X-E3-Custom-Property", "");
+        assertMarshalledLikeDom(request);
+    }
+
+    @Test
+    public void marshal_escaping() throws Exception {
+        SendSmsRequest request = new SendSmsRequest(
+                Arrays.asList(
+                        "a&b<c>d\"e'f ]]> g",
+                        "line\r\nbreak\ttab\u0001\u001f\u007f\u0085",
+                        "\u00fc\u00a0\u20ac\u2028\ud83d\ude00"),
+                "recipient");
+        request.put("X-E3-Custom-Property", "x&y");
+        assertMarshalledLikeDom(request);
+    }
+
+    @Test
+    public void marshal_unmappable() throws Exception {
+        SendSmsRequest request = new SendSmsRequest(
+                Arrays.asList("\u00fc\u00e9 \u20ac\u0394\u2028", "a&b\ud83d\ude00"),
+                "recipient");
+        request.put("X-E3-Custom-Property", "\u03a9");
+        assertMarshalledLikeDom(request, "ISO-8859-1");
+
+        Marshaller marshaller = new Marshaller();
+        marshaller.setEncoding("ISO-8859-1");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        marshaller.marshalOutputStream(request, bytes);
+        String xml = bytes.toString("ISO-8859-1");
+        assertTrue(xml.contains("<X-E3-Message>\u00fc\u00e9 &#8364;&#916;&#8232;</X-E3-Message>"));
+        assertTrue(xml.contains("<X-E3-Custom-Property>&#937;</X-E3-Custom-Property>"));
+    }
+
+    @Test
+    public void marshal_many_recipients() throws Exception {
+        List<String> recipients = new ArrayList<String>();
+        for (int n = 0; n < 1000; n++) {
+            recipients.add("44790000" + n);
+        }
+        assertMarshalledLikeDom(new SendSmsRequest("message", recipients));
+    }
+
+    @Test
+    public void unmarshal_response() throws Exception {
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+                "<sendSmsResponse>" +
+                "<sms X-E3-ID=\"90A9893BC2B645918034F4C358A062CE\" X-E3-Recipients=\"447xxxxxxxxx\" X-E3-Submission-Report=\"00\"/>" +
+                "<sms X-E3-Recipients=\"999\" X-E3-Submission-Report=\"43\" X-E3-Error-Description=\"Not obtainable\"/>" +
+                "</sendSmsResponse>";
+
+        assertUnmarshalledLikeDom(xml);
+
+        SendSmsResponse response = (SendSmsResponse) new Marshaller().unmarshalReader(new StringReader(xml));
+        assertEquals(2, response.getMessages().size());
+
+        Sms sms = response.getMessages().get(0);
+        assertEquals("90A9893BC2B645918034F4C358A062CE", sms.getId());
+        assertEquals("447xxxxxxxxx", sms.getRecipient());
+        assertEquals("00", sms.getSubmissionReport());
+        assertNull(sms.getErrorDescription());
+        assertTrue(sms.isSuccessful());
+
+        sms = response.getMessages().get(1);
+        assertNull(sms.getId());
+        assertEquals("999", sms.getRecipient());
+        assertEquals("43", sms.getSubmissionReport());
+        assertEquals("Not obtainable", sms.getErrorDescription());
+        assertFalse(sms.isSuccessful());
+    }
+
+    @Test
+    public void unmarshal_many_messages() throws Exception {
+        StringBuilder xml = new StringBuilder("<sendSmsResponse>");
+        for (int n = 0; n < 10000; n++) {
+            xml.append("<sms X-E3-ID=\"").append(n).append("\" X-E3-Recipients=\"44790000").append(n)
+                    .append("\" X-E3-Submission-Report=\"00\"/>");
+        }
+        xml.append("</sendSmsResponse>");
+
+        assertUnmarshalledLikeDom(xml.toString());
+    }
+
+    @Test
+    public void unmarshal_wrong_root() throws Exception {
+        String xml = "<error><sms X-E3-ID=\"1\"/></error>";
+
+        assertNull(new Marshaller().unmarshalReader(new StringReader(xml)));
+        assertNull(new Marshaller().unmarshalInputStream(new ByteArrayInputStream(xml.getBytes("UTF-8"))));
+    }
+
+    @Test
+    public void unmarshal_request() throws Exception {
+        SendSmsRequest request = new SendSmsRequest(
+                Arrays.asList("a&b<c>d\"e'f ]]> g", "line\r\nbreak\ttab\u0085", "\u20ac\ud83d\ude00"),
+                Arrays.asList("recipient", "recipient2"));
+        request.setSender("sender");
+        request.setConcatenationLimit(3);
+        request.put("X-E3-Custom-Property", "");
+
+        SerializedSendSmsRequest serialized = new SerializedSendSmsRequest(request);
+        SendSmsRequest unmarshalled = new Marshaller().unmarshalSendSmsRequest(
+                new ByteArrayInputStream(serialized.array(), 0, serialized.getLength()));
+        assertEquals(request.getMessages(), unmarshalled.getMessages());
+        assertEquals(request.getRecipients(), unmarshalled.getRecipients());
+        assertEquals(request, unmarshalled);
+        assertEquals(request.toString(), unmarshalled.toString());
+    }
+
+    @Test(expected = IOException.class)
+    public void unmarshal_request_wrong_root() throws Exception {
+        new Marshaller().unmarshalSendSmsRequest(new ByteArrayInputStream("<sendSmsResponse/>".getBytes("UTF-8")));
+    }
+
+    @Test(expected = IOException.class)
+    public void unmarshal_malformed() throws Exception {
+        new Marshaller().unmarshalReader(new StringReader("<sendSmsResponse><sms"));
+    }
+
+    private static void assertUnmarshalledLikeDom(String xml) throws Exception {
+        Marshaller marshaller = new Marshaller();
+
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new InputSource(new StringReader(xml)));
+        SendSmsResponse expected = (SendSmsResponse) marshaller.unmarshalDomNode(document);
+
+        SendSmsResponse actual = (SendSmsResponse) marshaller.unmarshalInputStream(
+                new ByteArrayInputStream(xml.getBytes("UTF-8")));
+        assertEquals(expected.toString(), actual.toString());
+
+        actual = (SendSmsResponse) marshaller.unmarshalReader(new StringReader(xml));
+        assertEquals(expected.toString(), actual.toString());
+    }
+
+    private static void assertMarshalledLikeDom(SendSmsRequest request) throws Exception {
+        assertMarshalledLikeDom(request, Marshaller.DEFAULT_ENCODING);
+    }
+
+    private static void assertMarshalledLikeDom(SendSmsRequest request, String encoding) throws Exception {
+        Marshaller marshaller = new Marshaller();
+        marshaller.setEncoding(encoding);
+
+        // Reference output of the DOM + Transformer path
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        marshaller.marshalDomNode(request, document);
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        transformer.setOutputProperty(OutputKeys.ENCODING, marshaller.getEncoding());
+
+        ByteArrayOutputStream expectedBytes = new ByteArrayOutputStream();
+        transformer.transform(new DOMSource(document), new StreamResult(expectedBytes));
+        ByteArrayOutputStream actualBytes = new ByteArrayOutputStream();
+        marshaller.marshalOutputStream(request, actualBytes);
+        assertTrue(Arrays.equals(expectedBytes.toByteArray(), actualBytes.toByteArray()));
+
+        StringWriter expectedChars = new StringWriter();
+        transformer.transform(new DOMSource(document), new StreamResult(expectedChars));
+        StringWriter actualChars = new StringWriter();
+        marshaller.marshalWriter(request, actualChars);
+        assertEquals(expectedChars.toString(), actualChars.toString());
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import org.junit.Test;
+
+import static net.dialogue.toolkit.sms.MessageAnalyzer.*;
+import static org.junit.Assert.*;
+
+public class TestMessageAnalyzer {
+
+    private static String repeat(String s, int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.append(s);
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void alphabet() {
+        int basic = 0;
+        int extension = 0;
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            int septets = getSeptets(String.valueOf((char) c));
+            if (septets == 1)
+                basic++;
+            else if (septets == 2)
+                extension++;
+            else
+                assertEquals(-1, septets);
+        }
+        assertEquals(127, basic);
+        assertEquals(10, extension);
+    }
+
+    @Test
+    public void gsm7() {
+        String text = "Hello @\u00a3$\u00a5 \u0394\u03a9 \u00e0\u00fc\u00df";
+        assertEquals(Encoding.GSM7, getEncoding(text));
+        assertEquals(text.length(), getSeptets(text));
+        assertEquals(1, getSegments(text));
+
+        assertEquals(8, getSeptets("\u20ac{}^"));
+        assertEquals(7, getOctets(repeat("a", 8)));
+        assertEquals(140, getOctets(repeat("a", 160)));
+        assertEquals(1, getSegments(""));
+        assertEquals(0, getSeptets(""));
+    }
+
+    @Test
+    public void gsm7Segments() {
+        assertEquals(1, getSegments(repeat("a", 160)));
+        assertEquals(2, getSegments(repeat("a", 161)));
+        assertEquals(2, getSegments(repeat("a", 306)));
+        assertEquals(3, getSegments(repeat("a", 307)));
+        assertEquals(1, getSegments(repeat("\u20ac", 80)));
+        assertEquals(2, getSegments(repeat("\u20ac", 81)));
+
+        // An extension character does not fit into the last septet of a segment
+        assertEquals(2, getSegments(repeat("a", 152) + "\u20ac" + repeat("a", 151)));
+        assertEquals(3, getSegments(repeat("a", 152) + "\u20ac" + repeat("a", 152)));
+    }
+
+    @Test
+    public void ucs2() {
+        String text = "\u0417\u0434\u0440\u0430\u0432\u0441\u0442\u0432\u0443\u0439\u0442\u0435";
+        assertEquals(Encoding.UCS2, getEncoding(text));
+        assertEquals(-1, getSeptets(text));
+        assertEquals(24, getOctets(text));
+
+        // A single character outside the alphabet forces UCS-2
+        assertEquals(Encoding.UCS2, getEncoding(repeat("a", 100) + "`"));
+        assertEquals(2, getSegments(repeat("a", 100) + "`"));
+        assertEquals(1, getSegments(repeat("a", 69) + "\u00e7"));
+
+        assertEquals(1, getSegments(repeat("\u4e2d", 70)));
+        assertEquals(2, getSegments(repeat("\u4e2d", 71)));
+        assertEquals(2, getSegments(repeat("\u4e2d", 134)));
+        assertEquals(3, getSegments(repeat("\u4e2d", 135)));
+
+        // Surrogate pairs are not split
+        assertEquals(2, getSegments(repeat("\u4e2d", 66) + "\ud83d\ude00" + repeat("\u4e2d", 65)));
+        assertEquals(3, getSegments(repeat("\u4e2d", 66) + "\ud83d\ude00" + repeat("\u4e2d", 66)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullMessage() {
+        getSegments(null);
+    }
+
+    @Test
+    public void validateSegments() throws Exception {
+        SendSmsClient client = new SendSmsClient();
+        client.setRestOperations(new MockRestTemplate.SucceededMockRestTemplate());
+        SendSmsRequest request = new SendSmsRequest(repeat("a", 200), "447700900000");
+
+        // Not validated by default
+        assertEquals(1, client.sendSms(request).getMessages().size());
+
+        client.setValidateSegments(true);
+        client.setDeduplicator(new Deduplicator(16, Deduplicator.DEFAULT_WINDOW));
+        request = new SendSmsRequest(repeat("a", 200), "447700900000");
+        try {
+            client.sendSms(request);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("limit of 1"));
+        }
+
+        // Validated before the request is changed
+        assertNull(request.getUserKey());
+
+        request.setConcatenationLimit(2);
+        assertEquals(1, client.sendSms(request).getMessages().size());
+
+        request.setMessage(repeat("\u4e2d", 135));
+        try {
+            client.sendSms(request, new SmsListener() {
+                public void onSms(Sms sms) {
+                    fail("Sent");
+                }
+            });
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("needs 3 segments"));
+        }
+    }
+}
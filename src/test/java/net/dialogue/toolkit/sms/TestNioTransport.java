@@ -0,0 +1,312 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class TestNioTransport {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maxConnections_zero() throws Exception {
+        new NioTransport().setMaxConnections(0);
+    }
+
+    @Test
+    public void keepAlive() throws Exception {
+        StubServer server = new StubServer();
+        NioTransport transport = new NioTransport();
+        try {
+            for (int n = 0; n < 5; n++) {
+                Result result = execute(transport, server.getEndpoint(), false);
+                assertEquals(200, result.status);
+                assertTrue(result.body.contains("sendSmsResponse"));
+            }
+            assertEquals(5, server.getRequests());
+            assertEquals(1, server.getConnections());
+        } finally {
+            transport.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void maxConnections() throws Exception {
+        StubServer server = new StubServer();
+        server.setDelay(100);
+        NioTransport transport = new NioTransport();
+        transport.setMaxConnections(2);
+        try {
+            List<Result> results = new ArrayList<Result>();
+            for (int n = 0; n < 8; n++) {
+                results.add(start(transport, server.getEndpoint(), false));
+            }
+            for (Result result : results) {
+                result.await();
+                assertEquals(200, result.status);
+            }
+            assertEquals(2, server.getMaxConcurrent());
+            assertEquals(2, server.getConnections());
+        } finally {
+            transport.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void chunked() throws Exception {
+        ServerSocket server = respond(false,
+                "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n",
+                "5\r\nhello\r\n",
+                "7;name=value\r\n, world\r\n0\r\n",
+                "Trailer: value\r\n\r\n");
+        NioTransport transport = new NioTransport();
+        try {
+            Result result = execute(transport, "127.0.0.1:" + server.getLocalPort(), false);
+            assertEquals(200, result.status);
+            assertEquals("hello, world", result.body);
+        } finally {
+            transport.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void closeDelimited() throws Exception {
+        ServerSocket server = respond(true,
+                "HTTP/1.0 100 Continue\r\n\r\nHTTP/1.0 202 Accepted\r\n",
+                "\r\npart one, ",
+                "part two");
+        NioTransport transport = new NioTransport();
+        try {
+            Result result = execute(transport, "127.0.0.1:" + server.getLocalPort(), false);
+            assertEquals(202, result.status);
+            assertEquals("Accepted", result.reason);
+            assertEquals("part one, part two", result.body);
+        } finally {
+            transport.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void truncated() throws Exception {
+        ServerSocket server = respond(true, "HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\nshort");
+        NioTransport transport = new NioTransport();
+        try {
+            Result result = execute(transport, "127.0.0.1:" + server.getLocalPort(), false);
+            assertTrue(result.failure instanceof EOFException);
+            assertTrue(result.sent);
+        } finally {
+            transport.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void connectFailure() throws Exception {
+        NioTransport transport = new NioTransport();
+        try {
+            Result result = execute(transport, "127.0.0.1:" + unusedPort(), false);
+            assertTrue(result.failure instanceof ConnectException);
+            assertFalse(result.sent);
+        } finally {
+            transport.close();
+        }
+    }
+
+    @Test
+    public void readTimeout() throws Exception {
+        StubServer server = new StubServer();
+        server.setDelay(2000);
+        NioTransport transport = new NioTransport();
+        transport.setReadTimeout(200);
+        try {
+            long start = System.currentTimeMillis();
+            Result result = execute(transport, server.getEndpoint(), false);
+            assertTrue(result.failure instanceof SocketTimeoutException);
+            assertTrue(result.sent);
+            assertTrue(System.currentTimeMillis() - start < 1500);
+        } finally {
+            transport.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void tls() throws Exception {
+        StubServer server = new StubServer(true);
+        NioTransport transport = new NioTransport();
+        transport.setSslContext(StubCertificate.getClientContext());
+        try {
+            for (int n = 0; n < 3; n++) {
+                Result result = execute(transport, server.getEndpoint(), true);
+                assertNull(result.failure);
+                assertEquals(200, result.status);
+                assertTrue(result.body.contains("sendSmsResponse"));
+            }
+            assertEquals(1, server.getConnections());
+        } finally {
+            transport.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void tls_untrusted() throws Exception {
+        StubServer server = new StubServer(true);
+        NioTransport transport = new NioTransport();
+        try {
+            Result result = execute(transport, server.getEndpoint(), true);
+            assertTrue(result.failure instanceof IOException);
+            assertEquals(0, server.getRequests());
+        } finally {
+            transport.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void matches() throws Exception {
+        assertTrue(NioTransport.matches("127.0.0.1", StubCertificate.getCertificate()));
+        assertTrue(NioTransport.matches("LOCALHOST", StubCertificate.getCertificate()));
+        assertFalse(NioTransport.matches("127.0.0.2", StubCertificate.getCertificate()));
+        assertFalse(NioTransport.matches("example.com", StubCertificate.getCertificate()));
+    }
+
+    @Test
+    public void close() throws Exception {
+        StubServer server = new StubServer();
+        server.setDelay(2000);
+        NioTransport transport = new NioTransport();
+        try {
+            Result result = start(transport, server.getEndpoint(), false);
+            Thread.sleep(200);
+            transport.close();
+            result.await();
+            assertTrue(result.failure instanceof IOException);
+            assertTrue(transport.isClosed());
+
+            try {
+                start(transport, server.getEndpoint(), false);
+                fail();
+            } catch (RejectedExecutionException e) {
+                // Expected
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    private static Result execute(NioTransport transport, String endpoint, boolean secure) throws Exception {
+        Result result = start(transport, endpoint, secure);
+        result.await();
+        return result;
+    }
+
+    private static Result start(NioTransport transport, String endpoint, boolean secure) throws Exception {
+        int colon = endpoint.indexOf(':');
+        Result result = new Result(endpoint.substring(0, colon), Integer.parseInt(endpoint.substring(colon + 1)),
+                secure);
+        transport.execute(result);
+        return result;
+    }
+
+    private static int unusedPort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+
+    /**
+     * Starts a server answering a single request with the given parts, written one after another.
+     */
+    private static ServerSocket respond(final boolean close, final String... parts) throws IOException {
+        final ServerSocket server = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+        Thread thread = new Thread() {
+            public void run() {
+                try {
+                    Socket socket = server.accept();
+                    InputStream in = socket.getInputStream();
+                    OutputStream out = socket.getOutputStream();
+                    // Reads the request of the Result exchange: the head and a body of 4 bytes
+                    String request = "";
+                    while (!request.endsWith("\r\n\r\n")) {
+                        request += (char) in.read();
+                    }
+                    for (int n = 0; n < 4; n++) {
+                        in.read();
+                    }
+                    for (String part : parts) {
+                        out.write(part.getBytes("ISO-8859-1"));
+                        out.flush();
+                        Thread.sleep(50);
+                    }
+                    if (close) {
+                        socket.close();
+                    } else {
+                        while (in.read() != -1) {
+                            // Until the client closes the connection
+                        }
+                    }
+                } catch (Exception e) {
+                    // Closed
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        return server;
+    }
+
+    private static class Result extends NioTransport.Exchange {
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile int status;
+        private volatile String reason;
+        private volatile String body;
+        private volatile IOException failure;
+        private volatile boolean sent;
+
+        Result(String host, int port, boolean secure) throws IOException {
+            super(host, port, secure,
+                    ("POST /submit_sm HTTP/1.1\r\nHost: " + host + ":" + port + "\r\nContent-Length: 4\r\n\r\n")
+                            .getBytes("ISO-8859-1"),
+                    "body".getBytes("ISO-8859-1"), 4);
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        }
+
+        void completed(int status, String reason, byte[] body, int offset, int length) {
+            this.status = status;
+            this.reason = reason;
+            try {
+                this.body = new String(body, offset, length, "ISO-8859-1");
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+            latch.countDown();
+        }
+
+        void failed(IOException e, boolean sent) {
+            this.failure = e;
+            this.sent = sent;
+            latch.countDown();
+        }
+    }
+}
@@ -0,0 +1,413 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.springframework.http.HttpEntity;
+import org.springframework.web.client.ResourceAccessException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TestOutbox {
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = File.createTempFile("outbox", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+    }
+
+    @After
+    public void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static SendSmsClient succeedingClient() {
+        SendSmsClient client = new SendSmsClient();
+        client.setRestOperations(new MockRestTemplate.SucceededMockRestTemplate());
+        return client;
+    }
+
+    private static SendSmsClient unreachableClient() {
+        SendSmsClient client = new SendSmsClient();
+        client.setEndpoint("127.0.0.1:1");
+        client.setSecure(false);
+        client.setUserName("user123");
+        client.setPassword("pass456");
+        return client;
+    }
+
+    private Outbox open(SendSmsClient client) throws IOException {
+        Outbox outbox = new Outbox(directory, client);
+        outbox.setSegmentSize(4096);
+        outbox.open();
+        return outbox;
+    }
+
+    private static SendSmsRequest request(int n) {
+        SendSmsRequest request = new SendSmsRequest("message & \u20ac " + n, "4477009" + (100000 + n));
+        request.setUserKey(String.valueOf(n));
+        return request;
+    }
+
+    @Test
+    public void sendSms() throws Exception {
+        Outbox outbox = open(succeedingClient());
+        for (int n = 0; n < 3; n++) {
+            SendSmsResponse response = outbox.sendSms(request(n));
+            assertEquals(1, response.getMessages().size());
+        }
+        assertEquals(0, outbox.getPendingCount());
+        outbox.close();
+
+        outbox = open(succeedingClient());
+        assertEquals(0, outbox.getPendingCount());
+        assertEquals(0, outbox.replay(null));
+        outbox.close();
+    }
+
+    @Test
+    public void replay() throws Exception {
+        Outbox outbox = open(succeedingClient());
+        long first = outbox.enqueue(request(0));
+        outbox.enqueue(request(1));
+        outbox.enqueue(request(2));
+        outbox.acknowledge(first, null);
+        assertEquals(2, outbox.getPendingCount());
+        outbox.close();
+
+        // Reopened as after a crash
+        outbox = open(succeedingClient());
+        assertEquals(2, outbox.getPendingCount());
+        final List<String> recipients = new ArrayList<String>();
+        int replayed = outbox.replay(new SendSmsCallback() {
+            public void onSuccess(SendSmsResponse response) {
+                recipients.add(response.getMessages().get(0).getRecipient());
+            }
+
+            public void onFailure(Throwable e) {
+                fail(e.toString());
+            }
+        });
+        assertEquals(2, replayed);
+        assertEquals(2, recipients.size());
+        assertEquals(request(1).getRecipients().get(0), recipients.get(0));
+        assertEquals(request(2).getRecipients().get(0), recipients.get(1));
+        assertEquals(0, outbox.getPendingCount());
+
+        // Entries enqueued after opening are not replayed
+        outbox.enqueue(request(3));
+        assertEquals(0, outbox.replay(null));
+        outbox.close();
+
+        outbox = open(succeedingClient());
+        assertEquals(1, outbox.getPendingCount());
+        outbox.close();
+    }
+
+    @Test
+    public void unreachable() throws Exception {
+        Outbox outbox = open(unreachableClient());
+        try {
+            outbox.sendSms(request(0));
+            fail("IOException expected");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertEquals(1, outbox.getPendingCount());
+
+        final AtomicInteger failures = new AtomicInteger();
+        outbox.close();
+        outbox = open(unreachableClient());
+        outbox.enqueue(request(1));
+        assertEquals(0, outbox.replay(new SendSmsCallback() {
+            public void onSuccess(SendSmsResponse response) {
+                fail("Unreachable");
+            }
+
+            public void onFailure(Throwable e) {
+                assertTrue(e instanceof IOException);
+                failures.incrementAndGet();
+            }
+        }));
+        assertEquals(1, failures.get());
+        assertEquals(2, outbox.getPendingCount());
+        outbox.close();
+    }
+
+    @Test
+    public void failedSend_replayed() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        SendSmsClient client = new SendSmsClient();
+        client.setRestOperations(new MockRestTemplate.SucceededMockRestTemplate() {
+            @Override
+            public <T> T postForObject(String url, Object entity, Class<T> responseType, Object... uriVariables) {
+                if (attempts.incrementAndGet() == 1)
+                    throw new ResourceAccessException("Unreachable", new ConnectException());
+                return super.postForObject(url, entity, responseType, uriVariables);
+            }
+        });
+
+        Outbox outbox = open(client);
+        try {
+            outbox.sendSms(request(0));
+            fail("IOException expected");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertEquals(1, outbox.getPendingCount());
+
+        // Replayed without reopening, after which its segment can be deleted
+        final List<String> recipients = new ArrayList<String>();
+        assertEquals(1, outbox.replay(new SendSmsCallback() {
+            public void onSuccess(SendSmsResponse response) {
+                recipients.add(response.getMessages().get(0).getRecipient());
+            }
+
+            public void onFailure(Throwable e) {
+                fail(e.toString());
+            }
+        }));
+        assertEquals(request(0).getRecipients(), recipients);
+        assertEquals(0, outbox.getPendingCount());
+        for (int n = 1; n < 50; n++) {
+            outbox.sendSms(request(n));
+        }
+        assertEquals(1, outbox.getSegmentCount());
+        outbox.close();
+    }
+
+    @Test
+    public void deduplicated() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        SendSmsClient client = new SendSmsClient();
+        client.setRestOperations(new MockRestTemplate.SucceededMockRestTemplate() {
+            @Override
+            public <T> T postForObject(String url, Object entity, Class<T> responseType, Object... uriVariables) {
+                switch (attempts.incrementAndGet()) {
+                    case 1:
+                        throw new ResourceAccessException("Timed out", new SocketTimeoutException());
+                    case 2:
+                        throw new ResourceAccessException("Unreachable", new ConnectException());
+                    default:
+                        return super.postForObject(url, entity, responseType, uriVariables);
+                }
+            }
+        });
+        client.setDeduplicator(new Deduplicator(16, Deduplicator.DEFAULT_WINDOW));
+
+        // The timed out request may have been submitted and stays registered, the unreachable one not
+        Outbox outbox = open(client);
+        for (int n = 0; n < 2; n++) {
+            try {
+                outbox.sendSms(request(n));
+                fail("IOException expected");
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+        assertEquals(2, outbox.getPendingCount());
+
+        // The duplicate is acknowledged and does not hold up the next request
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        final List<String> recipients = new ArrayList<String>();
+        assertEquals(2, outbox.replay(new SendSmsCallback() {
+            public void onSuccess(SendSmsResponse response) {
+                recipients.add(response.getMessages().get(0).getRecipient());
+            }
+
+            public void onFailure(Throwable e) {
+                failures.add(e);
+            }
+        }));
+        assertEquals(1, failures.size());
+        assertTrue(failures.get(0) instanceof DuplicateSubmissionException);
+        assertEquals(request(1).getRecipients(), recipients);
+        assertEquals(0, outbox.getPendingCount());
+        outbox.close();
+    }
+
+    @Test
+    public void userKey() throws Exception {
+        final List<String> bodies = new ArrayList<String>();
+        SendSmsClient client = new SendSmsClient();
+        client.setRestOperations(new MockRestTemplate.SucceededMockRestTemplate() {
+            @Override
+            public <T> T postForObject(String url, Object entity, Class<T> responseType, Object... uriVariables) {
+                bodies.add(((HttpEntity<?>) entity).getBody().toString());
+                return super.postForObject(url, entity, responseType, uriVariables);
+            }
+        });
+        Outbox outbox = open(client);
+        outbox.enqueue(new SendSmsRequest("message", "447700900000"));
+        outbox.close();
+
+        // Derived before serializing, also for requests enqueued without a Deduplicator
+        client.setDeduplicator(new Deduplicator(16, Deduplicator.DEFAULT_WINDOW));
+        outbox = open(client);
+        SendSmsRequest request = new SendSmsRequest("message", "447700900001");
+        outbox.sendSms(request);
+        assertNotNull(request.getUserKey());
+        assertEquals(1, outbox.replay(null));
+        assertEquals(2, bodies.size());
+        for (String body : bodies) {
+            assertTrue(body, body.contains("X-E3-User-Key"));
+        }
+        outbox.close();
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        Outbox outbox = open(succeedingClient());
+        List<Long> ids = new ArrayList<Long>();
+        for (int n = 0; n < 50; n++) {
+            ids.add(outbox.enqueue(request(n)));
+        }
+        int segments = outbox.getSegmentCount();
+        assertTrue(segments > 2);
+        assertEquals(segments, directory.listFiles().length);
+
+        // The oldest segment cannot be deleted while its first entry is pending, and the acknowledgements
+        // are appended to the log as well
+        for (int n = 1; n < ids.size(); n++) {
+            outbox.acknowledge(ids.get(n), null);
+        }
+        assertTrue(outbox.getSegmentCount() >= segments);
+
+        outbox.acknowledge(ids.get(0), null);
+        assertEquals(1, outbox.getSegmentCount());
+        assertEquals(1, directory.listFiles().length);
+        outbox.close();
+    }
+
+    @Test
+    public void tornRecord() throws Exception {
+        Outbox outbox = open(succeedingClient());
+        outbox.enqueue(request(0));
+        outbox.enqueue(request(1));
+        outbox.close();
+
+        // Corrupt the last byte of the second record, as if the crash happened while writing it
+        File segment = directory.listFiles()[0];
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            int position = 0;
+            for (int n = 0; n < 2; n++) {
+                file.seek(position);
+                position += 4 + 1 + 8 + file.readInt() + 4;
+            }
+            file.seek(position - 1);
+            int last = file.read();
+            file.seek(position - 1);
+            file.write(last ^ 0xff);
+        } finally {
+            file.close();
+        }
+
+        outbox = open(succeedingClient());
+        assertEquals(1, outbox.getPendingCount());
+        assertEquals(1, outbox.replay(null));
+        outbox.close();
+    }
+
+    @Test
+    public void concurrentEnqueue() throws Exception {
+        final Outbox outbox = new Outbox(directory, succeedingClient());
+        outbox.open();
+        final CountDownLatch done = new CountDownLatch(4);
+        final AtomicInteger failures = new AtomicInteger();
+        for (int t = 0; t < 4; t++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int n = 0; n < 100; n++) {
+                            outbox.enqueue(request(n));
+                        }
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        done.await();
+        assertEquals(0, failures.get());
+        assertEquals(400, outbox.getPendingCount());
+        outbox.close();
+
+        Outbox reopened = new Outbox(directory, succeedingClient());
+        reopened.open();
+        assertEquals(400, reopened.getPendingCount());
+        reopened.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void notOpen() throws Exception {
+        new Outbox(directory, succeedingClient()).enqueue(request(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooLarge() throws Exception {
+        Outbox outbox = open(succeedingClient());
+        try {
+            StringBuilder message = new StringBuilder();
+            for (int n = 0; n < 5000; n++) {
+                message.append('x');
+            }
+            outbox.enqueue(new SendSmsRequest(message.toString(), "447700900000"));
+        } finally {
+            outbox.close();
+        }
+    }
+
+    @Test
+    public void invalid() throws Exception {
+        SendSmsClient client = succeedingClient();
+        client.setValidateSegments(true);
+        Outbox outbox = open(client);
+        try {
+            StringBuilder message = new StringBuilder();
+            for (int n = 0; n < 200; n++) {
+                message.append('x');
+            }
+            outbox.sendSms(new SendSmsRequest(message.toString(), "447700900000"));
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // Not enqueued, so it is never replayed
+            assertEquals(0, outbox.getPendingCount());
+        } finally {
+            outbox.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullClient() {
+        new Outbox(directory, null);
+    }
+}
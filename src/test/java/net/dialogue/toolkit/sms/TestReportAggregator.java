@@ -0,0 +1,179 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class TestReportAggregator {
+
+    private static SmsReport report(String network, String deliveryReport) {
+        SmsReport report = new SmsReport();
+        report.setNetwork(network);
+        report.setDeliveryReport(deliveryReport);
+        return report;
+    }
+
+    @Test
+    public void counts() {
+        ReportAggregator aggregator = new ReportAggregator();
+        aggregator.add(report("O2", "00"));
+        aggregator.add(report("O2", "00"));
+        aggregator.add(report("O2", "20"));
+        aggregator.add(report("Vodafone", "40"));
+        aggregator.add(report("Vodafone", "7A"));
+        aggregator.add(report(null, "xx"));
+
+        ReportAggregator.Snapshot snapshot = aggregator.snapshot();
+        assertEquals(Arrays.asList("O2", "Vodafone"), snapshot.getNetworks());
+        assertEquals(6L, snapshot.getTotal());
+        assertEquals(2L, snapshot.getCount("O2", State.Delivered));
+        assertEquals(1L, snapshot.getCount("O2", State.TemporaryError));
+        assertEquals(2L, snapshot.getCount("Vodafone", State.PermanentError));
+        assertEquals(1L, snapshot.getCount("Vodafone", 0x7A));
+        assertEquals(0L, snapshot.getCount("Unknown", State.Delivered));
+        assertEquals(1L, snapshot.getCount((String) null, State.Undefined));
+        assertEquals(1L, snapshot.getCount(null, -1));
+        assertEquals(2L, snapshot.getCount(State.Delivered));
+        assertEquals(1L, snapshot.getCount(State.Undefined));
+        assertTrue(snapshot.getStart() <= snapshot.getEnd());
+
+        // Snapshots do not change
+        aggregator.add(report("O2", "00"));
+        assertEquals(6L, snapshot.getTotal());
+        assertEquals(7L, aggregator.snapshot().getTotal());
+    }
+
+    @Test
+    public void maxNetworks() {
+        ReportAggregator aggregator = new ReportAggregator(1, 60000, 2);
+        for (int n = 0; n < 100; n++) {
+            aggregator.add(report("network" + n, "00"));
+        }
+        ReportAggregator.Snapshot snapshot = aggregator.snapshot();
+        assertEquals(Arrays.asList("network0", "network1"), snapshot.getNetworks());
+        assertEquals(98L, snapshot.getCount((String) null, State.Delivered));
+        assertEquals(100L, snapshot.getTotal());
+    }
+
+    @Test
+    public void latency() {
+        assertEquals(0, ReportAggregator.bin(0));
+        assertEquals(1, ReportAggregator.bin(1));
+        assertEquals(2, ReportAggregator.bin(2));
+        assertEquals(2, ReportAggregator.bin(3));
+        assertEquals(11, ReportAggregator.bin(1024));
+        assertEquals(ReportAggregator.LATENCY_BINS - 1, ReportAggregator.bin(Long.MAX_VALUE));
+
+        ReportAggregator aggregator = new ReportAggregator();
+        assertEquals(-1L, aggregator.snapshot().getLatencyPercentile(50));
+        for (int n = 0; n < 90; n++) {
+            aggregator.add(report("O2", "00"), 1000);
+        }
+        for (int n = 0; n < 10; n++) {
+            aggregator.add(report("Vodafone", "00"), 60000);
+        }
+        aggregator.add(report("O2", "00"));
+
+        ReportAggregator.Snapshot snapshot = aggregator.snapshot();
+        assertEquals(1023L, snapshot.getLatencyPercentile(50));
+        assertEquals(1023L, snapshot.getLatencyPercentile(90));
+        assertEquals(65535L, snapshot.getLatencyPercentile(99));
+        assertEquals(65535L, snapshot.getLatencyPercentile("Vodafone", 0));
+        assertEquals(90L, snapshot.getLatencyHistogram("O2")[10]);
+        assertEquals(91L, snapshot.getCount("O2", State.Delivered));
+    }
+
+    @Test
+    public void window() throws Exception {
+        ReportAggregator aggregator = new ReportAggregator(2, 100, 4);
+        aggregator.add(report("O2", "00"));
+        assertEquals(1L, aggregator.snapshot().getTotal());
+        Thread.sleep(250);
+        assertEquals(0L, aggregator.snapshot().getTotal());
+        aggregator.add(report("O2", "00"));
+        assertEquals(1L, aggregator.snapshot().getTotal());
+    }
+
+    @Test
+    public void timestamp() {
+        ReportAggregator aggregator = new ReportAggregator(3, 60000, 4);
+        long now = System.currentTimeMillis();
+        SmsReport earlier = report("O2", "00");
+        earlier.setTimestamp(new Date(now - 60000));
+        aggregator.add(earlier);
+        SmsReport future = report("O2", "20");
+        future.setTimestamp(new Date(now + 3600000));
+        aggregator.add(future);
+        SmsReport expired = report("O2", "40");
+        expired.setTimestamp(new Date(now - 3600000));
+        aggregator.add(expired);
+
+        // Counted by report timestamp; expired reports are not counted, future ones in the current interval
+        ReportAggregator.Snapshot snapshot = aggregator.snapshot();
+        assertEquals(2L, snapshot.getTotal());
+        assertEquals(1L, snapshot.getCount("O2", State.Delivered));
+        assertEquals(1L, snapshot.getCount("O2", State.TemporaryError));
+        assertEquals(0L, snapshot.getCount("O2", State.PermanentError));
+    }
+
+    @Test
+    public void lateReports() throws Exception {
+        ReportAggregator aggregator = new ReportAggregator(2, 500, 4);
+        long epoch = System.currentTimeMillis() / 500;
+        while (System.currentTimeMillis() / 500 == epoch) {
+            Thread.sleep(5);
+        }
+        long start = System.currentTimeMillis();
+        aggregator.add(report("O2", "00"), 10);
+        while (System.currentTimeMillis() / 500 == epoch + 1) {
+            Thread.sleep(5);
+        }
+
+        // The ended interval is folded and late reports add to its totals
+        assertEquals(1L, aggregator.snapshot().getTotal());
+        SmsReport late = report("O2", "00");
+        late.setTimestamp(new Date(start));
+        aggregator.add(late, 10);
+        aggregator.add(report("O2", "20"));
+        ReportAggregator.Snapshot snapshot = aggregator.snapshot();
+        assertEquals(3L, snapshot.getTotal());
+        assertEquals(2L, snapshot.getCount("O2", State.Delivered));
+        assertEquals(2L, snapshot.getLatencyHistogram("O2")[ReportAggregator.bin(10)]);
+    }
+
+    @Test
+    public void concurrent() throws Exception {
+        final ReportAggregator aggregator = new ReportAggregator(2, 60 * 60 * 1000, 4);
+        final CountDownLatch done = new CountDownLatch(8);
+        for (int t = 0; t < 8; t++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    for (int n = 0; n < 10000; n++) {
+                        aggregator.add(report("network" + (n % 3), "00"), n);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        ReportAggregator.Snapshot snapshot = aggregator.snapshot();
+        assertEquals(80000L, snapshot.getTotal());
+        assertEquals(80000L, snapshot.getCount(State.Delivered));
+        assertEquals(3, snapshot.getNetworks().size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullReport() {
+        new ReportAggregator().add(null);
+    }
+}
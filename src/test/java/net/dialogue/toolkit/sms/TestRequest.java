@@ -427,6 +427,79 @@ public class TestRequest {
                 xml.equals("<?xml version=\"1.0\" encoding=\"UTF-8\"?><sendSmsRequest><X-E3-Message>message</X-E3-Message><X-E3-Message>message2</X-E3-Message><X-E3-Recipients>recipient</X-E3-Recipients><X-E3-Recipients>recipient2</X-E3-Recipients><X-E3-Originating-Address>sender</X-E3-Originating-Address><X-E3-Concatenation-Limit>255</X-E3-Concatenation-Limit><X-E3-Schedule-For>20120901123000</X-E3-Schedule-For><X-E3-Confirm-Delivery>on</X-E3-Confirm-Delivery><X-E3-Reply-Path>/path</X-E3-Reply-Path><X-E3-User-Key>123457890</X-E3-User-Key><X-E3-Session-Reply-Path>/path</X-E3-Session-Reply-Path><X-E3-Session-ID>1234567890</X-E3-Session-ID><X-E3-User-Tag>123457890</X-E3-User-Tag><X-E3-Validity-Period>2w</X-E3-Validity-Period></sendSmsRequest>")
         );
     }
-}
 
+    @Test
+    public void properties() {
+        SendSmsRequest request = new SendSmsRequest("message", "recipient");
+        request.put("X-E3-A", "1");
+        request.put("X-E3-B", "2");
+        request.put("X-E3-C", "3");
+        request.put("X-E3-A", "4");
+        assertEquals(3, request.size());
+        assertEquals(Arrays.asList("X-E3-A", "X-E3-B", "X-E3-C"), new ArrayList<String>(request.keySet()));
+
+        Map<String, String> expected = new LinkedHashMap<String, String>();
+        expected.put("X-E3-A", "4");
+        expected.put("X-E3-B", "2");
+        expected.put("X-E3-C", "3");
+        assertEquals(expected, request);
+        assertEquals(expected.hashCode(), request.hashCode());
+
+        for (Iterator<Map.Entry<String, String>> it = request.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, String> entry = it.next();
+            if (entry.getKey().equals("X-E3-B"))
+                it.remove();
+            else
+                entry.setValue(entry.getValue() + "0");
+        }
+        assertEquals(Arrays.asList("X-E3-A", "X-E3-C"), new ArrayList<String>(request.keySet()));
+        assertEquals("40", request.get("X-E3-A"));
+        assertEquals("30", request.get("X-E3-C"));
+
+        for (int i = 0; i < 20; i++) {
+            request.put("X-E3-" + i, Integer.toString(i));
+        }
+        assertEquals(22, request.size());
+        assertEquals("19", request.get("X-E3-19"));
+
+        request.clear();
+        assertTrue(request.isEmpty());
+        assertNull(request.get("X-E3-A"));
+    }
+
+    @Test
+    public void typed_properties_follow_map_changes() {
+        SendSmsRequest request = new SendSmsRequest("message", "recipient");
+        request.setConcatenationLimit(3);
+        assertEquals(request.getConcatenationLimit(), Integer.valueOf(3));
+        request.put("X-E3-Concatenation-Limit", "5");
+        assertEquals(request.getConcatenationLimit(), Integer.valueOf(5));
+        request.remove("X-E3-Concatenation-Limit");
+        assertNull(request.getConcatenationLimit());
+
+        request.put("X-E3-Validity-Period", "10d");
+        assertEquals(request.getValidityPeriod(), Long.valueOf(DAY * 10));
+        request.setValidityPeriod(MINUTE * 90);
+        assertEquals(request.get("X-E3-Validity-Period"), "90m");
+        assertEquals(request.getValidityPeriod(), Long.valueOf(MINUTE * 90));
+
+        request.put("X-E3-Schedule-For", "20120901123000");
+        Date scheduleFor = request.getScheduleFor();
+        request.putAll(Collections.singletonMap("X-E3-Schedule-For", "20120901133000"));
+        assertEquals(request.getScheduleFor().getTime() - scheduleFor.getTime(), HOUR);
+    }
 
+    @Test
+    public void typed_properties_follow_entry_changes() {
+        SendSmsRequest request = new SendSmsRequest("message", "recipient");
+        request.setConcatenationLimit(3);
+        request.entrySet().iterator().next().setValue("4");
+        assertEquals(request.getConcatenationLimit(), Integer.valueOf(4));
+
+        // A clone shares the property values, not the properties
+        SendSmsRequest clone = (SendSmsRequest) request.clone();
+        clone.put("X-E3-Concatenation-Limit", "5");
+        assertEquals(request.getConcatenationLimit(), Integer.valueOf(4));
+        assertEquals(clone.getConcatenationLimit(), Integer.valueOf(5));
+    }
+}
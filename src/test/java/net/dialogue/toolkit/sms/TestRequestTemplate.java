@@ -0,0 +1,109 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestRequestTemplate {
+
+    private static final String TEXT = "Fish & chips <\u00a33.50> \"today\"\r\n\u0001\u0085\ud83d\ude00 \u20ac";
+
+    private static SendSmsRequest prototype() {
+        SendSmsRequest request = new SendSmsRequest(Arrays.asList("message", TEXT), "ignored");
+        request.setSender("sender");
+        request.setConcatenationLimit(3);
+        request.setReplyPath("/path?a=1&b=2");
+        request.setUserTag("");
+        request.setValidityPeriod(1000L * 60 * 60 * 24);
+        return request;
+    }
+
+    private static String expected(SendSmsRequest template, List<String> recipients) {
+        SendSmsRequest request = new SendSmsRequest(template.getMessages(), recipients);
+        request.putAll(template);
+        return request.toString();
+    }
+
+    @Test
+    public void sameXmlAsRequest() {
+        SendSmsRequest prototype = prototype();
+        SendSmsRequestTemplate template = new SendSmsRequestTemplate(prototype);
+        List<String> recipients = Arrays.asList("447700900000", TEXT, "");
+
+        SendSmsRequest request = template.createRequest(recipients);
+        assertEquals(expected(prototype, recipients), request.toString());
+        assertEquals(prototype, request);
+        assertEquals(Integer.valueOf(3), request.getConcatenationLimit());
+
+        // Fragments are reused on the next request
+        request = template.createRequest("447700900001");
+        assertEquals(expected(prototype, Arrays.asList("447700900001")), request.toString());
+    }
+
+    @Test
+    public void changedRequest() {
+        SendSmsRequest prototype = prototype();
+        SendSmsRequestTemplate template = new SendSmsRequestTemplate(prototype);
+
+        SendSmsRequest request = template.createRequest("447700900000");
+        request.setUserKey("key & value");
+        request.setConcatenationLimit(5);
+        request.remove("X-E3-Originating-Address");
+
+        prototype.setUserKey("key & value");
+        prototype.setConcatenationLimit(5);
+        prototype.remove("X-E3-Originating-Address");
+        assertEquals(expected(prototype, Arrays.asList("447700900000")), request.toString());
+
+        request.setMessage("other");
+        prototype.setMessage("other");
+        assertEquals(expected(prototype, Arrays.asList("447700900000")), request.toString());
+
+        // Neither the template nor other requests are affected
+        SendSmsRequest other = template.createRequest("447700900001");
+        assertNull(other.getUserKey());
+        assertEquals("sender", other.getSender());
+        assertEquals(Integer.valueOf(3), other.getConcatenationLimit());
+        assertEquals(2, template.getMessages().size());
+        assertEquals(5, template.getProperties().size());
+
+        other.clear();
+        assertTrue(other.isEmpty());
+        assertEquals(5, template.createRequest("447700900002").size());
+    }
+
+    @Test
+    public void templateIsCopied() {
+        SendSmsRequest prototype = prototype();
+        SendSmsRequestTemplate template = new SendSmsRequestTemplate(prototype);
+        prototype.setUserKey("key");
+        prototype.setMessage("changed");
+
+        assertFalse(template.getProperties().containsKey("X-E3-User-Key"));
+        assertEquals("message", template.getMessages().get(0));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void messagesUnmodifiable() {
+        new SendSmsRequestTemplate(prototype()).getMessages().add("message");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullPrototype() {
+        new SendSmsRequestTemplate(null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyRecipient() {
+        new SendSmsRequestTemplate(prototype()).createRequest("");
+    }
+}
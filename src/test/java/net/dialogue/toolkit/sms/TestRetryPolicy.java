@@ -0,0 +1,217 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import org.springframework.web.client.HttpServerErrorException;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class TestRetryPolicy {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maxAttempts_invalid() throws Exception {
+        new RetryPolicy().setMaxAttempts(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void backoff_invalid() throws Exception {
+        new RetryPolicy().setBackoff(100, 10);
+    }
+
+    @Test
+    public void retryable() throws Exception {
+        RetryPolicy policy = new RetryPolicy();
+        assertTrue(policy.isRetryable(createSms("a", StatusCodes.RetryError.STATUS_CONGESTION)));
+        assertFalse(policy.isRetryable(createSms("a", StatusCodes.TransactionCompleted.STATUS_SUCCESSFUL)));
+        assertFalse(policy.isRetryable(createSms("a", StatusCodes.PermanentError.STATUS_NOT_OBTAINABLE)));
+        assertFalse(policy.isRetryable(createSms("a", null)));
+    }
+
+    @Test
+    public void backoff() throws Exception {
+        RetryPolicy policy = new RetryPolicy();
+        policy.setBackoff(100, 300);
+        policy.setMaxAttempts(10);
+        policy.setBudget(0, 100);
+
+        long start = System.currentTimeMillis();
+        for (int attempt = 1; attempt < 10; attempt++) {
+            long expected = Math.min(100L << (attempt - 1), 300);
+            long backoff = policy.retry(attempt, start);
+            assertTrue(backoff >= expected / 2 && backoff <= expected);
+        }
+        assertEquals(-1L, policy.retry(10, start));
+    }
+
+    @Test
+    public void budget() throws Exception {
+        RetryPolicy policy = new RetryPolicy();
+        policy.setBackoff(0, 0);
+        policy.setBudget(0.5, 2);
+
+        long start = System.currentTimeMillis();
+        assertTrue(policy.retry(1, start) >= 0);
+        assertTrue(policy.retry(1, start) >= 0);
+        assertEquals(-1L, policy.retry(1, start));
+
+        // Two submissions earn one retry
+        policy.onSubmission();
+        assertEquals(-1L, policy.retry(1, start));
+        policy.onSubmission();
+        assertTrue(policy.retry(1, start) >= 0);
+    }
+
+    @Test
+    public void deadline() throws Exception {
+        RetryPolicy policy = new RetryPolicy();
+        policy.setBackoff(1000, 1000);
+        policy.setDeadline(500);
+        assertEquals(-1L, policy.retry(1, System.currentTimeMillis()));
+    }
+
+    @Test
+    public void retry_failed_recipients() throws Exception {
+        final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+        StubServer server = new StubServer() {
+            @Override
+            protected String respond(String request) {
+                requests.add(request);
+                // Recipient "busy" is congested on the first attempt, "barred" always fails permanently
+                String response = super.respond(request);
+                if (requests.size() == 1)
+                    response = response.replaceAll("(X-E3-Recipients=\"busy\" X-E3-Submission-Report=)\"00\"",
+                            "$1\"" + StatusCodes.RetryError.STATUS_CONGESTION + "\"");
+                return response.replaceAll("(X-E3-Recipients=\"barred\" X-E3-Submission-Report=)\"00\"",
+                        "$1\"" + StatusCodes.PermanentError.STATUS_OPERATOR_BAR + "\"");
+            }
+        };
+        try {
+            RetryPolicy policy = new RetryPolicy();
+            policy.setBackoff(10, 10);
+            SendSmsClient client = createClient(server.getEndpoint(), policy);
+
+            SendSmsRequest request = new SendSmsRequest("message", Arrays.asList("ok", "busy", "barred"));
+            request.setUserTag("tag");
+            SendSmsResponse response = client.sendSms(request);
+
+            assertEquals(2, requests.size());
+            assertTrue(requests.get(1).contains("<X-E3-Recipients>busy</X-E3-Recipients>"));
+            assertFalse(requests.get(1).contains("<X-E3-Recipients>ok</X-E3-Recipients>"));
+            assertFalse(requests.get(1).contains("<X-E3-Recipients>barred</X-E3-Recipients>"));
+            assertTrue(requests.get(1).contains("<X-E3-User-Tag>tag</X-E3-User-Tag>"));
+
+            assertEquals(3, response.getMessages().size());
+            for (Sms sms : response.getMessages()) {
+                assertEquals(!sms.getRecipient().equals("barred"), sms.isSuccessful());
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void retry_ioException() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+
+        RetryPolicy policy = new RetryPolicy();
+        policy.setBackoff(100, 100);
+        policy.setMaxAttempts(3);
+        SendSmsClient client = createClient("127.0.0.1:" + port, policy);
+
+        long start = System.currentTimeMillis();
+        try {
+            client.sendSms(new SendSmsRequest("message", "recipient"));
+            fail();
+        } catch (IOException e) {
+            // Two retries of at least 50ms each
+            assertTrue(System.currentTimeMillis() - start >= 100);
+        }
+    }
+
+    @Test
+    public void retry_readTimeout() throws Exception {
+        StubServer server = new StubServer();
+        server.setDelay(500);
+        SendSmsClient client = new SendSmsClient.Builder()
+                .endpoint(server.getEndpoint())
+                .credentials("user123", "pass456")
+                .secure(false)
+                .readTimeout(100)
+                .retry()
+                .build();
+        try {
+            client.sendSms(new SendSmsRequest("message", "recipient"));
+            fail();
+        } catch (IOException e) {
+            // The endpoint may have accepted the request, so it is not sent again
+            assertEquals(1, server.getRequests());
+        } finally {
+            client.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void retry_partial() throws Exception {
+        final StubServer[] servers = new StubServer[1];
+        servers[0] = new StubServer() {
+            @Override
+            protected String respond(String request) {
+                // Recipient "busy" is congested, the retry fails with a server error
+                servers[0].setStatus(503);
+                return super.respond(request).replaceAll(
+                        "(X-E3-Recipients=\"busy\" X-E3-Submission-Report=)\"00\"",
+                        "$1\"" + StatusCodes.RetryError.STATUS_CONGESTION + "\"");
+            }
+        };
+        try {
+            RetryPolicy policy = new RetryPolicy();
+            policy.setBackoff(10, 10);
+            SendSmsClient client = createClient(servers[0].getEndpoint(), policy);
+
+            try {
+                client.sendSms(new SendSmsRequest("message", Arrays.asList("ok", "busy")));
+                fail();
+            } catch (PartialSubmissionException e) {
+                assertEquals(1, e.getMessages().size());
+                assertEquals("ok", e.getMessages().get(0).getRecipient());
+                assertTrue(e.getMessages().get(0).isSuccessful());
+                assertEquals(Arrays.asList("busy"), e.getRecipients());
+                assertTrue(e.getCause() instanceof HttpServerErrorException);
+            }
+            assertEquals(2, servers[0].getRequests());
+        } finally {
+            servers[0].close();
+        }
+    }
+
+    private static SendSmsClient createClient(String endpoint, RetryPolicy policy) {
+        return new SendSmsClient.Builder()
+                .endpoint(endpoint)
+                .credentials("user123", "pass456")
+                .secure(false)
+                .retry(policy)
+                .build();
+    }
+
+    private static Sms createSms(String recipient, String submissionReport) {
+        Sms sms = new Sms();
+        sms.setRecipient(recipient);
+        sms.setSubmissionReport(submissionReport);
+        return sms;
+    }
+}
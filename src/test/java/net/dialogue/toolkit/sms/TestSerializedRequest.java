@@ -0,0 +1,111 @@
+/*
+ * toolkit-java
+ *
+ * Copyright (C) 2012 Dialogue Communications Ltd.
+ */
+
+package net.dialogue.toolkit.sms;
+
+import org.junit.Test;
+
+import org.springframework.http.HttpEntity;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static net.dialogue.toolkit.sms.SendSmsClient.Builder.TRANSPORT_SIMPLE_STREAMING_CLIENT;
+import static org.junit.Assert.*;
+
+public class TestSerializedRequest {
+
+    @Test
+    public void body() throws Exception {
+        SendSmsRequest request = new SendSmsRequest(Arrays.asList("message", "\u20ac & <>"), "447700900000");
+        request.setUserKey("key");
+        String xml = request.toString();
+
+        SerializedSendSmsRequest serialized = new SerializedSendSmsRequest(request);
+        assertSame(request, serialized.getRequest());
+        assertEquals(xml, serialized.toString());
+        assertEquals(xml.getBytes("UTF-8").length, serialized.getLength());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serialized.writeTo(out);
+        assertEquals(xml, out.toString("UTF-8"));
+
+        ByteBuffer body = serialized.getBody();
+        assertTrue(body.isReadOnly());
+        assertEquals(serialized.getLength(), body.remaining());
+
+        // Snapshot of the request
+        request.setUserKey("changed");
+        assertEquals(xml, serialized.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullRequest() throws Exception {
+        new SerializedSendSmsRequest((SendSmsRequest) null);
+    }
+
+    @Test
+    public void sendSms() throws Exception {
+        StubServer server = new StubServer();
+        try {
+            // The first endpoint refuses connections, so the body is sent again on the second
+            SendSmsClient client = new SendSmsClient.Builder()
+                    .transport(TRANSPORT_SIMPLE_STREAMING_CLIENT)
+                    .endpoints("127.0.0.1:1," + server.getEndpoint())
+                    .credentials("user123", "pass456")
+                    .secure(false)
+                    .build();
+
+            SerializedSendSmsRequest serialized = new SerializedSendSmsRequest(
+                    new SendSmsRequest("message", Arrays.asList("447700900000", "447700900001")));
+            for (int n = 0; n < 4; n++) {
+                SendSmsResponse response = client.sendSms(serialized);
+                assertEquals(2, response.getMessages().size());
+                assertTrue(response.getMessages().get(0).isSuccessful());
+                assertEquals(serialized.toString(), server.getLastRequest());
+                assertFalse(server.isLastChunked());
+            }
+            assertEquals(4, server.getRequests());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void mockRestTemplate() throws Exception {
+        SendSmsClient client = new SendSmsClient();
+        client.setRestOperations(new MockRestTemplate.SucceededMockRestTemplate());
+        SendSmsResponse response = client.sendSms(new SerializedSendSmsRequest(
+                new SendSmsRequest("message", "447700900000")));
+        assertEquals(1, response.getMessages().size());
+        assertEquals("447700900000", response.getMessages().get(0).getRecipient());
+    }
+
+    @Test
+    public void sendSms_unserialized() throws Exception {
+        final List<Object> bodies = new ArrayList<Object>();
+        SendSmsClient client = new SendSmsClient();
+        client.setRestOperations(new MockRestTemplate.SucceededMockRestTemplate() {
+            @Override
+            public <T> T postForObject(String url, Object entity, Class<T> responseType, Object... uriVariables) {
+                bodies.add(((HttpEntity<?>) entity).getBody());
+                return super.postForObject(url, entity, responseType, uriVariables);
+            }
+        });
+
+        // Only requests serialized by the caller are sent serialized
+        SendSmsRequest request = new SendSmsRequest("message", "447700900000");
+        client.sendSms(request);
+        SerializedSendSmsRequest serialized = new SerializedSendSmsRequest(request);
+        client.sendSms(serialized);
+        assertEquals(2, bodies.size());
+        assertSame(request, bodies.get(0));
+        assertSame(serialized, bodies.get(1));
+    }
+}
@@ -13,6 +13,9 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 
 public class TestSmsReply {
 
@@ -72,4 +75,72 @@ public class TestSmsReply {
                         "Network: Orange"
         );
     }
+
+    @Test
+    public void testMessageIso885915() throws Exception {
+        StringBuilder hex = new StringBuilder();
+        byte[] data = new byte[256];
+        for (int i = 0; i < 256; i++) {
+            data[i] = (byte) i;
+            hex.append(String.format("%02X", i));
+        }
+
+        SmsReply reply = new SmsReply();
+        reply.setHexMessage(hex.toString());
+        assertEquals(new String(data, "ISO-8859-15"), reply.getMessage());
+        reply.setHexMessage(hex.toString().toLowerCase());
+        assertEquals(new String(data, "ISO-8859-15"), reply.getMessage());
+    }
+
+    @Test
+    public void testMessageUcs2() throws Exception {
+        String text = "Vote \u20AC5 \u4F60\u597D \uD83D\uDE00";
+        StringBuilder hex = new StringBuilder();
+        for (byte b : text.getBytes("UTF-16BE")) {
+            hex.append(String.format("%02X", b));
+        }
+
+        SmsReply reply = SmsReply.getInstance("<callback X-E3-Data-Coding-Scheme=\"08\" X-E3-Hex-Message=\"" +
+                hex + "\" X-E3-Timestamp=\"2011-11-25 12:14:23\"/>");
+        assertEquals("08", reply.getDataCodingScheme());
+        assertEquals(text.length(), reply.getMessageLength());
+        assertEquals(text, reply.getMessage());
+    }
+
+    @Test
+    public void testMessageBuffers() throws Exception {
+        SmsReply reply = new SmsReply();
+        reply.setHexMessage("54657374A4");
+
+        CharBuffer chars = CharBuffer.allocate(16);
+        chars.put('>');
+        assertEquals(5, reply.getMessage(chars));
+        chars.flip();
+        assertEquals(">Test\u20AC", chars.toString());
+
+        ByteBuffer bytes = ByteBuffer.allocate(5);
+        assertEquals(5, reply.getMessageData(bytes));
+        assertEquals((byte) 0xA4, bytes.get(4));
+
+        try {
+            reply.getMessage(CharBuffer.allocate(4));
+            fail();
+        } catch (BufferOverflowException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testMessageCache() throws Exception {
+        SmsReply reply = new SmsReply();
+        reply.setHexMessage("54657374");
+        String message = reply.getMessage();
+        assertSame(message, reply.getMessage());
+
+        reply.setHexMessage("41");
+        assertEquals("A", reply.getMessage());
+        reply.setDataCodingScheme("08");
+        reply.setHexMessage("00410042");
+        assertEquals("AB", reply.getMessage());
+    }
 }
@@ -91,4 +91,27 @@ public class TestSmsReport {
         report.setDeliveryReport("80");
         report.getState();
     }
+
+    @Test
+    public void testStatusCode() {
+        SmsReport report = new SmsReport();
+        assertEquals(-1, report.getStatusCode());
+        report.setDeliveryReport("4a");
+        assertEquals(0x4A, report.getStatusCode());
+        assertEquals(State.PermanentError, report.getState());
+        report.setDeliveryReport("xx");
+        assertEquals(-1, report.getStatusCode());
+        report.setDeliveryReport(null);
+        assertEquals(-1, report.getStatusCode());
+        assertEquals(State.Undefined, report.getState());
+
+        Sms sms = new Sms();
+        assertEquals(-1, sms.getStatusCode());
+        sms.setSubmissionReport("00");
+        assertEquals(0, sms.getStatusCode());
+        assertTrue(sms.isSuccessful());
+        sms.setSubmissionReport("7B");
+        assertEquals(0x7B, sms.getStatusCode());
+        assertFalse(sms.isSuccessful());
+    }
 }
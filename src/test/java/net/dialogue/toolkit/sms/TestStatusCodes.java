@@ -208,4 +208,62 @@ public class TestStatusCodes {
     public void testGetDescriptionEmptyStatusCode() {
         StatusCodes.INSTANCE.getDescription("");
     }
+
+    // Classification
+    @Test
+    public void testClassify() {
+        StatusCodes statusCodes = StatusCodes.INSTANCE;
+
+        assertEquals(StatusCodes.Category.TransactionCompleted, statusCodes.classify("00"));
+        assertEquals(StatusCodes.Category.TemporaryError, statusCodes.classify("2a"));
+        assertEquals(StatusCodes.Category.PermanentError, statusCodes.classify("4A"));
+        assertEquals(StatusCodes.Category.RetryError, statusCodes.classify("7F"));
+        assertEquals(StatusCodes.Category.Unknown, statusCodes.classify("80"));
+        assertEquals(StatusCodes.Category.Unknown, statusCodes.classify("xx"));
+        assertEquals(StatusCodes.Category.Unknown, statusCodes.classify(-1));
+        assertEquals(StatusCodes.Category.Unknown, statusCodes.classify(0x80));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testClassifyNullStatusCode() {
+        StatusCodes.INSTANCE.classify(null);
+    }
+
+    @Test
+    public void testDecodeMatchesParseInt() {
+        String[] inputs = {"0", "F", "000", "07F", "+A", "-0", "-A", "+-", "++", "x1", "1x", "\u0661\u0662", "FFFFFFFF"};
+        for (String input : inputs) {
+            assertEquals(input, parse(input), StatusCodes.decode(input));
+        }
+
+        for (char first = 0; first < 256; first++) {
+            for (char second = 0; second < 256; second++) {
+                String input = new String(new char[]{first, second});
+                assertEquals(input, parse(input), StatusCodes.decode(input));
+            }
+        }
+    }
+
+    @Test
+    public void testDescriptions() {
+        StatusCodes statusCodes = StatusCodes.INSTANCE;
+
+        assertEquals("Successful", statusCodes.getDescription("00"));
+        assertEquals("Successful", statusCodes.getDescription(0x00));
+        assertEquals("Unknown subscriber", statusCodes.getDescription("4a"));
+        assertEquals("Unknown subscriber", statusCodes.getDescription(0x4A));
+        assertEquals("Unknown status code 0a", statusCodes.getDescription("0a"));
+        assertEquals("Unknown status code 0A", statusCodes.getDescription(0x0A));
+        assertEquals("Unknown status code +0", statusCodes.getDescription("+0"));
+        assertEquals("Unknown status code 100", statusCodes.getDescription(0x100));
+        assertEquals("Unknown status code FFFFFFFF", statusCodes.getDescription(-1));
+    }
+
+    private static int parse(String statusCode) {
+        try {
+            return Integer.parseInt(statusCode, 16);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
 }